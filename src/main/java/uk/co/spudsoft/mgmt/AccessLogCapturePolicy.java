@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policy controlling which requests are captured by the {@link AccessLogCaptureRoute}.
+ * <p>
+ * Three mechanisms are available, all of which are disabled by default (so every request is captured):
+ * <ul>
+ * <li>Sampling.
+ * When the sample rate is N (greater than 1) each request has a 1 in N chance of being captured.
+ * The decision is made when the request arrives, and requests that are not sampled do not incur any further capture cost
+ * (unless tail retention is enabled).
+ * <li>Rate limiting.
+ * When a maximum rate is set, sampled requests are only captured if a token is available from a token bucket
+ * that is refilled at that rate and holds up to the burst size.
+ * Without tail retention the token is taken when the request arrives, so requests over the rate do not incur any further
+ * capture cost either.
+ * With tail retention the token is taken when the response has been written, and only for requests that are not
+ * retained by tail retention, so tokens are not spent on requests that would have been captured anyway.
+ * <li>Tail retention.
+ * Requests that fail with a 5xx status code, or that take at least the slow threshold, are always captured,
+ * regardless of sampling and rate limiting.
+ * The decision is made when the response has been written.
+ * </ul>
+ * <p>
+ * The policy should be configured before it is used, the setters are not thread safe.
+ *
+ * @author jtalbut
+ */
+public class AccessLogCapturePolicy {
+
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  private int sampleRate = 1;
+  private double maxPerSecond;
+  private int burst;
+  private boolean retainErrors;
+  private long slowThresholdMs;
+
+  private long emissionIntervalNanos;
+  private long toleranceNanos;
+  private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * Constructor.
+   * <p>
+   * The default policy captures every request.
+   */
+  public AccessLogCapturePolicy() {
+  }
+
+  /**
+   * Get the sample rate, 1 in this many requests will be captured.
+   * @return the sample rate, 1 in this many requests will be captured.
+   */
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * Set the sample rate, 1 in this many requests will be captured.
+   * @param sampleRate the sample rate, values less than 2 mean that every request is sampled.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCapturePolicy setSampleRate(int sampleRate) {
+    this.sampleRate = Math.max(1, sampleRate);
+    return this;
+  }
+
+  /**
+   * Get the maximum number of sampled requests to capture per second.
+   * @return the maximum number of sampled requests to capture per second, zero means there is no limit.
+   */
+  public double getMaxPerSecond() {
+    return maxPerSecond;
+  }
+
+  /**
+   * Set the maximum number of sampled requests to capture per second.
+   * <p>
+   * Requests retained by tail retention are not subject to this limit.
+   * @param maxPerSecond the maximum number of sampled requests to capture per second, zero (or less) means there is no limit.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCapturePolicy setMaxPerSecond(double maxPerSecond) {
+    this.maxPerSecond = Math.max(0, maxPerSecond);
+    updateBucket();
+    return this;
+  }
+
+  /**
+   * Get the number of requests that may be captured in a burst above the maximum rate.
+   * @return the number of requests that may be captured in a burst above the maximum rate.
+   */
+  public int getBurst() {
+    return burst;
+  }
+
+  /**
+   * Set the number of requests that may be captured in a burst above the maximum rate.
+   * <p>
+   * If not set the burst size is one second's worth of requests at the maximum rate.
+   * @param burst the number of requests that may be captured in a burst above the maximum rate.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCapturePolicy setBurst(int burst) {
+    this.burst = Math.max(0, burst);
+    updateBucket();
+    return this;
+  }
+
+  /**
+   * Get whether requests that fail with a 5xx status code are always captured.
+   * @return true if requests that fail with a 5xx status code are always captured.
+   */
+  public boolean isRetainErrors() {
+    return retainErrors;
+  }
+
+  /**
+   * Set whether requests that fail with a 5xx status code are always captured.
+   * @param retainErrors true if requests that fail with a 5xx status code should always be captured.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCapturePolicy setRetainErrors(boolean retainErrors) {
+    this.retainErrors = retainErrors;
+    return this;
+  }
+
+  /**
+   * Get the duration, in milliseconds, at or above which requests are always captured.
+   * @return the duration, in milliseconds, at or above which requests are always captured, zero means that this is disabled.
+   */
+  public long getSlowThresholdMs() {
+    return slowThresholdMs;
+  }
+
+  /**
+   * Set the duration, in milliseconds, at or above which requests are always captured.
+   * @param slowThresholdMs the duration, in milliseconds, at or above which requests are always captured, zero (or less) disables this.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCapturePolicy setSlowThresholdMs(long slowThresholdMs) {
+    this.slowThresholdMs = Math.max(0, slowThresholdMs);
+    return this;
+  }
+
+  private void updateBucket() {
+    if (maxPerSecond > 0) {
+      emissionIntervalNanos = Math.max(1, (long) (NANOS_PER_SECOND / maxPerSecond));
+      int effectiveBurst = burst > 0 ? burst : (int) Math.max(1, Math.ceil(maxPerSecond));
+      toleranceNanos = emissionIntervalNanos * (effectiveBurst - 1);
+    } else {
+      emissionIntervalNanos = 0;
+      toleranceNanos = 0;
+    }
+  }
+
+  /**
+   * Return true if this policy may capture requests that were not sampled when they arrived.
+   * @return true if this policy may capture requests that were not sampled when they arrived.
+   */
+  boolean hasTailRetention() {
+    return retainErrors || slowThresholdMs > 0;
+  }
+
+  /**
+   * Make the sampling decision for a newly arrived request.
+   * <p>
+   * Without tail retention this also takes a token from the bucket, so that requests over the maximum rate are not captured at all.
+   * @return true if the request is sampled.
+   */
+  boolean sample() {
+    boolean sampled = sampleRate <= 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    if (sampled && !hasTailRetention()) {
+      return tryAcquire(System.nanoTime());
+    }
+    return sampled;
+  }
+
+  /**
+   * Make the final decision about whether a completed request should be captured.
+   * @param sampled The result of calling {@link #sample()} when the request arrived.
+   * @param statusCode The status code of the response.
+   * @param durationMs The duration of the request, in milliseconds.
+   * @return true if the request should be captured.
+   */
+  boolean retain(boolean sampled, int statusCode, long durationMs) {
+    if (!hasTailRetention()) {
+      // The token was taken when the request was sampled
+      return sampled;
+    }
+    if (retainErrors && statusCode >= 500 && statusCode < 600) {
+      return true;
+    }
+    if (slowThresholdMs > 0 && durationMs >= slowThresholdMs) {
+      return true;
+    }
+    return sampled && tryAcquire(System.nanoTime());
+  }
+
+  /**
+   * Try to take a token from the bucket.
+   * <p>
+   * The bucket is implemented as a generic cell rate algorithm, which needs only a single atomic value: the theoretical
+   * time at which the next request would arrive if requests arrived at exactly the maximum rate.
+   * @param now The current value of System.nanoTime.
+   * @return true if a token was available.
+   */
+  boolean tryAcquire(long now) {
+    if (emissionIntervalNanos == 0) {
+      return true;
+    }
+    while (true) {
+      long tat = theoreticalArrival.get();
+      long base = tat == Long.MIN_VALUE || tat - now < 0 ? now : tat;
+      if (base - now > toleranceNanos) {
+        return false;
+      }
+      if (theoreticalArrival.compareAndSet(tat, base + emissionIntervalNanos)) {
+        return true;
+      }
+    }
+  }
+
+}
@@ -17,58 +17,300 @@
 package uk.co.spudsoft.mgmt;
 
 import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.net.HostAndPort;
+import io.vertx.core.net.SocketAddress;
 import io.vertx.ext.web.RoutingContext;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A Vertx HTTP Server route capturing requests and storing them in a RingBuffer.
- * 
+ *
  * The captured routes can be output via the AccessLogOutputRoute.
+ * <p>
+ * Which requests are captured can be controlled by an {@link AccessLogCapturePolicy}, by default all requests are captured.
+ * <p>
+ * Requests are captured when the response body has been written, as an immutable {@link AccessLogData} snapshot.
+ * The snapshot does not retain any reference to the request, response or connection.
+ * <p>
+ * The duration of each request, and the time taken to reach each phase of it (request body read, response headers written),
+ * are measured using {@link System#nanoTime()} from the moment that this handler is entered, so they are not affected by
+ * changes to the system clock and are accurate for requests that take less than a millisecond.
+ * The wall clock is only used for the timestamps.
+ * <p>
+ * Request and response headers are the main memory cost of each captured request, so the headers captured can be restricted
+ * with an allowlist and/or a denylist of header names.
+ * Header names and values, hosts, URIs and remote addresses are passed through a bounded {@link StringInterner}, so that the
+ * many captured requests with the same values (user agents, content types, common paths, etc.) share a single copy of each.
  *
  * @author jtalbut
  */
 public class AccessLogCaptureRoute implements Handler<RoutingContext> {
 
   private static final Logger logger = LoggerFactory.getLogger(AccessLogCaptureRoute.class);
-  
-  private final RingBuffer<AccessLogData> buffer;
-  
+
+  private static final String[] NO_HEADERS = new String[0];
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  /**
+   * The default number of slots in the table used to share repeated strings between captured requests.
+   */
+  public static final int DEFAULT_INTERN_CAPACITY = 4096;
+
+  private final SnapshotBuffer<AccessLogData> buffer;
+  private final AccessLogSpill spill;
+  private final CommittedSequence sequence = new CommittedSequence();
+  private final List<Consumer<AccessLogData>> listeners = new CopyOnWriteArrayList<>();
+  private volatile AccessLogCapturePolicy policy = new AccessLogCapturePolicy();
+  private volatile SlowestBuffer<AccessLogData> slowest;
+  private volatile AccessLogFileWriter fileWriter;
+  private volatile Set<String> headerAllowlist;
+  private volatile Set<String> headerDenylist;
+  private volatile StringInterner interner = new StringInterner(DEFAULT_INTERN_CAPACITY);
+
   /**
-   * POD for holding captured data relating to a request.
+   * The type of buffer used to store captured requests.
+   */
+  public enum Storage {
+    /**
+     * A single lock-free {@link RingBuffer} shared by all threads.
+     */
+    SHARED,
+    /**
+     * A {@link StripedRingBuffer} with a separate buffer for each event loop, merged by timestamp when read.
+     * <p>
+     * This reduces the capture cost when there are many event loops, at the expense of storing up to bufferSize requests
+     * for each event loop (and for threads that are not event loops), so the memory used is up to bufferSize &times; (the number
+     * of event loops + 1) requests.
+     */
+    STRIPED,
+    /**
+     * A {@link ColumnarAccessLogBuffer}, storing each field in a primitive array.
+     * <p>
+     * This reduces the cost of each entry to a few dozen bytes, making it practical to keep hundreds of thousands of requests,
+     * but only the Referer and User-Agent headers are retained.
+     */
+    COLUMNAR
+  }
+
+  /**
+   * Immutable POD for holding captured data relating to a request.
+   * <p>
+   * Headers are held as a flat array of alternating names and values, in the order in which they appeared.
+   * <p>
+   * Each request added to the buffer of an AccessLogCaptureRoute is given a sequence number, one greater than the previous request
+   * added, so that clients can fetch only the requests that they have not already seen.
+   * <p>
+   * The duration and phase times are in nanoseconds, measured from when the AccessLogCaptureRoute handler was entered.
+   * A phase that was not observed before the response ended has the value {@link #NOT_RECORDED}.
    */
   public static class AccessLogData {
+
+    /**
+     * The value of a phase time that was not recorded.
+     */
+    public static final long NOT_RECORDED = -1;
+
+    private final long sequence;
     private final long timestamp;
-    private final HttpServerRequest request;
-    private long endTimestamp;
-    private HttpServerResponse response;
+    private final long endTimestamp;
+    private final long durationNanos;
+    private final long requestReadNanos;
+    private final long firstByteNanos;
+    private final HttpMethod method;
+    private final HttpVersion version;
+    private final String scheme;
+    private final String host;
+    private final String uri;
+    private final String remoteAddress;
+    private final int statusCode;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final String[] requestHeaders;
+    private final String[] responseHeaders;
 
     /**
      * Constructor.
+     *
+     * The header arrays are not copied, they must not be modified after construction.
+     * The duration is taken from the difference between the timestamps and the phase times are not recorded.
+     *
+     * @param sequence The sequence number of the request, or zero if it has not been given one.
      * @param timestamp The timestamp of the request.
-     * @param request The details of the request.
+     * @param endTimestamp The timestamp of the end of the response.
+     * @param method The HTTP method of the request.
+     * @param version The HTTP version of the request.
+     * @param scheme The scheme of the request.
+     * @param host The host (and port) of the request.
+     * @param uri The URI of the request (path and query string).
+     * @param remoteAddress The host address of the client.
+     * @param statusCode The status code of the response.
+     * @param bytesRead The number of bytes read from the request.
+     * @param bytesWritten The number of bytes written in the response.
+     * @param requestHeaders The request headers, as alternating names and values.
+     * @param responseHeaders The response headers, as alternating names and values.
      */
-    public AccessLogData(long timestamp, HttpServerRequest request) {
+    AccessLogData(long sequence, long timestamp, long endTimestamp, HttpMethod method, HttpVersion version, String scheme, String host, String uri
+            , String remoteAddress, int statusCode, long bytesRead, long bytesWritten, String[] requestHeaders, String[] responseHeaders) {
+      this(sequence, timestamp, endTimestamp, (endTimestamp - timestamp) * NANOS_PER_MILLI, NOT_RECORDED, NOT_RECORDED
+              , method, version, scheme, host, uri, remoteAddress, statusCode, bytesRead, bytesWritten, requestHeaders, responseHeaders);
+    }
+
+    /**
+     * Constructor.
+     *
+     * The header arrays are not copied, they must not be modified after construction.
+     *
+     * @param sequence The sequence number of the request, or zero if it has not been given one.
+     * @param timestamp The timestamp of the request.
+     * @param endTimestamp The timestamp of the end of the response.
+     * @param durationNanos The duration of the request, in nanoseconds.
+     * @param requestReadNanos The time at which the request body had been read, or {@link #NOT_RECORDED}.
+     * @param firstByteNanos The time at which the response headers were written, or {@link #NOT_RECORDED}.
+     * @param method The HTTP method of the request.
+     * @param version The HTTP version of the request.
+     * @param scheme The scheme of the request.
+     * @param host The host (and port) of the request.
+     * @param uri The URI of the request (path and query string).
+     * @param remoteAddress The host address of the client.
+     * @param statusCode The status code of the response.
+     * @param bytesRead The number of bytes read from the request.
+     * @param bytesWritten The number of bytes written in the response.
+     * @param requestHeaders The request headers, as alternating names and values.
+     * @param responseHeaders The response headers, as alternating names and values.
+     */
+    AccessLogData(long sequence, long timestamp, long endTimestamp, long durationNanos, long requestReadNanos, long firstByteNanos
+            , HttpMethod method, HttpVersion version, String scheme, String host, String uri
+            , String remoteAddress, int statusCode, long bytesRead, long bytesWritten, String[] requestHeaders, String[] responseHeaders) {
+      this.sequence = sequence;
       this.timestamp = timestamp;
-      this.request = request;
+      this.endTimestamp = endTimestamp;
+      this.durationNanos = durationNanos;
+      this.requestReadNanos = requestReadNanos;
+      this.firstByteNanos = firstByteNanos;
+      this.method = method;
+      this.version = version;
+      this.scheme = scheme;
+      this.host = host;
+      this.uri = uri;
+      this.remoteAddress = remoteAddress;
+      this.statusCode = statusCode;
+      this.bytesRead = bytesRead;
+      this.bytesWritten = bytesWritten;
+      this.requestHeaders = requestHeaders == null ? NO_HEADERS : requestHeaders;
+      this.responseHeaders = responseHeaders == null ? NO_HEADERS : responseHeaders;
     }
 
     /**
-     * Get the timestamp of the request.
-     * @return the timestamp of the request.
+     * Take a snapshot of the details of a completed request.
+     * @param sequence The sequence number of the request, or zero if it has not been given one.
+     * @param timestamp The timestamp of the request.
+     * @param endTimestamp The timestamp of the end of the response.
+     * @param durationNanos The duration of the request, in nanoseconds.
+     * @param phases The times at which the phases of the request were reached.
+     * @param request The request.
+     * @param response The response.
+     * @param allow If not null, only headers with names in this set are captured.
+     * @param deny If not null, headers with names in this set are not captured.
+     * @param interner The interner used to share repeated strings, may be null.
+     * @return A newly created AccessLogData.
      */
-    public long getTimestamp() {
-      return timestamp;
+    static AccessLogData capture(long sequence, long timestamp, long endTimestamp, long durationNanos, Phases phases
+            , HttpServerRequest request, HttpServerResponse response
+            , Set<String> allow, Set<String> deny, StringInterner interner) {
+      HostAndPort authority = request.authority();
+      SocketAddress remote = request.remoteAddress();
+      return new AccessLogData(sequence
+              , timestamp
+              , endTimestamp
+              , durationNanos
+              , phases.requestRead
+              , phases.firstByte
+              , request.method()
+              , request.version()
+              , intern(interner, request.scheme())
+              , authority == null ? null : intern(interner, authority.toString())
+              , intern(interner, request.uri())
+              , remote == null ? null : intern(interner, remote.host())
+              , response.getStatusCode()
+              , request.bytesRead()
+              , response.bytesWritten()
+              , flatten(request.headers(), allow, deny, interner)
+              , flatten(response.headers(), allow, deny, interner)
+      );
+    }
+
+    private static String intern(StringInterner interner, String value) {
+      return interner == null ? value : interner.intern(value);
+    }
+
+    static String[] flatten(MultiMap headers) {
+      return flatten(headers, null, null, null);
+    }
+
+    static String[] flatten(MultiMap headers, Set<String> allow, Set<String> deny, StringInterner interner) {
+      if (headers == null || headers.isEmpty()) {
+        return NO_HEADERS;
+      }
+      String[] result = new String[headers.size() * 2];
+      int i = 0;
+      for (Map.Entry<String, String> entry : headers) {
+        String name = entry.getKey();
+        if ((allow != null && !allow.contains(name)) || (deny != null && deny.contains(name))) {
+          continue;
+        }
+        if (i == result.length) {
+          // MultiMap.size counts names, not values, so repeated headers need more space
+          result = Arrays.copyOf(result, result.length * 2);
+        }
+        result[i++] = intern(interner, name);
+        result[i++] = intern(interner, entry.getValue());
+      }
+      if (i == 0) {
+        return NO_HEADERS;
+      }
+      return i == result.length ? result : Arrays.copyOf(result, i);
+    }
+
+    static MultiMap unflatten(String[] headers) {
+      MultiMap result = MultiMap.caseInsensitiveMultiMap();
+      for (int i = 0; i < headers.length; i += 2) {
+        result.add(headers[i], headers[i + 1]);
+      }
+      return result;
     }
 
     /**
-     * Get the details of the request.
-     * @return the details of the request.
+     * Get the sequence number of the request.
+     * <p>
+     * Requests that were only kept as one of the slowest requests do not have a sequence number.
+     * @return the sequence number of the request, or zero if it has not been given one.
      */
-    public HttpServerRequest getRequest() {
-      return request;
+    public long getSequence() {
+      return sequence;
+    }
+
+    /**
+     * Get the timestamp of the request.
+     * @return the timestamp of the request.
+     */
+    public long getTimestamp() {
+      return timestamp;
     }
 
     /**
@@ -80,57 +322,501 @@ public class AccessLogCaptureRoute implements Handler<RoutingContext> {
     }
 
     /**
-     * Get the details of the response.
-     * @return the details of the response.
+     * Get the duration of the request, in milliseconds.
+     * @return the duration of the request, in milliseconds.
      */
-    public HttpServerResponse getResponse() {
-      return response;
+    public long getDuration() {
+      return durationNanos / NANOS_PER_MILLI;
     }
 
     /**
-     * Set the timestamp of the end of the response.
-     * @param endTimestamp the timestamp of the end of the response.
+     * Get the duration of the request, in nanoseconds.
+     * @return the duration of the request, in nanoseconds.
      */
-    public void setEndTimestamp(long endTimestamp) {
-      this.endTimestamp = endTimestamp;
+    public long getDurationNanos() {
+      return durationNanos;
+    }
+
+    /**
+     * Get the time at which the request body had been completely read, in nanoseconds after the request was captured.
+     * <p>
+     * Zero means that the request had already been read when the AccessLogCaptureRoute handler was entered.
+     * A request that is answered without waiting for the end of the request (typically a GET handled synchronously) may complete
+     * before the end of the request has been processed, in which case this phase is not recorded.
+     * @return the time at which the request body had been completely read, or {@link #NOT_RECORDED} if it had not been read
+     * before the response ended.
+     */
+    public long getRequestReadNanos() {
+      return requestReadNanos;
+    }
+
+    /**
+     * Get the time at which the response headers were written (the time to first byte), in nanoseconds after the request was captured.
+     * @return the time at which the response headers were written, or {@link #NOT_RECORDED} if it is not known.
+     */
+    public long getFirstByteNanos() {
+      return firstByteNanos;
+    }
+
+    /**
+     * Get the HTTP method of the request.
+     * @return the HTTP method of the request.
+     */
+    public HttpMethod getMethod() {
+      return method;
+    }
+
+    /**
+     * Get the HTTP version of the request.
+     * @return the HTTP version of the request.
+     */
+    public HttpVersion getVersion() {
+      return version;
+    }
+
+    /**
+     * Get the scheme of the request.
+     * @return the scheme of the request.
+     */
+    public String getScheme() {
+      return scheme;
+    }
+
+    /**
+     * Get the host (and port, if specified) that the request was sent to.
+     * @return the host (and port, if specified) that the request was sent to.
+     */
+    public String getHost() {
+      return host;
+    }
+
+    /**
+     * Get the URI of the request, as the path and query string.
+     * @return the URI of the request, as the path and query string.
+     */
+    public String getUri() {
+      return uri;
+    }
+
+    /**
+     * Get the absolute URI of the request.
+     * @return the absolute URI of the request.
+     */
+    public String getAbsoluteUri() {
+      if (scheme == null || host == null) {
+        return uri;
+      }
+      return scheme + "://" + host + uri;
+    }
+
+    /**
+     * Get the host address of the client.
+     * @return the host address of the client.
+     */
+    public String getRemoteAddress() {
+      return remoteAddress;
+    }
+
+    /**
+     * Get the status code of the response.
+     * @return the status code of the response.
+     */
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    /**
+     * Get the number of bytes read from the request.
+     * @return the number of bytes read from the request.
+     */
+    public long getBytesRead() {
+      return bytesRead;
+    }
+
+    /**
+     * Get the number of bytes written in the response.
+     * @return the number of bytes written in the response.
+     */
+    public long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    /**
+     * Get a copy of the request headers.
+     * @return a newly created MultiMap containing the request headers.
+     */
+    public MultiMap getRequestHeaders() {
+      return unflatten(requestHeaders);
+    }
+
+    /**
+     * Get the value of the first request header with the given name.
+     * @param name The name of the header, which is not case sensitive.
+     * @return the value of the first request header with the given name, or null if there isn't one.
+     */
+    public String getRequestHeader(String name) {
+      return findHeader(requestHeaders, name);
+    }
+
+    /**
+     * Get a copy of the response headers.
+     * @return a newly created MultiMap containing the response headers.
+     */
+    public MultiMap getResponseHeaders() {
+      return unflatten(responseHeaders);
+    }
+
+    private static String findHeader(String[] headers, String name) {
+      for (int i = 0; i < headers.length; i += 2) {
+        if (name.equalsIgnoreCase(headers[i])) {
+          return headers[i + 1];
+        }
+      }
+      return null;
     }
 
     /**
-     * Set the details of the response.
-     * @param response the details of the response.
+     * Estimate the number of bytes of heap retained by this object.
+     * <p>
+     * The estimate assumes compressed oops and compact (Latin-1) strings, and does not attempt to account for strings being shared
+     * between instances.
+     * @return an estimate of the number of bytes of heap retained by this object.
      */
-    public void setResponse(HttpServerResponse response) {
-      this.response = response;
+    public long estimateSize() {
+      // Object header, eight longs, one int and eight references
+      long size = 16 + 8 * 8 + 4 + 8 * 4;
+      size += estimateSize(scheme) + estimateSize(host) + estimateSize(uri) + estimateSize(remoteAddress);
+      size += estimateSize(requestHeaders) + estimateSize(responseHeaders);
+      return size;
     }
-    
+
+    private static long estimateSize(String value) {
+      return value == null ? 0 : 40 + value.length();
+    }
+
+    private static long estimateSize(String[] values) {
+      if (values.length == 0) {
+        return 0;
+      }
+      long size = 16 + 4L * values.length;
+      for (String value : values) {
+        size += estimateSize(value);
+      }
+      return size;
+    }
+
   }
-  
+
+  /**
+   * The times, in nanoseconds after the handler was entered, at which the phases of a request were reached.
+   * <p>
+   * The events are all handled on the context of the request, so no synchronization is required.
+   */
+  static final class Phases {
+    private long requestRead = AccessLogData.NOT_RECORDED;
+    private long firstByte = AccessLogData.NOT_RECORDED;
+  }
+
   /**
    * Constructor.
-   * 
+   *
    * @param bufferSize The number of requests to keep in the buffer.
    */
   public AccessLogCaptureRoute(int bufferSize) {
-    this.buffer = new RingBuffer<>(bufferSize);
+    this(bufferSize, Storage.SHARED);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param bufferSize The number of requests to keep in the buffer.
+   * @param storage The type of buffer to use for storing captured requests.
+   */
+  public AccessLogCaptureRoute(int bufferSize, Storage storage) {
+    this.spill = null;
+    if (storage == Storage.STRIPED) {
+      this.buffer = new StripedRingBuffer<>(bufferSize, AccessLogData::getEndTimestamp);
+    } else if (storage == Storage.COLUMNAR) {
+      this.buffer = new ColumnarAccessLogBuffer(bufferSize);
+    } else {
+      this.buffer = new RingBuffer<>(bufferSize);
+    }
+  }
+
+  /**
+   * Constructor.
+   * <p>
+   * Requests are held in a shared {@link RingBuffer}, and each request evicted from it is appended to the spill.
+   *
+   * @param bufferSize The number of requests to keep in the in-memory buffer.
+   * @param spill The persistent tier to which requests evicted from the in-memory buffer are written.
+   */
+  public AccessLogCaptureRoute(int bufferSize, AccessLogSpill spill) {
+    this.spill = spill;
+    this.buffer = new RingBuffer<>(bufferSize, spill::append);
+  }
+
+  /**
+   * Constructor.
+   * <p>
+   * Requests are held in a shared {@link RingBuffer} that is bounded both by the number of requests and by their total size,
+   * as estimated by {@link AccessLogData#estimateSize()}.
+   * The oldest requests are evicted whenever the total size would exceed maxBytes, so the memory used by the buffer is predictable
+   * even when the size of requests varies widely (for example, because of large headers or URLs).
+   * The estimate does not account for strings being shared between requests, so the actual memory used will usually be lower.
+   *
+   * @param bufferSize The maximum number of requests to keep in the in-memory buffer.
+   * @param maxBytes The maximum total estimated size of the requests in the in-memory buffer.
+   * @param spill The persistent tier to which requests evicted from the in-memory buffer are written, may be null.
+   */
+  public AccessLogCaptureRoute(int bufferSize, long maxBytes, AccessLogSpill spill) {
+    this.spill = spill;
+    this.buffer = new RingBuffer<>(bufferSize, AccessLogData::estimateSize, maxBytes, spill == null ? null : spill::append);
+  }
+
+  /**
+   * Get the policy that controls which requests are captured.
+   * @return the policy that controls which requests are captured.
+   */
+  public AccessLogCapturePolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Set the policy that controls which requests are captured.
+   * <p>
+   * By default every request is captured.
+   * @param policy the policy that controls which requests are captured.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCaptureRoute setPolicy(AccessLogCapturePolicy policy) {
+    this.policy = policy == null ? new AccessLogCapturePolicy() : policy;
+    return this;
+  }
+
+  /**
+   * Keep the slowest requests seen in a sliding window, in addition to the recent requests.
+   * <p>
+   * Every request is considered for the slowest requests, regardless of the capture policy.
+   * @param count The number of requests to keep.
+   * @param windowMs The length of the window, in milliseconds.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCaptureRoute setSlowest(int count, long windowMs) {
+    this.slowest = new SlowestBuffer<>(count, windowMs, AccessLogData::getDurationNanos);
+    return this;
+  }
+
+  /**
+   * Get the buffer of the slowest requests.
+   * @return the buffer of the slowest requests, or null if {@link #setSlowest(int, long)} has not been called.
+   */
+  public SlowestBuffer<AccessLogData> getSlowest() {
+    return slowest;
+  }
+
+  /**
+   * Write every completed request to a file, in addition to capturing them.
+   * <p>
+   * Every request is written to the file, regardless of the capture policy.
+   * The route does not close the writer.
+   * @param fileWriter The writer to use, or null to stop writing requests to a file.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCaptureRoute setFileWriter(AccessLogFileWriter fileWriter) {
+    this.fileWriter = fileWriter;
+    return this;
+  }
+
+  /**
+   * Get the writer that every completed request is written to.
+   * @return the writer that every completed request is written to, or null if {@link #setFileWriter(uk.co.spudsoft.mgmt.AccessLogFileWriter)} has not been called.
+   */
+  public AccessLogFileWriter getFileWriter() {
+    return fileWriter;
+  }
+
+  /**
+   * Only capture request and response headers with the given names.
+   * <p>
+   * Header names are not case sensitive.
+   * Note that the plain text output and the {@link ColumnarAccessLogBuffer} use the Referer and User-Agent headers, so they should
+   * usually be included.
+   * @param names The names of the headers to capture, or null to capture every header (that is not in the denylist).
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCaptureRoute setHeaderAllowlist(Collection<String> names) {
+    this.headerAllowlist = toHeaderSet(names);
+    return this;
+  }
+
+  /**
+   * Get the names of the headers that will be captured.
+   * @return the names of the headers that will be captured, or null if every header (that is not in the denylist) will be captured.
+   */
+  public Set<String> getHeaderAllowlist() {
+    return headerAllowlist;
+  }
+
+  /**
+   * Do not capture request or response headers with the given names.
+   * <p>
+   * Header names are not case sensitive.
+   * This is applied after the allowlist, and is typically used to avoid capturing large or sensitive headers, such as Cookie and Authorization.
+   * @param names The names of the headers not to capture, or null to capture every header (that is in the allowlist).
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCaptureRoute setHeaderDenylist(Collection<String> names) {
+    this.headerDenylist = toHeaderSet(names);
+    return this;
+  }
+
+  /**
+   * Get the names of the headers that will not be captured.
+   * @return the names of the headers that will not be captured, or null if no headers are excluded.
+   */
+  public Set<String> getHeaderDenylist() {
+    return headerDenylist;
+  }
+
+  private static Set<String> toHeaderSet(Collection<String> names) {
+    if (names == null) {
+      return null;
+    }
+    // A case insensitive TreeSet avoids having to lower case every header name captured
+    Set<String> result = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    result.addAll(names);
+    return Collections.unmodifiableSet(result);
+  }
+
+  /**
+   * Set the size of the table used to share repeated strings between captured requests.
+   * <p>
+   * The default is {@link #DEFAULT_INTERN_CAPACITY}, which is plenty for the values that are typically repeated.
+   * @param capacity The number of slots in the table, rounded up to a power of two (up to a limit of 1048576), or zero to disable sharing.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogCaptureRoute setInternCapacity(int capacity) {
+    this.interner = capacity <= 0 ? null : new StringInterner(capacity);
+    return this;
+  }
+
+  /**
+   * Get the number of slots in the table used to share repeated strings between captured requests.
+   * @return the number of slots in the table used to share repeated strings between captured requests, zero if it is disabled.
+   */
+  public int getInternCapacity() {
+    StringInterner current = interner;
+    return current == null ? 0 : current.capacity();
+  }
+
+  /**
+   * Get the spill.
+   * @return the spill, or null if requests evicted from the buffer are discarded.
+   */
+  public AccessLogSpill getSpill() {
+    return spill;
+  }
+
+  /**
+   * Get the highest sequence number for which that request, and every request before it, has been added to the buffer.
+   * <p>
+   * Requests are given their sequence numbers before they are added to the buffer, so a request with a higher sequence number
+   * may be present when one with a lower sequence number has not yet been added.
+   * If this is read before the buffer every request with a sequence number no greater than it will be in the buffer,
+   * unless it has been evicted (or could not be captured).
+   * @return the highest sequence number for which that request, and every request before it, has been added to the buffer.
+   */
+  long getCommittedSequence() {
+    return sequence.getCommitted();
+  }
+
+  /**
+   * Add a listener that will be called with each request as it is added to the buffer.
+   * <p>
+   * Listeners are called on the thread that completed the request, so they must not block.
+   * @param listener The listener to add.
+   */
+  public void addListener(Consumer<AccessLogData> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Remove a listener previously passed to {@link #addListener(java.util.function.Consumer)}.
+   * @param listener The listener to remove.
+   */
+  public void removeListener(Consumer<AccessLogData> listener) {
+    listeners.remove(listener);
   }
 
   /**
    * Get the buffer.
    * @return the buffer.
    */
-  public RingBuffer<AccessLogData> getBuffer() {
+  public SnapshotBuffer<AccessLogData> getBuffer() {
     return buffer;
   }
-  
+
   @Override
   public void handle(RoutingContext context) {
-    AccessLogData ald = new AccessLogData(System.currentTimeMillis(), context.request());
-    
-    buffer.add(ald);
+    AccessLogCapturePolicy currentPolicy = policy;
+    SlowestBuffer<AccessLogData> currentSlowest = slowest;
+    AccessLogFileWriter currentFileWriter = fileWriter;
+    boolean sampled = currentPolicy.sample();
+    if (!sampled && !currentPolicy.hasTailRetention() && currentSlowest == null && currentFileWriter == null) {
+      context.next();
+      return;
+    }
+
+    long timestamp = System.currentTimeMillis();
+    long start = System.nanoTime();
+    Phases phases = new Phases();
+
+    HttpServerRequest request = context.request();
+    if (request.isEnded()) {
+      phases.requestRead = 0;
+    } else {
+      request.end().onSuccess(v -> phases.requestRead = System.nanoTime() - start);
+    }
+    context.addHeadersEndHandler(v -> phases.firstByte = System.nanoTime() - start);
 
     context.addBodyEndHandler(v -> {
-      ald.setEndTimestamp(System.currentTimeMillis());
-      ald.setResponse(context.response());
+      try {
+        long durationNanos = System.nanoTime() - start;
+        long endTimestamp = System.currentTimeMillis();
+        HttpServerResponse response = context.response();
+        boolean retain = currentPolicy.retain(sampled, response.getStatusCode(), durationNanos / NANOS_PER_MILLI);
+        boolean slow = currentSlowest != null && currentSlowest.wouldAccept(durationNanos);
+        if (retain || slow || currentFileWriter != null) {
+          long seq = retain ? sequence.allocate() : 0;
+          AccessLogData data;
+          try {
+            data = AccessLogData.capture(seq, timestamp, endTimestamp, durationNanos, phases
+                    , request, response, headerAllowlist, headerDenylist, interner);
+            if (retain) {
+              buffer.add(data);
+            }
+          } finally {
+            // The sequence number must be committed even if the capture failed, so that it does not hold back the watermark
+            if (retain) {
+              sequence.commit(seq);
+            }
+          }
+          if (retain) {
+            for (Consumer<AccessLogData> listener : listeners) {
+              listener.accept(data);
+            }
+          }
+          if (slow) {
+            currentSlowest.add(data);
+          }
+          if (currentFileWriter != null) {
+            currentFileWriter.accept(data);
+          }
+        }
+      } catch (Throwable ex) {
+        logger.warn("Failed to capture request: ", ex);
+      }
     });
 
     context.next();
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.vertx.core.Context;
+import io.vertx.core.http.HttpServerResponse;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single subscriber to the live tail of the access log, writing each captured request to the response as a Server-Sent Event.
+ * <p>
+ * Requests are passed to {@link #accept(uk.co.spudsoft.mgmt.AccessLogCaptureRoute.AccessLogData)} on whichever thread completed them,
+ * which just adds them to a bounded queue and, if necessary, schedules a drain on the context of the subscriber.
+ * The drain writes everything that has been queued since the last drain as a single write, so a busy server sends one
+ * write per event loop tick rather than one per request.
+ * <p>
+ * If the queue is full (because the subscriber is not keeping up) requests are dropped rather than blocking the capture.
+ * The number of requests dropped is reported to the subscriber as a "dropped" event before the next batch of requests.
+ * <p>
+ * Each request is sent as a message event with the sequence number of the request as its id and the same JSON as the
+ * JSON output of {@link AccessLogOutputRoute} as its data.
+ * If a filter is specified only requests that match it are queued.
+ *
+ * @author jtalbut
+ */
+class AccessLogEventStream implements Consumer<AccessLogCaptureRoute.AccessLogData> {
+
+  /**
+   * The content type of Server-Sent Events.
+   */
+  static final String TYPE_EVENT_STREAM = "text/event-stream";
+
+  /**
+   * The default maximum number of requests queued for a subscriber.
+   */
+  static final int DEFAULT_QUEUE_SIZE = 1000;
+
+  private static final Logger logger = LoggerFactory.getLogger(AccessLogEventStream.class);
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final Context context;
+  private final HttpServerResponse response;
+  private final int capacity;
+  private final AccessLogFilter filter;
+  private final ChunkedResponseWriter writer;
+  private final JsonGenerator generator;
+  private final Queue<AccessLogCaptureRoute.AccessLogData> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private volatile boolean closed;
+
+  /**
+   * Constructor.
+   * <p>
+   * The response headers are set, but nothing is written until {@link #open()} is called.
+   *
+   * @param context The context that the response belongs to, all writes will be made on this context.
+   * @param response The response to write the events to.
+   * @param capacity The maximum number of requests that may be queued waiting to be written.
+   * @param filter Filter for the requests to be sent, may be null.
+   * @throws IOException if the JSON generator cannot be created.
+   */
+  AccessLogEventStream(Context context, HttpServerResponse response, int capacity, AccessLogFilter filter) throws IOException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity of an AccessLogEventStream must be positive");
+    }
+    this.context = context;
+    this.response = response;
+    this.capacity = capacity;
+    this.filter = filter;
+    this.writer = new ChunkedResponseWriter(response);
+    this.generator = JSON_FACTORY.createGenerator(writer);
+    // Each event is a separate root level value, which Jackson would otherwise separate with a space
+    this.generator.setRootValueSeparator(null);
+    response.setStatusCode(200);
+    response.putHeader(HttpHeaderNames.CONTENT_TYPE, TYPE_EVENT_STREAM);
+    response.putHeader(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+  }
+
+  /**
+   * Send the response headers, so that the client knows that the subscription has started.
+   * <p>
+   * This must be called on the context of the response.
+   */
+  void open() {
+    writer.append(": access log\n\n");
+    writer.writePending();
+  }
+
+  /**
+   * Stop writing to the response, any requests still queued are discarded.
+   */
+  void close() {
+    closed = true;
+    queue.clear();
+  }
+
+  /**
+   * Get the number of requests currently queued.
+   * @return the number of requests currently queued.
+   */
+  int getQueued() {
+    return size.get();
+  }
+
+  /**
+   * Queue a request to be sent to the subscriber.
+   * <p>
+   * This may be called on any thread and never blocks.
+   * @param data The request.
+   */
+  @Override
+  public void accept(AccessLogCaptureRoute.AccessLogData data) {
+    if (closed || (filter != null && !filter.test(data))) {
+      return;
+    }
+    if (size.incrementAndGet() > capacity) {
+      size.decrementAndGet();
+      dropped.incrementAndGet();
+    } else {
+      queue.offer(data);
+    }
+    schedule();
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      context.runOnContext(v -> drain());
+    }
+  }
+
+  /**
+   * Write everything that has been queued to the response.
+   * <p>
+   * This runs on the context of the response, if the response write queue is full it waits for it to drain
+   * (leaving the drain scheduled so that no more are scheduled in the meantime).
+   */
+  void drain() {
+    if (closed) {
+      return;
+    }
+    if (response.writeQueueFull()) {
+      response.drainHandler(v -> {
+        response.drainHandler(null);
+        drain();
+      });
+      return;
+    }
+    try {
+      long lost = dropped.getAndSet(0);
+      if (lost > 0) {
+        writer.append("event: dropped\ndata: ").append(Long.toString(lost)).append("\n\n");
+      }
+      for (int i = 0; i < ChunkedResponseWriter.DEFAULT_BATCH_SIZE; ++i) {
+        AccessLogCaptureRoute.AccessLogData data = queue.poll();
+        if (data == null) {
+          break;
+        }
+        size.decrementAndGet();
+        writer.append("id: ").append(Long.toString(data.getSequence())).append("\ndata: ");
+        AccessLogOutputRoute.writeJson(generator, data);
+        generator.flush();
+        writer.append("\n\n");
+        writer.writeIfFull();
+      }
+      writer.writePending();
+    } catch (Throwable ex) {
+      logger.warn("Failed to write access log event stream: ", ex);
+      close();
+      response.reset();
+      return;
+    }
+    scheduled.set(false);
+    // Anything queued after the loop above will not have scheduled another drain
+    if (!queue.isEmpty() || dropped.get() > 0) {
+      schedule();
+    }
+  }
+
+}
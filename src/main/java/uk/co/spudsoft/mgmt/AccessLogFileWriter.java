@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes every request captured by the {@link AccessLogCaptureRoute} to a local file, in the format of {@link CombinedLogFormatter}.
+ * <p>
+ * Requests are passed to {@link #accept(uk.co.spudsoft.mgmt.AccessLogCaptureRoute.AccessLogData)} on whichever thread completed them,
+ * which just adds them to a bounded lock-free queue; if the queue is full the request is dropped (and counted) rather than blocking.
+ * A single background thread drains the queue in batches, formatting each batch into a set of reusable ByteBuffers
+ * that are written to the file with a single gathering write.
+ * <p>
+ * The file is rotated when a batch would take it beyond the maximum size, or when it is older than the maximum age
+ * (checked when the next batch is written).
+ * A rotated file is renamed by appending the UTC time of the rotation (yyyyMMdd-HHmmss.SSS) to its name, and the oldest
+ * rotated files are deleted once there are more than the maximum number.
+ * Only files whose names are exactly the name of the file followed by a rotation time (and, if necessary to make it unique,
+ * a "-" and a number) are considered to be rotated files, so other files with similar names (such as compressed copies) are never deleted.
+ *
+ * @author jtalbut
+ */
+public class AccessLogFileWriter implements Consumer<AccessLogCaptureRoute.AccessLogData>, AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(AccessLogFileWriter.class);
+
+  /**
+   * The default maximum number of requests queued waiting to be written.
+   */
+  public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+  /**
+   * The maximum number of requests written in a single batch.
+   */
+  static final int BATCH_SIZE = 256;
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int CHUNK_COUNT = 8;
+  private static final DateTimeFormatter ROTATED_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss.SSS").withZone(ZoneOffset.UTC);
+
+  private final Path file;
+  private final int capacity;
+  private final long maxFileSize;
+  private final long maxFileAgeMs;
+  private final int maxFiles;
+  private final Pattern rotatedName;
+  private final LongSupplier clock;
+
+  private final Queue<AccessLogCaptureRoute.AccessLogData> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final Thread thread;
+  private volatile boolean running = true;
+  private volatile boolean waiting;
+
+  // Only used by the writer thread
+  private final CombinedLogFormatter formatter = new CombinedLogFormatter();
+  private final ByteBuffer[] chunks = new ByteBuffer[CHUNK_COUNT];
+  private FileChannel channel;
+  private long fileSize;
+  private long fileOpened;
+
+  /**
+   * Constructor.
+   *
+   * @param file The file to write to, it (and its parent directories) will be created if it does not exist, and appended to if it does.
+   * @param queueSize The maximum number of requests that may be queued waiting to be written.
+   * @param maxFileSize The size, in bytes, beyond which the file will be rotated.
+   * @param maxFileAgeMs The age, in milliseconds, beyond which the file will be rotated, zero to only rotate based on size.
+   * @param maxFiles The number of rotated files to keep.
+   * @throws IOException if the file cannot be opened.
+   */
+  public AccessLogFileWriter(Path file, int queueSize, long maxFileSize, long maxFileAgeMs, int maxFiles) throws IOException {
+    this(file, queueSize, maxFileSize, maxFileAgeMs, maxFiles, System::currentTimeMillis, true);
+  }
+
+  AccessLogFileWriter(Path file, int queueSize, long maxFileSize, long maxFileAgeMs, int maxFiles, LongSupplier clock, boolean start) throws IOException {
+    if (queueSize <= 0) {
+      throw new IllegalArgumentException("The queue size of an AccessLogFileWriter must be positive");
+    }
+    if (maxFileSize <= 0) {
+      throw new IllegalArgumentException("The maximum file size of an AccessLogFileWriter must be positive");
+    }
+    this.file = file.toAbsolutePath();
+    this.capacity = queueSize;
+    this.maxFileSize = maxFileSize;
+    this.maxFileAgeMs = maxFileAgeMs;
+    this.maxFiles = Math.max(0, maxFiles);
+    this.rotatedName = Pattern.compile(Pattern.quote(this.file.getFileName().toString()) + "\\.(\\d{8}-\\d{6}\\.\\d{3})(?:-(\\d{1,9}))?");
+    this.clock = clock;
+    for (int i = 0; i < CHUNK_COUNT; ++i) {
+      chunks[i] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+    Files.createDirectories(this.file.getParent());
+    open();
+    this.thread = new Thread(this::run, "access-log-writer");
+    this.thread.setDaemon(true);
+    if (start) {
+      thread.start();
+    }
+  }
+
+  /**
+   * Start the background thread, if the constructor was asked not to.
+   */
+  void start() {
+    thread.start();
+  }
+
+  private void open() throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    fileSize = channel.size();
+    fileOpened = clock.getAsLong();
+  }
+
+  /**
+   * Queue a request to be written to the file.
+   * <p>
+   * This may be called on any thread and never blocks.
+   * @param data The request.
+   */
+  @Override
+  public void accept(AccessLogCaptureRoute.AccessLogData data) {
+    if (!running) {
+      dropped.incrementAndGet();
+      return;
+    }
+    if (size.incrementAndGet() > capacity) {
+      size.decrementAndGet();
+      dropped.incrementAndGet();
+      return;
+    }
+    queue.offer(data);
+    if (!running) {
+      // The writer may have finished after the check above, if so this request would never be written
+      if (queue.remove(data)) {
+        size.decrementAndGet();
+        dropped.incrementAndGet();
+      }
+      return;
+    }
+    if (waiting) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void run() {
+    while (running || !queue.isEmpty()) {
+      if (writeBatch() == 0) {
+        waiting = true;
+        // Anything queued before waiting was set will not have unparked this thread
+        if (running && queue.isEmpty()) {
+          LockSupport.park(this);
+        }
+        waiting = false;
+      }
+    }
+    try {
+      channel.close();
+    } catch (IOException ex) {
+      logger.warn("Failed to close access log file {}: ", file, ex);
+    }
+  }
+
+  /**
+   * Write up to {@link #BATCH_SIZE} queued requests to the file.
+   * @return the number of requests taken from the queue.
+   */
+  int writeBatch() {
+    int count = 0;
+    // The number of requests in the batch that have been completely written by writes made part way through the batch
+    int flushed = 0;
+    int chunk = 0;
+    chunks[0].clear();
+    try {
+      while (count < BATCH_SIZE) {
+        AccessLogCaptureRoute.AccessLogData data = queue.poll();
+        if (data == null) {
+          break;
+        }
+        size.decrementAndGet();
+        ++count;
+        int length = formatter.format(data);
+        byte[] line = formatter.line();
+        int offset = 0;
+        while (offset < length) {
+          if (!chunks[chunk].hasRemaining()) {
+            if (chunk == CHUNK_COUNT - 1) {
+              // A batch of very long lines, write what there is so far and start again
+              write(chunk);
+              written.addAndGet(count - 1 - flushed);
+              flushed = count - 1;
+              chunk = 0;
+            } else {
+              ++chunk;
+            }
+            chunks[chunk].clear();
+          }
+          int part = Math.min(length - offset, chunks[chunk].remaining());
+          chunks[chunk].put(line, offset, part);
+          offset += part;
+        }
+      }
+      if (count > 0) {
+        write(chunk);
+        written.addAndGet(count - flushed);
+      }
+    } catch (Throwable ex) {
+      logger.warn("Failed to write {} entries to access log file {}: ", count - flushed, file, ex);
+      dropped.addAndGet(count - flushed);
+    }
+    return count;
+  }
+
+  /**
+   * Write the chunks up to and including lastChunk to the file, rotating it first if necessary.
+   * @param lastChunk The index of the last chunk containing data.
+   */
+  private void write(int lastChunk) throws IOException {
+    long bytes = 0;
+    for (int i = 0; i <= lastChunk; ++i) {
+      bytes += chunks[i].position();
+    }
+    if (!channel.isOpen()) {
+      // A previous rotation failed part way through
+      open();
+    }
+    long now = clock.getAsLong();
+    if (fileSize > 0 && (fileSize + bytes > maxFileSize || (maxFileAgeMs > 0 && now - fileOpened >= maxFileAgeMs))) {
+      rotate(now);
+    }
+    for (int i = 0; i <= lastChunk; ++i) {
+      chunks[i].flip();
+    }
+    long remaining = bytes;
+    while (remaining > 0) {
+      remaining -= channel.write(chunks, 0, lastChunk + 1);
+    }
+    fileSize += bytes;
+  }
+
+  private void rotate(long now) throws IOException {
+    channel.close();
+    String name = file.getFileName().toString();
+    Path target = file.resolveSibling(name + "." + ROTATED_SUFFIX.format(Instant.ofEpochMilli(now)));
+    for (int i = 1; Files.exists(target); ++i) {
+      target = file.resolveSibling(name + "." + ROTATED_SUFFIX.format(Instant.ofEpochMilli(now)) + "-" + i);
+    }
+    Files.move(file, target);
+    List<Matcher> rotated = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.getParent(), name + ".*")) {
+      for (Path path : stream) {
+        Matcher matcher = rotatedName.matcher(path.getFileName().toString());
+        if (matcher.matches()) {
+          rotated.add(matcher);
+        }
+      }
+    }
+    // Oldest first, by the time of the rotation and then by the number added to make the name unique
+    rotated.sort(Comparator.comparing((Matcher matcher) -> matcher.group(1))
+            .thenComparingInt(matcher -> matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2))));
+    for (int i = 0; i < rotated.size() - maxFiles; ++i) {
+      Files.deleteIfExists(file.resolveSibling(rotated.get(i).group()));
+    }
+    open();
+  }
+
+  /**
+   * Get the number of requests that have been dropped because the queue was full, the writer had been closed, or the write failed.
+   * @return the number of requests that have been dropped.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Get the number of requests that have been written to the file.
+   * @return the number of requests that have been written to the file.
+   */
+  public long getWritten() {
+    return written.get();
+  }
+
+  /**
+   * Get the number of requests currently queued.
+   * @return the number of requests currently queued.
+   */
+  public int getQueued() {
+    return size.get();
+  }
+
+  /**
+   * Stop accepting requests, write any that are queued and close the file, waiting briefly for the writes to complete.
+   */
+  @Override
+  public void close() {
+    running = false;
+    if (thread.getState() == Thread.State.NEW) {
+      // Never started, so write anything queued on this thread
+      run();
+      return;
+    }
+    LockSupport.unpark(thread);
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+      if (thread.isAlive()) {
+        logger.warn("Timed out waiting for access log file {} to be written", file);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
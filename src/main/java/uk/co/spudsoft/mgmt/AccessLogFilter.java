@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpMethod;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Filter for the requests output by the {@link AccessLogOutputRoute}.
+ * <p>
+ * A request must match every criterion that has been set, criteria that have not been set match every request.
+ * The criteria are:
+ * <ul>
+ * <li>Status: the status class (2xx, 4xx, etc) or exact status code of the response, several may be specified.
+ * <li>Method: the HTTP method of the request.
+ * <li>Path prefix: the start of the URI of the request (which includes the query string).
+ * <li>Path regex: a regular expression that must be found somewhere in the URI of the request.
+ * <li>Minimum duration: the least time, in milliseconds, that the request took.
+ * <li>Remote address: the host address of the client.
+ * <li>From and to: the range of times, in milliseconds since the epoch, within which the request must have started.
+ * </ul>
+ * <p>
+ * The status criterion is evaluated first, because the {@link ColumnarAccessLogBuffer} keeps an index of the requests in each
+ * status class, so that requests with other status codes need not be examined at all.
+ * <p>
+ * The filter should be configured before it is used, the setters are not thread safe.
+ *
+ * @author jtalbut
+ */
+public class AccessLogFilter implements Predicate<AccessLogCaptureRoute.AccessLogData> {
+
+  /**
+   * The number of status classes, status codes are grouped by their hundreds digit.
+   */
+  static final int STATUS_CLASSES = 10;
+
+  private int statusClasses;
+  private final BitSet statusCodes = new BitSet();
+  private String method;
+  private String pathPrefix;
+  private Pattern pathRegex;
+  private long minDurationMs;
+  private String remoteAddress;
+  private long from = Long.MIN_VALUE;
+  private long to = Long.MAX_VALUE;
+
+  /**
+   * Constructor.
+   * <p>
+   * The default filter matches every request.
+   */
+  public AccessLogFilter() {
+  }
+
+  /**
+   * Create a filter from query string parameters.
+   * <p>
+   * The parameters are:
+   * <ul>
+   * <li>status: a comma separated list of status classes (such as "5xx") or status codes (such as "404").
+   * <li>method: the HTTP method.
+   * <li>path: the prefix of the URI.
+   * <li>pathRegex: a regular expression to find in the URI.
+   * <li>minDuration: the minimum duration, in milliseconds.
+   * <li>remoteAddress: the host address of the client.
+   * <li>from and to: the range of start times, either as ISO-8601 instants or as milliseconds since the epoch.
+   * </ul>
+   *
+   * @param params The query string parameters.
+   * @return a filter, or null if none of the parameters are present.
+   * @throws IllegalArgumentException if any of the parameters cannot be parsed.
+   */
+  public static AccessLogFilter fromParams(MultiMap params) {
+    AccessLogFilter filter = new AccessLogFilter();
+    boolean found = false;
+    String value = params.get("status");
+    if (value != null) {
+      for (String status : value.split(",")) {
+        filter.addStatus(status.trim());
+      }
+      found = true;
+    }
+    value = params.get("method");
+    if (value != null) {
+      filter.setMethod(HttpMethod.valueOf(value.trim().toUpperCase(Locale.ROOT)));
+      found = true;
+    }
+    value = params.get("path");
+    if (value != null) {
+      filter.setPathPrefix(value);
+      found = true;
+    }
+    value = params.get("pathRegex");
+    if (value != null) {
+      try {
+        filter.setPathRegex(Pattern.compile(value));
+      } catch (PatternSyntaxException ex) {
+        throw new IllegalArgumentException("Invalid pathRegex: " + ex.getDescription());
+      }
+      found = true;
+    }
+    value = params.get("minDuration");
+    if (value != null) {
+      filter.setMinDurationMs(parseLong("minDuration", value));
+      found = true;
+    }
+    value = params.get("remoteAddress");
+    if (value != null) {
+      filter.setRemoteAddress(value.trim());
+      found = true;
+    }
+    value = params.get("from");
+    if (value != null) {
+      filter.setFrom(parseTime("from", value));
+      found = true;
+    }
+    value = params.get("to");
+    if (value != null) {
+      filter.setTo(parseTime("to", value));
+      found = true;
+    }
+    return found ? filter : null;
+  }
+
+  private static long parseLong(String name, String value) {
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+  }
+
+  private static long parseTime(String name, String value) {
+    String trimmed = value.trim();
+    try {
+      return Long.parseLong(trimmed);
+    } catch (NumberFormatException ex) {
+      // Not milliseconds since the epoch, so should be an ISO-8601 instant
+    }
+    try {
+      return Instant.parse(trimmed).toEpochMilli();
+    } catch (DateTimeParseException ex) {
+      throw new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+  }
+
+  /**
+   * Get the status class of a status code.
+   * @param statusCode The status code.
+   * @return the status class of a status code, between 0 and {@link #STATUS_CLASSES} - 1.
+   */
+  static int statusClass(int statusCode) {
+    return Math.max(0, Math.min(STATUS_CLASSES - 1, statusCode / 100));
+  }
+
+  /**
+   * Add a status class (such as "5xx") or status code (such as "404") to the statuses that will be matched.
+   * @param status The status class or status code.
+   * @return this, so that the method may be used in a fluent manner.
+   * @throws IllegalArgumentException if the status cannot be parsed.
+   */
+  public AccessLogFilter addStatus(String status) {
+    if (status.length() == 3 && Character.isDigit(status.charAt(0)) && status.substring(1).equalsIgnoreCase("xx")) {
+      statusClasses |= 1 << (status.charAt(0) - '0');
+    } else {
+      long code = parseLong("status", status);
+      if (code < 0 || code >= STATUS_CLASSES * 100) {
+        throw new IllegalArgumentException("Invalid status: " + status);
+      }
+      statusCodes.set((int) code);
+    }
+    return this;
+  }
+
+  /**
+   * Get the status classes that may contain matching requests, as a bit mask indexed by {@link #statusClass(int)}.
+   * @return the status classes that may contain matching requests, or zero if the status is not filtered.
+   */
+  int getCandidateStatusClasses() {
+    int result = statusClasses;
+    for (int code = statusCodes.nextSetBit(0); code >= 0; code = statusCodes.nextSetBit(code + 1)) {
+      result |= 1 << statusClass(code);
+    }
+    return result;
+  }
+
+  /**
+   * Get the HTTP method that requests must have.
+   * @return the HTTP method that requests must have, or null if the method is not filtered.
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * Set the HTTP method that requests must have.
+   * @param method the HTTP method that requests must have, or null to match all methods.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogFilter setMethod(HttpMethod method) {
+    this.method = method == null ? null : method.name();
+    return this;
+  }
+
+  /**
+   * Set the prefix that the URI of requests must start with.
+   * @param pathPrefix the prefix that the URI of requests must start with, or null to match all URIs.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogFilter setPathPrefix(String pathPrefix) {
+    this.pathPrefix = pathPrefix;
+    return this;
+  }
+
+  /**
+   * Set a regular expression that must be found in the URI of requests.
+   * @param pathRegex a regular expression that must be found in the URI of requests, or null to match all URIs.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogFilter setPathRegex(Pattern pathRegex) {
+    this.pathRegex = pathRegex;
+    return this;
+  }
+
+  /**
+   * Set the minimum duration of requests, in milliseconds.
+   * @param minDurationMs the minimum duration of requests, in milliseconds.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogFilter setMinDurationMs(long minDurationMs) {
+    this.minDurationMs = minDurationMs;
+    return this;
+  }
+
+  /**
+   * Get the host address that requests must come from.
+   * @return the host address that requests must come from, or null if the remote address is not filtered.
+   */
+  public String getRemoteAddress() {
+    return remoteAddress;
+  }
+
+  /**
+   * Set the host address that requests must come from.
+   * @param remoteAddress the host address that requests must come from, or null to match all clients.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogFilter setRemoteAddress(String remoteAddress) {
+    this.remoteAddress = remoteAddress;
+    return this;
+  }
+
+  /**
+   * Set the earliest start time of requests, in milliseconds since the epoch.
+   * @param from the earliest start time of requests, in milliseconds since the epoch.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogFilter setFrom(long from) {
+    this.from = from;
+    return this;
+  }
+
+  /**
+   * Set the latest start time of requests, in milliseconds since the epoch.
+   * @param to the latest start time of requests, in milliseconds since the epoch.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public AccessLogFilter setTo(long to) {
+    this.to = to;
+    return this;
+  }
+
+  /**
+   * Test the status code of a request.
+   * @param statusCode The status code.
+   * @return true if the status code is matched.
+   */
+  boolean testStatus(int statusCode) {
+    if (statusClasses == 0 && statusCodes.isEmpty()) {
+      return true;
+    }
+    return (statusClasses & (1 << statusClass(statusCode))) != 0 || (statusCode >= 0 && statusCodes.get(statusCode));
+  }
+
+  /**
+   * Test the fields of a request that are held as primitives.
+   * @param timestamp The start time of the request.
+   * @param durationMs The duration of the request.
+   * @return true if the fields are matched.
+   */
+  boolean testTimes(long timestamp, long durationMs) {
+    return timestamp >= from && timestamp <= to && durationMs >= minDurationMs;
+  }
+
+  /**
+   * Test the URI of a request.
+   * @param uri The URI of the request.
+   * @return true if the URI is matched.
+   */
+  boolean testUri(String uri) {
+    if (pathPrefix != null && (uri == null || !uri.startsWith(pathPrefix))) {
+      return false;
+    }
+    return pathRegex == null || (uri != null && pathRegex.matcher(uri).find());
+  }
+
+  /**
+   * Check whether the URI is filtered, in which case {@link #testUri(java.lang.String)} must be called.
+   * @return true if the URI is filtered.
+   */
+  boolean filtersUri() {
+    return pathPrefix != null || pathRegex != null;
+  }
+
+  @Override
+  public boolean test(AccessLogCaptureRoute.AccessLogData data) {
+    return testStatus(data.getStatusCode())
+            && testTimes(data.getTimestamp(), data.getDuration())
+            && (method == null || (data.getMethod() != null && method.equals(data.getMethod().name())))
+            && (remoteAddress == null || remoteAddress.equals(data.getRemoteAddress()))
+            && testUri(data.getUri());
+  }
+
+}
@@ -16,30 +16,54 @@
  */
 package uk.co.spudsoft.mgmt;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.vertx.core.Handler;
 import io.vertx.core.MultiMap;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
-import static io.vertx.core.http.HttpVersion.HTTP_1_0;
-import static io.vertx.core.http.HttpVersion.HTTP_1_1;
-import static io.vertx.core.http.HttpVersion.HTTP_2;
-import io.vertx.core.json.Json;
-import io.vertx.core.json.JsonArray;
-import io.vertx.core.json.JsonObject;
-import io.vertx.core.net.SocketAddress;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
-import io.vertx.ext.web.impl.Utils;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A Vertx HTTP Server route for outputting HTTP requests captured by AccessLogCaptureRoute.
+ * <p>
+ * Clients that poll the access log can use the "since" query string parameter to fetch only the requests that they have not already seen.
+ * When "since" is specified only requests with a greater sequence number are output (in sequence number order, up to "limit" of them
+ * if that is specified) and the {@link #CURSOR_HEADER} response header gives the value to pass as "since" on the next request.
+ * The first request should use since=0.
+ * <p>
+ * Requests are given their sequence numbers just before they are added to the buffer, so a request may briefly be missing when
+ * a later one is present.
+ * When constructed from an {@link AccessLogCaptureRoute} output stops at the committed sequence number of the capture route
+ * (see {@link AccessLogCaptureRoute#getCommittedSequence()}), so such a request is picked up by the next poll rather than skipped.
+ * The cursor advances to the committed sequence number (unless the limit is reached) so requests that have been evicted from the
+ * buffer before being fetched are skipped.
+ * When constructed from just a buffer the committed sequence number is not known, so every request present is output and
+ * a request that is being added to the buffer may be skipped.
+ * <p>
+ * The requests output may be filtered using the query string parameters described in
+ * {@link AccessLogFilter#fromParams(io.vertx.core.MultiMap)}, for example "?status=5xx&amp;path=/api/".
+ * If the buffer is a {@link ColumnarAccessLogBuffer} its status index is used so that non-matching requests are not materialised.
+ * When used with "since" the cursor still advances past requests that do not match the filter.
+ * <p>
+ * When constructed from an {@link AccessLogCaptureRoute} the route also provides a live tail of the access log at
+ * {@link #STREAM_PATH}, which sends each request as a Server-Sent Event as soon as it has been captured.
+ * Each subscriber has a bounded queue ({@link #STREAM_QUEUE_SIZE} requests), if a subscriber cannot keep up requests are
+ * dropped and the number dropped is sent as a "dropped" event.
  *
  * @author jtalbut
  */
@@ -49,15 +73,72 @@ public class AccessLogOutputRoute implements Handler<RoutingContext> {
    * The path at which the standardDeploy method will put the router.
    */
   public static final String PATH = "accesslog";
+  
+  /**
+   * The path at which the standardDeploy method will put the live tail of the access log, when it is available.
+   */
+  public static final String STREAM_PATH = PATH + "/stream";
+  
+  /**
+   * The maximum number of requests queued for each subscriber to the live tail of the access log.
+   */
+  public static final int STREAM_QUEUE_SIZE = AccessLogEventStream.DEFAULT_QUEUE_SIZE;
+  
+  /**
+   * The response header giving the value of the "since" parameter to use for the next request.
+   */
+  public static final String CURSOR_HEADER = "X-Access-Log-Cursor";
+  
+    
+  private static final Logger logger = LoggerFactory.getLogger(AccessLogOutputRoute.class);
+  
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
     
-  private final RingBuffer<AccessLogCaptureRoute.AccessLogData> buffer;
+  private final SnapshotBuffer<AccessLogCaptureRoute.AccessLogData> buffer;
+  private final AccessLogSpill spill;
+  private final SlowestBuffer<AccessLogCaptureRoute.AccessLogData> slowest;
+  private final AccessLogCaptureRoute capture;
 
   /**
    * Constructor.
    * @param buffer The buffer from the AccessLogCaptureRoute.
    */
-  public AccessLogOutputRoute(RingBuffer<AccessLogCaptureRoute.AccessLogData> buffer) {
+  public AccessLogOutputRoute(SnapshotBuffer<AccessLogCaptureRoute.AccessLogData> buffer) {
+    this(buffer, null);
+  }  
+  
+  /**
+   * Constructor.
+   * <p>
+   * If the spill is not null the "history" query string parameter can be used to request that up to that many entries
+   * from the spill are output before the entries in the buffer.
+   * 
+   * @param buffer The buffer from the AccessLogCaptureRoute.
+   * @param spill The spill from the AccessLogCaptureRoute, may be null.
+   */
+  public AccessLogOutputRoute(SnapshotBuffer<AccessLogCaptureRoute.AccessLogData> buffer, AccessLogSpill spill) {
+    this(buffer, spill, null, null);
+  }  
+  
+  /**
+   * Constructor.
+   * <p>
+   * Takes the buffer, spill and slowest requests from the AccessLogCaptureRoute.
+   * If the AccessLogCaptureRoute is keeping the slowest requests they can be output using the query string parameter "view=slowest", slowest first.
+   * The live tail of the access log is only available when the route is constructed this way.
+   * 
+   * @param capture The AccessLogCaptureRoute.
+   */
+  public AccessLogOutputRoute(AccessLogCaptureRoute capture) {
+    this(capture.getBuffer(), capture.getSpill(), capture.getSlowest(), capture);
+  }  
+  
+  private AccessLogOutputRoute(SnapshotBuffer<AccessLogCaptureRoute.AccessLogData> buffer, AccessLogSpill spill
+          , SlowestBuffer<AccessLogCaptureRoute.AccessLogData> slowest, AccessLogCaptureRoute capture) {
     this.buffer = buffer;
+    this.spill = spill;
+    this.slowest = slowest;
+    this.capture = capture;
   }  
   
   /**
@@ -75,6 +156,12 @@ public class AccessLogOutputRoute implements Handler<RoutingContext> {
             .produces(ContentTypes.TYPE_HTML)
             .produces(ContentTypes.TYPE_PLAIN)
             ;
+    if (capture != null) {
+      router.route(HttpMethod.GET, "/" + STREAM_PATH)
+              .handler(this::stream)
+              .setName("Access Log Stream")
+              ;
+    }
   }
   
   /**
@@ -85,29 +172,95 @@ public class AccessLogOutputRoute implements Handler<RoutingContext> {
    * @param router The router that this handler will be attached to.
    * @param buffer The buffer from the AccessLogCaptureRoute.
    */
-  public static void createAndDeploy(Router router, RingBuffer<AccessLogCaptureRoute.AccessLogData> buffer) {
-    AccessLogOutputRoute route = new AccessLogOutputRoute(buffer);
+  public static void createAndDeploy(Router router, SnapshotBuffer<AccessLogCaptureRoute.AccessLogData> buffer) {
+    createAndDeploy(router, buffer, null);
+  }
+  
+  /**
+   * Factory method to do standard deployment on newly constructed route.
+   * 
+   * The router passed in should be a sub router that is inaccessible to normal users.
+   * 
+   * @param router The router that this handler will be attached to.
+   * @param buffer The buffer from the AccessLogCaptureRoute.
+   * @param spill The spill from the AccessLogCaptureRoute, may be null.
+   */
+  public static void createAndDeploy(Router router, SnapshotBuffer<AccessLogCaptureRoute.AccessLogData> buffer, AccessLogSpill spill) {
+    AccessLogOutputRoute route = new AccessLogOutputRoute(buffer, spill);
     route.standardDeploy(router);
   }
   
-  private static JsonObject toJson(AccessLogCaptureRoute.AccessLogData record) {
-    JsonObject jo = new JsonObject();
-    
-    jo.put("timestamp", ZonedDateTime.ofInstant(Instant.ofEpochMilli(record.getTimestamp()), ZoneOffset.UTC).toString());
-    if (record.getTimestamp() > 0) {
-      jo.put("endTimestamp", ZonedDateTime.ofInstant(Instant.ofEpochMilli(record.getEndTimestamp()), ZoneOffset.UTC).toString());
+  /**
+   * Factory method to do standard deployment on newly constructed route.
+   * 
+   * The router passed in should be a sub router that is inaccessible to normal users.
+   * 
+   * @param router The router that this handler will be attached to.
+   * @param capture The AccessLogCaptureRoute whose captured requests will be output.
+   */
+  public static void createAndDeploy(Router router, AccessLogCaptureRoute capture) {
+    AccessLogOutputRoute route = new AccessLogOutputRoute(capture);
+    route.standardDeploy(router);
+  }
+  
+  static void writeJson(JsonGenerator generator, AccessLogCaptureRoute.AccessLogData record) throws IOException {
+    generator.writeStartObject();
+    generator.writeNumberField("sequence", record.getSequence());
+    generator.writeStringField("timestamp", ZonedDateTime.ofInstant(Instant.ofEpochMilli(record.getTimestamp()), ZoneOffset.UTC).toString());
+    generator.writeStringField("endTimestamp", ZonedDateTime.ofInstant(Instant.ofEpochMilli(record.getEndTimestamp()), ZoneOffset.UTC).toString());
+    generator.writeNumberField("durationNanos", record.getDurationNanos());
+    writeNanos(generator, "requestReadNanos", record.getRequestReadNanos());
+    writeNanos(generator, "firstByteNanos", record.getFirstByteNanos());
+    generator.writeStringField("method", record.getMethod() == null ? null : record.getMethod().name());
+    generator.writeStringField("url", record.getAbsoluteUri());
+    generator.writeStringField("remoteAddress", record.getRemoteAddress());
+    generator.writeFieldName("headers");
+    writeJson(generator, record.getRequestHeaders());
+    generator.writeNumberField("bytesRead", record.getBytesRead());
+    generator.writeFieldName("responseHeaders");
+    writeJson(generator, record.getResponseHeaders());
+    generator.writeNumberField("statusCode", record.getStatusCode());
+    generator.writeNumberField("bytesWritten", record.getBytesWritten());
+    generator.writeEndObject();
+  }
+  
+  private static void writeNanos(JsonGenerator generator, String name, long nanos) throws IOException {
+    if (nanos < 0) {
+      generator.writeNullField(name);
+    } else {
+      generator.writeNumberField(name, nanos);
+    }
+  }
+  
+  /**
+   * Format a time in nanoseconds as milliseconds with three decimal places, without going via floating point.
+   * @param nanos The time in nanoseconds.
+   * @return the time in milliseconds, or "-" if the time is negative (not recorded).
+   */
+  static String formatNanosAsMillis(long nanos) {
+    if (nanos < 0) {
+      return "-";
     }
-    HttpServerRequest request = record.getRequest();    
-    jo.put("headers", request.headers());
-    jo.put("url", request.absoluteURI());    
-    jo.put("bytesRead", request.bytesRead());
-    HttpServerResponse response = record.getResponse();
-    if (response != null) {
-      jo.put("responseHeaders", response.headers());
-      jo.put("statusCode", response.getStatusCode());
-      jo.put("bytesWritten", response.bytesWritten());
+    long micros = nanos / 1000;
+    long fraction = micros % 1000;
+    return (micros / 1000) + (fraction < 10 ? ".00" : fraction < 100 ? ".0" : ".") + fraction;
+  }
+  
+  private static void writeJson(JsonGenerator generator, MultiMap headers) throws IOException {
+    generator.writeStartObject();
+    for (String name : headers.names()) {
+      List<String> values = headers.getAll(name);
+      if (values.size() == 1) {
+        generator.writeStringField(name, values.get(0));
+      } else {
+        generator.writeArrayFieldStart(name);
+        for (String value : values) {
+          generator.writeString(value);
+        }
+        generator.writeEndArray();
+      }
     }
-    return jo;
+    generator.writeEndObject();
   }
   
   @Override
@@ -117,188 +270,344 @@ public class AccessLogOutputRoute implements Handler<RoutingContext> {
     
     if (request.method() == HttpMethod.GET) {
       
-      AccessLogCaptureRoute.AccessLogData data[] = buffer.toArray(i -> new AccessLogCaptureRoute.AccessLogData[i]);
-      
       ContentTypes.adjustFromParams(rc);
       
-      if (ContentTypes.TYPE_JSON.equals(rc.getAcceptableContentType())) {
-        
-        JsonArray ja = new JsonArray();
-        for (AccessLogCaptureRoute.AccessLogData record : data) {
-          ja.add(toJson(record));
+      AccessLogFilter filter = getFilter(rc);
+      if (rc.response().ended()) {
+        return;
+      }
+      
+      if ("slowest".equals(request.getParam("view"))) {
+        // The slowest requests are output slowest first, and the since cursor does not apply to them
+        render(rc, filter(slowest == null ? new AccessLogCaptureRoute.AccessLogData[0] : slowest.toArray(i -> new AccessLogCaptureRoute.AccessLogData[i]), filter));
+        return;
+      }
+      
+      long since;
+      int limit;
+      int history;
+      try {
+        since = getSince(request.getParam("since"));
+        limit = getCount("limit", request.getParam("limit"));
+        history = spill == null ? 0 : getCount("history", request.getParam("history"));
+      } catch (IllegalArgumentException ex) {
+        rc.response()
+                .setStatusCode(400)
+                .putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_PLAIN)
+                .end(ex.getMessage());
+        return;
+      }
+      
+      if (since >= 0) {
+        // The committed sequence number must be read before the buffer, so that everything up to it is present in the buffer
+        long committed = capture == null ? Long.MAX_VALUE : capture.getCommittedSequence();
+        AccessLogCaptureRoute.AccessLogData[] recent;
+        if (buffer instanceof ColumnarAccessLogBuffer) {
+          // Avoid materialising entries that have already been seen
+          recent = ((ColumnarAccessLogBuffer) buffer).toArraySince(i -> new AccessLogCaptureRoute.AccessLogData[i], since);
+        } else {
+          recent = buffer.toArray(i -> new AccessLogCaptureRoute.AccessLogData[i]);
         }
-        
-        HttpServerResponse response = rc.response();
-        response.setStatusCode(200);
-        response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_JSON);
-        response.end(Json.encode(ja));
-      } else if (ContentTypes.TYPE_HTML.equals(rc.getAcceptableContentType())) {
-        HttpServerResponse response = rc.response();
-        response.setStatusCode(200);
-        response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_HTML);
-        response.setChunked(true);
-        
-        response.write("<html>");
-        response.write("<head>");
-        response.write("<style>table.top,th.top,td.top { border: 1px solid black; border-collapse: collapse; padding-left: 10px; padding-right: 10px; } td.number { text-align: right; }</style>");
-        response.write("<script type=\"text/javascript\">\n    function flip(id) {\n      var el = document.getElementById(id);\n      if (el) {\n        if (el.style.display == 'none') {\n          el.style.display = '';\n        } else {\n          el.style.display = 'none';\n        }\n      }\n    }\n  </script>");
-        response.write("</head>");
-        response.write("<body>");
-        
-        response.write("<table style=\"border: 1px solid black; border-collapse: collapse;\" class=\"top\">");
-        response.write("<thead><tr><th class=\"top\">Time</th><th class=\"top\">Method</th><th class=\"top\">URL</th><th class=\"top\">Status</th><th class=\"top\">Duration</th><th class=\"top\">Bytes Written</th></tr></thead>\n");
-        
-        response.write("<tbody>\n");
-        
-        int id = 0;
-        for (AccessLogCaptureRoute.AccessLogData record : data) {
-          ++id;
-          response.write("<tr id=\"row-" + id + "\" onclick=\"flip('headers-" + id + "')\"><td class=\"top\">");
-          response.write(ZonedDateTime.ofInstant(Instant.ofEpochMilli(record.getTimestamp()), ZoneOffset.UTC).toString());
-          response.write("</td><td class=\"top\">");
-          response.write(record.getRequest().method().toString());
-          response.write("</td><td class=\"top\">");
-          response.write(record.getRequest().absoluteURI());
-          response.write("</td><td class=\"top\">");
-          if (record.getResponse() != null) {
-            response.write(Integer.toString(record.getResponse().getStatusCode()));
-            response.write("</td><td class=\"number top\">");
-            response.write(Long.toString(record.getEndTimestamp() - record.getTimestamp()));
-            response.write(" ms");
-            response.write("</td><td class=\"number top\">");
-            response.write(Long.toString(record.getResponse().bytesWritten()));
-            response.write(" B");
-          } else {
-            response.write("</td><td class=\"top\">");
-            response.write("</td><td class=\"top\">");
-          }
-          response.write("</td></tr>");
-          
-          response.write("<tr id=\"headers-" + id + "\" style=\"display: none;\"><td colspan=\"6\">");
-          response.write("<table style=\"width: 100%;\">");
-          response.write("<thead>");
-          response.write("<tr>");
-          response.write("<th style=\"width: 50%;\">Request Headers</th>");
-          response.write("<th style=\"width: 50%;\">Response Headers</th>");
-          response.write("</tr>");          
-          response.write("</thead>");
-          response.write("<tr>");
-
-          response.write("<td style=\"width: 50%; vertical-align: top;\">");
-          response.write("<table style=\"width: 100%;\">");          
-          List<String> keys = new ArrayList<>(request.headers().names());
-          keys.sort(String.CASE_INSENSITIVE_ORDER);          
-          for (String key : keys) {
-            response.write("<tr><td><pre>");
-            response.write(key);
-            response.write("</pre></td><td><pre>");
-            List<String> values = request.headers().getAll(key);
-            boolean first = true;
-            for (String value : values) {
-              if (!first) {
-                response.write("\n");
-              }
-              first = false;
-              response.write(value);
-            }
-            response.write("</pre></td></tr>");
-          }
-          response.write("</table></td>");
-
-          response.write("<td style=\"width: 50%; vertical-align: top;\">");
-          response.write("<table style=\"width: 100%;\">");
-          if (record.getResponse() != null) {
-            keys = new ArrayList<>(record.getResponse().headers().names());
-            keys.sort(String.CASE_INSENSITIVE_ORDER);          
-            for (String key : keys) {
-              response.write("<tr><td><pre>");
-              response.write(key);
-              response.write("</pre></td><td><pre>");
-              List<String> values = record.getResponse().headers().getAll(key);
-              boolean first = true;
-              for (String value : values) {
-                if (!first) {
-                  response.write("\n");
-                }
-                first = false;
-                response.write(value);
-              }
-              response.write("</pre></td></tr>");
-            }
-          }
-          response.write("</table></td></tr>");
-
-          response.write("</table></td></tr>\n");
+        AccessLogCaptureRoute.AccessLogData[] data = selectSince(recent, since, limit, committed);
+        // The cursor must move past requests that do not match the filter, so the filter is applied after the selection
+        long cursor = data.length == 0 ? since : data[data.length - 1].getSequence();
+        if (capture != null && (limit == 0 || data.length < limit)) {
+          // Everything up to the committed sequence number has been output or evicted
+          cursor = Math.max(cursor, committed);
         }
-        
-        response.write("</tbody>");
-        
-        response.write("</table>");
-        
-        response.write("</body>");
-        response.write("</html>");
-        
-        response.end();
+        rc.response().putHeader(CURSOR_HEADER, Long.toString(cursor));
+        render(rc, filter(data, filter));
+        return;
+      }
+      
+      if (history > 0) {
+        rc.vertx().executeBlocking(() -> spill.read(history))
+                .onComplete(ar -> {
+                  if (ar.failed()) {
+                    logger.error("Failed to read access log history: ", ar.cause());
+                    rc.response().setStatusCode(500).end();
+                  } else {
+                    List<AccessLogCaptureRoute.AccessLogData> spilled = ar.result();
+                    AccessLogCaptureRoute.AccessLogData[] recent = buffer.toArray(i -> new AccessLogCaptureRoute.AccessLogData[i]);
+                    AccessLogCaptureRoute.AccessLogData[] data = spilled.toArray(new AccessLogCaptureRoute.AccessLogData[spilled.size() + recent.length]);
+                    System.arraycopy(recent, 0, data, spilled.size(), recent.length);
+                    render(rc, filter(data, filter));
+                  }
+                });
+      } else if (buffer instanceof ColumnarAccessLogBuffer) {
+        // Use the status index and avoid materialising entries that do not match
+        render(rc, ((ColumnarAccessLogBuffer) buffer).toArray(i -> new AccessLogCaptureRoute.AccessLogData[i], filter));
       } else {
-        HttpServerResponse response = rc.response();
-        response.setStatusCode(200);
-        response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_PLAIN);
-        response.setChunked(true);
-        
-        for (AccessLogCaptureRoute.AccessLogData record : data) {
-          response.write(buildStringLog(record.getRequest(), record.getResponse(), record.getTimestamp()));
-          response.write("\n");
-        }
-        
-        response.end();
+        render(rc, filter(buffer.toArray(i -> new AccessLogCaptureRoute.AccessLogData[i]), filter));
       }
     } else {
       rc.next();
     }
   }
   
-  private String getClientAddress(SocketAddress inetSocketAddress) {
-    if (inetSocketAddress == null) {
+  /**
+   * Get the filter specified by the query string parameters, ending the response with a 400 status code if they are not valid.
+   * @param rc The routing context.
+   * @return the filter specified by the query string parameters, or null if there is no filter.
+   */
+  private static AccessLogFilter getFilter(RoutingContext rc) {
+    try {
+      return AccessLogFilter.fromParams(rc.request().params());
+    } catch (IllegalArgumentException ex) {
+      rc.response()
+              .setStatusCode(400)
+              .putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_PLAIN)
+              .end(ex.getMessage());
       return null;
     }
-    return inetSocketAddress.host();
   }
   
-  private String buildStringLog(HttpServerRequest request, HttpServerResponse response, long timestamp) {
-    
-    String versionFormatted = getVersionFormatted(request);
-    
-    Integer status = null;
-    Long contentLength = null;
-    
-    if (response != null) {
-      status = response.getStatusCode();
-      contentLength = response.bytesWritten();
+  static AccessLogCaptureRoute.AccessLogData[] filter(AccessLogCaptureRoute.AccessLogData[] data, AccessLogFilter filter) {
+    if (filter == null) {
+      return data;
     }
-    
-    MultiMap headers = request.headers();
+    List<AccessLogCaptureRoute.AccessLogData> result = new ArrayList<>();
+    for (AccessLogCaptureRoute.AccessLogData record : data) {
+      if (filter.test(record)) {
+        result.add(record);
+      }
+    }
+    return result.toArray(new AccessLogCaptureRoute.AccessLogData[0]);
+  }
+  
+  private void stream(RoutingContext rc) {
+    HttpServerResponse response = rc.response();
+    AccessLogFilter filter = getFilter(rc);
+    if (response.ended()) {
+      return;
+    }
+    AccessLogEventStream stream;
+    try {
+      stream = new AccessLogEventStream(rc.vertx().getOrCreateContext(), response, STREAM_QUEUE_SIZE, filter);
+    } catch (IOException ex) {
+      logger.error("Failed to create JSON generator: ", ex);
+      response.setStatusCode(500).end();
+      return;
+    }
+    response.closeHandler(v -> {
+      capture.removeListener(stream);
+      stream.close();
+    });
+    stream.open();
+    capture.addListener(stream);
+  }
+  
+  /**
+   * Parse a count query string parameter.
+   * @param name The name of the parameter, for the error message.
+   * @param param The value of the parameter, may be null.
+   * @return the count, or zero if the parameter is not set.
+   * @throws IllegalArgumentException if the parameter is not a non-negative integer.
+   */
+  static int getCount(String name, String param) {
+    if (param == null) {
+      return 0;
+    }
+    try {
+      int value = Integer.parseInt(param);
+      if (value >= 0) {
+        return value;
+      }
+    } catch (NumberFormatException ex) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("Invalid value for " + name);
+  }
+  
+  /**
+   * Parse the since query string parameter.
+   * @param param The value of the parameter, may be null.
+   * @return the sequence number, or -1 if the parameter is not set.
+   * @throws IllegalArgumentException if the parameter is not a non-negative integer.
+   */
+  static long getSince(String param) {
+    if (param == null) {
+      return -1;
+    }
+    try {
+      long value = Long.parseLong(param);
+      if (value >= 0) {
+        return value;
+      }
+    } catch (NumberFormatException ex) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("Invalid value for since");
+  }
+  
+  /**
+   * Select the requests that follow on from a given sequence number.
+   * <p>
+   * Requests without a sequence number are ignored, as are requests with a sequence number greater than committed, which
+   * may have been added to the buffer before a request with a lower sequence number.
+   *
+   * @param data The requests in the buffer.
+   * @param since Only requests with a sequence number greater than this are returned.
+   * @param limit The maximum number of requests to return, zero for no limit.
+   * @param committed Only requests with a sequence number no greater than this are returned.
+   * @return The requests that follow on from since, in sequence number order.
+   */
+  static AccessLogCaptureRoute.AccessLogData[] selectSince(AccessLogCaptureRoute.AccessLogData[] data, long since, int limit, long committed) {
+    List<AccessLogCaptureRoute.AccessLogData> result = new ArrayList<>(data.length);
+    for (AccessLogCaptureRoute.AccessLogData record : data) {
+      if (record.getSequence() > 0 && record.getSequence() > since && record.getSequence() <= committed) {
+        result.add(record);
+      }
+    }
+    result.sort(Comparator.comparingLong(AccessLogCaptureRoute.AccessLogData::getSequence));
+    if (limit > 0 && result.size() > limit) {
+      return result.subList(0, limit).toArray(new AccessLogCaptureRoute.AccessLogData[0]);
+    }
+    return result.toArray(new AccessLogCaptureRoute.AccessLogData[0]);
+  }
+  
+  private void render(RoutingContext rc, AccessLogCaptureRoute.AccessLogData[] data) {
+    HttpServerResponse response = rc.response();
+    if (ContentTypes.TYPE_JSON.equals(rc.getAcceptableContentType())) {
+      renderJson(response, data);
+    } else if (ContentTypes.TYPE_HTML.equals(rc.getAcceptableContentType())) {
+      renderHtml(response, data);
+    } else {
+      response.setStatusCode(200);
+      response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_PLAIN);
+      ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
+      CombinedLogFormatter formatter = new CombinedLogFormatter();
+      writer.stream(data.length, i -> formatter.append(writer.buffer(), data[i]), null);
+    }
+  }
+  
+  private static void renderHtml(HttpServerResponse response, AccessLogCaptureRoute.AccessLogData[] data) {
+    response.setStatusCode(200);
+    response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_HTML);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
 
-    // as per RFC1945 the header is referer but it is not mandatory some implementations use referrer
-    String referrer = headers.contains("referrer") ? headers.get("referrer") : headers.get("referer");
-    String userAgent = request.headers().get("user-agent");
-    referrer = referrer == null ? "-" : referrer;
-    userAgent = userAgent == null ? "-" : userAgent;
+    writer.append("<html>");
+    writer.append("<head>");
+    writer.append("<style>table.top,th.top,td.top { border: 1px solid black; border-collapse: collapse; padding-left: 10px; padding-right: 10px; } td.number { text-align: right; }</style>");
+    writer.append("<script type=\"text/javascript\">\n    function flip(id) {\n      var el = document.getElementById(id);\n      if (el) {\n        if (el.style.display == 'none') {\n          el.style.display = '';\n        } else {\n          el.style.display = 'none';\n        }\n      }\n    }\n  </script>");
+    writer.append("</head>");
+    writer.append("<body>");
 
-    return String.format("%s - - [%s] \"%s %s %s\" %d %d \"%s\" \"%s\"",
-      getClientAddress(request.remoteAddress()),
-      Utils.formatRFC1123DateTime(timestamp),
-      request.method(),
-      request.absoluteURI(),
-      versionFormatted,
-      status,
-      contentLength,
-      referrer,
-      userAgent);
-  }
+    writer.append("<table style=\"border: 1px solid black; border-collapse: collapse;\" class=\"top\">");
+    writer.append("<thead><tr><th class=\"top\">Time</th><th class=\"top\">Method</th><th class=\"top\">URL</th><th class=\"top\">Status</th><th class=\"top\">Request Read</th><th class=\"top\">First Byte</th><th class=\"top\">Duration</th><th class=\"top\">Bytes Written</th></tr></thead>\n");
+
+    writer.append("<tbody>\n");
+
+    writer.stream(data.length, i -> {
+      AccessLogCaptureRoute.AccessLogData record = data[i];
+      int id = i + 1;
+      writer.append("<tr id=\"row-" + id + "\" onclick=\"flip('headers-" + id + "')\"><td class=\"top\">");
+      writer.append(ZonedDateTime.ofInstant(Instant.ofEpochMilli(record.getTimestamp()), ZoneOffset.UTC).toString());
+      writer.append("</td><td class=\"top\">");
+      writer.append(record.getMethod() == null ? "" : record.getMethod().name());
+      writer.append("</td><td class=\"top\">");
+      writer.append(record.getAbsoluteUri());
+      writer.append("</td><td class=\"top\">");
+      writer.append(Integer.toString(record.getStatusCode()));
+      writer.append("</td><td class=\"number top\">");
+      writer.append(formatNanosAsMillis(record.getRequestReadNanos()));
+      writer.append(" ms");
+      writer.append("</td><td class=\"number top\">");
+      writer.append(formatNanosAsMillis(record.getFirstByteNanos()));
+      writer.append(" ms");
+      writer.append("</td><td class=\"number top\">");
+      writer.append(formatNanosAsMillis(record.getDurationNanos()));
+      writer.append(" ms");
+      writer.append("</td><td class=\"number top\">");
+      writer.append(Long.toString(record.getBytesWritten()));
+      writer.append(" B");
+      writer.append("</td></tr>");
 
-  String getVersionFormatted(HttpServerRequest request) {
+      writer.append("<tr id=\"headers-" + id + "\" style=\"display: none;\"><td colspan=\"8\">");
+      writer.append("<table style=\"width: 100%;\">");
+      writer.append("<thead>");
+      writer.append("<tr>");
+      writer.append("<th style=\"width: 50%;\">Request Headers</th>");
+      writer.append("<th style=\"width: 50%;\">Response Headers</th>");
+      writer.append("</tr>");          
+      writer.append("</thead>");
+      writer.append("<tr>");
+
+      writer.append("<td style=\"width: 50%; vertical-align: top;\">");
+      writeHeadersHtml(writer, record.getRequestHeaders());
+      writer.append("</td>");
+
+      writer.append("<td style=\"width: 50%; vertical-align: top;\">");
+      writeHeadersHtml(writer, record.getResponseHeaders());
+      writer.append("</td></tr>");
+
+      writer.append("</table></td></tr>\n");
+    }, () -> {
+      writer.append("</tbody>");
+      writer.append("</table>");
+      writer.append("</body>");
+      writer.append("</html>");
+    });
+  }
+  
+  private static void renderJson(HttpServerResponse response, AccessLogCaptureRoute.AccessLogData[] data) {
+    response.setStatusCode(200);
+    response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_JSON);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
+    JsonGenerator generator;
+    try {
+      generator = JSON_FACTORY.createGenerator(writer);
+      generator.writeStartArray();
+    } catch (IOException ex) {
+      logger.error("Failed to create JSON generator: ", ex);
+      response.setStatusCode(500).end();
+      return;
+    }
+    writer.stream(data.length, i -> {
+      try {
+        writeJson(generator, data[i]);
+        generator.flush();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }, () -> {
+      try {
+        generator.writeEndArray();
+        generator.close();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    });
+  }
+  
+  private static void writeHeadersHtml(ChunkedResponseWriter writer, MultiMap headers) {
+    writer.append("<table style=\"width: 100%;\">");
+    List<String> keys = new ArrayList<>(headers.names());
+    keys.sort(String.CASE_INSENSITIVE_ORDER);          
+    for (String key : keys) {
+      writer.append("<tr><td><pre>");
+      writer.append(key);
+      writer.append("</pre></td><td><pre>");
+      List<String> values = headers.getAll(key);
+      boolean first = true;
+      for (String value : values) {
+        if (!first) {
+          writer.append("\n");
+        }
+        first = false;
+        writer.append(value);
+      }
+      writer.append("</pre></td></tr>");
+    }
+    writer.append("</table>");
+  }
+  
+  static String getVersionFormatted(HttpVersion version) {
     String versionFormatted;
-    switch (request.version()){
+    if (version == null) {
+      return "-";
+    }
+    switch (version) {
       case HTTP_1_0:
         versionFormatted = "HTTP/1.0";
         break;
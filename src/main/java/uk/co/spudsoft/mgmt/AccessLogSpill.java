@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent tier for the access log, storing entries evicted from the in-memory buffer in memory-mapped segment files.
+ * <p>
+ * Each entry is written in a compact binary encoding (fixed size numeric fields followed by length prefixed UTF-8 strings),
+ * retaining the same fields as the {@link ColumnarAccessLogBuffer}.
+ * Space in the current segment is reserved with a single atomic add, the entry is encoded directly into the mapped file
+ * and then committed by writing its length with release semantics; readers stop at the first uncommitted entry.
+ * Appending does not allocate and never blocks: the next segment is created and mapped in advance by a background thread,
+ * and if it is not ready when the current segment fills up the entry is dropped (and counted) rather than waiting.
+ * <p>
+ * When the total size of the segments would exceed the configured maximum the oldest segment is deleted.
+ * Segments found in the directory at construction are retained (subject to the same limit) and can be read, so the history
+ * survives the spill being recreated (for example, by a verticle being redeployed).
+ * <p>
+ * A directory should only be used by one AccessLogSpill at a time.
+ *
+ * @author jtalbut
+ */
+public class AccessLogSpill implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(AccessLogSpill.class);
+
+  /**
+   * The smallest permitted segment size.
+   */
+  public static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+  private static final int MAGIC = 0x414c5333;
+  private static final int HEADER_SIZE = 8;
+  private static final int FIXED_SIZE = 73;
+  private static final int STRING_COUNT = 7;
+  private static final int MAX_STRING_BYTES = 4096;
+  private static final HttpVersion[] VERSIONS = HttpVersion.values();
+
+  private static final Pattern SEGMENT_NAME = Pattern.compile("accesslog-([0-9]{16})\\.seg");
+
+  private static final VarHandle INT_VIEW = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final Path directory;
+  private final int segmentSize;
+  private final int maxSegments;
+
+  private final List<Segment> segments = new CopyOnWriteArrayList<>();
+  private final AtomicReference<Segment> current = new AtomicReference<>();
+  private final AtomicReference<Segment> next = new AtomicReference<>();
+  private final AtomicBoolean preparing = new AtomicBoolean();
+  private final AtomicLong dropped = new AtomicLong();
+  private final ExecutorService executor;
+  private final Runnable prepareTask = this::prepareNext;
+  private long nextSegmentId;
+
+  static final class Segment {
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong reserved;
+
+    Segment(Path path, MappedByteBuffer buffer, long reserved) {
+      this.path = path;
+      this.buffer = buffer;
+      this.reserved = new AtomicLong(reserved);
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param directory The directory in which to store segment files, it will be created if it does not exist.
+   * @param segmentSize The size of each segment file, in bytes, must be at least {@link #MIN_SEGMENT_SIZE}.
+   * @param maxTotalSize The maximum total size of all segment files, in bytes, at least two segments will always be kept.
+   * @throws IOException if the directory cannot be created or the first segment cannot be mapped.
+   */
+  public AccessLogSpill(Path directory, int segmentSize, long maxTotalSize) throws IOException {
+    if (segmentSize < MIN_SEGMENT_SIZE) {
+      throw new IllegalArgumentException("The segment size must be at least " + MIN_SEGMENT_SIZE + " bytes");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxTotalSize / segmentSize));
+    Files.createDirectories(directory);
+    rescan();
+    Segment first = createSegment();
+    segments.add(first);
+    current.set(first);
+    retire();
+    this.executor = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "access-log-spill");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ensureNext();
+  }
+
+  private void rescan() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "accesslog-*.seg")) {
+      for (Path path : stream) {
+        paths.add(path);
+      }
+    }
+    paths.sort(null);
+    for (Path path : paths) {
+      Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+      if (!matcher.matches()) {
+        continue;
+      }
+      long id = Long.parseLong(matcher.group(1));
+      try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw"); FileChannel channel = file.getChannel()) {
+        long size = channel.size();
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+          logger.warn("Ignoring access log segment {} with invalid size {}", path, size);
+          continue;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+          logger.warn("Ignoring access log segment {} without the expected header", path);
+          continue;
+        }
+        // Segments from a previous run are read-only.
+        segments.add(new Segment(path, buffer, size));
+        nextSegmentId = Math.max(nextSegmentId, id + 1);
+      }
+    }
+  }
+
+  private Segment createSegment() throws IOException {
+    long id = nextSegmentId++;
+    Path path = directory.resolve(String.format("accesslog-%016d.seg", id));
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw"); FileChannel channel = file.getChannel()) {
+      file.setLength(segmentSize);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(0, MAGIC);
+      return new Segment(path, buffer, HEADER_SIZE);
+    }
+  }
+
+  private void ensureNext() {
+    if (next.get() == null && !executor.isShutdown() && preparing.compareAndSet(false, true)) {
+      try {
+        executor.execute(prepareTask);
+      } catch (Throwable ex) {
+        preparing.set(false);
+        logger.warn("Failed to schedule creation of access log segment: ", ex);
+      }
+    }
+  }
+
+  private void prepareNext() {
+    try {
+      retire();
+      if (next.get() == null) {
+        next.set(createSegment());
+      }
+    } catch (Throwable ex) {
+      logger.warn("Failed to create access log segment: ", ex);
+    } finally {
+      preparing.set(false);
+    }
+  }
+
+  private void retire() {
+    // The prepared next segment counts towards the limit.
+    while (segments.size() + 1 > maxSegments) {
+      Segment oldest = segments.remove(0);
+      try {
+        Files.deleteIfExists(oldest.path);
+      } catch (Throwable ex) {
+        logger.warn("Failed to delete access log segment {}: ", oldest.path, ex);
+      }
+    }
+  }
+
+  /**
+   * Append an entry to the spill.
+   * <p>
+   * This method does not allocate and does not block, if there is no space available the entry is dropped.
+   * It is safe to call from multiple threads at once.
+   *
+   * @param data The entry to append.
+   */
+  public void append(AccessLogCaptureRoute.AccessLogData data) {
+    String method = data.getMethod() == null ? null : data.getMethod().name();
+    String referrer = data.getRequestHeader("referer");
+    if (referrer == null) {
+      referrer = data.getRequestHeader("referrer");
+    }
+    String userAgent = data.getRequestHeader("user-agent");
+
+    int length = FIXED_SIZE
+            + encodedLength(method) + encodedLength(data.getScheme()) + encodedLength(data.getHost()) + encodedLength(data.getUri())
+            + encodedLength(data.getRemoteAddress()) + encodedLength(referrer) + encodedLength(userAgent);
+    // Keep every entry 8 byte aligned so that the length can be written atomically.
+    length = (length + 7) & ~7;
+
+    while (true) {
+      Segment segment = current.get();
+      long position = segment.reserved.getAndAdd(length);
+      if (position + length <= segment.buffer.capacity()) {
+        write(segment.buffer, (int) position, length, data, method, referrer, userAgent);
+        return;
+      }
+      Segment replacement = next.get();
+      if (replacement == null) {
+        dropped.incrementAndGet();
+        ensureNext();
+        return;
+      }
+      if (current.compareAndSet(segment, replacement)) {
+        next.compareAndSet(replacement, null);
+        segments.add(replacement);
+        ensureNext();
+      }
+    }
+  }
+
+  private static void write(MappedByteBuffer buffer, int position, int length, AccessLogCaptureRoute.AccessLogData data
+          , String method, String referrer, String userAgent) {
+    buffer.putInt(position + 4, data.getStatusCode());
+    buffer.putLong(position + 8, data.getTimestamp());
+    buffer.putLong(position + 16, data.getEndTimestamp());
+    buffer.putLong(position + 24, data.getBytesRead());
+    buffer.putLong(position + 32, data.getBytesWritten());
+    buffer.putLong(position + 40, data.getSequence());
+    buffer.put(position + 48, data.getVersion() == null ? -1 : (byte) data.getVersion().ordinal());
+    buffer.putLong(position + 49, data.getDurationNanos());
+    buffer.putLong(position + 57, data.getRequestReadNanos());
+    buffer.putLong(position + 65, data.getFirstByteNanos());
+    int offset = position + FIXED_SIZE;
+    offset = writeString(buffer, offset, method);
+    offset = writeString(buffer, offset, data.getScheme());
+    offset = writeString(buffer, offset, data.getHost());
+    offset = writeString(buffer, offset, data.getUri());
+    offset = writeString(buffer, offset, data.getRemoteAddress());
+    offset = writeString(buffer, offset, referrer);
+    writeString(buffer, offset, userAgent);
+    INT_VIEW.setRelease(buffer, position, length);
+  }
+
+  /**
+   * Calculate the number of bytes needed to store a string, including its length prefix.
+   * Strings are truncated to {@link #MAX_STRING_BYTES} bytes of UTF-8.
+   */
+  static int encodedLength(String value) {
+    return 2 + (value == null ? 0 : utf8Length(value));
+  }
+
+  private static int utf8Length(String value) {
+    int bytes = 0;
+    int length = value.length();
+    for (int i = 0; i < length; ++i) {
+      char c = value.charAt(i);
+      int charBytes;
+      if (c < 0x80) {
+        charBytes = 1;
+      } else if (c < 0x800) {
+        charBytes = 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        charBytes = 4;
+      } else if (Character.isSurrogate(c)) {
+        charBytes = 1;
+      } else {
+        charBytes = 3;
+      }
+      if (bytes + charBytes > MAX_STRING_BYTES) {
+        break;
+      }
+      bytes += charBytes;
+      if (charBytes == 4) {
+        ++i;
+      }
+    }
+    return bytes;
+  }
+
+  private static int writeString(MappedByteBuffer buffer, int offset, String value) {
+    if (value == null) {
+      buffer.putShort(offset, (short) -1);
+      return offset + 2;
+    }
+    int start = offset + 2;
+    int pos = start;
+    int length = value.length();
+    for (int i = 0; i < length; ++i) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        if (pos + 1 - start > MAX_STRING_BYTES) {
+          break;
+        }
+        buffer.put(pos++, (byte) c);
+      } else if (c < 0x800) {
+        if (pos + 2 - start > MAX_STRING_BYTES) {
+          break;
+        }
+        buffer.put(pos++, (byte) (0xc0 | (c >> 6)));
+        buffer.put(pos++, (byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        if (pos + 4 - start > MAX_STRING_BYTES) {
+          break;
+        }
+        int cp = Character.toCodePoint(c, value.charAt(++i));
+        buffer.put(pos++, (byte) (0xf0 | (cp >> 18)));
+        buffer.put(pos++, (byte) (0x80 | ((cp >> 12) & 0x3f)));
+        buffer.put(pos++, (byte) (0x80 | ((cp >> 6) & 0x3f)));
+        buffer.put(pos++, (byte) (0x80 | (cp & 0x3f)));
+      } else if (Character.isSurrogate(c)) {
+        // Unpaired surrogates are replaced with '?', as String.getBytes would do.
+        if (pos + 1 - start > MAX_STRING_BYTES) {
+          break;
+        }
+        buffer.put(pos++, (byte) '?');
+      } else {
+        if (pos + 3 - start > MAX_STRING_BYTES) {
+          break;
+        }
+        buffer.put(pos++, (byte) (0xe0 | (c >> 12)));
+        buffer.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+        buffer.put(pos++, (byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    buffer.putShort(offset, (short) (pos - start));
+    return pos;
+  }
+
+  /**
+   * Read the most recent entries from the spill.
+   * <p>
+   * This method reads and decodes segment files and should not be called on an event loop.
+   *
+   * @param maxEntries The maximum number of entries to return.
+   * @return the most recent entries in the spill, oldest first.
+   */
+  public List<AccessLogCaptureRoute.AccessLogData> read(int maxEntries) {
+    Deque<AccessLogCaptureRoute.AccessLogData> result = new ArrayDeque<>();
+    List<Segment> snapshot = new ArrayList<>(segments);
+    for (int i = snapshot.size() - 1; i >= 0 && result.size() < maxEntries; --i) {
+      List<AccessLogCaptureRoute.AccessLogData> entries = readSegment(snapshot.get(i));
+      for (int j = entries.size() - 1; j >= 0 && result.size() < maxEntries; --j) {
+        result.addFirst(entries.get(j));
+      }
+    }
+    return new ArrayList<>(result);
+  }
+
+  private static List<AccessLogCaptureRoute.AccessLogData> readSegment(Segment segment) {
+    List<AccessLogCaptureRoute.AccessLogData> result = new ArrayList<>();
+    MappedByteBuffer buffer = segment.buffer;
+    int capacity = buffer.capacity();
+    int position = HEADER_SIZE;
+    while (position + FIXED_SIZE <= capacity) {
+      int length = (int) INT_VIEW.getAcquire(buffer, position);
+      if (length < FIXED_SIZE || position + length > capacity) {
+        break;
+      }
+      result.add(readEntry(buffer, position));
+      position += length;
+    }
+    return result;
+  }
+
+  private static AccessLogCaptureRoute.AccessLogData readEntry(MappedByteBuffer buffer, int position) {
+    int statusCode = buffer.getInt(position + 4);
+    long timestamp = buffer.getLong(position + 8);
+    long endTimestamp = buffer.getLong(position + 16);
+    long bytesRead = buffer.getLong(position + 24);
+    long bytesWritten = buffer.getLong(position + 32);
+    long sequence = buffer.getLong(position + 40);
+    byte version = buffer.get(position + 48);
+    long durationNanos = buffer.getLong(position + 49);
+    long requestReadNanos = buffer.getLong(position + 57);
+    long firstByteNanos = buffer.getLong(position + 65);
+    String[] strings = new String[STRING_COUNT];
+    int offset = position + FIXED_SIZE;
+    for (int i = 0; i < STRING_COUNT; ++i) {
+      short length = buffer.getShort(offset);
+      offset += 2;
+      if (length >= 0) {
+        byte[] bytes = new byte[length];
+        for (int j = 0; j < length; ++j) {
+          bytes[j] = buffer.get(offset + j);
+        }
+        strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        offset += length;
+      }
+    }
+    String referrer = strings[5];
+    String userAgent = strings[6];
+    List<String> headers = new ArrayList<>(4);
+    if (referrer != null) {
+      headers.add("Referer");
+      headers.add(referrer);
+    }
+    if (userAgent != null) {
+      headers.add("User-Agent");
+      headers.add(userAgent);
+    }
+    return new AccessLogCaptureRoute.AccessLogData(sequence
+            , timestamp
+            , endTimestamp
+            , durationNanos
+            , requestReadNanos
+            , firstByteNanos
+            , strings[0] == null ? null : HttpMethod.valueOf(strings[0])
+            , version < 0 || version >= VERSIONS.length ? null : VERSIONS[version]
+            , strings[1]
+            , strings[2]
+            , strings[3]
+            , strings[4]
+            , statusCode
+            , bytesRead
+            , bytesWritten
+            , headers.toArray(new String[0])
+            , null
+    );
+  }
+
+  /**
+   * Get the number of entries that have been dropped because no segment was available.
+   * @return the number of entries that have been dropped because no segment was available.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Get the number of segments currently available for reading.
+   * @return the number of segments currently available for reading.
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Stop the background thread used for creating segments, waiting briefly for any segment currently being created.
+   * <p>
+   * Segments that have already been written remain readable, but once the current segment is full further entries will be dropped.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+        logger.warn("Timed out waiting for access log segment creation to finish");
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import java.io.OutputStream;
+import java.util.function.IntConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * OutputStream that collects output into fixed size chunks and writes them to an HttpServerResponse, respecting back-pressure.
+ * <p>
+ * Output, either bytes or strings, is accumulated in a Buffer until it reaches the chunk size, only then is it written to the response.
+ * Once written a Buffer belongs to the response, so a new one is allocated for each chunk rather than reusing them.
+ * The {@link #pump(int, java.util.function.IntConsumer)} method is used to generate the output one item at a time,
+ * it stops whenever the response write queue is full (resuming when it drains) and yields to the event loop
+ * after each batch of items, so that generating a large response neither queues unbounded data nor blocks the event loop.
+ * <p>
+ * This class is not thread safe, it must only be used on the context that is handling the request.
+ *
+ * @author jtalbut
+ */
+class ChunkedResponseWriter extends OutputStream {
+
+  /**
+   * The default size of chunks written to the response.
+   */
+  static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+  /**
+   * The default number of items generated before yielding to the event loop.
+   */
+  static final int DEFAULT_BATCH_SIZE = 256;
+
+  private static final Logger logger = LoggerFactory.getLogger(ChunkedResponseWriter.class);
+
+  private final HttpServerResponse response;
+  private final int chunkSize;
+  private final int batchSize;
+  private Buffer current;
+
+  /**
+   * Constructor.
+   * @param response The response to write to, it will be set to use chunked transfer encoding.
+   */
+  ChunkedResponseWriter(HttpServerResponse response) {
+    this(response, DEFAULT_CHUNK_SIZE, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Constructor.
+   * @param response The response to write to, it will be set to use chunked transfer encoding.
+   * @param chunkSize The size of the chunks written to the response.
+   * @param batchSize The number of items to generate before yielding to the event loop.
+   */
+  ChunkedResponseWriter(HttpServerResponse response, int chunkSize, int batchSize) {
+    this.response = response;
+    this.chunkSize = chunkSize;
+    this.batchSize = batchSize;
+    this.current = Buffer.buffer(chunkSize);
+    response.setChunked(true);
+  }
+
+  @Override
+  public void write(int b) {
+    current.appendByte((byte) b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    current.appendBytes(b, off, len);
+  }
+
+  /**
+   * Append a string, encoded as UTF-8, to the output.
+   * @param text The string to append, null values are ignored.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  ChunkedResponseWriter append(String text) {
+    if (text != null) {
+      current.appendString(text);
+    }
+    return this;
+  }
+
+  /**
+   * Get the Buffer that output is currently being accumulated in, so that formatters can append to it directly.
+   * <p>
+   * A new Buffer is used after each chunk is written, so the value returned must not be retained.
+   * @return the Buffer that output is currently being accumulated in.
+   */
+  Buffer buffer() {
+    return current;
+  }
+
+  /**
+   * Write the current chunk to the response if it has reached the chunk size.
+   * @return true if the response write queue is full.
+   */
+  boolean writeIfFull() {
+    if (current.length() >= chunkSize) {
+      response.write(current);
+      current = Buffer.buffer(chunkSize);
+    }
+    return response.writeQueueFull();
+  }
+
+  /**
+   * Write the current chunk to the response, whatever its size, without ending the response.
+   * <p>
+   * This is used by long-lived responses that must send each batch of output as soon as it is complete.
+   * @return true if the response write queue is full.
+   */
+  boolean writePending() {
+    if (current.length() > 0) {
+      response.write(current);
+      current = Buffer.buffer(chunkSize);
+    }
+    return response.writeQueueFull();
+  }
+
+  /**
+   * Generate items, pausing when the response write queue is full and yielding to the event loop periodically.
+   * <p>
+   * The producer is called with each index from zero to count - 1 in turn, it should write the output for that item to this stream.
+   * If the response is closed before all items have been generated the returned Future is failed.
+   * <p>
+   * While waiting for the write queue to drain the close and exception handlers of the response are replaced, so that the returned
+   * Future is failed if the connection is lost (when the drain handler would never be called), and cleared when writing resumes.
+   *
+   * @param count The number of items to generate.
+   * @param producer The producer of the output for each item.
+   * @return A Future that will be completed when all the items have been generated.
+   */
+  Future<Void> pump(int count, IntConsumer producer) {
+    Promise<Void> promise = Promise.promise();
+    pump(Vertx.currentContext(), 0, count, producer, promise);
+    return promise.future();
+  }
+
+  private void pump(Context context, int start, int count, IntConsumer producer, Promise<Void> promise) {
+    if (response.closed()) {
+      promise.tryFail("Response closed");
+      return;
+    }
+    int index = start;
+    try {
+      while (index < count) {
+        producer.accept(index++);
+        if (writeIfFull()) {
+          int next = index;
+          response.closeHandler(v -> {
+            clearHandlers();
+            promise.tryFail("Response closed");
+          });
+          response.exceptionHandler(ex -> {
+            clearHandlers();
+            promise.tryFail(ex);
+          });
+          response.drainHandler(v -> {
+            clearHandlers();
+            pump(context, next, count, producer, promise);
+          });
+          return;
+        }
+        if (index - start >= batchSize && index < count && context != null) {
+          int next = index;
+          context.runOnContext(v -> pump(context, next, count, producer, promise));
+          return;
+        }
+      }
+    } catch (Throwable ex) {
+      promise.tryFail(ex);
+      return;
+    }
+    promise.tryComplete();
+  }
+
+  private void clearHandlers() {
+    response.drainHandler(null);
+    response.closeHandler(null);
+    response.exceptionHandler(null);
+  }
+
+  /**
+   * Generate items using {@link #pump(int, java.util.function.IntConsumer)}, then run the trailer and end the response.
+   * <p>
+   * If the items cannot be generated (for example, because the client has gone away) the response is reset.
+   *
+   * @param count The number of items to generate.
+   * @param producer The producer of the output for each item.
+   * @param trailer Called after all the items have been generated to write any trailing output, may be null.
+   * @return A Future that will be completed when the response has been ended.
+   */
+  Future<Void> stream(int count, IntConsumer producer, Runnable trailer) {
+    return pump(count, producer)
+            .compose(v -> {
+              if (trailer != null) {
+                trailer.run();
+              }
+              return end();
+            })
+            .onFailure(ex -> {
+              logger.warn("Failed to stream response: ", ex);
+              response.reset();
+            });
+  }
+
+  /**
+   * Write any remaining output and end the response.
+   * @return The Future returned by {@link HttpServerResponse#end(io.vertx.core.buffer.Buffer)}.
+   */
+  Future<Void> end() {
+    Buffer last = current;
+    current = Buffer.buffer(0);
+    return response.end(last);
+  }
+
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+/**
+ * A SnapshotBuffer for {@link AccessLogCaptureRoute.AccessLogData} that stores each field in its own primitive array.
+ * <p>
+ * Sequence numbers, timestamps, durations, phase times and byte counts are held in long arrays, status codes in an int array and the HTTP version as a byte.
+ * The method, scheme, host, URI, remote address, referrer and user agent are dictionary encoded as int ids into a single
+ * {@link StringDictionary}, so repeated values are only stored once.
+ * The cost of each entry is around 89 bytes plus the cost of any strings that have not been seen before, compared to several
+ * hundred bytes for an AccessLogData with its headers.
+ * <p>
+ * Only the Referer and User-Agent request headers are retained (as needed for the combined log format), all other headers
+ * are discarded.
+ * <p>
+ * The dictionary is rebuilt from the values still in the buffer whenever it grows beyond twice the number of distinct values
+ * that the buffer could be referring to, so high cardinality values (such as URIs with unique query strings) cannot cause it
+ * to grow without bound.
+ * The rebuild runs on an executor (by default the common ForkJoinPool) rather than on the thread adding the entry, and the
+ * values still in use are found without the lock, which is only held to remap the ids already in the columns.
+ * <p>
+ * For each status class (see {@link AccessLogFilter#statusClass(int)}) a bitset records which slots in the ring hold
+ * entries in that class, so that {@link #toArray(java.util.function.IntFunction, uk.co.spudsoft.mgmt.AccessLogFilter)}
+ * only has to examine the entries in the classes being requested.
+ * The remaining filter criteria are evaluated against the columns, and only the matching entries are materialised.
+ * <p>
+ * Writers find the ids of their strings in the (thread safe) dictionary before taking the lock, and then hold it only for the
+ * duration of a few array stores; readers take it only to copy the columns and then build the AccessLogData objects outside of it.
+ *
+ * @author jtalbut
+ */
+public class ColumnarAccessLogBuffer implements SnapshotBuffer<AccessLogCaptureRoute.AccessLogData> {
+
+  private static final HttpVersion[] VERSIONS = HttpVersion.values();
+  private static final int STRING_COLUMNS = 7;
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private final int capacity;
+  private final int maxDictionarySize;
+
+  private final long[] sequences;
+  private final long[] timestamps;
+  private final long[] durations;
+  private final long[] requestReads;
+  private final long[] firstBytes;
+  private final long[] bytesRead;
+  private final long[] bytesWritten;
+  private final int[] statusCodes;
+  private final byte[] versions;
+  private final int[] methods;
+  private final int[] schemes;
+  private final int[] hosts;
+  private final int[] uris;
+  private final int[] remoteAddresses;
+  private final int[] referrers;
+  private final int[] userAgents;
+  private final int[][] stringColumns;
+  private final BitSet[] statusIndex;
+  private final Executor compactor;
+  private final AtomicBoolean compacting = new AtomicBoolean();
+
+  // Only replaced with the lock held
+  private volatile StringDictionary dictionary = new StringDictionary();
+  // Guarded by this
+  private long count;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The number of entries to keep in the buffer.
+   */
+  public ColumnarAccessLogBuffer(int capacity) {
+    this(capacity, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The number of entries to keep in the buffer.
+   * @param compactor The executor used to rebuild the dictionary.
+   */
+  ColumnarAccessLogBuffer(int capacity, Executor compactor) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity of a ColumnarAccessLogBuffer must be positive");
+    }
+    this.capacity = capacity;
+    this.maxDictionarySize = (int) Math.min(Integer.MAX_VALUE - 8, 2L * STRING_COLUMNS * capacity + 1024);
+    this.sequences = new long[capacity];
+    this.timestamps = new long[capacity];
+    this.durations = new long[capacity];
+    this.requestReads = new long[capacity];
+    this.firstBytes = new long[capacity];
+    this.bytesRead = new long[capacity];
+    this.bytesWritten = new long[capacity];
+    this.statusCodes = new int[capacity];
+    this.versions = new byte[capacity];
+    this.methods = new int[capacity];
+    this.schemes = new int[capacity];
+    this.hosts = new int[capacity];
+    this.uris = new int[capacity];
+    this.remoteAddresses = new int[capacity];
+    this.referrers = new int[capacity];
+    this.userAgents = new int[capacity];
+    this.stringColumns = new int[][] {methods, schemes, hosts, uris, remoteAddresses, referrers, userAgents};
+    this.compactor = compactor;
+    this.statusIndex = new BitSet[AccessLogFilter.STATUS_CLASSES];
+    for (int i = 0; i < statusIndex.length; ++i) {
+      statusIndex[i] = new BitSet(capacity);
+    }
+  }
+
+  @Override
+  public void add(AccessLogCaptureRoute.AccessLogData item) {
+    String referrer = item.getRequestHeader("referer");
+    String[] strings = {
+      item.getMethod() == null ? null : item.getMethod().name()
+      , item.getScheme()
+      , item.getHost()
+      , item.getUri()
+      , item.getRemoteAddress()
+      , referrer == null ? item.getRequestHeader("referrer") : referrer
+      , item.getRequestHeader("user-agent")
+    };
+    StringDictionary current = dictionary;
+    int[] ids = encode(current, strings);
+    synchronized (this) {
+      if (current != dictionary) {
+        // The dictionary was rebuilt whilst the ids were being found
+        current = dictionary;
+        ids = encode(current, strings);
+      }
+      int index = (int) (count % capacity);
+      if (count >= capacity) {
+        statusIndex[AccessLogFilter.statusClass(statusCodes[index])].clear(index);
+      }
+      statusIndex[AccessLogFilter.statusClass(item.getStatusCode())].set(index);
+      sequences[index] = item.getSequence();
+      timestamps[index] = item.getTimestamp();
+      durations[index] = item.getDurationNanos();
+      requestReads[index] = item.getRequestReadNanos();
+      firstBytes[index] = item.getFirstByteNanos();
+      bytesRead[index] = item.getBytesRead();
+      bytesWritten[index] = item.getBytesWritten();
+      statusCodes[index] = item.getStatusCode();
+      versions[index] = item.getVersion() == null ? -1 : (byte) item.getVersion().ordinal();
+      for (int i = 0; i < STRING_COLUMNS; ++i) {
+        stringColumns[i][index] = ids[i];
+      }
+      ++count;
+    }
+    if (current.size() >= maxDictionarySize && compacting.compareAndSet(false, true)) {
+      compactor.execute(this::compactDictionary);
+    }
+  }
+
+  private static int[] encode(StringDictionary dictionary, String[] strings) {
+    int[] ids = new int[strings.length];
+    for (int i = 0; i < strings.length; ++i) {
+      ids[i] = dictionary.idOf(strings[i]);
+    }
+    return ids;
+  }
+
+  /**
+   * Rebuild the dictionary so that it only contains the values that are still in the buffer.
+   * <p>
+   * The replacement dictionary is built from the ids found in the columns without holding the lock (ids that are changed
+   * whilst this is happening may be missed, which only costs an extra lookup later), the lock is then held to remap each id
+   * in the columns to the replacement dictionary and to replace it.
+   */
+  void compactDictionary() {
+    try {
+      StringDictionary old = dictionary;
+      int known = old.size();
+      int[] remap = new int[known];
+      Arrays.fill(remap, StringDictionary.ABSENT_ID);
+      StringDictionary replacement = new StringDictionary();
+      int live = size();
+      for (int[] column : stringColumns) {
+        for (int i = 0; i < live; ++i) {
+          int id = column[i];
+          if (id >= 0 && id < known && remap[id] == StringDictionary.ABSENT_ID) {
+            remap[id] = replacement.idOf(old.get(id));
+          }
+        }
+      }
+      synchronized (this) {
+        live = (int) Math.min(count, capacity);
+        for (int[] column : stringColumns) {
+          for (int i = 0; i < live; ++i) {
+            int id = column[i];
+            if (id >= 0) {
+              int newId = id < known ? remap[id] : StringDictionary.ABSENT_ID;
+              column[i] = newId == StringDictionary.ABSENT_ID ? replacement.idOf(old.get(id)) : newId;
+            }
+          }
+        }
+        dictionary = replacement;
+      }
+    } finally {
+      compacting.set(false);
+    }
+  }
+
+  /**
+   * Get the number of distinct strings currently held in the dictionary.
+   * @return the number of distinct strings currently held in the dictionary.
+   */
+  public int getDictionarySize() {
+    return dictionary.size();
+  }
+
+  @Override
+  public synchronized int size() {
+    return (int) Math.min(count, capacity);
+  }
+
+  @Override
+  public AccessLogCaptureRoute.AccessLogData[] toArray(IntFunction<AccessLogCaptureRoute.AccessLogData[]> generator) {
+    return toArraySince(generator, Long.MIN_VALUE);
+  }
+
+  /**
+   * Copy the most recent entries, starting with the last entry added with a sequence number no greater than afterSequence,
+   * into a newly allocated array, oldest first.
+   * <p>
+   * Only the sequence number column is scanned for entries that are skipped, so the cost is proportional to the number of entries returned.
+   * The first entry returned is included so that the caller can tell whether any entries following afterSequence have been evicted.
+   * Entries are returned in the order in which they were added, which may not be exactly the order of their sequence numbers, so
+   * the result may include other entries with sequence numbers not greater than afterSequence.
+   *
+   * @param generator Generator for the allocation of the array.
+   * @param afterSequence The sequence number of the last entry that the caller is not interested in.
+   * @return the most recent entries, starting with the last entry added with a sequence number no greater than afterSequence.
+   */
+  public AccessLogCaptureRoute.AccessLogData[] toArraySince(IntFunction<AccessLogCaptureRoute.AccessLogData[]> generator, long afterSequence) {
+    Columns columns;
+    synchronized (this) {
+      int size = (int) Math.min(count, capacity);
+      int first = (int) ((count - size) % capacity);
+      while (size > 1 && sequences[(first + 1) % capacity] <= afterSequence) {
+        first = (first + 1) % capacity;
+        --size;
+      }
+      columns = new Columns(size, dictionary.values());
+      copyColumn(sequences, columns.sequences, first, size);
+      copyColumn(timestamps, columns.timestamps, first, size);
+      copyColumn(durations, columns.durations, first, size);
+      copyColumn(requestReads, columns.requestReads, first, size);
+      copyColumn(firstBytes, columns.firstBytes, first, size);
+      copyColumn(bytesRead, columns.bytesRead, first, size);
+      copyColumn(bytesWritten, columns.bytesWritten, first, size);
+      copyColumn(statusCodes, columns.statusCodes, first, size);
+      copyColumn(versions, columns.versions, first, size);
+      copyColumn(methods, columns.methods, first, size);
+      copyColumn(schemes, columns.schemes, first, size);
+      copyColumn(hosts, columns.hosts, first, size);
+      copyColumn(uris, columns.uris, first, size);
+      copyColumn(remoteAddresses, columns.remoteAddresses, first, size);
+      copyColumn(referrers, columns.referrers, first, size);
+      copyColumn(userAgents, columns.userAgents, first, size);
+    }
+    return columns.toArray(generator);
+  }
+
+  /**
+   * Copy the entries that match a filter into a newly allocated array, oldest first.
+   * <p>
+   * If the filter specifies any statuses only the slots in the status index for the matching classes are examined,
+   * and all other criteria are evaluated against the columns, so only entries that match the filter are materialised.
+   * The URI criteria (which may be regular expressions) are evaluated after the lock has been released, against the copied
+   * columns, with each distinct URI tested only once.
+   *
+   * @param generator Generator for the allocation of the array.
+   * @param filter The filter, if this is null every entry is returned.
+   * @return the entries that match the filter.
+   */
+  public AccessLogCaptureRoute.AccessLogData[] toArray(IntFunction<AccessLogCaptureRoute.AccessLogData[]> generator, AccessLogFilter filter) {
+    if (filter == null) {
+      return toArray(generator);
+    }
+    Columns columns;
+    synchronized (this) {
+      int size = (int) Math.min(count, capacity);
+      int first = (int) ((count - size) % capacity);
+      int methodId = filter.getMethod() == null ? StringDictionary.NULL_ID : dictionary.find(filter.getMethod());
+      int remoteAddressId = filter.getRemoteAddress() == null ? StringDictionary.NULL_ID : dictionary.find(filter.getRemoteAddress());
+      BitSet candidates = candidates(filter.getCandidateStatusClasses());
+      int[] matches = new int[size];
+      int matched = 0;
+      if (methodId != StringDictionary.ABSENT_ID && remoteAddressId != StringDictionary.ABSENT_ID) {
+        // The ring is in two parts, from the oldest entry to the end of the arrays and then from the start of the arrays
+        int[][] ranges = {{first, Math.min(capacity, first + size)}, {0, first + size - capacity}};
+        for (int[] range : ranges) {
+          for (int index = next(candidates, range[0]); index >= 0 && index < range[1]; index = next(candidates, index + 1)) {
+            if (filter.testStatus(statusCodes[index])
+                    && filter.testTimes(timestamps[index], durations[index] / NANOS_PER_MILLI)
+                    && (methodId == StringDictionary.NULL_ID || methods[index] == methodId)
+                    && (remoteAddressId == StringDictionary.NULL_ID || remoteAddresses[index] == remoteAddressId)) {
+              matches[matched++] = index;
+            }
+          }
+        }
+      }
+      columns = new Columns(matched, dictionary.values());
+      for (int i = 0; i < matched; ++i) {
+        int index = matches[i];
+        columns.sequences[i] = sequences[index];
+        columns.timestamps[i] = timestamps[index];
+        columns.durations[i] = durations[index];
+        columns.requestReads[i] = requestReads[index];
+        columns.firstBytes[i] = firstBytes[index];
+        columns.bytesRead[i] = bytesRead[index];
+        columns.bytesWritten[i] = bytesWritten[index];
+        columns.statusCodes[i] = statusCodes[index];
+        columns.versions[i] = versions[index];
+        columns.methods[i] = methods[index];
+        columns.schemes[i] = schemes[index];
+        columns.hosts[i] = hosts[index];
+        columns.uris[i] = uris[index];
+        columns.remoteAddresses[i] = remoteAddresses[index];
+        columns.referrers[i] = referrers[index];
+        columns.userAgents[i] = userAgents[index];
+      }
+    }
+    if (!filter.filtersUri()) {
+      return columns.toArray(generator);
+    }
+    Map<Integer, Boolean> uriMatches = new HashMap<>();
+    return columns.toArray(generator
+            , i -> uriMatches.computeIfAbsent(columns.uris[i], id -> filter.testUri(StringDictionary.get(columns.values, id))));
+  }
+
+  /**
+   * Combine the status index for the given classes.
+   * @param classes Bit mask of the status classes required.
+   * @return the combined status index, or null if no status classes were specified.
+   */
+  private BitSet candidates(int classes) {
+    if (classes == 0) {
+      return null;
+    }
+    BitSet result = new BitSet(capacity);
+    for (int i = 0; i < statusIndex.length; ++i) {
+      if ((classes & (1 << i)) != 0) {
+        result.or(statusIndex[i]);
+      }
+    }
+    return result;
+  }
+
+  private static int next(BitSet candidates, int from) {
+    return candidates == null ? from : candidates.nextSetBit(from);
+  }
+
+  /**
+   * Linear copies of the columns for some of the entries in the buffer, taken under the lock so that the
+   * AccessLogData objects can be built outside of it.
+   */
+  private static final class Columns {
+    private final int size;
+    private final String[] values;
+    private final long[] sequences;
+    private final long[] timestamps;
+    private final long[] durations;
+    private final long[] requestReads;
+    private final long[] firstBytes;
+    private final long[] bytesRead;
+    private final long[] bytesWritten;
+    private final int[] statusCodes;
+    private final byte[] versions;
+    private final int[] methods;
+    private final int[] schemes;
+    private final int[] hosts;
+    private final int[] uris;
+    private final int[] remoteAddresses;
+    private final int[] referrers;
+    private final int[] userAgents;
+
+    Columns(int size, String[] values) {
+      this.size = size;
+      this.values = values;
+      this.sequences = new long[size];
+      this.timestamps = new long[size];
+      this.durations = new long[size];
+      this.requestReads = new long[size];
+      this.firstBytes = new long[size];
+      this.bytesRead = new long[size];
+      this.bytesWritten = new long[size];
+      this.statusCodes = new int[size];
+      this.versions = new byte[size];
+      this.methods = new int[size];
+      this.schemes = new int[size];
+      this.hosts = new int[size];
+      this.uris = new int[size];
+      this.remoteAddresses = new int[size];
+      this.referrers = new int[size];
+      this.userAgents = new int[size];
+    }
+
+    AccessLogCaptureRoute.AccessLogData[] toArray(IntFunction<AccessLogCaptureRoute.AccessLogData[]> generator) {
+      AccessLogCaptureRoute.AccessLogData[] result = generator.apply(size);
+      for (int i = 0; i < size; ++i) {
+        result[i] = build(i);
+      }
+      return result;
+    }
+
+    AccessLogCaptureRoute.AccessLogData[] toArray(IntFunction<AccessLogCaptureRoute.AccessLogData[]> generator, IntPredicate include) {
+      int[] rows = new int[size];
+      int included = 0;
+      for (int i = 0; i < size; ++i) {
+        if (include.test(i)) {
+          rows[included++] = i;
+        }
+      }
+      AccessLogCaptureRoute.AccessLogData[] result = generator.apply(included);
+      for (int i = 0; i < included; ++i) {
+        result[i] = build(rows[i]);
+      }
+      return result;
+    }
+
+    private AccessLogCaptureRoute.AccessLogData build(int i) {
+      String method = StringDictionary.get(values, methods[i]);
+      String referrer = StringDictionary.get(values, referrers[i]);
+      String userAgent = StringDictionary.get(values, userAgents[i]);
+      String[] requestHeaders;
+      if (referrer == null && userAgent == null) {
+        requestHeaders = null;
+      } else if (userAgent == null) {
+        requestHeaders = new String[] {"Referer", referrer};
+      } else if (referrer == null) {
+        requestHeaders = new String[] {"User-Agent", userAgent};
+      } else {
+        requestHeaders = new String[] {"Referer", referrer, "User-Agent", userAgent};
+      }
+      return new AccessLogCaptureRoute.AccessLogData(sequences[i]
+              , timestamps[i]
+              , timestamps[i] + durations[i] / NANOS_PER_MILLI
+              , durations[i]
+              , requestReads[i]
+              , firstBytes[i]
+              , method == null ? null : HttpMethod.valueOf(method)
+              , versions[i] < 0 ? null : VERSIONS[versions[i]]
+              , StringDictionary.get(values, schemes[i])
+              , StringDictionary.get(values, hosts[i])
+              , StringDictionary.get(values, uris[i])
+              , StringDictionary.get(values, remoteAddresses[i])
+              , statusCodes[i]
+              , bytesRead[i]
+              , bytesWritten[i]
+              , requestHeaders
+              , null
+      );
+    }
+  }
+
+  /**
+   * Copy size entries from a ring shaped column, starting at first, into a linear array.
+   */
+  private void copyColumn(Object source, Object dest, int first, int size) {
+    int tail = Math.min(size, capacity - first);
+    System.arraycopy(source, first, dest, 0, tail);
+    System.arraycopy(source, 0, dest, tail, size - tail);
+  }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.impl.Utils;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Formats captured requests in the combined log format, as output by the {@link AccessLogOutputRoute} as plain text.
+ * <p>
+ * Each line is of the form:
+ * <pre>
+ * remoteAddress - - [date] "METHOD absoluteUri version" status bytesWritten "referrer" "userAgent" duration requestRead firstByte
+ * </pre>
+ * where the date is in RFC 1123 format.
+ * The three fields following the combined log format are the duration of the request (as Apache's %D), the time at which
+ * the request body had been read and the time at which the response headers were written, all in microseconds after the request
+ * was captured; phases that were not recorded are output as "-".
+ * <p>
+ * Each line is built in a reusable byte array without creating any intermediate strings:
+ * ASCII values are copied a character at a time, numbers are written digit by digit,
+ * the HTTP version strings are precomputed and the formatted date is cached, so it is only formatted once per second.
+ * The line can then be appended to a Buffer or copied to a ByteBuffer without further allocation.
+ * <p>
+ * This class is not thread safe, a new instance should be used for each response (or each thread).
+ *
+ * @author jtalbut
+ */
+public final class CombinedLogFormatter {
+
+  private static final byte[][] VERSIONS = new byte[HttpVersion.values().length][];
+  private static final byte[] NULL_VERSION = ascii(AccessLogOutputRoute.getVersionFormatted(null));
+  private static final byte[] NULL = ascii("null");
+  private static final byte[] SEPARATOR = ascii(" - - [");
+  private static final byte[] SCHEME_SEPARATOR = ascii("://");
+  private static final byte[] QUOTE_SPACE_QUOTE = ascii("\" \"");
+
+  static {
+    for (HttpVersion version : HttpVersion.values()) {
+      VERSIONS[version.ordinal()] = ascii(AccessLogOutputRoute.getVersionFormatted(version));
+    }
+  }
+
+  private final byte[] digits = new byte[20];
+  private byte[] line = new byte[512];
+  private int length;
+  private long cachedSecond = Long.MIN_VALUE;
+  private byte[] cachedDate;
+
+  /**
+   * Constructor.
+   */
+  public CombinedLogFormatter() {
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Append a single line, including the trailing newline, for a request to a Buffer.
+   * @param buffer The Buffer to append to.
+   * @param record The request.
+   * @return The Buffer, so that the method may be used in a fluent manner.
+   */
+  public Buffer append(Buffer buffer, AccessLogCaptureRoute.AccessLogData record) {
+    int lineLength = format(record);
+    return buffer.appendBytes(line, 0, lineLength);
+  }
+
+  /**
+   * Get the array containing the line most recently formatted.
+   * <p>
+   * The array is reused (and may be replaced) by the next call to {@link #format(uk.co.spudsoft.mgmt.AccessLogCaptureRoute.AccessLogData)}.
+   * @return the array containing the line most recently formatted, which may be longer than the line.
+   */
+  byte[] line() {
+    return line;
+  }
+
+  /**
+   * Format a single line, including the trailing newline, into the array returned by {@link #line()}.
+   * @param record The request.
+   * @return The length of the line, in bytes.
+   */
+  int format(AccessLogCaptureRoute.AccessLogData record) {
+    length = 0;
+    appendString(record.getRemoteAddress());
+    appendBytes(SEPARATOR);
+    appendBytes(formatDate(record.getTimestamp()));
+    appendByte((byte) ']');
+    appendByte((byte) ' ');
+    appendByte((byte) '"');
+    appendString(record.getMethod() == null ? null : record.getMethod().name());
+    appendByte((byte) ' ');
+    if (record.getScheme() != null && record.getHost() != null) {
+      appendString(record.getScheme());
+      appendBytes(SCHEME_SEPARATOR);
+      appendString(record.getHost());
+    }
+    appendString(record.getUri());
+    appendByte((byte) ' ');
+    appendBytes(record.getVersion() == null ? NULL_VERSION : VERSIONS[record.getVersion().ordinal()]);
+    appendByte((byte) '"');
+    appendByte((byte) ' ');
+    appendLong(record.getStatusCode());
+    appendByte((byte) ' ');
+    appendLong(record.getBytesWritten());
+    appendByte((byte) ' ');
+    appendByte((byte) '"');
+    // As per RFC1945 the header is referer but it is not mandatory, some implementations use referrer
+    String referrer = record.getRequestHeader("referrer");
+    if (referrer == null) {
+      referrer = record.getRequestHeader("referer");
+    }
+    appendString(referrer == null ? "-" : referrer);
+    appendBytes(QUOTE_SPACE_QUOTE);
+    String userAgent = record.getRequestHeader("user-agent");
+    appendString(userAgent == null ? "-" : userAgent);
+    appendByte((byte) '"');
+    appendMicros(record.getDurationNanos());
+    appendMicros(record.getRequestReadNanos());
+    appendMicros(record.getFirstByteNanos());
+    appendByte((byte) '\n');
+    return length;
+  }
+
+  private byte[] formatDate(long timestamp) {
+    long second = Math.floorDiv(timestamp, 1000L);
+    if (second != cachedSecond) {
+      cachedDate = ascii(Utils.formatRFC1123DateTime(timestamp));
+      cachedSecond = second;
+    }
+    return cachedDate;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (length + extra > line.length) {
+      line = Arrays.copyOf(line, Math.max(length + extra, line.length * 2));
+    }
+  }
+
+  private void appendByte(byte value) {
+    ensureCapacity(1);
+    line[length++] = value;
+  }
+
+  private void appendBytes(byte[] value) {
+    ensureCapacity(value.length);
+    System.arraycopy(value, 0, line, length, value.length);
+    length += value.length;
+  }
+
+  private void appendString(String value) {
+    if (value == null) {
+      appendBytes(NULL);
+      return;
+    }
+    int count = value.length();
+    ensureCapacity(count);
+    for (int i = 0; i < count; ++i) {
+      char c = value.charAt(i);
+      if (c >= 0x80) {
+        // Only values that are not ASCII need to be encoded
+        length -= i;
+        appendBytes(value.getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      line[length++] = (byte) c;
+    }
+  }
+
+  private void appendMicros(long nanos) {
+    appendByte((byte) ' ');
+    if (nanos < 0) {
+      appendByte((byte) '-');
+    } else {
+      appendLong(nanos / 1000);
+    }
+  }
+
+  private void appendLong(long value) {
+    if (value == Long.MIN_VALUE) {
+      appendBytes(ascii(Long.toString(value)));
+      return;
+    }
+    int pos = digits.length;
+    long remaining = Math.abs(value);
+    do {
+      digits[--pos] = (byte) ('0' + remaining % 10);
+      remaining /= 10;
+    } while (remaining != 0);
+    if (value < 0) {
+      appendByte((byte) '-');
+    }
+    ensureCapacity(digits.length - pos);
+    System.arraycopy(digits, pos, line, length, digits.length - pos);
+    length += digits.length - pos;
+  }
+
+}
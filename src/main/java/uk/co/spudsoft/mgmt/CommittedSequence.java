@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sequence numbers that are allocated in order but may be committed out of order, tracking the committed watermark:
+ * the highest sequence number that has been committed along with every sequence number before it.
+ * <p>
+ * Each commit is recorded in a ring of slots, indexed by the sequence number, and the thread that commits a sequence number
+ * advances the watermark past every consecutive committed slot.
+ * Because each thread records its commit before looking at the slot of the next sequence number, if two threads commit adjacent
+ * sequence numbers at the same time at least one of them will see both, so the watermark is never left behind.
+ * <p>
+ * A slot can only be reused once the watermark has passed the sequence number previously recorded in it, so a thread committing
+ * a sequence number more than the capacity ahead of the watermark spins until the watermark catches up.
+ * This only happens if a thread is suspended between allocating and committing a sequence number while more than the capacity
+ * of other sequence numbers are allocated and committed.
+ * <p>
+ * All methods are thread safe and, apart from that case, lock-free.
+ *
+ * @author jtalbut
+ */
+final class CommittedSequence {
+
+  /**
+   * The default number of slots used to record commits.
+   */
+  static final int DEFAULT_CAPACITY = 4096;
+
+  private final AtomicLong allocated = new AtomicLong();
+  private final AtomicLong committed = new AtomicLong();
+  private final AtomicLongArray slots;
+  private final int mask;
+
+  /**
+   * Constructor.
+   */
+  CommittedSequence() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   * @param capacity The number of slots used to record commits, rounded up to a power of two.
+   */
+  CommittedSequence(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be positive");
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new AtomicLongArray(size);
+    this.mask = size - 1;
+  }
+
+  /**
+   * Allocate the next sequence number, the first sequence number allocated is 1.
+   * <p>
+   * Every sequence number allocated must be committed, even if it is not used, or the watermark will never pass it.
+   * @return the next sequence number.
+   */
+  long allocate() {
+    return allocated.incrementAndGet();
+  }
+
+  /**
+   * Commit a sequence number, advancing the watermark if every sequence number before it has been committed.
+   * @param sequence A sequence number returned by {@link #allocate()}.
+   */
+  void commit(long sequence) {
+    while (sequence - committed.get() > slots.length()) {
+      Thread.onSpinWait();
+    }
+    slots.set(slot(sequence), sequence);
+    long current = committed.get();
+    while (slots.get(slot(current + 1)) == current + 1) {
+      if (committed.compareAndSet(current, current + 1)) {
+        ++current;
+      } else {
+        current = committed.get();
+      }
+    }
+  }
+
+  /**
+   * Get the committed watermark.
+   * @return the highest sequence number that has been committed along with every sequence number before it.
+   */
+  long getCommitted() {
+    return committed.get();
+  }
+
+  private int slot(long sequence) {
+    return (int) (sequence & mask);
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-second history of the peak and average number of requests in flight, kept in a fixed size ring.
+ * <p>
+ * The current number of requests in flight is read from a gauge by {@link #sample(long)}, which should be called frequently
+ * (many times a second) by a single thread; the average for each second is the mean of the samples taken within it.
+ * So that brief spikes between samples are not missed the peak is also updated by {@link #observe(long)}, which is called
+ * each time a request starts and only writes to shared memory when a new peak is reached.
+ * <p>
+ * Seconds in which no samples were taken (because the sampling thread was delayed) are not recorded.
+ *
+ * @author jtalbut
+ */
+public class ConcurrencyHistory {
+
+  private final LongSupplier gauge;
+  private final long[] seconds;
+  private final long[] peaks;
+  private final double[] averages;
+  private final AtomicLong peak = new AtomicLong();
+
+  // Guarded by this
+  private long currentSecond = Long.MIN_VALUE;
+  private long sampleSum;
+  private int sampleCount;
+
+  /**
+   * Constructor.
+   * @param size The number of seconds of history to keep.
+   * @param gauge Supplier of the current number of requests in flight.
+   */
+  public ConcurrencyHistory(int size, LongSupplier gauge) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("The size of a ConcurrencyHistory must be positive");
+    }
+    this.gauge = gauge;
+    this.seconds = new long[size];
+    this.peaks = new long[size];
+    this.averages = new double[size];
+    Arrays.fill(seconds, Long.MIN_VALUE);
+  }
+
+  /**
+   * Get the number of seconds of history kept.
+   * @return the number of seconds of history kept.
+   */
+  public int size() {
+    return seconds.length;
+  }
+
+  /**
+   * Record the number of requests in flight immediately after a request starts.
+   * <p>
+   * This may be called on any thread.
+   * @param inFlight The number of requests in flight.
+   */
+  public void observe(long inFlight) {
+    if (inFlight > peak.get()) {
+      peak.accumulateAndGet(inFlight, Math::max);
+    }
+  }
+
+  /**
+   * Get the peak number of requests in flight so far in the current second.
+   * @return the peak number of requests in flight so far in the current second.
+   */
+  public long getCurrentPeak() {
+    return peak.get();
+  }
+
+  /**
+   * Sample the gauge, completing the previous second if this sample is in a new one.
+   * @param nowMs The current time, in milliseconds since the epoch.
+   */
+  public synchronized void sample(long nowMs) {
+    long value = gauge.getAsLong();
+    long second = Math.floorDiv(nowMs, 1000L);
+    if (second != currentSecond) {
+      if (sampleCount > 0) {
+        int index = (int) Math.floorMod(currentSecond, (long) seconds.length);
+        seconds[index] = currentSecond;
+        peaks[index] = peak.getAndSet(value);
+        averages[index] = (double) sampleSum / sampleCount;
+      } else {
+        peak.set(value);
+      }
+      currentSecond = second;
+      sampleSum = 0;
+      sampleCount = 0;
+    }
+    observe(value);
+    sampleSum += value;
+    ++sampleCount;
+  }
+
+  /**
+   * Output the completed seconds, oldest first, as a JsonArray.
+   * @param maxSeconds The maximum number of seconds, prior to the current one, to output.
+   * @return the completed seconds as a JsonArray of objects with Timestamp, Peak and Average fields.
+   */
+  public synchronized JsonArray toJson(int maxSeconds) {
+    JsonArray result = new JsonArray();
+    if (currentSecond == Long.MIN_VALUE) {
+      return result;
+    }
+    int count = Math.min(maxSeconds, seconds.length);
+    for (long second = currentSecond - count; second < currentSecond; ++second) {
+      int index = (int) Math.floorMod(second, (long) seconds.length);
+      if (seconds[index] == second) {
+        JsonObject data = new JsonObject();
+        data.put("Timestamp", Instant.ofEpochSecond(second).atOffset(ZoneOffset.UTC).toLocalDateTime().toString());
+        data.put("Peak", peaks[index]);
+        data.put("Average", averages[index]);
+        result.add(data);
+      }
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.json.JsonObject;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limit on the number of requests that may be processed concurrently, used by the {@link InFlightRoute} to shed load.
+ * <p>
+ * The limit may be fixed, or adaptive using AIMD (additive increase, multiplicative decrease) driven by the latency of the requests:
+ * <ul>
+ * <li>When a request completes within the latency threshold, and the limit was at least half used, the limit is increased by one.
+ * <li>When a request takes longer than the latency threshold the limit is multiplied by {@link #BACKOFF_RATIO}.
+ * Only requests that started after the previous decrease can cause another, so that a burst of slow requests
+ * reduces the limit once rather than collapsing it to the minimum.
+ * </ul>
+ * The limit is always kept between the minimum and maximum limits.
+ * <p>
+ * When using the standard management endpoints the limiter is set on an InFlightRoute that is passed to
+ * {@link ManagementRoute#deployStandardMgmtEndpoints(io.vertx.ext.web.Router, io.vertx.ext.web.Router, java.util.List, java.util.concurrent.atomic.AtomicReference, uk.co.spudsoft.mgmt.AccessLogCaptureRoute, uk.co.spudsoft.mgmt.InFlightRoute)},
+ * it may be set (or replaced) at any time.
+ * <p>
+ * All methods are thread safe and lock-free.
+ *
+ * @author jtalbut
+ */
+public class ConcurrencyLimiter {
+
+  /**
+   * The factor by which an adaptive limit is reduced when a request is slower than the latency threshold.
+   */
+  public static final double BACKOFF_RATIO = 0.9;
+
+  /**
+   * The default value, in seconds, of the Retry-After header sent with rejected requests.
+   */
+  public static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+  private final boolean adaptive;
+  private final int minLimit;
+  private final int maxLimit;
+  private final long latencyThresholdNanos;
+  private final AtomicInteger limit;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong lastDecreaseNanos;
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private volatile int retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
+
+  /**
+   * Constructor for a fixed limit.
+   * @param limit The maximum number of requests that may be processed concurrently.
+   */
+  public ConcurrencyLimiter(int limit) {
+    this(false, limit, limit, limit, 0);
+  }
+
+  /**
+   * Constructor for an adaptive limit.
+   * @param initialLimit The limit to start with.
+   * @param minLimit The smallest value the limit may be reduced to.
+   * @param maxLimit The largest value the limit may be increased to.
+   * @param latencyThresholdMs The latency, in milliseconds, above which a request causes the limit to be reduced.
+   */
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMs) {
+    this(true, initialLimit, minLimit, maxLimit, TimeUnit.MILLISECONDS.toNanos(latencyThresholdMs));
+    if (latencyThresholdMs <= 0) {
+      throw new IllegalArgumentException("The latency threshold must be positive");
+    }
+  }
+
+  private ConcurrencyLimiter(boolean adaptive, int initialLimit, int minLimit, int maxLimit, long latencyThresholdNanos) {
+    if (minLimit <= 0) {
+      throw new IllegalArgumentException("The concurrency limit must be positive");
+    }
+    if (maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("The concurrency limits must satisfy minLimit <= initialLimit <= maxLimit");
+    }
+    this.adaptive = adaptive;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.latencyThresholdNanos = latencyThresholdNanos;
+    this.limit = new AtomicInteger(initialLimit);
+    this.lastDecreaseNanos = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Set the value of the Retry-After header sent with rejected requests.
+   * @param retryAfterSeconds The value of the Retry-After header sent with rejected requests, in seconds.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public ConcurrencyLimiter setRetryAfterSeconds(int retryAfterSeconds) {
+    if (retryAfterSeconds < 0) {
+      throw new IllegalArgumentException("The Retry-After value may not be negative");
+    }
+    this.retryAfterSeconds = retryAfterSeconds;
+    return this;
+  }
+
+  /**
+   * Get the value of the Retry-After header sent with rejected requests.
+   * @return the value of the Retry-After header sent with rejected requests, in seconds.
+   */
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  /**
+   * Attempt to start processing a request.
+   * <p>
+   * If this returns true {@link #release(long, long)} must be called exactly once when the request completes.
+   * @return true if the request may be processed, false if it should be rejected.
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit.get()) {
+        rejected.increment();
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        accepted.increment();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Record that a request that was accepted by {@link #tryAcquire()} has completed.
+   * @param startNanos The value of {@link System#nanoTime()} when the request was accepted.
+   * @param endNanos The value of {@link System#nanoTime()} when the request completed.
+   */
+  public void release(long startNanos, long endNanos) {
+    int previous = inFlight.getAndDecrement();
+    if (!adaptive) {
+      return;
+    }
+    if (endNanos - startNanos > latencyThresholdNanos) {
+      long lastDecrease = lastDecreaseNanos.get();
+      if (startNanos - lastDecrease >= 0 && lastDecreaseNanos.compareAndSet(lastDecrease, endNanos)) {
+        limit.updateAndGet(current -> Math.max(minLimit, (int) (current * BACKOFF_RATIO)));
+      }
+    } else {
+      limit.updateAndGet(current -> previous * 2 >= current ? Math.min(maxLimit, current + 1) : current);
+    }
+  }
+
+  /**
+   * Get whether the limit is adaptive.
+   * @return true if the limit is adaptive.
+   */
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /**
+   * Get the current limit.
+   * @return the current limit.
+   */
+  public int getLimit() {
+    return limit.get();
+  }
+
+  /**
+   * Get the number of requests currently being processed.
+   * @return the number of requests currently being processed.
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Get the number of requests that have been accepted.
+   * @return the number of requests that have been accepted.
+   */
+  public long getAccepted() {
+    return accepted.sum();
+  }
+
+  /**
+   * Get the number of requests that have been rejected.
+   * @return the number of requests that have been rejected.
+   */
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * Get the current state of the limiter as a JsonObject.
+   * @return the current state of the limiter as a JsonObject.
+   */
+  public JsonObject toJson() {
+    JsonObject result = new JsonObject();
+    result.put("Adaptive", adaptive);
+    result.put("Limit", limit.get());
+    result.put("MinLimit", minLimit);
+    result.put("MaxLimit", maxLimit);
+    if (adaptive) {
+      result.put("LatencyThresholdMs", TimeUnit.NANOSECONDS.toMillis(latencyThresholdNanos));
+    }
+    result.put("InFlight", inFlight.get());
+    result.put("Accepted", accepted.sum());
+    result.put("Rejected", rejected.sum());
+    return result;
+  }
+
+}
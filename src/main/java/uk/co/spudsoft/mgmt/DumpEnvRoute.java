@@ -120,54 +120,50 @@ public class DumpEnvRoute implements Handler<RoutingContext> {
         HttpServerResponse response = rc.response();
         response.setStatusCode(200);
         response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_HTML);
-        response.setChunked(true);
+        ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
         
-        response.write("<html>");
-        response.write("<head>");
-        response.write("</head>");
-        response.write("<body>");
+        writer.append("<html>");
+        writer.append("<head>");
+        writer.append("</head>");
+        writer.append("<body>");
         
-        response.write("<table>");
+        writer.append("<table>");
         
-        response.write("<thead>");        
-        response.write("<tr>");
-        response.write("<th>Name</th><th>Value</th>");
-        response.write("</tr>");
-        response.write("</thead>");
+        writer.append("<thead>");        
+        writer.append("<tr>");
+        writer.append("<th>Name</th><th>Value</th>");
+        writer.append("</tr>");
+        writer.append("</thead>");
         
-        response.write("<tbody>");
+        writer.append("<tbody>");
         
-        for (Variable v : variables) {
-          response.write("<tr><td>");
-          response.write(v.name);
-          response.write("</td><td>");
-          response.write(v.value);
-          response.write("</td>");
-          response.write("</tr>");
-        }
-        
-        response.write("</tbody>");
-        
-        response.write("</table>");
-        
-        response.write("</body>");
-        response.write("</html>");
-        
-        response.end();
+        writer.stream(variables.size(), i -> {
+          Variable v = variables.get(i);
+          writer.append("<tr><td>");
+          writer.append(v.name);
+          writer.append("</td><td>");
+          writer.append(v.value);
+          writer.append("</td>");
+          writer.append("</tr>");
+        }, () -> {
+          writer.append("</tbody>");
+          writer.append("</table>");
+          writer.append("</body>");
+          writer.append("</html>");
+        });
       } else {
         HttpServerResponse response = rc.response();
         response.setStatusCode(200);
         response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_PLAIN);
-        response.setChunked(true);
-        
-        for (Variable v : variables) {
-          response.write(v.name);
-          response.write(": ");
-          response.write(v.value);
-          response.write("\n");
-        }
+        ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
         
-        response.end();
+        writer.stream(variables.size(), i -> {
+          Variable v = variables.get(i);
+          writer.append(v.name);
+          writer.append(": ");
+          writer.append(v.value);
+          writer.append("\n");
+        }, null);
       }
     } else {
       rc.next();
@@ -120,54 +120,50 @@ public class DumpSysPropsRoute implements Handler<RoutingContext> {
         HttpServerResponse response = rc.response();
         response.setStatusCode(200);
         response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_HTML);
-        response.setChunked(true);
+        ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
         
-        response.write("<html>");
-        response.write("<head>");
-        response.write("</head>");
-        response.write("<body>");
+        writer.append("<html>");
+        writer.append("<head>");
+        writer.append("</head>");
+        writer.append("<body>");
         
-        response.write("<table>");
+        writer.append("<table>");
         
-        response.write("<thead>");        
-        response.write("<tr>");
-        response.write("<th>Name</th><th>Value</th>");
-        response.write("</tr>");
-        response.write("</thead>");
+        writer.append("<thead>");        
+        writer.append("<tr>");
+        writer.append("<th>Name</th><th>Value</th>");
+        writer.append("</tr>");
+        writer.append("</thead>");
         
-        response.write("<tbody>");
+        writer.append("<tbody>");
         
-        for (Property prop : properties) {
-          response.write("<tr><td>");
-          response.write(prop.name);
-          response.write("</td><td>");
-          response.write(prop.value);
-          response.write("</td>");
-          response.write("</tr>");
-        }
-        
-        response.write("</tbody>");
-        
-        response.write("</table>");
-        
-        response.write("</body>");
-        response.write("</html>");
-        
-        response.end();
+        writer.stream(properties.size(), i -> {
+          Property prop = properties.get(i);
+          writer.append("<tr><td>");
+          writer.append(prop.name);
+          writer.append("</td><td>");
+          writer.append(prop.value);
+          writer.append("</td>");
+          writer.append("</tr>");
+        }, () -> {
+          writer.append("</tbody>");
+          writer.append("</table>");
+          writer.append("</body>");
+          writer.append("</html>");
+        });
       } else {
         HttpServerResponse response = rc.response();
         response.setStatusCode(200);
         response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_PLAIN);
-        response.setChunked(true);
-        
-        for (Property prop : properties) {
-          response.write(prop.name);
-          response.write(": ");
-          response.write(prop.value);
-          response.write("\n");
-        }
+        ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
         
-        response.end();
+        writer.stream(properties.size(), i -> {
+          Property prop = properties.get(i);
+          writer.append(prop.name);
+          writer.append(": ");
+          writer.append(prop.value);
+          writer.append("\n");
+        }, null);
       }
     }
   }
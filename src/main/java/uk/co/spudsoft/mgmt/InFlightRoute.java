@@ -16,18 +16,38 @@
  */
 package uk.co.spudsoft.mgmt;
 
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.core.net.SocketAddress;
+import io.vertx.ext.web.Route;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import java.time.Instant;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +57,70 @@ import org.slf4j.LoggerFactory;
  * It is probably very important, for obvious security reasons, that this endpoint is not accessible to end users.
  * It is strongly recommended that this endpoint be mounted on via a subrouter, the path to which is only accessible from authorised personnel.
  * The integration tests demonstrate the use of a suitable subrouter to locate the endpoint at /manage/heapdump.
+ * <p>
+ * Each request is given a unique id when it is first recorded and held in a {@link ConcurrentHashMap} keyed by that id until its
+ * response ends (or its connection closes), so concurrent requests (including HTTP/2 streams on a single connection) are all
+ * reported and event loops do not contend on a shared lock.
+ * A request that passes through more than one router on which the route is installed is only recorded once.
+ * <p>
+ * Optionally a watchdog can be started to look for requests that have been in flight for longer than a threshold.
+ * When a request first exceeds the threshold the stack of the thread associated with it is captured and recorded, along with
+ * the details of the request, in a bounded buffer that is output at /manage/inflight/stuck.
+ * The thread associated with a request is the event loop thread that first recorded it, handlers that continue processing
+ * on a worker thread can call {@link #associateCurrentThread(io.vertx.ext.web.RoutingContext)} to have that thread captured instead.
+ * The watchdog runs on its own daemon thread, rather than on a Vertx timer, so that it is still able to report when
+ * the event loops are blocked.
+ * {@link ManagementRoute#deployStandardMgmtEndpoints(io.vertx.ext.web.Router, io.vertx.ext.web.Router, java.util.List, java.util.concurrent.atomic.AtomicReference)}
+ * starts a watchdog with a threshold of {@link #DEFAULT_STUCK_THRESHOLD_MS}, unless it is passed an InFlightRoute to use.
+ * <p>
+ * Optionally a {@link ConcurrencyLimiter} can be set to shed load: requests arriving at the root router when the limit has
+ * been reached are rejected immediately with a 503 response and a Retry-After header.
+ * Requests to the manage router are never rejected or counted against the limit.
+ * Because the root router handler usually runs before the manage router is reached (the manage router is normally mounted on
+ * the root router after this route is deployed) requests whose path is under the manage path (by default /manage, see
+ * {@link #setManagePath(java.lang.String)}) are identified as manage requests by the root router handler.
+ * A request that reaches the manage router after being recorded as a root request (because the manage router is mounted elsewhere)
+ * is reclassified as a manage request at that point, releasing its place in the limiter.
+ * The state of the limiter is output at /manage/inflight/limit.
+ * <p>
+ * The total number of requests in flight is the size of the map (which is itself maintained using striped counters) and
+ * the peak is tracked as each request starts.
+ * If sampling is started these feed a {@link ConcurrencyHistory} giving the peak and average concurrency for each second.
+ * {@link ManagementRoute#deployStandardMgmtEndpoints(io.vertx.ext.web.Router, io.vertx.ext.web.Router, java.util.List, java.util.concurrent.atomic.AtomicReference)}
+ * starts sampling every {@link #DEFAULT_SAMPLE_INTERVAL_MS}, unless it is passed an InFlightRoute to use.
+ * The number of requests in flight for each route is calculated from the registry when it is output (at /manage/inflight/concurrency),
+ * because the route that will handle a request is not known when it is recorded; routes are named as by the {@link LatencyRoute}.
+ * The route of each request is observed on the context of the request, along with its progress (see below), until it is first
+ * observed a request is named by its method and path.
+ * <p>
+ * The progress of each request (the bytes read and written so far) is observed whenever the requests are output and, if sampling
+ * has been started, once a second by the sampling thread.
+ * The request and response are not thread safe, so each observation is run on the context of the request (one task for each
+ * context with requests in flight) and only the values observed are read by other threads.
+ * If the event loop of a request is blocked it cannot be observed, so the output waits for at most {@link #OBSERVE_TIMEOUT_MS}
+ * and then uses the last observation of the request (if there is one).
+ * Up to {@link #PROGRESS_SAMPLES} observations (at least a second apart) are kept for each request, to calculate transfer rates
+ * over a sliding window, and the time since the last progress is measured from the first observation at which the byte counts changed.
+ * A request with a high time since progress whose response write queue is full is stalled on a slow consumer, one whose write
+ * queue is not full is waiting for its producer.
+ * The output may be sorted by age (the default, oldest first) or by stall time (longest first) using the "sort" parameter,
+ * and limited using the "limit" parameter.
+ * <p>
+ * The route also supports draining the server before it is shut down, at /manage/drain.
+ * Because this changes the behaviour of the server the drain routes are only added when explicitly requested, using
+ * {@link #standardDeploy(io.vertx.ext.web.Router, io.vertx.ext.web.Router, boolean, boolean)}:
+ * <ul>
+ * <li>A POST starts draining: new requests arriving at the root router are rejected with a 503 response and "Connection: close",
+ * responses to requests that are already in flight also have "Connection: close" added (for HTTP/1.x), so keep-alive connections
+ * are closed.
+ * The response to the POST is streamed, with a line reporting progress each time the number of requests in flight changes, and
+ * ends when there are no requests in flight or the deadline (set by the "timeout" parameter, in seconds) is reached.
+ * <li>A GET reports whether the server is draining and how many requests are in flight.
+ * <li>A DELETE stops draining, so new requests are accepted again.
+ * </ul>
+ * Only requests to the root router are counted or rejected, so requests to the manage router (including the POST itself, and
+ * the GET and DELETE) are still processed and do not prevent the drain from completing.
+ * Requests to the manage router are identified in the same way as for the limiter.
  * 
  * @author njt
  */
@@ -51,28 +135,451 @@ public class InFlightRoute implements Handler<RoutingContext> {
    * The key value that will be used for storing the timestamp of the start of processing in the RoutingContext.
    */
   public static final String TIMESTAMP_KEY = InFlightRoute.class.getCanonicalName() + "_StartTimestamp";
+  
+  /**
+   * The key value that will be used for storing the id of the request in the RoutingContext.
+   */
+  public static final String ID_KEY = InFlightRoute.class.getCanonicalName() + "_Id";
+  
+  /**
+   * The path at which the standardDeploy method will put the route for outputting stuck requests.
+   */
+  public static final String STUCK_PATH = PATH + "/stuck";
+  
+  /**
+   * The default number of stuck requests to keep.
+   */
+  public static final int DEFAULT_STUCK_BUFFER_SIZE = 100;
+  
+  /**
+   * The threshold, in milliseconds, after which a request is considered to be stuck by the watchdog started by
+   * {@link ManagementRoute#deployStandardMgmtEndpoints(io.vertx.ext.web.Router, io.vertx.ext.web.Router, java.util.List, java.util.concurrent.atomic.AtomicReference)}.
+   */
+  public static final long DEFAULT_STUCK_THRESHOLD_MS = 60_000;
+  
+  /**
+   * The time, in milliseconds, between each check by the watchdog started by
+   * {@link ManagementRoute#deployStandardMgmtEndpoints(io.vertx.ext.web.Router, io.vertx.ext.web.Router, java.util.List, java.util.concurrent.atomic.AtomicReference)}.
+   */
+  public static final long DEFAULT_STUCK_CHECK_MS = 1_000;
+  
+  /**
+   * The path at which the standardDeploy method will put the route for outputting the state of the concurrency limiter.
+   */
+  public static final String LIMIT_PATH = PATH + "/limit";
+  
+  /**
+   * The path at which the standardDeploy method will put the route for outputting the concurrency gauges and history.
+   */
+  public static final String CONCURRENCY_PATH = PATH + "/concurrency";
+  
+  /**
+   * The default number of seconds of concurrency history to keep.
+   */
+  public static final int DEFAULT_HISTORY_SECONDS = 3600;
+  
+  /**
+   * The time, in milliseconds, between each sample taken by the sampling thread started by
+   * {@link ManagementRoute#deployStandardMgmtEndpoints(io.vertx.ext.web.Router, io.vertx.ext.web.Router, java.util.List, java.util.concurrent.atomic.AtomicReference)}.
+   */
+  public static final long DEFAULT_SAMPLE_INTERVAL_MS = 100;
+  
+  /**
+   * The path at which the standardDeploy method will put the route for draining the server.
+   */
+  public static final String DRAIN_PATH = "drain";
+  
+  /**
+   * The default time, in seconds, to wait for requests to complete when draining.
+   */
+  public static final int DEFAULT_DRAIN_TIMEOUT_SECONDS = 30;
+  
+  /**
+   * The time, in milliseconds, between each check of the number of requests in flight when draining.
+   */
+  static final long DRAIN_CHECK_MS = 50;
+  
+  /**
+   * The number of observations of the progress of each request that are kept for calculating transfer rates.
+   */
+  static final int PROGRESS_SAMPLES = 8;
+  
+  /**
+   * The minimum time, in nanoseconds, between the observations of the progress of each request that are kept.
+   */
+  static final long PROGRESS_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+  
+  /**
+   * The maximum time, in milliseconds, that the output waits for the requests in flight to be observed on their own contexts.
+   */
+  static final long OBSERVE_TIMEOUT_MS = 500;
+  
+  private static final String REQUEST_KEY = InFlightRoute.class.getCanonicalName() + "_Request";
           
   private static final Logger logger = LoggerFactory.getLogger(InFlightRoute.class);
 
-  private final Map<SocketAddress, RoutingContext> map = new HashMap<>();  
+  private final Map<Long, InFlightRequest> map = new ConcurrentHashMap<>();
+  private final AtomicLong nextId = new AtomicLong();
+  private final RingBuffer<StuckRequest> stuck;
+  private final ConcurrencyHistory history;
+  private ScheduledExecutorService watchdog;
+  private ScheduledExecutorService sampler;
+  private volatile ConcurrencyLimiter limiter;
+  private volatile String managePath = "/" + ManagementRoute.PATH;
+  private volatile boolean draining;
+  private final LongAdder drainRejected = new LongAdder();
+
+  /**
+   * Details of a request that is currently being processed.
+   * <p>
+   * The request and context are only read on the Vertx context that recorded the request, the thread may be changed by
+   * {@link #associateCurrentThread(io.vertx.ext.web.RoutingContext)} and the reported flag is set by the watchdog,
+   * the observations are guarded by this and all other fields are immutable.
+   */
+  static final class InFlightRequest {
+    private final long id;
+    private final long timestamp;
+    private final long startNanos;
+    private final HttpServerRequest request;
+    private final RoutingContext context;
+    private final Route captureRoute;
+    private final Context vertxContext;
+    private volatile boolean root;
+    private volatile Thread thread;
+    private volatile boolean reported;
+    
+    // The limiter that accepted the request, until it is released, guarded by this
+    private ConcurrencyLimiter limiter;
+    
+    // Progress observations, guarded by this
+    private final long[] sampleNanos = new long[PROGRESS_SAMPLES];
+    private final long[] sampleRead = new long[PROGRESS_SAMPLES];
+    private final long[] sampleWritten = new long[PROGRESS_SAMPLES];
+    private int sampleCount;
+    private int sampleNext;
+    private long lastRead;
+    private long lastWritten;
+    private long lastProgressNanos;
+    private Progress observed;
+    private boolean writeQueueFull;
+    private String routeKey;
+
+    InFlightRequest(long id, long timestamp, long startNanos, RoutingContext context, Thread thread, boolean root) {
+      this.id = id;
+      this.timestamp = timestamp;
+      this.startNanos = startNanos;
+      this.request = context.request();
+      this.context = context;
+      this.captureRoute = context.currentRoute();
+      this.vertxContext = Vertx.currentContext();
+      this.routeKey = LatencyRoute.routeKey(context, captureRoute);
+      this.thread = thread;
+      this.root = root;
+      this.lastProgressNanos = startNanos;
+    }
+
+    long getId() {
+      return id;
+    }
+
+    long getTimestamp() {
+      return timestamp;
+    }
+
+    long getStartNanos() {
+      return startNanos;
+    }
+
+    HttpServerRequest getRequest() {
+      return request;
+    }
+
+    Context getVertxContext() {
+      return vertxContext;
+    }
+
+    Thread getThread() {
+      return thread;
+    }
+
+    boolean isRoot() {
+      return root;
+    }
+
+    synchronized void setLimiter(ConcurrencyLimiter limiter) {
+      this.limiter = limiter;
+    }
+
+    /**
+     * Release the place of the request in the limiter that accepted it, if it has not already been released.
+     * @param nowNanos The current value of {@link System#nanoTime()}.
+     */
+    synchronized void release(long nowNanos) {
+      if (limiter != null) {
+        limiter.release(startNanos, nowNanos);
+        limiter = null;
+      }
+    }
+
+    /**
+     * Reclassify the request as a request to the manage router.
+     * @param nowNanos The current value of {@link System#nanoTime()}.
+     */
+    void demote(long nowNanos) {
+      root = false;
+      release(nowNanos);
+    }
+
+    /**
+     * Get the name of the route handling the request at the last observation.
+     * @return the name of the route handling the request at the last observation.
+     */
+    synchronized String getRouteKey() {
+      return routeKey;
+    }
+
+    /**
+     * Observe the progress of the request, and the route that is handling it.
+     * <p>
+     * This must be called on the Vertx context that recorded the request.
+     * @param nowNanos The current value of {@link System#nanoTime()}.
+     */
+    void observe(long nowNanos) {
+      HttpServerResponse response = request.response();
+      if (response.ended() || response.closed()) {
+        return;
+      }
+      long bytesRead = request.bytesRead();
+      long bytesWritten = response.bytesWritten();
+      boolean full = response.writeQueueFull();
+      String key = LatencyRoute.routeKey(context, captureRoute);
+      synchronized (this) {
+        observed = progress(nowNanos, bytesRead, bytesWritten);
+        writeQueueFull = full;
+        routeKey = key;
+      }
+    }
+
+    /**
+     * Get the progress of the request at the last observation.
+     * @return the progress of the request at the last observation, or null if it has not been observed.
+     */
+    synchronized Progress getObserved() {
+      return observed;
+    }
+
+    /**
+     * Get whether the write queue of the response was full at the last observation.
+     * @return true if the write queue of the response was full at the last observation.
+     */
+    synchronized boolean isWriteQueueFull() {
+      return writeQueueFull;
+    }
+
+    /**
+     * Record an observation of the progress of the request.
+     * @param nowNanos The current value of {@link System#nanoTime()}.
+     * @param bytesRead The number of bytes of the request body read so far.
+     * @param bytesWritten The number of bytes of the response written so far.
+     * @return the progress of the request.
+     */
+    synchronized Progress progress(long nowNanos, long bytesRead, long bytesWritten) {
+      if (bytesRead != lastRead || bytesWritten != lastWritten) {
+        lastRead = bytesRead;
+        lastWritten = bytesWritten;
+        lastProgressNanos = nowNanos;
+      }
+      long baseNanos = startNanos;
+      long baseRead = 0;
+      long baseWritten = 0;
+      if (sampleCount > 0) {
+        int oldest = Math.floorMod(sampleNext - sampleCount, PROGRESS_SAMPLES);
+        baseNanos = sampleNanos[oldest];
+        baseRead = sampleRead[oldest];
+        baseWritten = sampleWritten[oldest];
+      }
+      double readRate = 0;
+      double writeRate = 0;
+      long elapsed = nowNanos - baseNanos;
+      if (elapsed > 0) {
+        readRate = (bytesRead - baseRead) * 1e9 / elapsed;
+        writeRate = (bytesWritten - baseWritten) * 1e9 / elapsed;
+      }
+      if (sampleCount == 0 || nowNanos - sampleNanos[Math.floorMod(sampleNext - 1, PROGRESS_SAMPLES)] >= PROGRESS_SAMPLE_NANOS) {
+        sampleNanos[sampleNext] = nowNanos;
+        sampleRead[sampleNext] = bytesRead;
+        sampleWritten[sampleNext] = bytesWritten;
+        sampleNext = (sampleNext + 1) % PROGRESS_SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, PROGRESS_SAMPLES);
+      }
+      return new Progress(bytesRead, bytesWritten, readRate, writeRate, nowNanos - lastProgressNanos);
+    }
+  }
+
+  /**
+   * The progress of a request at the time it was observed.
+   */
+  static final class Progress {
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final double readRate;
+    private final double writeRate;
+    private final long stalledNanos;
+
+    Progress(long bytesRead, long bytesWritten, double readRate, double writeRate, long stalledNanos) {
+      this.bytesRead = bytesRead;
+      this.bytesWritten = bytesWritten;
+      this.readRate = readRate;
+      this.writeRate = writeRate;
+      this.stalledNanos = stalledNanos;
+    }
+
+    long getBytesRead() {
+      return bytesRead;
+    }
+
+    long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    double getReadRate() {
+      return readRate;
+    }
+
+    double getWriteRate() {
+      return writeRate;
+    }
+
+    long getStalledNanos() {
+      return stalledNanos;
+    }
+  }
+
+  /**
+   * Details of a request that was found by the watchdog to have been in flight for longer than the threshold.
+   */
+  static final class StuckRequest {
+    private final long id;
+    private final long timestamp;
+    private final long detectedTimestamp;
+    private final long durationNanos;
+    private final String method;
+    private final String uri;
+    private final String threadName;
+    private final long threadId;
+    private final Thread.State threadState;
+    private final StackTraceElement[] stackTrace;
+
+    StuckRequest(long id, long timestamp, long detectedTimestamp, long durationNanos, String method, String uri
+            , String threadName, long threadId, Thread.State threadState, StackTraceElement[] stackTrace) {
+      this.id = id;
+      this.timestamp = timestamp;
+      this.detectedTimestamp = detectedTimestamp;
+      this.durationNanos = durationNanos;
+      this.method = method;
+      this.uri = uri;
+      this.threadName = threadName;
+      this.threadId = threadId;
+      this.threadState = threadState;
+      this.stackTrace = stackTrace;
+    }
+
+    long getId() {
+      return id;
+    }
+
+    String getUri() {
+      return uri;
+    }
+
+    String getThreadName() {
+      return threadName;
+    }
+
+    StackTraceElement[] getStackTrace() {
+      return stackTrace;
+    }
+
+    JsonObject toJson() {
+      JsonObject data = new JsonObject();
+      data.put("Id", id);
+      data.put("StartTimestamp", Instant.ofEpochMilli(timestamp).atOffset(ZoneOffset.UTC).toLocalDateTime().toString());
+      data.put("DetectedTimestamp", Instant.ofEpochMilli(detectedTimestamp).atOffset(ZoneOffset.UTC).toLocalDateTime().toString());
+      data.put("SecondsSoFar", durationNanos / 1000000000.0);
+      data.put("Method", method);
+      data.put("Uri", uri);
+      data.put("ThreadName", threadName);
+      data.put("ThreadId", threadId);
+      data.put("ThreadState", Objects.toString(threadState));
+      JsonArray stack = new JsonArray();
+      for (StackTraceElement element : stackTrace) {
+        stack.add(element.toString());
+      }
+      data.put("StackTrace", stack);
+      return data;
+    }
+  }
 
   /**
    * Constructor.
    */
   public InFlightRoute() {
+    this(DEFAULT_STUCK_BUFFER_SIZE);
+  }
+  
+  /**
+   * Constructor.
+   * @param stuckBufferSize The number of stuck requests to keep, older ones are discarded.
+   */
+  public InFlightRoute(int stuckBufferSize) {
+    this(stuckBufferSize, DEFAULT_HISTORY_SECONDS);
+  }
+  
+  /**
+   * Constructor.
+   * @param stuckBufferSize The number of stuck requests to keep, older ones are discarded.
+   * @param historySeconds The number of seconds of concurrency history to keep.
+   */
+  public InFlightRoute(int stuckBufferSize, int historySeconds) {
+    this.stuck = new RingBuffer<>(stuckBufferSize);
+    this.history = new ConcurrencyHistory(historySeconds, map::size);
   }
   
   /**
    * Deploy the route to the router passed in at the normal endpoint.
    * 
    * The manageRouter passed in should be a sub router that is inaccessible to normal users.
+   * The routes for draining the server are not added.
    * 
    * @param rootRouter The top level router for the HttpServer that will be monitored.
    * @param manageRouter The router that this handler will be attached to.
    */
   public void standardDeploy(Router rootRouter, Router manageRouter) {
-    rootRouter.route().handler(this::record);
-    manageRouter.route().handler(this::record);
+    standardDeploy(rootRouter, manageRouter, true, false);
+  }
+  
+  /**
+   * Deploy the route to the router passed in at the normal endpoint, choosing which of the output routes are added.
+   * 
+   * The requests are recorded regardless of which routes are added.
+   * 
+   * @param rootRouter The top level router for the HttpServer that will be monitored.
+   * @param manageRouter The router that this handler will be attached to.
+   * @param inFlight If true the routes for outputting the in flight requests (at {@link #PATH} and below) are added.
+   * @param drain If true the routes for draining the server (at {@link #DRAIN_PATH}) are added.
+   */
+  public void standardDeploy(Router rootRouter, Router manageRouter, boolean inFlight, boolean drain) {
+    rootRouter.route().handler(rc -> record(rc, true));
+    manageRouter.route().handler(rc -> record(rc, false));
+    if (inFlight) {
+      deployInFlight(manageRouter);
+    }
+    if (drain) {
+      deployDrain(manageRouter);
+    }
+  }
+  
+  private void deployInFlight(Router manageRouter) {
     manageRouter.route(HttpMethod.GET, "/" + PATH)
             .handler(this::handle)
             .setName("In Flight")
@@ -80,61 +587,593 @@ public class InFlightRoute implements Handler<RoutingContext> {
             .produces(ContentTypes.TYPE_HTML)
             .produces(ContentTypes.TYPE_PLAIN)
             ;
+    manageRouter.route(HttpMethod.GET, "/" + STUCK_PATH)
+            .handler(this::handleStuck)
+            .setName("Stuck Requests")
+            .produces(ContentTypes.TYPE_JSON)
+            ;
+    manageRouter.route(HttpMethod.GET, "/" + CONCURRENCY_PATH)
+            .handler(this::handleConcurrency)
+            .setName("Concurrency")
+            .produces(ContentTypes.TYPE_JSON)
+            ;
+    manageRouter.route(HttpMethod.GET, "/" + LIMIT_PATH)
+            .handler(this::handleLimit)
+            .setName("Concurrency Limit")
+            .produces(ContentTypes.TYPE_JSON)
+            ;
+  }
+  
+  private void deployDrain(Router manageRouter) {
+    manageRouter.route(HttpMethod.POST, "/" + DRAIN_PATH)
+            .handler(this::handleDrain)
+            .setName("Drain")
+            ;
+    manageRouter.route(HttpMethod.GET, "/" + DRAIN_PATH)
+            .handler(this::handleDrainStatus)
+            .setName("Drain")
+            .produces(ContentTypes.TYPE_JSON)
+            ;
+    manageRouter.route(HttpMethod.DELETE, "/" + DRAIN_PATH)
+            .handler(rc -> {
+              stopDraining();
+              handleDrainStatus(rc);
+            })
+            .setName("Stop Draining")
+            .produces(ContentTypes.TYPE_JSON)
+            ;
   }
   
   /**
    * Factory method to do standard deployment on newly constructed route.
    * 
    * The manageRouter passed in should be a sub router that is inaccessible to normal users.
+   * The routes for draining the server are not added.
    * 
    * @param rootRouter The top level router for the HttpServer that will be monitored.
    * @param manageRouter The router that this handler will be attached to.
    */
   public static void createAndDeploy(Router rootRouter, Router manageRouter) {
+    createAndDeploy(rootRouter, manageRouter, true, false);
+  }
+  
+  /**
+   * Factory method to do standard deployment on newly constructed route, choosing which of the output routes are added.
+   * 
+   * The manageRouter passed in should be a sub router that is inaccessible to normal users.
+   * 
+   * @param rootRouter The top level router for the HttpServer that will be monitored.
+   * @param manageRouter The router that this handler will be attached to.
+   * @param inFlight If true the routes for outputting the in flight requests (at {@link #PATH} and below) are added.
+   * @param drain If true the routes for draining the server (at {@link #DRAIN_PATH}) are added.
+   * @return the newly constructed route.
+   */
+  public static InFlightRoute createAndDeploy(Router rootRouter, Router manageRouter, boolean inFlight, boolean drain) {
     InFlightRoute route = new InFlightRoute();
-    route.standardDeploy(rootRouter, manageRouter);
+    route.standardDeploy(rootRouter, manageRouter, inFlight, drain);
+    return route;
+  }
+  
+  /**
+   * Get the requests currently being processed, oldest first.
+   * @return the requests currently being processed, oldest first.
+   */
+  List<InFlightRequest> getInFlight() {
+    List<InFlightRequest> result = new ArrayList<>(map.values());
+    result.sort(Comparator.comparingLong(InFlightRequest::getId));
+    return result;
+  }
+  
+  /**
+   * Set the limiter used to reject requests when too many are in flight.
+   * @param limiter The limiter used to reject requests when too many are in flight, or null to accept all requests.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public InFlightRoute setLimiter(ConcurrencyLimiter limiter) {
+    this.limiter = limiter;
+    return this;
+  }
+  
+  /**
+   * Set the path at which the manage router is mounted on the root router.
+   * <p>
+   * Requests to this path, or below it, are treated as requests to the manage router by the root router handler,
+   * so they are not rejected by the limiter or when draining and are not counted as requests to the root router.
+   * The default is "/manage", as used by {@link ManagementRoute#standardDeploy(io.vertx.ext.web.Router)}.
+   * @param managePath The path at which the manage router is mounted on the root router, or null if it is not mounted on the root router.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public InFlightRoute setManagePath(String managePath) {
+    this.managePath = managePath;
+    return this;
+  }
+  
+  /**
+   * Get the path at which the manage router is mounted on the root router.
+   * @return the path at which the manage router is mounted on the root router.
+   */
+  public String getManagePath() {
+    return managePath;
+  }
+  
+  /**
+   * Return true if the path is the manage path, or below it.
+   * @param path The normalized path of a request.
+   * @return true if the path is the manage path, or below it.
+   */
+  boolean isManagePath(String path) {
+    String prefix = managePath;
+    if (prefix == null || path == null || !path.startsWith(prefix)) {
+      return false;
+    }
+    return path.length() == prefix.length() || path.charAt(prefix.length()) == '/' || prefix.endsWith("/");
+  }
+  
+  /**
+   * Get the limiter used to reject requests when too many are in flight.
+   * @return the limiter used to reject requests when too many are in flight, or null if all requests are accepted.
+   */
+  public ConcurrencyLimiter getLimiter() {
+    return limiter;
+  }
+  
+  /**
+   * Start draining: reject new requests to the root router and close keep-alive connections as in flight requests complete.
+   */
+  public void startDraining() {
+    if (!draining) {
+      logger.info("Draining, {} requests in flight", getRootInFlight());
+    }
+    draining = true;
+  }
+  
+  /**
+   * Stop draining, so that new requests are accepted again.
+   */
+  public void stopDraining() {
+    if (draining) {
+      logger.info("No longer draining");
+    }
+    draining = false;
+  }
+  
+  /**
+   * Get whether the server is draining.
+   * @return true if the server is draining.
+   */
+  public boolean isDraining() {
+    return draining;
+  }
+  
+  /**
+   * Get the number of requests recorded by the root router that are currently in flight.
+   * @return the number of requests recorded by the root router that are currently in flight.
+   */
+  public int getRootInFlight() {
+    int count = 0;
+    for (InFlightRequest inFlight : map.values()) {
+      if (inFlight.isRoot()) {
+        ++count;
+      }
+    }
+    return count;
+  }
+  
+  /**
+   * Start a watchdog thread that periodically looks for requests that have been in flight for longer than thresholdMs.
+   * <p>
+   * Any existing watchdog is stopped first.
+   * @param thresholdMs The time, in milliseconds, after which a request is considered to be stuck.
+   * @param intervalMs The time, in milliseconds, between each check.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public synchronized InFlightRoute startWatchdog(long thresholdMs, long intervalMs) {
+    if (thresholdMs <= 0) {
+      throw new IllegalArgumentException("The stuck request threshold must be positive");
+    }
+    if (intervalMs <= 0) {
+      throw new IllegalArgumentException("The stuck request check interval must be positive");
+    }
+    stopWatchdog();
+    long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+    watchdog = newDaemonExecutor("inflight-watchdog");
+    watchdog.scheduleWithFixedDelay(() -> checkStuck(System.nanoTime(), thresholdNanos), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    return this;
+  }
+  
+  /**
+   * Stop the watchdog thread, if it is running.
+   */
+  public synchronized void stopWatchdog() {
+    if (watchdog != null) {
+      watchdog.shutdownNow();
+      watchdog = null;
+    }
+  }
+  
+  /**
+   * Start a thread that samples the number of requests in flight to build the concurrency history.
+   * <p>
+   * Any existing sampling thread is stopped first.
+   * @param intervalMs The time, in milliseconds, between each sample.
+   * @return this, so that the method may be used in a fluent manner.
+   */
+  public synchronized InFlightRoute startSampling(long intervalMs) {
+    if (intervalMs <= 0) {
+      throw new IllegalArgumentException("The sampling interval must be positive");
+    }
+    stopSampling();
+    sampler = newDaemonExecutor("inflight-sampler");
+    long[] lastProgress = {System.nanoTime()};
+    sampler.scheduleAtFixedRate(() -> {
+      history.sample(System.currentTimeMillis());
+      long now = System.nanoTime();
+      if (now - lastProgress[0] >= PROGRESS_SAMPLE_NANOS) {
+        lastProgress[0] = now;
+        observeProgress();
+      }
+    }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    return this;
+  }
+  
+  /**
+   * Stop the sampling thread, if it is running.
+   */
+  public synchronized void stopSampling() {
+    if (sampler != null) {
+      sampler.shutdownNow();
+      sampler = null;
+    }
+  }
+  
+  /**
+   * Observe the progress of every request in flight, on the context of each request.
+   * @return a Future that is completed when every request has been observed.
+   */
+  Future<Void> observeProgress() {
+    Map<Context, List<InFlightRequest>> byContext = new HashMap<>();
+    for (InFlightRequest inFlight : map.values()) {
+      if (inFlight.getVertxContext() != null) {
+        byContext.computeIfAbsent(inFlight.getVertxContext(), k -> new ArrayList<>()).add(inFlight);
+      }
+    }
+    List<Future<Void>> observations = new ArrayList<>(byContext.size());
+    byContext.forEach((context, requests) -> {
+      Promise<Void> promise = Promise.promise();
+      context.runOnContext(v -> {
+        long now = System.nanoTime();
+        for (InFlightRequest inFlight : requests) {
+          try {
+            inFlight.observe(now);
+          } catch (Throwable ex) {
+            logger.warn("Failed to observe progress of request ({}): ", inFlight.getId(), ex);
+          }
+        }
+        promise.complete();
+      });
+      observations.add(promise.future());
+    });
+    return Future.all(observations).mapEmpty();
+  }
+  
+  /**
+   * Observe the progress of every request in flight and then call the handler on the current context.
+   * <p>
+   * The handler is called after at most {@link #OBSERVE_TIMEOUT_MS}, even if some requests have not been observed.
+   * @param event The context of the request that is waiting.
+   * @param handler The handler to call.
+   */
+  private void afterObservingProgress(RoutingContext event, Handler<Void> handler) {
+    Context context = event.vertx().getOrCreateContext();
+    AtomicBoolean called = new AtomicBoolean();
+    Handler<Void> once = v -> {
+      if (called.compareAndSet(false, true)) {
+        context.runOnContext(handler);
+      }
+    };
+    long timer = event.vertx().setTimer(OBSERVE_TIMEOUT_MS, id -> once.handle(null));
+    observeProgress().onComplete(ar -> {
+      event.vertx().cancelTimer(timer);
+      once.handle(null);
+    });
   }
   
+  private static ScheduledExecutorService newDaemonExecutor(String name) {
+    return Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+  
+  /**
+   * Get the history of the number of requests in flight.
+   * @return the history of the number of requests in flight.
+   */
+  public ConcurrencyHistory getHistory() {
+    return history;
+  }
+  
+  /**
+   * Get the number of requests currently in flight for each route.
+   * @return a map from the name of each route to the number of requests currently in flight for it.
+   */
+  Map<String, Integer> getInFlightByRoute() {
+    Map<String, Integer> result = new TreeMap<>();
+    for (InFlightRequest inFlight : map.values()) {
+      result.merge(Objects.toString(inFlight.getRouteKey()), 1, Integer::sum);
+    }
+    return result;
+  }
+  
+  /**
+   * Record the current thread as the one processing the request.
+   * <p>
+   * This should be called by handlers that continue processing a request on a worker thread, so that the stack of that
+   * thread, rather than the event loop, is captured if the request is found to be stuck.
+   * It does nothing if the request has not been recorded by an InFlightRoute.
+   * @param rc The context of the request.
+   */
+  public static void associateCurrentThread(RoutingContext rc) {
+    InFlightRequest inFlight = rc.get(REQUEST_KEY);
+    if (inFlight != null) {
+      inFlight.thread = Thread.currentThread();
+    }
+  }
+  
+  /**
+   * Get the stuck requests that have been found by the watchdog.
+   * @return the stuck requests that have been found by the watchdog.
+   */
+  SnapshotBuffer<StuckRequest> getStuck() {
+    return stuck;
+  }
+  
+  /**
+   * Record the stack of every request that has been in flight for at least thresholdNanos and has not already been recorded.
+   * @param nowNanos The current value of {@link System#nanoTime()}.
+   * @param thresholdNanos The time after which a request is considered to be stuck.
+   * @return the number of requests recorded.
+   */
+  int checkStuck(long nowNanos, long thresholdNanos) {
+    int count = 0;
+    for (InFlightRequest inFlight : map.values()) {
+      long durationNanos = nowNanos - inFlight.getStartNanos();
+      if (inFlight.reported || durationNanos < thresholdNanos) {
+        continue;
+      }
+      inFlight.reported = true;
+      try {
+        Thread thread = inFlight.getThread();
+        HttpServerRequest request = inFlight.getRequest();
+        stuck.add(new StuckRequest(inFlight.getId(), inFlight.getTimestamp(), System.currentTimeMillis(), durationNanos
+                , Objects.toString(request.method()), request.uri()
+                , thread.getName(), thread.getId(), thread.getState(), thread.getStackTrace()
+        ));
+        ++count;
+        logger.warn("Request {} ({} {}) has been in flight for {}s on thread {}"
+                , inFlight.getId(), request.method(), request.uri(), durationNanos / 1000000000.0, thread.getName());
+      } catch (Throwable ex) {
+        logger.warn("Failed to record stuck request ({}): ", inFlight.getId(), ex);
+      }
+    }
+    return count;
+  }
+  
+  private void handleStuck(RoutingContext event) {
+    JsonArray result = new JsonArray();
+    for (StuckRequest request : stuck.toArray(StuckRequest[]::new)) {
+      result.add(request.toJson());
+    }
+    event.response().putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_JSON);
+    event.end(result.toString());
+  }
+  
+  private void handleConcurrency(RoutingContext event) {
+    int seconds = history.size();
+    String param = event.request().getParam("seconds");
+    if (param != null) {
+      try {
+        seconds = Integer.parseInt(param);
+      } catch (NumberFormatException ex) {
+        seconds = -1;
+      }
+      if (seconds < 0) {
+        event.response().setStatusCode(400).end("Invalid value for seconds");
+        return;
+      }
+    }
+    int maxSeconds = seconds;
+    afterObservingProgress(event, v -> outputConcurrency(event, maxSeconds));
+  }
+  
+  private void outputConcurrency(RoutingContext event, int seconds) {
+    JsonObject result = new JsonObject();
+    result.put("InFlight", map.size());
+    result.put("CurrentPeak", history.getCurrentPeak());
+    JsonObject routes = new JsonObject();
+    getInFlightByRoute().forEach(routes::put);
+    result.put("Routes", routes);
+    result.put("History", history.toJson(seconds));
+    event.response().putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_JSON);
+    event.end(result.toString());
+  }
+  
+  private void handleDrain(RoutingContext event) {
+    int timeoutSeconds = DEFAULT_DRAIN_TIMEOUT_SECONDS;
+    String param = event.request().getParam("timeout");
+    if (param != null) {
+      try {
+        timeoutSeconds = Integer.parseInt(param);
+      } catch (NumberFormatException ex) {
+        event.response().setStatusCode(400).end("Invalid value for timeout");
+        return;
+      }
+    }
+    startDraining();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    HttpServerResponse response = event.response();
+    response.setStatusCode(200);
+    response.setChunked(true);
+    response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_PLAIN);
+    int initial = getRootInFlight();
+    response.write("Draining, " + initial + " requests in flight\n");
+    int[] last = {initial};
+    Handler<Long> check = timerId -> {
+      int count = getRootInFlight();
+      if (count == 0) {
+        event.vertx().cancelTimer(timerId);
+        response.end("Drained\n");
+      } else if (System.nanoTime() - deadline >= 0) {
+        event.vertx().cancelTimer(timerId);
+        response.end("Deadline reached, " + count + " requests in flight\n");
+      } else if (count != last[0]) {
+        last[0] = count;
+        response.write(count + " requests in flight\n");
+      }
+    };
+    long timer = event.vertx().setPeriodic(DRAIN_CHECK_MS, check);
+    response.closeHandler(v -> event.vertx().cancelTimer(timer));
+    check.handle(timer);
+  }
+  
+  private void handleDrainStatus(RoutingContext event) {
+    JsonObject result = new JsonObject();
+    result.put("Draining", draining);
+    result.put("InFlight", getRootInFlight());
+    result.put("Rejected", drainRejected.sum());
+    event.response().putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_JSON);
+    event.end(result.toString());
+  }
+  
+  private void handleLimit(RoutingContext event) {
+    ConcurrencyLimiter current = limiter;
+    JsonObject result = current == null ? new JsonObject() : current.toJson();
+    result.put("Enabled", current != null);
+    result.put("Tracked", map.size());
+    event.response().putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_JSON);
+    event.end(result.toString());
+  }
   
   @Override
   public void handle(RoutingContext event) {
+    String sort = event.request().getParam("sort");
+    boolean byStall = "stall".equals(sort);
+    if (sort != null && !byStall && !"age".equals(sort)) {
+      event.response().setStatusCode(400).end("Invalid value for sort");
+      return;
+    }
+    int limit = Integer.MAX_VALUE;
+    String limitParam = event.request().getParam("limit");
+    if (limitParam != null) {
+      try {
+        limit = Integer.parseInt(limitParam);
+      } catch (NumberFormatException ex) {
+        event.response().setStatusCode(400).end("Invalid value for limit");
+        return;
+      }
+    }
+    int maxResults = limit;
+    afterObservingProgress(event, v -> output(event, byStall, maxResults));
+  }
+  
+  private void output(RoutingContext event, boolean byStall, int limit) {
+    long now = System.nanoTime();
+    List<InFlightRequest> requests = getInFlight();
+    Map<Long, Progress> progress = new HashMap<>();
+    for (InFlightRequest inFlight : requests) {
+      Progress p = inFlight.getObserved();
+      if (p != null) {
+        progress.put(inFlight.getId(), p);
+      }
+    }
+    if (byStall) {
+      requests.sort(Comparator.comparingLong((InFlightRequest inFlight) -> {
+        Progress p = progress.get(inFlight.getId());
+        return p == null ? 0 : p.getStalledNanos();
+      }).reversed());
+    }
+    
     JsonArray result = new JsonArray();
-    synchronized (map) {
-      for (RoutingContext rc : map.values()) {
-        try {
-          JsonObject data = new JsonObject();
-          Object timestampObject = rc.get(TIMESTAMP_KEY);
-          if (timestampObject instanceof Long) {
-            Long timestamp = (Long) timestampObject;
-            data.put("StartTimestamp", Instant.ofEpochMilli(timestamp).atOffset(ZoneOffset.UTC).toLocalDateTime().toString());
-            data.put("SecondsSoFar", (System.currentTimeMillis() - timestamp) / 1000.0);
-          } 
-          data.put("LocalAddress", Objects.toString(event.request().localAddress()));
-          data.put("RemoteAddress", Objects.toString(event.request().remoteAddress()));
-          data.put("AbsoluteUri", event.request().absoluteURI());
-          data.put("Query", event.request().query());
-          result.add(data);
-        } catch (Throwable ex) {
-          logger.warn("Failed to generate JSON for RoutingContext ({}): ", rc, ex);
+    for (InFlightRequest inFlight : requests) {
+      if (result.size() >= limit) {
+        break;
+      }
+      try {
+        HttpServerRequest request = inFlight.getRequest();
+        JsonObject data = new JsonObject();
+        data.put("Id", inFlight.getId());
+        data.put("StartTimestamp", Instant.ofEpochMilli(inFlight.getTimestamp()).atOffset(ZoneOffset.UTC).toLocalDateTime().toString());
+        data.put("SecondsSoFar", (now - inFlight.getStartNanos()) / 1000000000.0);
+        data.put("Method", Objects.toString(request.method()));
+        data.put("LocalAddress", Objects.toString(request.localAddress()));
+        data.put("RemoteAddress", Objects.toString(request.remoteAddress()));
+        data.put("AbsoluteUri", request.absoluteURI());
+        data.put("Query", request.query());
+        Progress p = progress.get(inFlight.getId());
+        if (p != null) {
+          data.put("BytesRead", p.getBytesRead());
+          data.put("BytesWritten", p.getBytesWritten());
+          data.put("ReadBytesPerSecond", p.getReadRate());
+          data.put("WriteBytesPerSecond", p.getWriteRate());
+          data.put("SecondsSinceProgress", p.getStalledNanos() / 1000000000.0);
+          data.put("WriteQueueFull", inFlight.isWriteQueueFull());
         }
+        result.add(data);
+      } catch (Throwable ex) {
+        logger.warn("Failed to generate JSON for request ({}): ", inFlight.getId(), ex);
       }
     }
     event.end(result.toString());    
   }
 
-  private void record(RoutingContext event) {
-    SocketAddress localAddress = event.request().localAddress();
-    synchronized (map) {
-      event.put(TIMESTAMP_KEY, System.currentTimeMillis());
-      map.put(localAddress, event);
-    }
-    event.addEndHandler(ar -> {
-      synchronized (map) {
-        map.remove(localAddress);
+  private void record(RoutingContext event, boolean fromRoot) {
+    InFlightRequest existing = event.get(REQUEST_KEY);
+    if (existing == null) {
+      boolean root = fromRoot && !isManagePath(event.normalizedPath());
+      if (root && draining) {
+        drainRejected.increment();
+        event.response()
+                .setStatusCode(503)
+                .putHeader(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE)
+                .end();
+        return;
       }
-    });
+      ConcurrencyLimiter currentLimiter = root ? limiter : null;
+      if (currentLimiter != null && !currentLimiter.tryAcquire()) {
+        event.response()
+                .setStatusCode(503)
+                .putHeader(HttpHeaderNames.RETRY_AFTER, Integer.toString(currentLimiter.getRetryAfterSeconds()))
+                .end();
+        return;
+      }
+      long timestamp = System.currentTimeMillis();
+      long startNanos = System.nanoTime();
+      InFlightRequest inFlight = new InFlightRequest(nextId.incrementAndGet(), timestamp, startNanos, event, Thread.currentThread(), root);
+      inFlight.setLimiter(currentLimiter);
+      Long id = inFlight.getId();
+      event.put(ID_KEY, id);
+      event.put(TIMESTAMP_KEY, timestamp);
+      event.put(REQUEST_KEY, inFlight);
+      map.put(id, inFlight);
+      history.observe(map.size());
+      if (root) {
+        event.addHeadersEndHandler(v -> {
+          if (draining && inFlight.isRoot() && event.request().version() != HttpVersion.HTTP_2) {
+            event.response().putHeader(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+          }
+        });
+      }
+      event.addEndHandler(ar -> {
+        map.remove(id);
+        inFlight.release(System.nanoTime());
+      });
+    } else if (!fromRoot && existing.isRoot()) {
+      existing.demote(System.nanoTime());
+    }
     event.next();
   }
+
   
 
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations, in microseconds, using log-linear buckets.
+ * <p>
+ * Values below {@link #SUB_BUCKETS} * 2 have a bucket each, above that each power of two is divided into {@link #SUB_BUCKETS}
+ * equal buckets, so a value read from the histogram is never more than 1/{@link #SUB_BUCKETS} greater than the value recorded.
+ * Values greater than {@link #MAX_VALUE} are recorded as {@link #MAX_VALUE}.
+ * <p>
+ * This class is not thread safe, it is used for the results of reading a {@link LatencyRecorder}.
+ *
+ * @author jtalbut
+ */
+public class LatencyHistogram {
+
+  /**
+   * The number of buckets that each power of two is divided into.
+   */
+  public static final int SUB_BUCKETS = 16;
+
+  /**
+   * The maximum value that can be recorded, about 19 hours in microseconds.
+   */
+  public static final long MAX_VALUE = (1L << 36) - 1;
+
+  private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+  /**
+   * The number of buckets in a histogram.
+   */
+  static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+  /**
+   * Offset of the total number of values in the arrays used by {@link LatencyRecorder}.
+   */
+  static final int COUNT = BUCKET_COUNT;
+
+  /**
+   * Offset of the sum of the values in the arrays used by {@link LatencyRecorder}.
+   */
+  static final int SUM = BUCKET_COUNT + 1;
+
+  /**
+   * Offset of the maximum value in the arrays used by {@link LatencyRecorder}.
+   */
+  static final int MAX = BUCKET_COUNT + 2;
+
+  /**
+   * The length of the arrays used by {@link LatencyRecorder}, the bucket counts followed by the count, sum and max.
+   */
+  static final int ARRAY_LENGTH = BUCKET_COUNT + 3;
+
+  private final long[] counts = new long[BUCKET_COUNT];
+  private long count;
+  private long sum;
+  private long max;
+
+  /**
+   * Constructor.
+   */
+  public LatencyHistogram() {
+  }
+
+  /**
+   * Get the index of the bucket that a value should be recorded in.
+   * @param value The value.
+   * @return the index of the bucket that a value should be recorded in.
+   */
+  static int bucketIndex(long value) {
+    if (value < 0) {
+      return 0;
+    } else if (value > MAX_VALUE) {
+      value = MAX_VALUE;
+    }
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (int) (shift * SUB_BUCKETS + (value >>> shift));
+  }
+
+  /**
+   * Get the highest value that would be recorded in a bucket.
+   * @param index The index of the bucket.
+   * @return the highest value that would be recorded in the bucket.
+   */
+  static long highestValue(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long sub = SUB_BUCKETS + index % SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * Record a single value.
+   * @param value The value to record.
+   */
+  public void record(long value) {
+    long clamped = Math.max(0, Math.min(value, MAX_VALUE));
+    ++counts[bucketIndex(clamped)];
+    ++count;
+    sum += clamped;
+    max = Math.max(max, clamped);
+  }
+
+  /**
+   * Add the values from an array used by {@link LatencyRecorder}.
+   * @param values The array, of length {@link #ARRAY_LENGTH}.
+   */
+  void add(AtomicLongArray values) {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts[i] += values.get(i);
+    }
+    count += values.get(COUNT);
+    sum += values.get(SUM);
+    max = Math.max(max, values.get(MAX));
+  }
+
+  /**
+   * Get the number of values recorded.
+   * @return the number of values recorded.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Get the largest value recorded.
+   * @return the largest value recorded, or zero if the histogram is empty.
+   */
+  public long getMax() {
+    return max;
+  }
+
+  /**
+   * Get the mean of the values recorded.
+   * @return the mean of the values recorded, or zero if the histogram is empty.
+   */
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * Get the value at a given percentile.
+   * <p>
+   * The value returned is the highest value in the bucket containing the percentile, limited to the largest value recorded.
+   * @param percentile The percentile, between 0 and 100.
+   * @return the value at a given percentile, or zero if the histogram is empty.
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(highestValue(i), max);
+      }
+    }
+    return max;
+  }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Records durations, in microseconds, in a {@link LatencyHistogram} per route over a number of sliding windows.
+ * <p>
+ * Each thread records into its own histogram for each route, so recording needs no locks and no atomic read-modify-write
+ * operations.
+ * Time is divided into slices of one tenth of the shortest window; when a thread moves into a new slice the histogram for the
+ * previous slice is folded into a ring of {@link #SLICES} slices kept for each window (using lock-free atomic additions).
+ * When read, the slices within each window are merged with the current histogram from each thread.
+ * As with {@link SlowestBuffer} whole slices expire at once, so values are retained for between 90% and 100% of each window.
+ * <p>
+ * In order to bound the memory used, once there are maxRoutes routes any new routes are recorded as {@link #OTHER_ROUTE}.
+ *
+ * @author jtalbut
+ */
+public class LatencyRecorder {
+
+  /**
+   * The name used for all routes once the maximum number of routes has been reached.
+   */
+  public static final String OTHER_ROUTE = "(other)";
+
+  /**
+   * The number of slices that each window is divided into.
+   */
+  public static final int SLICES = 10;
+
+  private final long[] windowsMs;
+  private final long sliceMs;
+  private final long[] slicesPerTier;
+  private final int maxRoutes;
+  private final LongSupplier clock;
+  private final Map<String, RouteLatency> routes = new ConcurrentHashMap<>();
+  private final ThreadLocal<Map<String, Stripe>> stripes = ThreadLocal.withInitial(HashMap::new);
+
+  /**
+   * The values recorded in a single slice, stored in an array laid out as described by {@link LatencyHistogram#ARRAY_LENGTH}.
+   */
+  static final class Interval {
+    private final long epoch;
+    private final AtomicLongArray values = new AtomicLongArray(LatencyHistogram.ARRAY_LENGTH);
+
+    Interval(long epoch) {
+      this.epoch = epoch;
+    }
+
+    /**
+     * Record a value, this must only be called by a single thread.
+     * @param value The value to record.
+     */
+    void record(long value) {
+      long clamped = Math.max(0, Math.min(value, LatencyHistogram.MAX_VALUE));
+      int index = LatencyHistogram.bucketIndex(clamped);
+      values.setRelease(index, values.getPlain(index) + 1);
+      values.setRelease(LatencyHistogram.COUNT, values.getPlain(LatencyHistogram.COUNT) + 1);
+      values.setRelease(LatencyHistogram.SUM, values.getPlain(LatencyHistogram.SUM) + clamped);
+      if (clamped > values.getPlain(LatencyHistogram.MAX)) {
+        values.setRelease(LatencyHistogram.MAX, clamped);
+      }
+    }
+
+    /**
+     * Add all the values from another Interval, this may be called by any number of threads concurrently.
+     * @param other The Interval to add.
+     */
+    void add(Interval other) {
+      for (int i = 0; i < LatencyHistogram.MAX; ++i) {
+        long value = other.values.get(i);
+        if (value != 0) {
+          values.addAndGet(i, value);
+        }
+      }
+      values.accumulateAndGet(LatencyHistogram.MAX, other.values.get(LatencyHistogram.MAX), Math::max);
+    }
+  }
+
+  /**
+   * The current Interval for one route on one thread.
+   */
+  static final class Stripe {
+    private final RouteLatency route;
+    private volatile Interval current;
+
+    Stripe(RouteLatency route) {
+      this.route = route;
+    }
+  }
+
+  /**
+   * The stripes and the rings of completed slices for a single route.
+   */
+  static final class RouteLatency {
+    private final List<Stripe> stripes = new CopyOnWriteArrayList<>();
+    private final List<AtomicReferenceArray<Interval>> tiers;
+
+    RouteLatency(int tierCount) {
+      tiers = new ArrayList<>(tierCount);
+      for (int i = 0; i < tierCount; ++i) {
+        tiers.add(new AtomicReferenceArray<>(SLICES));
+      }
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxRoutes The maximum number of distinct routes to record.
+   * @param windowsMs The lengths of the windows to record, in milliseconds, in ascending order.
+   * Each window must be a multiple of {@link #SLICES} times the shortest window.
+   */
+  public LatencyRecorder(int maxRoutes, long... windowsMs) {
+    this(System::currentTimeMillis, maxRoutes, windowsMs);
+  }
+
+  LatencyRecorder(LongSupplier clock, int maxRoutes, long... windowsMs) {
+    if (maxRoutes <= 0) {
+      throw new IllegalArgumentException("The maximum number of routes must be positive");
+    }
+    if (windowsMs == null || windowsMs.length == 0) {
+      throw new IllegalArgumentException("At least one window must be specified");
+    }
+    if (windowsMs[0] < SLICES) {
+      throw new IllegalArgumentException("Each window must be at least " + SLICES + "ms");
+    }
+    this.clock = clock;
+    this.maxRoutes = maxRoutes;
+    this.windowsMs = windowsMs.clone();
+    this.sliceMs = windowsMs[0] / SLICES;
+    this.slicesPerTier = new long[windowsMs.length];
+    for (int i = 0; i < windowsMs.length; ++i) {
+      if ((i > 0 && windowsMs[i] <= windowsMs[i - 1]) || windowsMs[i] % (sliceMs * SLICES) != 0) {
+        throw new IllegalArgumentException("Windows must be in ascending order and each must be a multiple of " + (sliceMs * SLICES) + "ms");
+      }
+      slicesPerTier[i] = windowsMs[i] / SLICES / sliceMs;
+    }
+  }
+
+  /**
+   * Get the lengths of the windows being recorded, in milliseconds.
+   * @return the lengths of the windows being recorded, in milliseconds.
+   */
+  public long[] getWindowsMs() {
+    return windowsMs.clone();
+  }
+
+  /**
+   * Get the number of distinct routes that have been recorded.
+   * @return the number of distinct routes that have been recorded.
+   */
+  public int getRouteCount() {
+    return routes.size();
+  }
+
+  /**
+   * Record a duration against a route.
+   * @param route The route, typically the HTTP method and route pattern.
+   * @param durationMicros The duration in microseconds.
+   */
+  public void record(String route, long durationMicros) {
+    long epoch = clock.getAsLong() / sliceMs;
+    Map<String, Stripe> local = stripes.get();
+    Stripe stripe = local.get(route);
+    if (stripe == null) {
+      stripe = createStripe(local, route);
+    }
+    Interval current = stripe.current;
+    if (current == null || current.epoch != epoch) {
+      Interval next = new Interval(epoch);
+      // Publish the new interval before folding the old one, so that readers may miss values briefly but never count them twice
+      stripe.current = next;
+      if (current != null) {
+        fold(stripe.route, current);
+      }
+      current = next;
+    }
+    current.record(durationMicros);
+  }
+
+  private Stripe createStripe(Map<String, Stripe> local, String route) {
+    String key = route;
+    RouteLatency latency = routes.get(key);
+    if (latency == null && routes.size() >= maxRoutes) {
+      key = OTHER_ROUTE;
+      Stripe other = local.get(key);
+      if (other != null) {
+        return other;
+      }
+      latency = routes.get(key);
+    }
+    if (latency == null) {
+      latency = routes.computeIfAbsent(key, k -> new RouteLatency(windowsMs.length));
+    }
+    Stripe stripe = new Stripe(latency);
+    latency.stripes.add(stripe);
+    local.put(key, stripe);
+    return stripe;
+  }
+
+  private void fold(RouteLatency latency, Interval interval) {
+    for (int tier = 0; tier < slicesPerTier.length; ++tier) {
+      long tierEpoch = interval.epoch / slicesPerTier[tier];
+      AtomicReferenceArray<Interval> ring = latency.tiers.get(tier);
+      int slot = (int) Math.floorMod(tierEpoch, (long) SLICES);
+      Interval target = ring.get(slot);
+      while (target == null || target.epoch < tierEpoch) {
+        Interval fresh = new Interval(tierEpoch);
+        if (ring.compareAndSet(slot, target, fresh)) {
+          target = fresh;
+        } else {
+          target = ring.get(slot);
+        }
+      }
+      if (target.epoch == tierEpoch) {
+        target.add(interval);
+      }
+    }
+  }
+
+  /**
+   * Read the histograms for every route.
+   * <p>
+   * The histograms for each route are in the same order as the windows passed to the constructor.
+   * @return the histograms for every route, sorted by route.
+   */
+  public SortedMap<String, LatencyHistogram[]> snapshot() {
+    long epoch = clock.getAsLong() / sliceMs;
+    SortedMap<String, LatencyHistogram[]> result = new TreeMap<>();
+    for (Map.Entry<String, RouteLatency> entry : routes.entrySet()) {
+      RouteLatency latency = entry.getValue();
+      LatencyHistogram[] histograms = new LatencyHistogram[slicesPerTier.length];
+      for (int tier = 0; tier < slicesPerTier.length; ++tier) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long newest = epoch / slicesPerTier[tier];
+        AtomicReferenceArray<Interval> ring = latency.tiers.get(tier);
+        for (int slot = 0; slot < SLICES; ++slot) {
+          Interval interval = ring.get(slot);
+          if (interval != null && interval.epoch > newest - SLICES && interval.epoch <= newest) {
+            histogram.add(interval.values);
+          }
+        }
+        histograms[tier] = histogram;
+      }
+      // The stripes must be read after the rings, for the same reason that they are published before folding
+      for (Stripe stripe : latency.stripes) {
+        Interval current = stripe.current;
+        if (current != null) {
+          for (int tier = 0; tier < slicesPerTier.length; ++tier) {
+            long currentTierEpoch = current.epoch / slicesPerTier[tier];
+            long newest = epoch / slicesPerTier[tier];
+            if (currentTierEpoch > newest - SLICES && currentTierEpoch <= newest) {
+              histograms[tier].add(current.values);
+            }
+          }
+        }
+      }
+      result.put(entry.getKey(), histograms);
+    }
+    return result;
+  }
+
+}
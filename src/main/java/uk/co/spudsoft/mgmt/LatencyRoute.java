@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Vertx HTTP Server route for reporting the distribution of request durations for each route.
+ * <p>
+ * The durations are recorded in a {@link LatencyRecorder}, keyed by the HTTP method and the path of the route that handled the request
+ * (so all requests for "/api/:id" are recorded together).
+ * The output gives the count, mean, 50th, 90th, 99th and 99.9th percentiles and maximum duration for each route over each window,
+ * all durations are output in milliseconds.
+ * <p>
+ * Requests handled by a sub router are recorded against the route that mounts the sub router, unless the sub router has been
+ * passed to {@link #addSubRouter(io.vertx.ext.web.Router)}.
+ *
+ * @author jtalbut
+ */
+public class LatencyRoute implements Handler<RoutingContext> {
+
+  /**
+   * The path at which the standardDeploy method will put the router.
+   */
+  public static final String PATH = "latency";
+
+  /**
+   * The default maximum number of distinct routes recorded.
+   */
+  public static final int DEFAULT_MAX_ROUTES = 1000;
+
+  private static final String CONTEXT_KEY = LatencyRoute.class.getCanonicalName() + "_Context";
+
+  private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  private static final Logger logger = LoggerFactory.getLogger(LatencyRoute.class);
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final LatencyRecorder recorder;
+
+  /**
+   * Constructor.
+   * <p>
+   * Records up to {@link #DEFAULT_MAX_ROUTES} routes over windows of one, five and fifteen minutes.
+   */
+  public LatencyRoute() {
+    this(new LatencyRecorder(DEFAULT_MAX_ROUTES, 60_000L, 300_000L, 900_000L));
+  }
+
+  /**
+   * Constructor.
+   * @param recorder The recorder to use.
+   */
+  public LatencyRoute(LatencyRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  /**
+   * Get the recorder.
+   * @return the recorder.
+   */
+  public LatencyRecorder getRecorder() {
+    return recorder;
+  }
+
+  /**
+   * Deploy the route to the router passed in at the normal endpoint.
+   *
+   * The manageRouter passed in should be a sub router that is inaccessible to normal users.
+   *
+   * @param rootRouter The top level router for the HttpServer that will be monitored.
+   * @param manageRouter The router that this handler will be attached to.
+   */
+  public void standardDeploy(Router rootRouter, Router manageRouter) {
+    rootRouter.route().handler(this::record);
+    addSubRouter(manageRouter);
+    manageRouter.route(HttpMethod.GET, "/" + PATH)
+            .handler(this::handle)
+            .setName("Latency")
+            .produces(ContentTypes.TYPE_JSON)
+            .produces(ContentTypes.TYPE_HTML)
+            .produces(ContentTypes.TYPE_PLAIN)
+            ;
+  }
+
+  /**
+   * Factory method to do standard deployment on newly constructed route.
+   *
+   * The manageRouter passed in should be a sub router that is inaccessible to normal users.
+   *
+   * @param rootRouter The top level router for the HttpServer that will be monitored.
+   * @param manageRouter The router that this handler will be attached to.
+   */
+  public static void createAndDeploy(Router rootRouter, Router manageRouter) {
+    LatencyRoute route = new LatencyRoute();
+    route.standardDeploy(rootRouter, manageRouter);
+  }
+
+  /**
+   * Record requests handled by a sub router against the routes of the sub router.
+   * <p>
+   * Without this all requests handled by the sub router are recorded against the single route that mounts it.
+   * Routes are matched in the order in which they are added, so this must be called before the routes of the sub router
+   * are added, requests handled by routes added before it are recorded against the route that mounts the sub router.
+   * @param subRouter A router that is mounted, directly or indirectly, on the root router passed to standardDeploy.
+   */
+  public void addSubRouter(Router subRouter) {
+    subRouter.route().handler(rc -> {
+      if (rc.get(CONTEXT_KEY) != null) {
+        rc.put(CONTEXT_KEY, rc);
+      }
+      rc.next();
+    });
+  }
+
+  private void record(RoutingContext rc) {
+    long start = System.nanoTime();
+    Route captureRoute = rc.currentRoute();
+    rc.put(CONTEXT_KEY, rc);
+    rc.addBodyEndHandler(v -> {
+      long durationMicros = (System.nanoTime() - start) / 1000;
+      RoutingContext handler = rc.get(CONTEXT_KEY);
+      recorder.record(routeKey(handler == null ? rc : handler, captureRoute), durationMicros);
+    });
+    rc.next();
+  }
+
+  /**
+   * Get the name used to record a request.
+   * <p>
+   * This is the HTTP method followed by the path of the route that handled the request (including the mount point of any sub router).
+   * Routes without a path (such as regex routes) use the name of the route, which Vert.x defaults to the regex.
+   * If the request was not handled by any route (other than the capturing route) the normalized path of the request is used instead.
+   *
+   * @param rc The RoutingContext that handled the request.
+   * @param captureRoute The route that captured the request.
+   * @return the name used to record a request.
+   */
+  static String routeKey(RoutingContext rc, Route captureRoute) {
+    Route route = rc.currentRoute();
+    String pattern = null;
+    if (route != null && route != captureRoute) {
+      pattern = route.getPath();
+      if (pattern != null) {
+        if (!route.isExactPath() && !pattern.endsWith("*")) {
+          pattern = pattern + "*";
+        }
+        String mountPoint = rc.mountPoint();
+        if (mountPoint != null && !mountPoint.isEmpty()) {
+          pattern = (mountPoint.endsWith("/") ? mountPoint.substring(0, mountPoint.length() - 1) : mountPoint) + pattern;
+        }
+      } else {
+        pattern = route.getName();
+      }
+    }
+    if (pattern == null) {
+      pattern = rc.normalizedPath();
+    }
+    HttpMethod method = rc.request().method();
+    return method == null ? pattern : method.name() + " " + pattern;
+  }
+
+  /**
+   * Format the length of a window for output, using the largest whole unit.
+   * @param windowMs The length of the window, in milliseconds.
+   * @return the length of the window formatted for output.
+   */
+  static String formatWindow(long windowMs) {
+    if (windowMs % 3_600_000L == 0) {
+      return (windowMs / 3_600_000L) + "h";
+    } else if (windowMs % 60_000L == 0) {
+      return (windowMs / 60_000L) + "m";
+    } else if (windowMs % 1000L == 0) {
+      return (windowMs / 1000L) + "s";
+    } else {
+      return windowMs + "ms";
+    }
+  }
+
+  private static double toMillis(long micros) {
+    return micros / 1000.0;
+  }
+
+  @Override
+  public void handle(RoutingContext rc) {
+    if (rc.request().method() == HttpMethod.GET) {
+      ContentTypes.adjustFromParams(rc);
+
+      List<Map.Entry<String, LatencyHistogram[]>> data = new ArrayList<>(recorder.snapshot().entrySet());
+      long[] windowsMs = recorder.getWindowsMs();
+      String[] windows = new String[windowsMs.length];
+      for (int i = 0; i < windows.length; ++i) {
+        windows[i] = formatWindow(windowsMs[i]);
+      }
+
+      HttpServerResponse response = rc.response();
+      if (ContentTypes.TYPE_JSON.equals(rc.getAcceptableContentType())) {
+        renderJson(response, windows, data);
+      } else if (ContentTypes.TYPE_HTML.equals(rc.getAcceptableContentType())) {
+        renderHtml(response, windows, data);
+      } else {
+        renderText(response, windows, data);
+      }
+    } else {
+      rc.next();
+    }
+  }
+
+  private static void renderJson(HttpServerResponse response, String[] windows, List<Map.Entry<String, LatencyHistogram[]>> data) {
+    response.setStatusCode(200);
+    response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_JSON);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
+    JsonGenerator generator;
+    try {
+      generator = JSON_FACTORY.createGenerator(writer);
+      generator.writeStartArray();
+    } catch (IOException ex) {
+      logger.error("Failed to create JSON generator: ", ex);
+      response.setStatusCode(500).end();
+      return;
+    }
+    writer.stream(data.size(), i -> {
+      try {
+        Map.Entry<String, LatencyHistogram[]> entry = data.get(i);
+        generator.writeStartObject();
+        generator.writeStringField("route", entry.getKey());
+        generator.writeArrayFieldStart("windows");
+        for (int w = 0; w < windows.length; ++w) {
+          LatencyHistogram histogram = entry.getValue()[w];
+          generator.writeStartObject();
+          generator.writeStringField("window", windows[w]);
+          generator.writeNumberField("count", histogram.getCount());
+          generator.writeNumberField("mean", histogram.getMean() / 1000.0);
+          for (int p = 0; p < PERCENTILES.length; ++p) {
+            generator.writeNumberField(PERCENTILE_NAMES[p], toMillis(histogram.getValueAtPercentile(PERCENTILES[p])));
+          }
+          generator.writeNumberField("max", toMillis(histogram.getMax()));
+          generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.flush();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }, () -> {
+      try {
+        generator.writeEndArray();
+        generator.close();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    });
+  }
+
+  private static void renderHtml(HttpServerResponse response, String[] windows, List<Map.Entry<String, LatencyHistogram[]>> data) {
+    response.setStatusCode(200);
+    response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_HTML);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
+
+    writer.append("<html>");
+    writer.append("<head>");
+    writer.append("<style>table,th,td { border: 1px solid black; border-collapse: collapse; padding-left: 10px; padding-right: 10px; } td.number { text-align: right; }</style>");
+    writer.append("</head>");
+    writer.append("<body>");
+    writer.append("<table>");
+    writer.append("<thead><tr><th>Route</th><th>Window</th><th>Count</th><th>Mean</th>");
+    for (String name : PERCENTILE_NAMES) {
+      writer.append("<th>").append(name).append("</th>");
+    }
+    writer.append("<th>Max</th></tr></thead>\n");
+    writer.append("<tbody>\n");
+
+    writer.stream(data.size(), i -> {
+      Map.Entry<String, LatencyHistogram[]> entry = data.get(i);
+      for (int w = 0; w < windows.length; ++w) {
+        LatencyHistogram histogram = entry.getValue()[w];
+        writer.append("<tr>");
+        if (w == 0) {
+          writer.append("<td rowspan=\"").append(Integer.toString(windows.length)).append("\">").append(entry.getKey()).append("</td>");
+        }
+        writer.append("<td>").append(windows[w]).append("</td>");
+        writer.append("<td class=\"number\">").append(Long.toString(histogram.getCount())).append("</td>");
+        writer.append("<td class=\"number\">").append(Double.toString(histogram.getMean() / 1000.0)).append(" ms</td>");
+        for (double percentile : PERCENTILES) {
+          writer.append("<td class=\"number\">").append(Double.toString(toMillis(histogram.getValueAtPercentile(percentile)))).append(" ms</td>");
+        }
+        writer.append("<td class=\"number\">").append(Double.toString(toMillis(histogram.getMax()))).append(" ms</td>");
+        writer.append("</tr>\n");
+      }
+    }, () -> {
+      writer.append("</tbody>");
+      writer.append("</table>");
+      writer.append("</body>");
+      writer.append("</html>");
+    });
+  }
+
+  private static void renderText(HttpServerResponse response, String[] windows, List<Map.Entry<String, LatencyHistogram[]>> data) {
+    response.setStatusCode(200);
+    response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_PLAIN);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
+
+    writer.stream(data.size(), i -> {
+      Map.Entry<String, LatencyHistogram[]> entry = data.get(i);
+      for (int w = 0; w < windows.length; ++w) {
+        LatencyHistogram histogram = entry.getValue()[w];
+        writer.append(entry.getKey()).append(" ").append(windows[w]);
+        writer.append(" count=").append(Long.toString(histogram.getCount()));
+        writer.append(" mean=").append(Double.toString(histogram.getMean() / 1000.0));
+        for (int p = 0; p < PERCENTILES.length; ++p) {
+          writer.append(" ").append(PERCENTILE_NAMES[p]).append("=").append(Double.toString(toMillis(histogram.getValueAtPercentile(PERCENTILES[p]))));
+        }
+        writer.append(" max=").append(Double.toString(toMillis(histogram.getMax())));
+        writer.append("\n");
+      }
+    }, null);
+  }
+
+}
@@ -227,7 +227,7 @@ public class ManagementRoute implements Handler<RoutingContext> {
    * This method primarily makes changes to the mgmtRouter, but routes are added the rootRouter for capturing purposes.
    * <p>
    * The enabledEndpoints parameter can be used to control which routes are enabled.
-   * If the list is empty all routes are enabled, otherwise only those routes whose sub path is in the list are enabled.
+   * If the list is empty all routes except drain are enabled, otherwise only those routes whose sub path is in the list are enabled.
    * The available values are:
    * <ul>
    * <li>parameters
@@ -240,6 +240,11 @@ public class ManagementRoute implements Handler<RoutingContext> {
    * Reports the past few requests to the system.
    * <li>inflight
    * Reports all requests made to the system that have not yet completed.
+   * <li>drain
+   * Drains the server before it is shut down, rejecting new requests until all those in flight have completed.
+   * Because this can stop the server accepting requests it is only enabled if it is explicitly in the list.
+   * <li>latency
+   * Reports percentiles of request durations for each route.
    * <li>threads
    * Dump stack traces from all threads.
    * <li>heapdump
@@ -256,18 +261,82 @@ public class ManagementRoute implements Handler<RoutingContext> {
    * If the parameters endpoint is enabled this must be a valid object that can be processed by the Vertx JSON object mapper.
    */
   public static void deployStandardMgmtEndpoints(Router mgmtRouter, Router rootRouter, List<String> enabledEndpoints, AtomicReference<Object> params) {
+    deployStandardMgmtEndpoints(mgmtRouter, rootRouter, enabledEndpoints, params, null);
+  }
+  
+  /**
+   * Deploy the standard management endpoints, using a specific {@link AccessLogCaptureRoute}.
+   * <p>
+   * This is the same as {@link #deployStandardMgmtEndpoints(io.vertx.ext.web.Router, io.vertx.ext.web.Router, java.util.List, java.util.concurrent.atomic.AtomicReference)}
+   * but allows the size and storage of the access log to be chosen, for example:
+   * <pre>
+   * ManagementRoute.deployStandardMgmtEndpoints(mgmtRouter, router, enabledEndpoints, params
+   *     , new AccessLogCaptureRoute(100000, AccessLogCaptureRoute.Storage.COLUMNAR));
+   * </pre>
+   * 
+   * @param mgmtRouter The router that will have additional output routes added.
+   * @param rootRouter The root router on the primary endpoint for the service, this will have capturing routes added to it.
+   * @param enabledEndpoints A {@link java.util.List} of Strings that are the endpoints that should be enabled.
+   * @param params {@link java.util.concurrent.atomic.AtomicReference} to the parameters object that will be reported by the 'parameters' endpoint.
+   * If the parameters endpoint is enabled this must be a valid object that can be processed by the Vertx JSON object mapper.
+   * @param accessLogCapture The route to use for capturing the access log, if null a shared buffer of 30 requests will be used.
+   */
+  public static void deployStandardMgmtEndpoints(Router mgmtRouter, Router rootRouter, List<String> enabledEndpoints, AtomicReference<Object> params, AccessLogCaptureRoute accessLogCapture) {
+    deployStandardMgmtEndpoints(mgmtRouter, rootRouter, enabledEndpoints, params, accessLogCapture, null);
+  }
+  
+  /**
+   * Deploy the standard management endpoints, using a specific {@link AccessLogCaptureRoute} and {@link InFlightRoute}.
+   * <p>
+   * This is the same as {@link #deployStandardMgmtEndpoints(io.vertx.ext.web.Router, io.vertx.ext.web.Router, java.util.List, java.util.concurrent.atomic.AtomicReference, uk.co.spudsoft.mgmt.AccessLogCaptureRoute)}
+   * but allows the InFlightRoute to be configured (and to be retained for later use), for example:
+   * <pre>
+   * InFlightRoute inFlight = new InFlightRoute()
+   *     .startWatchdog(10000, 1000)
+   *     .startSampling(100)
+   *     .setLimiter(new ConcurrencyLimiter(200));
+   * ManagementRoute.deployStandardMgmtEndpoints(mgmtRouter, router, enabledEndpoints, params, null, inFlight);
+   * </pre>
+   * The InFlightRoute passed in is deployed as it is, so it is up to the caller to start the watchdog and sampling if they are wanted.
+   * If it is null a new InFlightRoute is used with a watchdog that reports requests that have been in flight for more than
+   * {@link InFlightRoute#DEFAULT_STUCK_THRESHOLD_MS}, checking every {@link InFlightRoute#DEFAULT_STUCK_CHECK_MS},
+   * and sampling every {@link InFlightRoute#DEFAULT_SAMPLE_INTERVAL_MS} to build the concurrency history.
+   * The InFlightRoute is only deployed if either the inflight or the drain endpoint is enabled.
+   * 
+   * @param mgmtRouter The router that will have additional output routes added.
+   * @param rootRouter The root router on the primary endpoint for the service, this will have capturing routes added to it.
+   * @param enabledEndpoints A {@link java.util.List} of Strings that are the endpoints that should be enabled.
+   * @param params {@link java.util.concurrent.atomic.AtomicReference} to the parameters object that will be reported by the 'parameters' endpoint.
+   * If the parameters endpoint is enabled this must be a valid object that can be processed by the Vertx JSON object mapper.
+   * @param accessLogCapture The route to use for capturing the access log, if null a shared buffer of 30 requests will be used.
+   * @param inFlightRoute The route to use for recording the requests in flight, if null a new route with the default watchdog will be used.
+   */
+  public static void deployStandardMgmtEndpoints(Router mgmtRouter, Router rootRouter, List<String> enabledEndpoints, AtomicReference<Object> params
+          , AccessLogCaptureRoute accessLogCapture, InFlightRoute inFlightRoute) {
     
     AccessLogCaptureRoute capture = null;
     if (mgmtEndpointPermitted(enabledEndpoints, AccessLogOutputRoute.PATH)) {
-      capture = new AccessLogCaptureRoute(30);
+      capture = accessLogCapture == null ? new AccessLogCaptureRoute(30) : accessLogCapture;
       rootRouter.route("/*").handler(capture); 
     }
+    // The latency route adds a catch-all route to the mgmtRouter, which must come before the other management routes to see them
+    if (mgmtEndpointPermitted(enabledEndpoints, LatencyRoute.PATH)) {
+      LatencyRoute.createAndDeploy(rootRouter, mgmtRouter);
+    }
     
     if (mgmtEndpointPermitted(enabledEndpoints, HeapDumpRoute.PATH)) {
       HeapDumpRoute.createAndDeploy(mgmtRouter);
     }
-    if (mgmtEndpointPermitted(enabledEndpoints, InFlightRoute.PATH)) {
-      InFlightRoute.createAndDeploy(rootRouter, mgmtRouter);
+    boolean inFlight = mgmtEndpointPermitted(enabledEndpoints, InFlightRoute.PATH);
+    boolean drain = enabledEndpoints.contains(InFlightRoute.DRAIN_PATH);
+    if (inFlight || drain) {
+      InFlightRoute route = inFlightRoute;
+      if (route == null) {
+        route = new InFlightRoute()
+                .startWatchdog(InFlightRoute.DEFAULT_STUCK_THRESHOLD_MS, InFlightRoute.DEFAULT_STUCK_CHECK_MS)
+                .startSampling(InFlightRoute.DEFAULT_SAMPLE_INTERVAL_MS);
+      }
+      route.standardDeploy(rootRouter, mgmtRouter, inFlight, drain);
     }
     if (mgmtEndpointPermitted(enabledEndpoints, LogbackMgmtRoute.PATH)) {
       LogbackMgmtRoute.createAndDeploy(mgmtRouter);
@@ -276,7 +345,7 @@ public class ManagementRoute implements Handler<RoutingContext> {
       ThreadDumpRoute.createAndDeploy(mgmtRouter);
     }
     if (capture != null) {
-      AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture.getBuffer());
+      AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture);
     }
     if (mgmtEndpointPermitted(enabledEndpoints, DumpEnvRoute.PATH)) {
       DumpEnvRoute.createAndDeploy(mgmtRouter);
@@ -351,16 +420,19 @@ public class ManagementRoute implements Handler<RoutingContext> {
   private void returnHtml(HttpServerRequest request, HttpServerResponse response) {
 
     response.putHeader("Content-Type", ContentTypes.TYPE_HTML);
-    response.setChunked(true);
-    response.write(HEAD);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
+    writer.append(HEAD);
 
     for (Route route : mgmtRouter.getRoutes()) {
       if (route.isExactPath() && route.methods() != null && route.methods().contains(HttpMethod.GET)) {
-        response.write("<tr><td>" + route.getName() + "</td><td><a href=\"" + request.absoluteURI() + route.getPath() + "\">" + request.absoluteURI() + route.getPath() + "</td></tr>");
+        writer.append("<tr><td>").append(route.getName())
+                .append("</td><td><a href=\"").append(request.absoluteURI()).append(route.getPath()).append("\">")
+                .append(request.absoluteURI()).append(route.getPath()).append("</td></tr>");
       }
     }
 
-    response.end(TAIL);    
+    writer.append(TAIL);
+    writer.end();
     
   }
   
@@ -16,80 +16,220 @@
  */
 package uk.co.spudsoft.mgmt;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
 import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
 
 /**
  *  A FIFO queue of bounded size that automatically removes the oldest item when adding a new one would exceed the capacity.
- * 
+ * <p>
+ * The buffer is lock-free and may be written to by multiple threads at once.
+ * Every item added is given a sequence number and is stored in the slot at (sequence % capacity), along with that sequence number.
+ * Writers never wait for each other, or for readers; if a writer finds that its slot has already been taken by a later sequence
+ * (which can only happen if the buffer wraps while the writer is stalled) its item is simply dropped, because it would have been
+ * evicted immediately anyway.
+ * <p>
+ * Readers take a snapshot of the sequence counter and then collect those slots that still hold the expected sequence number,
+ * giving a consistent view of the buffer, in insertion order, without stopping writers.
+ * <p>
+ * An optional eviction listener is called, on the thread of the writer that caused it, with every item that leaves the buffer
+ * (including items that are dropped because their slot has already been taken).
+ * <p>
+ * The buffer may also be bounded by weight, using a function that gives the weight (typically the estimated size in bytes) of each item.
+ * The total weight of the items in the buffer is tracked and, after each item is added, the oldest items are evicted until the
+ * total is within the maximum.
+ * Weight based eviction advances a head sequence number, below which items are no longer part of the buffer; each item is
+ * removed from its slot by exactly one thread (whichever succeeds in replacing it), which is responsible for deducting its weight.
+ * The most recently added item is never evicted for being too heavy, so a single item heavier than the maximum is kept until
+ * the next item is added.
  *
  * @param <T> The type of object stored in the RingBuffer.
  * @author jtalbut
  */
-public class RingBuffer<T> {
-  
+public class RingBuffer<T> implements SnapshotBuffer<T> {
+
+  private static final class Slot<T> {
+    private final long sequence;
+    private final T item;
+    private final long weight;
+
+    Slot(long sequence, T item, long weight) {
+      this.sequence = sequence;
+      this.item = item;
+      this.weight = weight;
+    }
+  }
+
   private final int capacity;
-  private final Object[] array;
-  private int insert = 0;
-  private int size = 0;
+  private final AtomicReferenceArray<Slot<T>> slots;
+  private final AtomicLong nextSequence = new AtomicLong();
+  private final Consumer<T> evictionListener;
+  private final ToLongFunction<T> weigher;
+  private final long maxWeight;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong weight = new AtomicLong();
 
   /**
    * Constructor.
-   * 
+   *
    * @param capacity The size of the rung buffer.
    */
   public RingBuffer(int capacity) {
+    this(capacity, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The size of the rung buffer.
+   * @param evictionListener Listener to be called with each item that is removed from the buffer, may be null.
+   */
+  public RingBuffer(int capacity, Consumer<T> evictionListener) {
+    this(capacity, null, Long.MAX_VALUE, evictionListener);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The maximum number of items in the ring buffer.
+   * @param weigher Function to calculate the weight of an item, such as its estimated size in bytes, may be null to bound the
+   * buffer only by the number of items.
+   * @param maxWeight The maximum total weight of the items in the buffer.
+   * @param evictionListener Listener to be called with each item that is removed from the buffer, may be null.
+   */
+  public RingBuffer(int capacity, ToLongFunction<T> weigher, long maxWeight, Consumer<T> evictionListener) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity of a RingBuffer must be positive");
+    }
+    if (maxWeight <= 0) {
+      throw new IllegalArgumentException("The maximum weight of a RingBuffer must be positive");
+    }
     this.capacity = capacity;
-    this.array = new Object[capacity + 1];
+    this.slots = new AtomicReferenceArray<>(capacity);
+    this.evictionListener = evictionListener;
+    this.weigher = weigher;
+    this.maxWeight = maxWeight;
   }
-  
+
   /**
    * Add an item to the ring buffer.
    * @param item The item to add to the ring buffer.
    */
+  @Override
   public void add(T item) {
-    synchronized (array) {
-      array[insert] = item;
-      ++insert;
-      if (insert == capacity + 1) {
-        insert = 0;
+    long itemWeight = weigher == null ? 0 : weigher.applyAsLong(item);
+    long sequence = nextSequence.getAndIncrement();
+    int index = (int) (sequence % capacity);
+    Slot<T> replacement = new Slot<>(sequence, item, itemWeight);
+    while (true) {
+      Slot<T> current = slots.get(index);
+      if (current != null && current.sequence > sequence) {
+        evicted(item);
+        return;
       }
-      array[insert] = null;
-      if (size < capacity) {
-        ++size;
+      if (slots.compareAndSet(index, current, replacement)) {
+        if (current != null) {
+          weight.addAndGet(-current.weight);
+          evicted(current.item);
+        }
+        break;
       }
     }
+    if (weigher != null) {
+      weight.addAndGet(itemWeight);
+      if (sequence < head.get()) {
+        // The head moved past this item while it was being written, so nothing else will remove it
+        remove(index, replacement);
+      }
+      evictToWeight(sequence);
+    }
+  }
+
+  /**
+   * Evict the oldest items, up to but excluding newest, until the total weight is within the maximum.
+   * @param newest The sequence number of the item just added.
+   */
+  private void evictToWeight(long newest) {
+    while (weight.get() > maxWeight) {
+      long oldest = head.get();
+      if (oldest >= newest) {
+        return;
+      }
+      // Items that have been overwritten do not need to be evicted individually
+      long next = Math.max(oldest, newest + 1 - capacity);
+      if (next > oldest) {
+        head.compareAndSet(oldest, next);
+      } else if (head.compareAndSet(oldest, oldest + 1)) {
+        int index = (int) (oldest % capacity);
+        Slot<T> slot = slots.get(index);
+        // If the slot does not yet hold this item the writer of the item will remove it when it sees the head has passed it
+        if (slot != null && slot.sequence == oldest) {
+          remove(index, slot);
+        }
+      }
+    }
+  }
+
+  private void remove(int index, Slot<T> slot) {
+    if (slots.compareAndSet(index, slot, null)) {
+      weight.addAndGet(-slot.weight);
+      evicted(slot.item);
+    }
+  }
+
+  private void evicted(T item) {
+    if (evictionListener != null) {
+      evictionListener.accept(item);
+    }
   }
 
   /**
    * Get the size of the ring buffer.
    * @return the size of the ring buffer.
    */
+  @Override
   public int size() {
-    return size;
+    long end = nextSequence.get();
+    return (int) (end - Math.max(head.get(), end - capacity));
   }
-  
+
+  /**
+   * Get the total weight of the items in the buffer.
+   * <p>
+   * This is always zero if the buffer was constructed without a weigher.
+   * @return the total weight of the items in the buffer.
+   */
+  public long getWeight() {
+    return weight.get();
+  }
+
   /**
    * Copy the contents of the RingBuffer into a newly allocated array.
+   * <p>
+   * The array will contain every item whose write had completed at the time the snapshot was taken and that had not been
+   * overwritten by the time it was read, oldest first.
+   *
    * @param generator Generator for the allocation of the array.
    * @return the contents of the RingBuffer in a newly allocated array.
    */
-  @SuppressWarnings("unchecked")
-  public T[] toArray(IntFunction<T[]> generator) {   
-    T[] result = generator.apply(size);
-    synchronized (array) {
-      int start = insert + 1;
-      if (start == size + 1) {
-        start = 0;
+  @Override
+  public T[] toArray(IntFunction<T[]> generator) {
+    long end = nextSequence.get();
+    long start = Math.max(head.get(), end - capacity);
+    T[] result = generator.apply((int) (end - start));
+    int count = 0;
+    for (long sequence = start; sequence < end; ++sequence) {
+      Slot<T> slot = slots.get((int) (sequence % capacity));
+      if (slot != null && slot.sequence == sequence) {
+        result[count++] = slot.item;
       }
-
-      for (int i = start, j = 0; array[i] != null; ++i, ++j) {
-        result[j] = (T) array[i];
-        if (i == capacity) {
-          i = -1;
-        }
-      }
-        
-      return result;
     }
+    if (count < result.length) {
+      result = Arrays.copyOf(result, count);
+    }
+    return result;
   }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * A buffer that keeps the K items with the greatest duration seen in a sliding time window.
+ * <p>
+ * This is not a {@link SnapshotBuffer}: it is ordered by duration rather than by age, and adding an item may take a
+ * (per bucket) lock, so it cannot be used where a SnapshotBuffer is expected.
+ * <p>
+ * The window is divided into {@link #BUCKETS} buckets, each of which holds a bounded min-heap of the K slowest items added
+ * during its time slice.
+ * When read the buckets within the window are merged and the K slowest items returned, slowest first.
+ * Because whole buckets expire at once items are retained for between 90% and 100% of the window.
+ * <p>
+ * Once a bucket is full the duration of its fastest item is published, so that {@link #wouldAccept(long)} can reject the
+ * vast majority of items without taking a lock (or the item having to be created at all).
+ *
+ * @param <T> The type of object stored in the buffer.
+ * @author jtalbut
+ */
+public class SlowestBuffer<T> {
+
+  /**
+   * The number of buckets that the window is divided into.
+   */
+  public static final int BUCKETS = 10;
+
+  private final int capacity;
+  private final long bucketMs;
+  private final ToLongFunction<T> durationKey;
+  private final LongSupplier clock;
+  private final Comparator<T> fastestFirst;
+  private final List<Bucket<T>> buckets;
+
+  static final class Bucket<T> {
+    private final PriorityQueue<T> heap;
+    private volatile long epoch = Long.MIN_VALUE;
+    private volatile long threshold = Long.MIN_VALUE;
+
+    Bucket(int capacity, Comparator<T> fastestFirst) {
+      this.heap = new PriorityQueue<>(capacity, fastestFirst);
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The number of items to keep, K.
+   * @param windowMs The length of the window, in milliseconds.
+   * @param durationKey Function to extract the duration of an item.
+   */
+  public SlowestBuffer(int capacity, long windowMs, ToLongFunction<T> durationKey) {
+    this(capacity, windowMs, durationKey, System::currentTimeMillis);
+  }
+
+  SlowestBuffer(int capacity, long windowMs, ToLongFunction<T> durationKey, LongSupplier clock) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity of a SlowestBuffer must be positive");
+    }
+    if (windowMs < BUCKETS) {
+      throw new IllegalArgumentException("The window of a SlowestBuffer must be at least " + BUCKETS + "ms");
+    }
+    this.capacity = capacity;
+    this.bucketMs = windowMs / BUCKETS;
+    this.durationKey = durationKey;
+    this.clock = clock;
+    this.fastestFirst = Comparator.comparingLong(durationKey);
+    this.buckets = new ArrayList<>(BUCKETS);
+    for (int i = 0; i < BUCKETS; ++i) {
+      buckets.add(new Bucket<>(capacity, fastestFirst));
+    }
+  }
+
+  private Bucket<T> bucketFor(long epoch) {
+    return buckets.get((int) Math.floorMod(epoch, (long) BUCKETS));
+  }
+
+  /**
+   * Check whether an item with the given duration would be added to the buffer if it were added now.
+   * <p>
+   * This check does not take any locks, it may occasionally return true for an item that will not be kept, but it will
+   * not return false for an item that would be kept.
+   *
+   * @param duration The duration of the item.
+   * @return true if an item with the given duration would be added to the buffer.
+   */
+  public boolean wouldAccept(long duration) {
+    long epoch = clock.getAsLong() / bucketMs;
+    Bucket<T> bucket = bucketFor(epoch);
+    return bucket.epoch != epoch || duration > bucket.threshold;
+  }
+
+  /**
+   * Add an item to the buffer, if it is one of the K slowest items in its bucket.
+   * <p>
+   * This takes the lock for the current bucket, callers should use {@link #wouldAccept(long)} first to avoid this for
+   * the vast majority of items.
+   * @param item The item to add to the buffer.
+   */
+  public void add(T item) {
+    long duration = durationKey.applyAsLong(item);
+    long epoch = clock.getAsLong() / bucketMs;
+    Bucket<T> bucket = bucketFor(epoch);
+    synchronized (bucket) {
+      if (bucket.epoch != epoch) {
+        bucket.heap.clear();
+        bucket.threshold = Long.MIN_VALUE;
+        bucket.epoch = epoch;
+      }
+      if (bucket.heap.size() < capacity) {
+        bucket.heap.add(item);
+      } else if (duration > durationKey.applyAsLong(bucket.heap.peek())) {
+        bucket.heap.poll();
+        bucket.heap.add(item);
+      } else {
+        return;
+      }
+      if (bucket.heap.size() == capacity) {
+        bucket.threshold = durationKey.applyAsLong(bucket.heap.peek());
+      }
+    }
+  }
+
+  private List<T> collect() {
+    long now = clock.getAsLong() / bucketMs;
+    List<T> all = new ArrayList<>();
+    for (Bucket<T> bucket : buckets) {
+      synchronized (bucket) {
+        if (bucket.epoch > now - BUCKETS && bucket.epoch <= now) {
+          all.addAll(bucket.heap);
+        }
+      }
+    }
+    all.sort(fastestFirst.reversed());
+    return all.size() > capacity ? all.subList(0, capacity) : all;
+  }
+
+  /**
+   * Get the number of items in the window, up to K.
+   * @return the number of items in the window, up to K.
+   */
+  public int size() {
+    return collect().size();
+  }
+
+  /**
+   * Copy the K slowest items in the window into a newly allocated array, slowest first.
+   * @param generator Generator for the allocation of the array.
+   * @return the K slowest items in the window, slowest first.
+   */
+  public T[] toArray(IntFunction<T[]> generator) {
+    List<T> items = collect();
+    return items.toArray(generator.apply(items.size()));
+  }
+
+}
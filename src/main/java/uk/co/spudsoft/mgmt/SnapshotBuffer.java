@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.function.IntFunction;
+
+/**
+ * A bounded buffer of the most recent items added to it, that can be read as a consistent snapshot.
+ * <p>
+ * Implementations must allow items to be added from any thread without blocking, and must allow snapshots to be taken
+ * without stopping writers.
+ *
+ * @param <T> The type of object stored in the buffer.
+ * @author jtalbut
+ */
+public interface SnapshotBuffer<T> {
+
+  /**
+   * Add an item to the buffer, evicting the oldest item if the buffer is full.
+   * @param item The item to add to the buffer.
+   */
+  void add(T item);
+
+  /**
+   * Get the number of items in the buffer.
+   * @return the number of items in the buffer.
+   */
+  int size();
+
+  /**
+   * Copy the contents of the buffer into a newly allocated array, oldest first.
+   * @param generator Generator for the allocation of the array.
+   * @return the contents of the buffer in a newly allocated array.
+   */
+  T[] toArray(IntFunction<T[]> generator);
+
+}
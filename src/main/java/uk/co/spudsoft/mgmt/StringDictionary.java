@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary encoding of strings as dense integer ids.
+ * <p>
+ * The dictionary is append-only: once a value has been given an id that id will always refer to that value, so an array returned
+ * by {@link #values()} remains valid for every id less than the size at the time it was obtained, even after further values
+ * have been added.
+ * <p>
+ * The dictionary is thread safe: finding the id of a value that is already present is lock-free, adding a value takes a lock.
+ * A thread that obtains an id from {@link #idOf(java.lang.String)} or {@link #find(java.lang.String)} will see the value for it
+ * in {@link #get(int)} and {@link #values()}, other threads must have some other happens-before relationship with that thread.
+ *
+ * @author jtalbut
+ */
+final class StringDictionary {
+
+  /**
+   * The id used to represent null.
+   */
+  static final int NULL_ID = -1;
+
+  /**
+   * The id returned by {@link #find(java.lang.String)} for a value that is not in the dictionary.
+   */
+  static final int ABSENT_ID = -2;
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private volatile String[] values = new String[16];
+  private volatile int size;
+
+  /**
+   * Get the id for a value, adding it to the dictionary if it is not already present.
+   * @param value The value to look up.
+   * @return the id for the value, or {@link #NULL_ID} if the value is null.
+   */
+  int idOf(String value) {
+    if (value == null) {
+      return NULL_ID;
+    }
+    Integer id = ids.get(value);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(value);
+      if (id != null) {
+        return id;
+      }
+      int next = size;
+      String[] current = values;
+      if (next == current.length) {
+        current = Arrays.copyOf(current, next * 2);
+      }
+      current[next] = value;
+      values = current;
+      size = next + 1;
+      ids.put(value, next);
+      return next;
+    }
+  }
+
+  /**
+   * Get the id for a value without adding it to the dictionary.
+   * @param value The value to look up.
+   * @return the id for the value, {@link #NULL_ID} if the value is null, or {@link #ABSENT_ID} if the value is not present.
+   */
+  int find(String value) {
+    if (value == null) {
+      return NULL_ID;
+    }
+    Integer id = ids.get(value);
+    return id == null ? ABSENT_ID : id;
+  }
+
+  /**
+   * Get the value for an id.
+   * @param id The id, as returned by {@link #idOf(java.lang.String)}.
+   * @return the value for the id, or null if the id is {@link #NULL_ID}.
+   */
+  String get(int id) {
+    return id == NULL_ID ? null : values[id];
+  }
+
+  /**
+   * Get the number of values in the dictionary.
+   * @return the number of values in the dictionary.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Get the array of values, indexed by id.
+   * <p>
+   * The array is not copied and may be longer than {@link #size()}, but the entries below the current size will never change.
+   * @return the array of values, indexed by id.
+   */
+  String[] values() {
+    return values;
+  }
+
+  /**
+   * Look up an id in an array previously returned by {@link #values()}.
+   * @param values The array of values.
+   * @param id The id.
+   * @return the value for the id, or null if the id is {@link #NULL_ID}.
+   */
+  static String get(String[] values, int id) {
+    return id == NULL_ID ? null : values[id];
+  }
+
+}
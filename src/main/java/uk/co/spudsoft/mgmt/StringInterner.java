@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+/**
+ * Bounded, lock-free cache of strings, so that equal values captured from many requests can share a single instance.
+ * <p>
+ * The cache is a fixed size, direct mapped, table: each value can only be held in the slot chosen by its hash code, and replaces
+ * whatever was there before.
+ * Frequently repeated values (header names, user agents, hosts, content types, common paths) therefore stay in the table,
+ * whilst high cardinality values just churn through their slots without the table ever growing.
+ * <p>
+ * The table is read and written without any synchronization; this is safe because Strings are immutable, the worst outcome of a
+ * race is that a value is not shared.
+ * Values longer than {@link #MAX_LENGTH} are never interned, so that a few large values cannot pin memory.
+ *
+ * @author jtalbut
+ */
+final class StringInterner {
+
+  /**
+   * The length of the longest string that will be interned.
+   */
+  static final int MAX_LENGTH = 512;
+
+  /**
+   * The largest number of slots in the table.
+   */
+  static final int MAX_CAPACITY = 1 << 20;
+
+  private final String[] table;
+  private final int mask;
+
+  /**
+   * Constructor.
+   * @param capacity The number of slots in the table, rounded up to a power of two and limited to {@link #MAX_CAPACITY}.
+   */
+  StringInterner(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity of a StringInterner must be positive");
+    }
+    int limited = Math.min(capacity, MAX_CAPACITY);
+    int size = Integer.highestOneBit(limited);
+    if (size < limited) {
+      size <<= 1;
+    }
+    this.table = new String[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Get the number of slots in the table.
+   * @return the number of slots in the table.
+   */
+  int capacity() {
+    return table.length;
+  }
+
+  /**
+   * Get the shared instance of a value.
+   * @param value The value.
+   * @return A string equal to value, which will be the same instance as returned for previous equal values if it is still in the table.
+   */
+  String intern(String value) {
+    if (value == null || value.length() > MAX_LENGTH) {
+      return value;
+    }
+    int hash = value.hashCode();
+    int index = (hash ^ (hash >>> 16)) & mask;
+    String existing = table[index];
+    if (value.equals(existing)) {
+      return existing;
+    }
+    table[index] = value;
+    return value;
+  }
+
+}
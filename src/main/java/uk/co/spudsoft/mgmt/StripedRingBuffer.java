@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.Context;
+import io.vertx.core.VertxOptions;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * A SnapshotBuffer that keeps a separate ring for each Vert.x event loop thread and merges them when read.
+ * <p>
+ * Each stripe belongs to a single event loop thread (found via a ThreadLocal), so each stripe has a single writer and adding
+ * an item needs no atomic operations and touches no cache lines shared with other event loops.
+ * Stripes are keyed by thread rather than by context because many contexts (one per verticle deployment) share each
+ * event loop thread, and the number of event loop threads is fixed.
+ * Items added from outside an event loop thread are stored in a shared, lock-free, {@link RingBuffer}.
+ * <p>
+ * The number of stripes is limited (by default to {@link VertxOptions#DEFAULT_EVENT_LOOP_POOL_SIZE}).
+ * When a new stripe is needed and the limit has been reached the stripes of event loop threads that have terminated
+ * (for example, because their Vertx instance was closed) are discarded; if that does not free a place, the items
+ * from that thread are stored in the shared ring instead.
+ * <p>
+ * When read the stripes are merged, by the key provided at construction, to give the most recent capacity items overall.
+ * The key should increase over time for items added on a single thread (a timestamp is ideal).
+ * <p>
+ * Each stripe, and the shared ring, can hold capacity items, so the buffer can hold up to capacity &times; (maxStripes + 1)
+ * items, though only the most recent capacity of them are ever returned.
+ * The memory used should be sized accordingly.
+ *
+ * @param <T> The type of object stored in the buffer.
+ * @author jtalbut
+ */
+public class StripedRingBuffer<T> implements SnapshotBuffer<T> {
+
+  private final int capacity;
+  private final ToLongFunction<T> orderKey;
+  private final int maxStripes;
+  private final List<Stripe<T>> stripes = new CopyOnWriteArrayList<>();
+  private final RingBuffer<T> shared;
+  private final Stripe<T> overflow = new Stripe<>(1, null);
+  private final ThreadLocal<Stripe<T>> local = new ThreadLocal<>();
+
+  /**
+   * A ring buffer that has a single writer, but any number of readers.
+   * @param <T> The type of object stored in the buffer.
+   */
+  static final class Stripe<T> {
+
+    private static final VarHandle PUBLISHED;
+
+    static {
+      try {
+        PUBLISHED = MethodHandles.lookup().findVarHandle(Stripe.class, "published", long.class);
+      } catch (ReflectiveOperationException ex) {
+        throw new ExceptionInInitializerError(ex);
+      }
+    }
+
+    private final Object[] items;
+    private final Thread owner;
+    private long published;
+
+    Stripe(int capacity, Thread owner) {
+      this.items = new Object[capacity];
+      this.owner = owner;
+    }
+
+    Thread getOwner() {
+      return owner;
+    }
+
+    void add(Object item) {
+      long sequence = published;
+      items[(int) (sequence % items.length)] = item;
+      PUBLISHED.setRelease(this, sequence + 1);
+    }
+
+    int size() {
+      return (int) Math.min((long) PUBLISHED.getAcquire(this), items.length);
+    }
+
+    /**
+     * Copy the items in the stripe, oldest first, into a new list.
+     * Items that may have been overwritten while the copy was being made are excluded.
+     * @return the items in the stripe, oldest first.
+     */
+    @SuppressWarnings("unchecked")
+    List<T> snapshot() {
+      long end = (long) PUBLISHED.getAcquire(this);
+      long start = Math.max(0, end - items.length);
+      Object[] copy = new Object[(int) (end - start)];
+      for (long sequence = start; sequence < end; ++sequence) {
+        copy[(int) (sequence - start)] = items[(int) (sequence % items.length)];
+      }
+      // Prevent the reads of the items from being reordered after the second read of published
+      VarHandle.acquireFence();
+      long after = (long) PUBLISHED.getAcquire(this);
+      long firstValid = Math.max(start, after - items.length);
+      List<T> result = new ArrayList<>((int) (end - firstValid));
+      for (long sequence = firstValid; sequence < end; ++sequence) {
+        result.add((T) copy[(int) (sequence - start)]);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The maximum number of items to return from {@link #toArray(java.util.function.IntFunction)}, and the capacity of each stripe.
+   * @param orderKey Function to extract the key used to merge the stripes.
+   */
+  public StripedRingBuffer(int capacity, ToLongFunction<T> orderKey) {
+    this(capacity, orderKey, VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The maximum number of items to return from {@link #toArray(java.util.function.IntFunction)}, and the capacity of each stripe.
+   * @param orderKey Function to extract the key used to merge the stripes.
+   * @param maxStripes The maximum number of stripes, this should usually be the number of event loop threads.
+   */
+  public StripedRingBuffer(int capacity, ToLongFunction<T> orderKey, int maxStripes) {
+    if (maxStripes < 0) {
+      throw new IllegalArgumentException("The maximum number of stripes may not be negative");
+    }
+    this.shared = new RingBuffer<>(capacity);
+    this.capacity = capacity;
+    this.orderKey = orderKey;
+    this.maxStripes = maxStripes;
+  }
+
+  @Override
+  public void add(T item) {
+    if (!Context.isOnEventLoopThread()) {
+      shared.add(item);
+      return;
+    }
+    Stripe<T> stripe = local.get();
+    if (stripe == null) {
+      stripe = createStripe();
+      local.set(stripe);
+    }
+    if (stripe == overflow) {
+      shared.add(item);
+    } else {
+      stripe.add(item);
+    }
+  }
+
+  private Stripe<T> createStripe() {
+    synchronized (stripes) {
+      if (stripes.size() >= maxStripes) {
+        stripes.removeIf(stripe -> !stripe.getOwner().isAlive());
+      }
+      if (stripes.size() >= maxStripes) {
+        return overflow;
+      }
+      Stripe<T> stripe = new Stripe<>(capacity, Thread.currentThread());
+      stripes.add(stripe);
+      return stripe;
+    }
+  }
+
+  /**
+   * Get the number of stripes that have been created.
+   * @return the number of stripes that have been created.
+   */
+  public int getStripeCount() {
+    return stripes.size();
+  }
+
+  @Override
+  public int size() {
+    long total = shared.size();
+    for (Stripe<T> stripe : stripes) {
+      total += stripe.size();
+    }
+    return (int) Math.min(total, capacity);
+  }
+
+  @Override
+  public T[] toArray(IntFunction<T[]> generator) {
+    List<List<T>> runs = new ArrayList<>(stripes.size() + 1);
+    int total = 0;
+    for (Stripe<T> stripe : stripes) {
+      List<T> run = stripe.snapshot();
+      total += run.size();
+      runs.add(run);
+    }
+    T[] sharedItems = shared.toArray(generator);
+    total += sharedItems.length;
+    runs.add(Arrays.asList(sharedItems));
+
+    // Merge from the newest end of each run, so that only the most recent capacity items are visited.
+    int[] cursors = new int[runs.size()];
+    for (int i = 0; i < cursors.length; ++i) {
+      cursors[i] = runs.get(i).size() - 1;
+    }
+    T[] result = generator.apply(Math.min(total, capacity));
+    for (int out = result.length - 1; out >= 0; --out) {
+      int best = -1;
+      long bestKey = Long.MIN_VALUE;
+      for (int i = 0; i < cursors.length; ++i) {
+        if (cursors[i] >= 0) {
+          long key = orderKey.applyAsLong(runs.get(i).get(cursors[i]));
+          if (best < 0 || key > bestKey) {
+            best = i;
+            bestKey = key;
+          }
+        }
+      }
+      result[out] = runs.get(best).get(cursors[best]--);
+    }
+    return result;
+  }
+
+}
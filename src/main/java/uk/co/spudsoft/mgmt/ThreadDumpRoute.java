@@ -25,17 +25,37 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
+import java.lang.management.LockInfo;
 import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * A Vertx HTTP Server route for allowing users to download a thread dump of the process.
  *
  * It is strongly recommended that this endpoint be mounted on via a subrouter, the path to which is only accessible from authorised personnel.
  * The integration tests demonstrate the use of a suitable subrouter to locate the endpoint at /manage/threaddump.
+ * <p>
+ * Collecting the monitors and ownable synchronizers locked by each thread is the most expensive part of a thread dump, and
+ * lengthens the safepoint pause, so by default they are not collected.
+ * The dump can be controlled using query parameters:
+ * <ul>
+ * <li>lockedMonitors - collect and output the monitors locked by each thread.
+ * <li>lockedSynchronizers - collect and output the ownable synchronizers locked by each thread.
+ * <li>maxDepth - the maximum number of frames to output for each thread.
+ * <li>name - a regular expression that the name of each thread output must match (anywhere within the name).
+ * <li>state - the {@link Thread.State} that each thread output must be in.
+ * </ul>
+ * When threads are filtered by name or state the filter is applied using thread info without stacks, and stacks are only
+ * fetched for the matching threads.
  * 
  * @author jtalbut
  */
@@ -81,7 +101,109 @@ public class ThreadDumpRoute implements Handler<RoutingContext> {
     route.standardDeploy(router);
   }
   
-  private boolean opt(HttpServerRequest request, String paramName) {
+  /**
+   * The options controlling what is included in a thread dump.
+   */
+  static final class DumpOptions {
+    private final boolean lockedMonitors;
+    private final boolean lockedSynchronizers;
+    private final int maxDepth;
+    private final Pattern name;
+    private final Thread.State state;
+
+    /**
+     * Constructor.
+     * @param lockedMonitors If true the monitors locked by each thread will be collected.
+     * @param lockedSynchronizers If true the ownable synchronizers locked by each thread will be collected.
+     * @param maxDepth The maximum number of frames to collect for each thread, or -1 for all frames.
+     * @param name Pattern that the name of each thread must contain, or null for all threads.
+     * @param state The state that each thread must be in, or null for all threads.
+     */
+    DumpOptions(boolean lockedMonitors, boolean lockedSynchronizers, int maxDepth, Pattern name, Thread.State state) {
+      this.lockedMonitors = lockedMonitors;
+      this.lockedSynchronizers = lockedSynchronizers;
+      this.maxDepth = maxDepth < 0 ? Integer.MAX_VALUE : maxDepth;
+      this.name = name;
+      this.state = state;
+    }
+    
+    /**
+     * The default options, which include every frame of every thread without locked monitors or synchronizers.
+     */
+    static final DumpOptions DEFAULT = new DumpOptions(false, false, -1, null, null);
+  }
+  
+  /**
+   * Collect the thread info for the threads selected by options.
+   * @param options The options controlling the threads and details collected.
+   * @return the thread info for the threads selected by options.
+   */
+  static ThreadInfo[] dumpThreads(DumpOptions options) {
+    ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+    boolean lockedMonitors = options.lockedMonitors && threadMxBean.isObjectMonitorUsageSupported();
+    boolean lockedSynchronizers = options.lockedSynchronizers && threadMxBean.isSynchronizerUsageSupported();
+    if (options.name == null && options.state == null) {
+      return threadMxBean.dumpAllThreads(lockedMonitors, lockedSynchronizers, options.maxDepth);
+    }
+    // Filter using info without stacks, then only fetch stacks for the threads that match
+    List<Long> selected = new ArrayList<>();
+    for (ThreadInfo t : threadMxBean.getThreadInfo(threadMxBean.getAllThreadIds(), 0)) {
+      if (t != null
+              && (options.name == null || options.name.matcher(t.getThreadName()).find())
+              && (options.state == null || options.state == t.getThreadState())) {
+        selected.add(t.getThreadId());
+      }
+    }
+    long[] ids = selected.stream().mapToLong(Long::longValue).toArray();
+    ThreadInfo[] infos = threadMxBean.getThreadInfo(ids, lockedMonitors, lockedSynchronizers, options.maxDepth);
+    // Threads that have terminated since they were selected are returned as null
+    List<ThreadInfo> result = new ArrayList<>(infos.length);
+    for (ThreadInfo t : infos) {
+      if (t != null) {
+        result.add(t);
+      }
+    }
+    return result.toArray(ThreadInfo[]::new);
+  }
+  
+  /**
+   * Parse the options for a thread dump from the query parameters of a request.
+   * @param request The request.
+   * @return the options for the thread dump.
+   * @throws IllegalArgumentException if any of the parameters are not valid.
+   */
+  static DumpOptions parseOptions(HttpServerRequest request) {
+    int maxDepth = -1;
+    String param = request.getParam("maxDepth");
+    if (param != null) {
+      try {
+        maxDepth = Integer.parseInt(param);
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Invalid value for maxDepth");
+      }
+    }
+    Pattern name = null;
+    param = request.getParam("name");
+    if (param != null && !param.isEmpty()) {
+      try {
+        name = Pattern.compile(param);
+      } catch (PatternSyntaxException ex) {
+        throw new IllegalArgumentException("Invalid value for name");
+      }
+    }
+    Thread.State state = null;
+    param = request.getParam("state");
+    if (param != null && !param.isEmpty()) {
+      try {
+        state = Thread.State.valueOf(param.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException ex) {
+        throw new IllegalArgumentException("Invalid value for state");
+      }
+    }
+    return new DumpOptions(opt(request, "lockedMonitors"), opt(request, "lockedSynchronizers"), maxDepth, name, state);
+  }
+  
+  private static boolean opt(HttpServerRequest request, String paramName) {
     String param = request.getParam(paramName);
     if (param == null) {
       return false;
@@ -100,32 +222,38 @@ public class ThreadDumpRoute implements Handler<RoutingContext> {
     if (request.method() == HttpMethod.GET) {
       
       ContentTypes.adjustFromParams(rc);
+      
+      DumpOptions options;
+      try {
+        options = parseOptions(request);
+      } catch (IllegalArgumentException ex) {
+        rc.response().setStatusCode(400).end(ex.getMessage());
+        return;
+      }
+      ThreadInfo[] threadInfo = dumpThreads(options);
 
       if (ContentTypes.TYPE_JSON.equals(rc.getAcceptableContentType())) {
         HttpServerResponse response = rc.response();
         response.setStatusCode(200);
         response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_JSON);
-        response.end(buildStackTraceJson().toBuffer());
+        response.end(buildStackTraceJson(threadInfo).toBuffer());
       } else if (ContentTypes.TYPE_HTML.equals(rc.getAcceptableContentType())) {
         HttpServerResponse response = rc.response();
         response.setStatusCode(200);
         response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_HTML);
-        response.end(buildStackTraceHtml());
+        response.end(buildStackTraceHtml(threadInfo));
       } else {
         HttpServerResponse response = rc.response();
         response.setStatusCode(200);
         response.putHeader(HttpHeaderNames.CONTENT_TYPE, ContentTypes.TYPE_PLAIN);
-        response.end(buildStackTraceText(opt(request, "simple")));
+        response.end(buildStackTraceText(threadInfo, opt(request, "simple")));
       }
     } else {
       rc.next();
     }
   }
 
-  static String buildStackTraceHtml() {
-    ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
-    ThreadInfo[] threadInfo = threadMxBean.dumpAllThreads(true, true);
-
+  static String buildStackTraceHtml(ThreadInfo[] threadInfo) {
     StringBuilder stackTraceString = new StringBuilder();
     
     stackTraceString.append("<html><head>");
@@ -175,9 +303,7 @@ public class ThreadDumpRoute implements Handler<RoutingContext> {
       
       
       stackTraceString.append("<tr><td colspan=\"6\" style=\"padding-left: 40px;\"><pre>");
-      for (StackTraceElement s : t.getStackTrace()) {
-        stackTraceString.append(s.toString()).append("\n");
-      }      
+      appendStack(stackTraceString, t, "");
       stackTraceString.append("</pre></td></tr>\n");
     }
     stackTraceString.append("</table><body></html>");
@@ -190,9 +316,10 @@ public class ThreadDumpRoute implements Handler<RoutingContext> {
    * @return a JsonObject containing a dump of the stack in all threads in the process.
    */
   public static JsonObject buildStackTraceJson() {
-    ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
-    ThreadInfo[] threadInfo = threadMxBean.dumpAllThreads(true, true);
+    return buildStackTraceJson(dumpThreads(DumpOptions.DEFAULT));
+  }
 
+  static JsonObject buildStackTraceJson(ThreadInfo[] threadInfo) {
     JsonObject result = new JsonObject();
     for (ThreadInfo t : threadInfo) {
       JsonObject thread = new JsonObject();
@@ -224,6 +351,22 @@ public class ThreadDumpRoute implements Handler<RoutingContext> {
         addNonNullObjectToJson(stackTraceElement, "moduleVersion", s.getModuleVersion());
         jsonStack.add(stackTraceElement);
       }
+      MonitorInfo[] lockedMonitors = t.getLockedMonitors();
+      if (lockedMonitors.length > 0) {
+        JsonArray jsonMonitors = new JsonArray();
+        for (MonitorInfo m : lockedMonitors) {
+          jsonMonitors.add(new JsonObject().put("lock", m.toString()).put("stackDepth", m.getLockedStackDepth()));
+        }
+        thread.put("lockedMonitors", jsonMonitors);
+      }
+      LockInfo[] lockedSynchronizers = t.getLockedSynchronizers();
+      if (lockedSynchronizers.length > 0) {
+        JsonArray jsonSynchronizers = new JsonArray();
+        for (LockInfo l : lockedSynchronizers) {
+          jsonSynchronizers.add(l.toString());
+        }
+        thread.put("lockedSynchronizers", jsonSynchronizers);
+      }
     }
     return result;
   }
@@ -235,9 +378,10 @@ public class ThreadDumpRoute implements Handler<RoutingContext> {
   }
 
   static String buildStackTraceText(boolean simple) {
-    ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
-    ThreadInfo[] threadInfo = threadMxBean.dumpAllThreads(true, true);
+    return buildStackTraceText(dumpThreads(DumpOptions.DEFAULT), simple);
+  }
 
+  static String buildStackTraceText(ThreadInfo[] threadInfo, boolean simple) {
     StringBuilder stackTraceString = new StringBuilder();
     for (ThreadInfo t : threadInfo) {
       StackTraceElement[] stackTrace = t.getStackTrace();
@@ -276,13 +420,35 @@ public class ThreadDumpRoute implements Handler<RoutingContext> {
                   .append("\n")
                   ;
         }
-        for (StackTraceElement s : stackTrace) {
-          stackTraceString.append("  ").append(s.toString()).append("\n");
-        }
+        appendStack(stackTraceString, t, "  ");
       }
       stackTraceString.append("\n");
     }
     return stackTraceString.toString();
   }
   
+  /**
+   * Append the stack of a thread, one frame per line, with any locked monitors after the frame that locked them
+   * and any locked synchronizers at the end.
+   */
+  private static void appendStack(StringBuilder builder, ThreadInfo t, String indent) {
+    StackTraceElement[] stackTrace = t.getStackTrace();
+    MonitorInfo[] lockedMonitors = t.getLockedMonitors();
+    for (int i = 0; i < stackTrace.length; ++i) {
+      builder.append(indent).append(stackTrace[i].toString()).append("\n");
+      for (MonitorInfo m : lockedMonitors) {
+        if (m.getLockedStackDepth() == i) {
+          builder.append(indent).append("  - locked ").append(m.toString()).append("\n");
+        }
+      }
+    }
+    LockInfo[] lockedSynchronizers = t.getLockedSynchronizers();
+    if (lockedSynchronizers.length > 0) {
+      builder.append(indent).append("Locked synchronizers:\n");
+      for (LockInfo l : lockedSynchronizers) {
+        builder.append(indent).append("  - ").append(l.toString()).append("\n");
+      }
+    }
+  }
+  
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class AccessLogCapturePolicyTest {
+
+  @Test
+  public void testDefaults() {
+    AccessLogCapturePolicy policy = new AccessLogCapturePolicy();
+    assertEquals(1, policy.getSampleRate());
+    assertEquals(0.0, policy.getMaxPerSecond());
+    assertEquals(0, policy.getBurst());
+    assertFalse(policy.isRetainErrors());
+    assertEquals(0, policy.getSlowThresholdMs());
+    assertFalse(policy.hasTailRetention());
+    for (int i = 0; i < 1000; ++i) {
+      assertTrue(policy.sample());
+      assertTrue(policy.retain(true, 200, 0));
+    }
+  }
+
+  @Test
+  public void testSampling() {
+    AccessLogCapturePolicy policy = new AccessLogCapturePolicy().setSampleRate(10);
+    assertEquals(10, policy.getSampleRate());
+    int sampled = 0;
+    for (int i = 0; i < 100000; ++i) {
+      if (policy.sample()) {
+        ++sampled;
+      }
+    }
+    assertTrue(sampled > 8000 && sampled < 12000, "Sampled " + sampled);
+    assertEquals(1, new AccessLogCapturePolicy().setSampleRate(-5).getSampleRate());
+  }
+
+  @Test
+  public void testTokenBucket() {
+    AccessLogCapturePolicy policy = new AccessLogCapturePolicy().setMaxPerSecond(10).setBurst(3);
+    assertEquals(10.0, policy.getMaxPerSecond());
+    assertEquals(3, policy.getBurst());
+    long now = 1_000_000_000L;
+    assertTrue(policy.tryAcquire(now));
+    assertTrue(policy.tryAcquire(now));
+    assertTrue(policy.tryAcquire(now));
+    assertFalse(policy.tryAcquire(now));
+    // One token is added every 100ms
+    assertFalse(policy.tryAcquire(now + 50_000_000L));
+    assertTrue(policy.tryAcquire(now + 100_000_000L));
+    assertFalse(policy.tryAcquire(now + 100_000_000L));
+    // After a long pause the bucket is full again, but no more than full
+    now += 10_000_000_000L;
+    assertTrue(policy.tryAcquire(now));
+    assertTrue(policy.tryAcquire(now));
+    assertTrue(policy.tryAcquire(now));
+    assertFalse(policy.tryAcquire(now));
+
+    // The default burst is one second's worth
+    policy = new AccessLogCapturePolicy().setMaxPerSecond(5);
+    int acquired = 0;
+    for (int i = 0; i < 100; ++i) {
+      if (policy.tryAcquire(now)) {
+        ++acquired;
+      }
+    }
+    assertEquals(5, acquired);
+
+    policy.setMaxPerSecond(0);
+    assertTrue(policy.tryAcquire(now));
+  }
+
+  @Test
+  public void testRateLimitOnArrival() {
+    // Without tail retention the token is taken when the request is sampled, and retain does not take another
+    AccessLogCapturePolicy policy = new AccessLogCapturePolicy().setMaxPerSecond(0.001).setBurst(2);
+    assertTrue(policy.sample());
+    assertTrue(policy.sample());
+    assertFalse(policy.sample());
+    assertTrue(policy.retain(true, 200, 0));
+    assertTrue(policy.retain(true, 200, 0));
+    assertFalse(policy.retain(false, 500, 0));
+  }
+
+  @Test
+  public void testRateLimitAtTail() {
+    // With tail retention sampling does not take tokens, they are only taken by requests not retained by tail retention
+    AccessLogCapturePolicy policy = new AccessLogCapturePolicy().setMaxPerSecond(0.001).setBurst(1).setRetainErrors(true);
+    for (int i = 0; i < 10; ++i) {
+      assertTrue(policy.sample());
+    }
+    assertTrue(policy.retain(true, 500, 0));
+    assertTrue(policy.retain(true, 200, 0));
+    assertFalse(policy.retain(true, 200, 0));
+    assertTrue(policy.retain(true, 503, 0));
+  }
+
+  @Test
+  public void testTailRetention() {
+    AccessLogCapturePolicy policy = new AccessLogCapturePolicy()
+            .setSampleRate(Integer.MAX_VALUE)
+            .setRetainErrors(true)
+            .setSlowThresholdMs(1000);
+    assertTrue(policy.isRetainErrors());
+    assertEquals(1000, policy.getSlowThresholdMs());
+    assertTrue(policy.hasTailRetention());
+    assertTrue(policy.retain(false, 500, 0));
+    assertTrue(policy.retain(false, 503, 0));
+    assertFalse(policy.retain(false, 404, 0));
+    assertFalse(policy.retain(false, 200, 999));
+    assertTrue(policy.retain(false, 200, 1000));
+    assertTrue(policy.retain(true, 200, 10));
+
+    assertTrue(new AccessLogCapturePolicy().setSlowThresholdMs(10).hasTailRetention());
+    assertFalse(new AccessLogCapturePolicy().setSlowThresholdMs(-10).hasTailRetention());
+  }
+
+}
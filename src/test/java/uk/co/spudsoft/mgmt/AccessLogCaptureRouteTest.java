@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class AccessLogCaptureRouteTest {
+
+  @Test
+  public void testFlatten() {
+    assertArrayEquals(new String[0], AccessLogCaptureRoute.AccessLogData.flatten(null));
+    assertArrayEquals(new String[0], AccessLogCaptureRoute.AccessLogData.flatten(MultiMap.caseInsensitiveMultiMap()));
+
+    MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+    headers.add("Accept", "text/html");
+    headers.add("Cookie", "one=1");
+    headers.add("Cookie", "two=2");
+    headers.add("Cookie", "three=3");
+    String[] flat = AccessLogCaptureRoute.AccessLogData.flatten(headers);
+    assertArrayEquals(new String[]{"Accept", "text/html", "Cookie", "one=1", "Cookie", "two=2", "Cookie", "three=3"}, flat);
+
+    MultiMap restored = AccessLogCaptureRoute.AccessLogData.unflatten(flat);
+    assertEquals("text/html", restored.get("accept"));
+    assertEquals(Arrays.asList("one=1", "two=2", "three=3"), restored.getAll("cookie"));
+  }
+
+  @Test
+  public void testFlattenSelected() {
+    MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+    headers.add("Accept", "text/html");
+    headers.add("Cookie", "one=1");
+    headers.add("User-Agent", new String("test"));
+    headers.add("X-Other", "other");
+
+    AccessLogCaptureRoute route = new AccessLogCaptureRoute(1)
+            .setHeaderAllowlist(Arrays.asList("accept", "COOKIE", "user-agent"))
+            .setHeaderDenylist(Arrays.asList("cookie"));
+    assertTrue(route.getHeaderAllowlist().contains("Cookie"));
+    assertTrue(route.getHeaderDenylist().contains("Cookie"));
+    assertEquals(AccessLogCaptureRoute.DEFAULT_INTERN_CAPACITY, route.getInternCapacity());
+
+    StringInterner interner = new StringInterner(16);
+    String[] flat = AccessLogCaptureRoute.AccessLogData.flatten(headers, route.getHeaderAllowlist(), route.getHeaderDenylist(), interner);
+    assertArrayEquals(new String[]{"Accept", "text/html", "User-Agent", "test"}, flat);
+    String[] again = AccessLogCaptureRoute.AccessLogData.flatten(headers, route.getHeaderAllowlist(), null, interner);
+    assertArrayEquals(new String[]{"Accept", "text/html", "Cookie", "one=1", "User-Agent", "test"}, again);
+    assertSame(flat[3], again[5]);
+
+    assertArrayEquals(new String[0], AccessLogCaptureRoute.AccessLogData.flatten(headers, Collections.emptySet(), null, null));
+    assertArrayEquals(new String[]{"Accept", "text/html", "X-Other", "other"}
+            , AccessLogCaptureRoute.AccessLogData.flatten(headers, null, toSet("cookie", "user-agent"), null));
+
+    route.setHeaderAllowlist(null).setHeaderDenylist(null).setInternCapacity(0);
+    assertNull(route.getHeaderAllowlist());
+    assertNull(route.getHeaderDenylist());
+    assertEquals(0, route.getInternCapacity());
+  }
+
+  private static Set<String> toSet(String... names) {
+    Set<String> result = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    result.addAll(Arrays.asList(names));
+    return result;
+  }
+
+  @Test
+  public void testByteBudget() {
+    AccessLogCaptureRoute route = new AccessLogCaptureRoute(100, 4000, null);
+    assertNull(route.getSpill());
+    for (int i = 0; i < 50; ++i) {
+      String uri = "/" + "x".repeat(i % 2 == 0 ? 10 : 1000);
+      route.getBuffer().add(new AccessLogCaptureRoute.AccessLogData(i, 1000, 1250, HttpMethod.GET, HttpVersion.HTTP_1_1
+              , "http", "localhost:8080", uri, "127.0.0.1", 200, 0, 17, null, null
+      ));
+    }
+    RingBuffer<AccessLogCaptureRoute.AccessLogData> buffer = (RingBuffer<AccessLogCaptureRoute.AccessLogData>) route.getBuffer();
+    AccessLogCaptureRoute.AccessLogData[] data = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new);
+    long total = 0;
+    for (AccessLogCaptureRoute.AccessLogData item : data) {
+      total += item.estimateSize();
+    }
+    assertEquals(total, buffer.getWeight());
+    assertTrue(total <= 4000);
+    assertTrue(data.length >= 4 && data.length < 10, "Expected a few entries, got " + data.length);
+    assertEquals(49, data[data.length - 1].getSequence());
+  }
+
+  @Test
+  public void testAccessLogData() {
+    AccessLogCaptureRoute.AccessLogData data = new AccessLogCaptureRoute.AccessLogData(7, 1000, 1250, HttpMethod.GET, HttpVersion.HTTP_1_1
+            , "http", "localhost:8080", "/path?query=1", "127.0.0.1", 200, 0, 17
+            , new String[]{"Referer", "http://localhost/", "User-Agent", "test"}
+            , null
+    );
+
+    assertEquals(7, data.getSequence());
+    assertEquals(1000, data.getTimestamp());
+    assertEquals(1250, data.getEndTimestamp());
+    assertEquals(250, data.getDuration());
+    assertEquals(250000000L, data.getDurationNanos());
+    assertEquals(AccessLogCaptureRoute.AccessLogData.NOT_RECORDED, data.getRequestReadNanos());
+    assertEquals(AccessLogCaptureRoute.AccessLogData.NOT_RECORDED, data.getFirstByteNanos());
+    assertEquals(HttpMethod.GET, data.getMethod());
+    assertEquals(HttpVersion.HTTP_1_1, data.getVersion());
+    assertEquals("http", data.getScheme());
+    assertEquals("localhost:8080", data.getHost());
+    assertEquals("/path?query=1", data.getUri());
+    assertEquals("http://localhost:8080/path?query=1", data.getAbsoluteUri());
+    assertEquals("127.0.0.1", data.getRemoteAddress());
+    assertEquals(200, data.getStatusCode());
+    assertEquals(0, data.getBytesRead());
+    assertEquals(17, data.getBytesWritten());
+    assertEquals("test", data.getRequestHeader("user-agent"));
+    assertNull(data.getRequestHeader("referrer"));
+    assertEquals(2, data.getRequestHeaders().size());
+    assertTrue(data.getResponseHeaders().isEmpty());
+
+    AccessLogCaptureRoute.AccessLogData noHost = new AccessLogCaptureRoute.AccessLogData(7, 1000, 1250, HttpMethod.GET, HttpVersion.HTTP_1_1
+            , "http", null, "/path", null, 200, 0, 17, null, null
+    );
+    assertEquals("/path", noHost.getAbsoluteUri());
+    assertTrue(noHost.estimateSize() < data.estimateSize());
+
+    AccessLogCaptureRoute.AccessLogData fast = new AccessLogCaptureRoute.AccessLogData(8, 1000, 1000, 987654, 0, 123456, HttpMethod.GET, HttpVersion.HTTP_1_1
+            , "http", null, "/path", null, 200, 0, 17, null, null
+    );
+    assertEquals(0, fast.getDuration());
+    assertEquals(987654, fast.getDurationNanos());
+    assertEquals(0, fast.getRequestReadNanos());
+    assertEquals(123456, fast.getFirstByteNanos());
+  }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class AccessLogEventStreamTest {
+
+  private static HttpServerResponse mockResponse(List<String> writes) {
+    HttpServerResponse response = mock(HttpServerResponse.class);
+    when(response.write(any(Buffer.class))).thenAnswer(invocation -> {
+      writes.add(invocation.getArgument(0, Buffer.class).toString(StandardCharsets.UTF_8));
+      return Future.succeededFuture();
+    });
+    return response;
+  }
+
+  private static AccessLogCaptureRoute.AccessLogData data(long sequence) {
+    return new AccessLogCaptureRoute.AccessLogData(sequence, 1000, 1010, HttpMethod.GET, HttpVersion.HTTP_1_1
+            , "http", "localhost", "/path/" + sequence, "127.0.0.1", 200, 0, 10
+            , new String[]{"Accept", "*/*"}
+            , new String[]{"content-type", "text/plain"}
+    );
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBatching() throws Exception {
+    List<String> writes = new ArrayList<>();
+    HttpServerResponse response = mockResponse(writes);
+    Context context = mock(Context.class);
+
+    AccessLogEventStream stream = new AccessLogEventStream(context, response, 10, null);
+    verify(response).setStatusCode(200);
+    stream.open();
+    assertEquals(List.of(": access log\n\n"), writes);
+
+    stream.accept(data(1));
+    stream.accept(data(2));
+    stream.accept(data(3));
+    assertEquals(3, stream.getQueued());
+
+    // Only one drain is scheduled however many requests are queued
+    ArgumentCaptor<Handler<Void>> captor = ArgumentCaptor.forClass(Handler.class);
+    verify(context, times(1)).runOnContext(captor.capture());
+    captor.getValue().handle(null);
+
+    assertEquals(0, stream.getQueued());
+    assertEquals(2, writes.size());
+    String[] events = writes.get(1).split("\n\n");
+    assertEquals(3, events.length);
+    for (int i = 0; i < 3; ++i) {
+      assertTrue(events[i].startsWith("id: " + (i + 1) + "\ndata: {"), events[i]);
+      JsonObject jo = new JsonObject(events[i].substring(events[i].indexOf('{')));
+      assertEquals(i + 1, jo.getLong("sequence"));
+      assertEquals("/path/" + (i + 1), jo.getString("url").substring("http://localhost".length()));
+    }
+
+    // Once drained another request schedules another drain
+    stream.accept(data(4));
+    verify(context, times(2)).runOnContext(captor.capture());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testDropped() throws Exception {
+    List<String> writes = new ArrayList<>();
+    HttpServerResponse response = mockResponse(writes);
+    Context context = mock(Context.class);
+
+    AccessLogEventStream stream = new AccessLogEventStream(context, response, 2, null);
+    for (int i = 1; i <= 5; ++i) {
+      stream.accept(data(i));
+    }
+    assertEquals(2, stream.getQueued());
+
+    ArgumentCaptor<Handler<Void>> captor = ArgumentCaptor.forClass(Handler.class);
+    verify(context).runOnContext(captor.capture());
+    captor.getValue().handle(null);
+
+    assertEquals(1, writes.size());
+    assertTrue(writes.get(0).startsWith("event: dropped\ndata: 3\n\nid: 1\n"), writes.get(0));
+    assertTrue(writes.get(0).contains("id: 2\n"), writes.get(0));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBackPressure() throws Exception {
+    List<String> writes = new ArrayList<>();
+    HttpServerResponse response = mockResponse(writes);
+    when(response.writeQueueFull()).thenReturn(true, false);
+    Context context = mock(Context.class);
+
+    AccessLogEventStream stream = new AccessLogEventStream(context, response, 10, null);
+    stream.accept(data(1));
+    ArgumentCaptor<Handler<Void>> captor = ArgumentCaptor.forClass(Handler.class);
+    verify(context).runOnContext(captor.capture());
+    captor.getValue().handle(null);
+    assertEquals(0, writes.size());
+
+    // While waiting for the write queue to drain no more drains are scheduled
+    stream.accept(data(2));
+    verify(context, times(1)).runOnContext(any());
+
+    ArgumentCaptor<Handler<Void>> drainCaptor = ArgumentCaptor.forClass(Handler.class);
+    verify(response).drainHandler(drainCaptor.capture());
+    drainCaptor.getValue().handle(null);
+    verify(response).drainHandler(null);
+    assertEquals(1, writes.size());
+    assertTrue(writes.get(0).contains("id: 2\n"), writes.get(0));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testClose() throws Exception {
+    List<String> writes = new ArrayList<>();
+    HttpServerResponse response = mockResponse(writes);
+    Context context = mock(Context.class);
+
+    AccessLogEventStream stream = new AccessLogEventStream(context, response, 10, null);
+    stream.accept(data(1));
+    stream.close();
+    stream.accept(data(2));
+
+    ArgumentCaptor<Handler<Void>> captor = ArgumentCaptor.forClass(Handler.class);
+    verify(context).runOnContext(captor.capture());
+    captor.getValue().handle(null);
+    assertEquals(0, writes.size());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testWriteFailure() throws Exception {
+    HttpServerResponse response = mock(HttpServerResponse.class);
+    when(response.write(any(Buffer.class))).thenThrow(new IllegalStateException("Response has already been written"));
+    Context context = mock(Context.class);
+
+    AccessLogEventStream stream = new AccessLogEventStream(context, response, 10, null);
+    stream.accept(data(1));
+    ArgumentCaptor<Handler<Void>> captor = ArgumentCaptor.forClass(Handler.class);
+    verify(context).runOnContext(captor.capture());
+    captor.getValue().handle(null);
+    verify(response).reset();
+
+    // Once failed nothing more is scheduled
+    stream.accept(data(2));
+    verify(context, times(1)).runOnContext(any());
+    verify(response, never()).drainHandler(any());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testFiltered() throws Exception {
+    List<String> writes = new ArrayList<>();
+    HttpServerResponse response = mockResponse(writes);
+    Context context = mock(Context.class);
+
+    AccessLogEventStream stream = new AccessLogEventStream(context, response, 10, new AccessLogFilter().setPathPrefix("/path/2"));
+    stream.accept(data(1));
+    verify(context, never()).runOnContext(any());
+    stream.accept(data(2));
+    assertEquals(1, stream.getQueued());
+    ArgumentCaptor<Handler<Void>> captor = ArgumentCaptor.forClass(Handler.class);
+    verify(context).runOnContext(captor.capture());
+    captor.getValue().handle(null);
+    assertEquals(1, writes.size());
+    assertTrue(writes.get(0).startsWith("id: 2\n"), writes.get(0));
+  }
+
+  @Test
+  public void testBadCapacity() {
+    assertThrows(IllegalArgumentException.class, () -> new AccessLogEventStream(mock(Context.class), mock(HttpServerResponse.class), 0, null));
+  }
+
+}
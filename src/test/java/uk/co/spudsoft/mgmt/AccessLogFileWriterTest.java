@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class AccessLogFileWriterTest {
+
+  private static AccessLogCaptureRoute.AccessLogData data(long sequence, String uri) {
+    return new AccessLogCaptureRoute.AccessLogData(sequence, 1672531200000L + sequence, 1672531200010L + sequence, HttpMethod.GET, HttpVersion.HTTP_1_1
+            , "http", "localhost", uri, "127.0.0.1", 200, 0, 10
+            , null
+            , null
+    );
+  }
+
+  private static List<Path> rotated(Path dir) throws Exception {
+    List<Path> result = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "access.log.*")) {
+      for (Path path : stream) {
+        result.add(path);
+      }
+    }
+    result.sort(null);
+    return result;
+  }
+
+  @Test
+  public void testBadArguments(@TempDir Path dir) {
+    assertThrows(IllegalArgumentException.class, () -> new AccessLogFileWriter(dir.resolve("access.log"), 0, 1000, 0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new AccessLogFileWriter(dir.resolve("access.log"), 10, 0, 0, 1));
+  }
+
+  @Test
+  public void testWrite(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("logs").resolve("access.log");
+    AccessLogFileWriter writer = new AccessLogFileWriter(file, 100, 1 << 20, 0, 1);
+    StringBuilder expected = new StringBuilder();
+    CombinedLogFormatter formatter = new CombinedLogFormatter();
+    for (int i = 0; i < 1000; ++i) {
+      AccessLogCaptureRoute.AccessLogData data = data(i, "/path/" + i);
+      writer.accept(data);
+      expected.append(formatter.append(Buffer.buffer(), data).toString(StandardCharsets.UTF_8));
+      if (writer.getQueued() > 50) {
+        Thread.sleep(1);
+      }
+    }
+    writer.close();
+    assertEquals(1000, writer.getWritten() + writer.getDropped());
+    assertEquals(0, writer.getQueued());
+    String actual = Files.readString(file);
+    if (writer.getDropped() == 0) {
+      assertEquals(expected.toString(), actual);
+    }
+    assertEquals(writer.getWritten(), actual.lines().count());
+
+    // Once closed everything is dropped
+    writer.accept(data(1000, "/closed"));
+    assertEquals(1000, writer.getWritten() + writer.getDropped() - 1);
+  }
+
+  @Test
+  public void testCloseWhileAccepting(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("access.log");
+    AccessLogFileWriter writer = new AccessLogFileWriter(file, 1000, 1 << 20, 0, 1);
+    AtomicLong accepted = new AtomicLong();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; ++t) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 20000; ++i) {
+          writer.accept(data(i, "/path/" + i));
+          accepted.incrementAndGet();
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    Thread.sleep(5);
+    writer.close();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // Requests that raced with close are either written or dropped, never lost in the queue
+    assertEquals(accepted.get(), writer.getWritten() + writer.getDropped());
+    assertEquals(0, writer.getQueued());
+  }
+
+  @Test
+  public void testQueueFull(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("access.log");
+    AccessLogFileWriter writer = new AccessLogFileWriter(file, 2, 1 << 20, 0, 1, System::currentTimeMillis, false);
+    for (int i = 0; i < 5; ++i) {
+      writer.accept(data(i, "/path/" + i));
+    }
+    assertEquals(2, writer.getQueued());
+    assertEquals(3, writer.getDropped());
+    // Closing a writer that has not been started writes the queue on the calling thread
+    writer.close();
+    assertEquals(2, writer.getWritten());
+    assertEquals(2, Files.readAllLines(file).size());
+  }
+
+  @Test
+  public void testLongLines(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("access.log");
+    AccessLogFileWriter writer = new AccessLogFileWriter(file, 100, 1 << 30, 0, 1, System::currentTimeMillis, false);
+    String uri = "/" + "x".repeat(100000);
+    for (int i = 0; i < 10; ++i) {
+      writer.accept(data(i, uri));
+    }
+    assertEquals(10, writer.writeBatch());
+    assertEquals(0, writer.writeBatch());
+    writer.close();
+    List<String> lines = Files.readAllLines(file);
+    assertEquals(10, lines.size());
+    for (String line : lines) {
+      assertTrue(line.contains(uri));
+    }
+  }
+
+  @Test
+  public void testRotation(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("access.log");
+    AtomicLong now = new AtomicLong(1672531200000L);
+    AccessLogFileWriter writer = new AccessLogFileWriter(file, 100, 250, 60000, 2, now::get, false);
+
+    // Each line is about 110 bytes, so the third line rotates the file
+    for (int i = 0; i < 3; ++i) {
+      writer.accept(data(i, "/path/" + i));
+      now.addAndGet(1);
+      writer.writeBatch();
+    }
+    assertEquals(1, rotated(dir).size());
+    assertEquals(1, Files.readAllLines(file).size());
+
+    // Time based rotation
+    now.addAndGet(60000);
+    writer.accept(data(3, "/path/3"));
+    writer.writeBatch();
+    assertEquals(2, rotated(dir).size());
+    assertEquals(1, Files.readAllLines(file).size());
+
+    // Only two rotated files are kept, the oldest is deleted
+    now.addAndGet(60000);
+    writer.accept(data(4, "/path/4"));
+    writer.writeBatch();
+    List<Path> rotated = rotated(dir);
+    assertEquals(2, rotated.size());
+    assertTrue(Files.readString(rotated.get(0)).contains("/path/2"), rotated.toString());
+    assertTrue(Files.readString(rotated.get(1)).contains("/path/3"), rotated.toString());
+
+    // Rotating twice in the same millisecond does not overwrite the first file
+    writer.accept(data(5, "/path/5".repeat(50)));
+    writer.writeBatch();
+    rotated = rotated(dir);
+    assertEquals(2, rotated.size());
+    assertTrue(rotated.get(1).getFileName().toString().endsWith("-1"), rotated.toString());
+    assertTrue(Files.readString(rotated.get(0)).contains("/path/3"), rotated.toString());
+    assertTrue(Files.readString(rotated.get(1)).contains("/path/4"), rotated.toString());
+    assertFalse(Files.readString(file).contains("/path/4"));
+    writer.close();
+    assertEquals(6, writer.getWritten());
+  }
+
+  @Test
+  public void testRotationIgnoresOtherFiles(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("access.log");
+    List<Path> others = List.of(dir.resolve("access.log.gz")
+            , dir.resolve("access.log.20230101-000000.000.gz")
+            , dir.resolve("access.log.20230101-000000.000-x")
+            , dir.resolve("access.log.bak")
+            , dir.resolve("access.log.2023")
+    );
+    for (Path other : others) {
+      Files.writeString(other, "other");
+    }
+    AtomicLong now = new AtomicLong(1672531200000L);
+    AccessLogFileWriter writer = new AccessLogFileWriter(file, 100, 100, 0, 1, now::get, false);
+    for (int i = 0; i < 4; ++i) {
+      writer.accept(data(i, "/path/" + i));
+      now.addAndGet(1000);
+      writer.writeBatch();
+    }
+    writer.close();
+    for (Path other : others) {
+      assertTrue(Files.exists(other), other.toString());
+    }
+    // Only one of the rotated files is kept, and it is the newest
+    List<Path> rotated = rotated(dir);
+    rotated.removeAll(others);
+    assertEquals(1, rotated.size(), rotated.toString());
+    assertTrue(Files.readString(rotated.get(0)).contains("/path/2"), rotated.toString());
+  }
+
+  @Test
+  public void testPartialBatchFailure(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("access.log");
+    AccessLogFileWriter writer = new AccessLogFileWriter(file, 100, 1 << 30, 0, 1, System::currentTimeMillis, false);
+    String uri = "/" + "x".repeat(100000);
+    for (int i = 0; i < 10; ++i) {
+      writer.accept(data(i, uri));
+    }
+    AccessLogCaptureRoute.AccessLogData bad = mock(AccessLogCaptureRoute.AccessLogData.class);
+    when(bad.getRemoteAddress()).thenThrow(new IllegalStateException("Bad data"));
+    writer.accept(bad);
+    // The first five lines fill the chunks and are written before the batch fails, so only the rest are dropped
+    assertEquals(11, writer.writeBatch());
+    assertEquals(5, writer.getWritten());
+    assertEquals(6, writer.getDropped());
+    writer.close();
+  }
+
+  @Test
+  public void testWriteFailure(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("access.log");
+    AccessLogFileWriter writer = new AccessLogFileWriter(file, 100, 1 << 20, 0, 1, System::currentTimeMillis, false);
+    AccessLogCaptureRoute.AccessLogData bad = mock(AccessLogCaptureRoute.AccessLogData.class);
+    when(bad.getRemoteAddress()).thenThrow(new IllegalStateException("Bad data"));
+    writer.accept(bad);
+    writer.accept(data(1, "/path/1"));
+    assertEquals(1, writer.writeBatch());
+    assertEquals(1, writer.getDropped());
+    assertEquals(1, writer.writeBatch());
+    assertEquals(1, writer.getWritten());
+    writer.close();
+  }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class AccessLogFilterTest {
+
+  static AccessLogCaptureRoute.AccessLogData data(HttpMethod method, String uri, String remoteAddress, int statusCode, long timestamp, long duration) {
+    return new AccessLogCaptureRoute.AccessLogData(1, timestamp, timestamp + duration, method, HttpVersion.HTTP_1_1
+            , "http", "localhost", uri, remoteAddress, statusCode, 0, 0
+            , null
+            , null
+    );
+  }
+
+  @Test
+  public void testFromParams() {
+    assertNull(AccessLogFilter.fromParams(MultiMap.caseInsensitiveMultiMap()));
+    assertNull(AccessLogFilter.fromParams(MultiMap.caseInsensitiveMultiMap().add("since", "0")));
+
+    AccessLogFilter filter = AccessLogFilter.fromParams(MultiMap.caseInsensitiveMultiMap()
+            .add("status", "5xx, 404")
+            .add("method", "get")
+            .add("path", "/api/")
+            .add("pathRegex", "thing[0-9]")
+            .add("minDuration", "10")
+            .add("remoteAddress", "10.0.0.1")
+            .add("from", "2023-01-01T00:00:00Z")
+            .add("to", "1672531260000")
+    );
+    long from = 1672531200000L;
+    assertEquals("GET", filter.getMethod());
+    assertEquals("10.0.0.1", filter.getRemoteAddress());
+    assertEquals((1 << 4) | (1 << 5), filter.getCandidateStatusClasses());
+    assertTrue(filter.test(data(HttpMethod.GET, "/api/thing1", "10.0.0.1", 503, from, 10)));
+    assertTrue(filter.test(data(HttpMethod.GET, "/api/thing1", "10.0.0.1", 404, from + 60000, 10)));
+    assertFalse(filter.test(data(HttpMethod.GET, "/api/thing1", "10.0.0.1", 403, from, 10)));
+    assertFalse(filter.test(data(HttpMethod.GET, "/api/thing1", "10.0.0.1", 200, from, 10)));
+    assertFalse(filter.test(data(HttpMethod.POST, "/api/thing1", "10.0.0.1", 503, from, 10)));
+    assertFalse(filter.test(data(null, "/api/thing1", "10.0.0.1", 503, from, 10)));
+    assertFalse(filter.test(data(HttpMethod.GET, "/other/thing1", "10.0.0.1", 503, from, 10)));
+    assertFalse(filter.test(data(HttpMethod.GET, "/api/thing", "10.0.0.1", 503, from, 10)));
+    assertFalse(filter.test(data(HttpMethod.GET, null, "10.0.0.1", 503, from, 10)));
+    assertFalse(filter.test(data(HttpMethod.GET, "/api/thing1", "10.0.0.2", 503, from, 10)));
+    assertFalse(filter.test(data(HttpMethod.GET, "/api/thing1", "10.0.0.1", 503, from, 9)));
+    assertFalse(filter.test(data(HttpMethod.GET, "/api/thing1", "10.0.0.1", 503, from - 1, 10)));
+    assertFalse(filter.test(data(HttpMethod.GET, "/api/thing1", "10.0.0.1", 503, from + 60001, 10)));
+  }
+
+  @Test
+  public void testInvalidParams() {
+    assertThrows(IllegalArgumentException.class, () -> AccessLogFilter.fromParams(MultiMap.caseInsensitiveMultiMap().add("status", "bad")));
+    assertThrows(IllegalArgumentException.class, () -> AccessLogFilter.fromParams(MultiMap.caseInsensitiveMultiMap().add("status", "1000")));
+    assertThrows(IllegalArgumentException.class, () -> AccessLogFilter.fromParams(MultiMap.caseInsensitiveMultiMap().add("status", "-1")));
+    assertThrows(IllegalArgumentException.class, () -> AccessLogFilter.fromParams(MultiMap.caseInsensitiveMultiMap().add("pathRegex", "[")));
+    assertThrows(IllegalArgumentException.class, () -> AccessLogFilter.fromParams(MultiMap.caseInsensitiveMultiMap().add("minDuration", "ten")));
+    assertThrows(IllegalArgumentException.class, () -> AccessLogFilter.fromParams(MultiMap.caseInsensitiveMultiMap().add("from", "yesterday")));
+  }
+
+  @Test
+  public void testDefaults() {
+    AccessLogFilter filter = new AccessLogFilter();
+    assertEquals(0, filter.getCandidateStatusClasses());
+    assertFalse(filter.filtersUri());
+    assertTrue(filter.testStatus(0));
+    assertTrue(filter.test(data(null, null, null, 0, 0, 0)));
+
+    filter.setPathRegex(Pattern.compile("^/a")).setMethod(null);
+    assertTrue(filter.filtersUri());
+    assertTrue(filter.testUri("/a/b"));
+    assertFalse(filter.testUri("/b/a"));
+  }
+
+  @Test
+  public void testStatusClass() {
+    assertEquals(0, AccessLogFilter.statusClass(-1));
+    assertEquals(0, AccessLogFilter.statusClass(0));
+    assertEquals(2, AccessLogFilter.statusClass(200));
+    assertEquals(5, AccessLogFilter.statusClass(599));
+    assertEquals(AccessLogFilter.STATUS_CLASSES - 1, AccessLogFilter.statusClass(12345));
+
+    AccessLogFilter filter = new AccessLogFilter().addStatus("2XX");
+    assertTrue(filter.testStatus(204));
+    assertFalse(filter.testStatus(-1));
+    assertFalse(filter.testStatus(304));
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.io.StringWriter;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class AccessLogOutputRouteTest {
+
+  @Test
+  public void testGetVersionFormatted() {
+    assertEquals("-", AccessLogOutputRoute.getVersionFormatted(null));
+    assertEquals("HTTP/1.0", AccessLogOutputRoute.getVersionFormatted(HttpVersion.HTTP_1_0));
+    assertEquals("HTTP/1.1", AccessLogOutputRoute.getVersionFormatted(HttpVersion.HTTP_1_1));
+    assertEquals("HTTP/2.0", AccessLogOutputRoute.getVersionFormatted(HttpVersion.HTTP_2));
+  }
+
+  @Test
+  public void testFormatNanosAsMillis() {
+    assertEquals("-", AccessLogOutputRoute.formatNanosAsMillis(AccessLogCaptureRoute.AccessLogData.NOT_RECORDED));
+    assertEquals("0.000", AccessLogOutputRoute.formatNanosAsMillis(999));
+    assertEquals("0.007", AccessLogOutputRoute.formatNanosAsMillis(7000));
+    assertEquals("0.087", AccessLogOutputRoute.formatNanosAsMillis(87654));
+    assertEquals("0.987", AccessLogOutputRoute.formatNanosAsMillis(987654));
+    assertEquals("1234.567", AccessLogOutputRoute.formatNanosAsMillis(1234567890));
+  }
+
+  @Test
+  public void testWriteJson() throws Exception {
+    AccessLogCaptureRoute.AccessLogData data = new AccessLogCaptureRoute.AccessLogData(7, 1000, 1250, HttpMethod.POST, HttpVersion.HTTP_1_1
+            , "https", "example.com", "/path", "10.0.0.1", 404, 12, 34
+            , new String[]{"Accept", "*/*", "Cookie", "one=1", "Cookie", "two=2"}
+            , new String[]{"content-type", "text/plain"}
+    );
+    StringWriter output = new StringWriter();
+    try (JsonGenerator generator = new JsonFactory().createGenerator(output)) {
+      AccessLogOutputRoute.writeJson(generator, data);
+    }
+    JsonObject jo = new JsonObject(output.toString());
+    assertEquals(7, jo.getLong("sequence"));
+    assertEquals("POST", jo.getString("method"));
+    assertEquals("https://example.com/path", jo.getString("url"));
+    assertEquals("10.0.0.1", jo.getString("remoteAddress"));
+    assertEquals(404, jo.getInteger("statusCode"));
+    assertEquals(12, jo.getLong("bytesRead"));
+    assertEquals(34, jo.getLong("bytesWritten"));
+    assertEquals("1970-01-01T00:00:01Z", jo.getString("timestamp"));
+    assertEquals("1970-01-01T00:00:01.250Z", jo.getString("endTimestamp"));
+    assertEquals(250000000L, jo.getLong("durationNanos"));
+    assertTrue(jo.containsKey("requestReadNanos"));
+    assertNull(jo.getLong("requestReadNanos"));
+    assertNull(jo.getLong("firstByteNanos"));
+    assertEquals("*/*", jo.getJsonObject("headers").getString("Accept"));
+    assertEquals(new JsonArray().add("one=1").add("two=2"), jo.getJsonObject("headers").getJsonArray("Cookie"));
+    assertEquals("text/plain", jo.getJsonObject("responseHeaders").getString("content-type"));
+  }
+
+  private static AccessLogCaptureRoute.AccessLogData data(long sequence, long endTimestamp) {
+    return new AccessLogCaptureRoute.AccessLogData(sequence, endTimestamp - 10, endTimestamp, HttpMethod.GET, HttpVersion.HTTP_1_1
+            , "http", "localhost", "/" + sequence, "127.0.0.1", 200, 0, 0, null, null);
+  }
+
+  private static long[] sequences(AccessLogCaptureRoute.AccessLogData[] data) {
+    long[] result = new long[data.length];
+    for (int i = 0; i < data.length; ++i) {
+      result[i] = data[i].getSequence();
+    }
+    return result;
+  }
+
+  @Test
+  public void testGetSince() {
+    assertEquals(-1, AccessLogOutputRoute.getSince(null));
+    assertEquals("Invalid value for since", assertThrows(IllegalArgumentException.class, () -> AccessLogOutputRoute.getSince("wibble")).getMessage());
+    assertThrows(IllegalArgumentException.class, () -> AccessLogOutputRoute.getSince("-7"));
+    assertEquals(0, AccessLogOutputRoute.getSince("0"));
+    assertEquals(12345678901L, AccessLogOutputRoute.getSince("12345678901"));
+    assertEquals(0, AccessLogOutputRoute.getCount("limit", null));
+    assertEquals("Invalid value for limit", assertThrows(IllegalArgumentException.class, () -> AccessLogOutputRoute.getCount("limit", "wibble")).getMessage());
+    assertThrows(IllegalArgumentException.class, () -> AccessLogOutputRoute.getCount("limit", "-7"));
+    assertEquals(7, AccessLogOutputRoute.getCount("limit", "7"));
+  }
+
+  @Test
+  public void testSelectSince() {
+    long now = 100_000;
+    AccessLogCaptureRoute.AccessLogData[] buffer = {
+      data(0, now), data(3, now), data(4, now), data(6, now), data(5, now), data(8, now)
+    };
+    // Out of order entries are sorted, and output stops at the committed sequence number while 7 is being added
+    assertArrayEquals(new long[]{3, 4, 5, 6}, sequences(AccessLogOutputRoute.selectSince(buffer, 0, 0, 6)));
+    assertArrayEquals(new long[]{5, 6}, sequences(AccessLogOutputRoute.selectSince(buffer, 4, 0, 6)));
+    assertArrayEquals(new long[]{5}, sequences(AccessLogOutputRoute.selectSince(buffer, 4, 1, 6)));
+    assertArrayEquals(new long[]{}, sequences(AccessLogOutputRoute.selectSince(buffer, 6, 0, 6)));
+    // Once 7 has been committed (even if it could not be captured) the gap is passed
+    assertArrayEquals(new long[]{8}, sequences(AccessLogOutputRoute.selectSince(buffer, 6, 0, 8)));
+    assertArrayEquals(new long[]{8}, sequences(AccessLogOutputRoute.selectSince(buffer, 7, 0, 8)));
+    // A gap in the middle of the output is also respected
+    buffer = new AccessLogCaptureRoute.AccessLogData[] {data(1, now), data(2, now), data(4, now)};
+    assertArrayEquals(new long[]{2}, sequences(AccessLogOutputRoute.selectSince(buffer, 1, 0, 2)));
+    assertArrayEquals(new long[]{2, 4}, sequences(AccessLogOutputRoute.selectSince(buffer, 1, 0, Long.MAX_VALUE)));
+  }
+
+}
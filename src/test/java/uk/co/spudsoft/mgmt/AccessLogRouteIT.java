@@ -19,9 +19,16 @@ package uk.co.spudsoft.mgmt;
 import io.restassured.RestAssured;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.junit5.VertxExtension;
 import io.vertx.junit5.VertxTestContext;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +37,16 @@ import io.restassured.http.ContentType;
 import io.vertx.ext.web.Router;
 import org.junit.jupiter.api.Test;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 /**
  *
  * @author jtalbut
@@ -90,12 +107,19 @@ public class AccessLogRouteIT {
                       .get("/manage/" + AccessLogOutputRoute.PATH)
                       .then()
                       .statusCode(200)
+                      .body("[0].method", equalTo("GET"))
+                      .body("[0].statusCode", equalTo(200))
+                      .body("[1].headers.Accept", containsString("text/html"))
+                      .body("[0].durationNanos", greaterThan(0))
+                      .body("[0].firstByteNanos", greaterThan(0))
                       .extract().body().asString()
                       ;                  
                   logger.debug("Access log (json): {}", body);
 
                   body = given()
                       .accept(ContentType.TEXT)
+                      .header("Referer", "http://localhost/")
+                      .header("User-Agent", "AccessLogRouteIT")
                       .get("/manage/" + AccessLogOutputRoute.PATH)
                       .then()
                       .statusCode(200)
@@ -119,4 +143,703 @@ public class AccessLogRouteIT {
                 
             });
   }
+
+  @Test
+  public void testStriped(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    AccessLogCaptureRoute capture = new AccessLogCaptureRoute(4, AccessLogCaptureRoute.Storage.STRIPED);
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(capture);
+
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture.getBuffer());
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  for (int i = 0; i < 6; ++i) {
+                    given()
+                        .get("/manage/" + AccessLogOutputRoute.PATH)
+                        .then()
+                        .statusCode(200)
+                        ;
+                  }
+
+                  String body = given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + AccessLogOutputRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body("size()", equalTo(4))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Access log (json): {}", body);
+
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
+  @Test
+  public void testSpill(Vertx vertx, VertxTestContext testContext, @TempDir Path dir) throws Throwable {
+
+    AccessLogSpill spill = new AccessLogSpill(dir, AccessLogSpill.MIN_SEGMENT_SIZE, 4 * AccessLogSpill.MIN_SEGMENT_SIZE);
+    AccessLogCaptureRoute capture = new AccessLogCaptureRoute(2, spill);
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(capture);
+
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture.getBuffer(), capture.getSpill());
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  for (int i = 0; i < 6; ++i) {
+                    given()
+                        .get("/manage/" + AccessLogOutputRoute.PATH)
+                        .then()
+                        .statusCode(200)
+                        ;
+                  }
+
+                  given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + AccessLogOutputRoute.PATH + "?history=wibble")
+                      .then()
+                      .statusCode(400)
+                      ;                  
+
+                  String body = given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + AccessLogOutputRoute.PATH + "?history=3")
+                      .then()
+                      .statusCode(200)
+                      .body("size()", equalTo(5))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Access log (json): {}", body);
+
+                  spill.close();
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
+  @Test
+  public void testPolicy(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    AccessLogCaptureRoute capture = new AccessLogCaptureRoute(10)
+            .setPolicy(new AccessLogCapturePolicy().setSampleRate(Integer.MAX_VALUE).setRetainErrors(true));
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(capture);
+    router.route("/fail").handler(rc -> rc.response().setStatusCode(500).end());
+
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture.getBuffer());
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  for (int i = 0; i < 3; ++i) {
+                    given()
+                        .get("/manage/" + AccessLogOutputRoute.PATH)
+                        .then()
+                        .statusCode(200)
+                        ;
+                    given()
+                        .get("/fail")
+                        .then()
+                        .statusCode(500)
+                        ;
+                  }
+
+                  String body = given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + AccessLogOutputRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body("size()", equalTo(3))
+                      .body("[0].statusCode", equalTo(500))
+                      .body("[2].statusCode", equalTo(500))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Access log (json): {}", body);
+
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
+  @Test
+  public void testSlowest(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    AccessLogCaptureRoute capture = new AccessLogCaptureRoute(2).setSlowest(2, 60000);
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(capture);
+    router.route("/slow").handler(rc -> vertx.setTimer(200, id -> rc.response().end("slow")));
+
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  given()
+                      .get("/slow")
+                      .then()
+                      .statusCode(200)
+                      ;
+                  for (int i = 0; i < 5; ++i) {
+                    given()
+                        .get("/manage/" + AccessLogOutputRoute.PATH)
+                        .then()
+                        .statusCode(200)
+                        ;
+                  }
+
+                  String body = given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + AccessLogOutputRoute.PATH + "?view=slowest")
+                      .then()
+                      .statusCode(200)
+                      .body("size()", equalTo(2))
+                      .body("[0].url", containsString("/slow"))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Access log (json): {}", body);
+
+                  given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + AccessLogOutputRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body("size()", equalTo(2))
+                      .body("[0].url", not(containsString("/slow")))
+                      ;                  
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
+  @Test
+  public void testLargeJson(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    int count = 50000;
+    AccessLogCaptureRoute capture = new AccessLogCaptureRoute(count);
+    for (int i = 0; i < count; ++i) {
+      capture.getBuffer().add(new AccessLogCaptureRoute.AccessLogData(i + 1, i, i + 1, HttpMethod.GET, HttpVersion.HTTP_1_1
+              , "http", "localhost", "/item/" + i, "127.0.0.1", 200, 0, 100
+              , new String[]{"Accept", "*/*"}, new String[]{"content-type", "text/plain"}));
+    }
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + AccessLogOutputRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body("size()", equalTo(count))
+                      .body("[49999].url", equalTo("http://localhost/item/49999"))
+                      ;                  
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
+  @Test
+  public void testSince(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    AccessLogCaptureRoute shared = new AccessLogCaptureRoute(100);
+    AccessLogCaptureRoute columnar = new AccessLogCaptureRoute(100, AccessLogCaptureRoute.Storage.COLUMNAR);
+    // Requests that are only kept as the slowest do not get sequence numbers
+    AccessLogCaptureRoute unsampled = new AccessLogCaptureRoute(100)
+            .setPolicy(new AccessLogCapturePolicy().setSampleRate(Integer.MAX_VALUE))
+            .setSlowest(1, 60000);
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(shared);
+    router.route("/*").handler(columnar);
+    router.route("/*").handler(unsampled);
+    router.get("/item/:id").handler(rc -> rc.end("item"));
+
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    mgmtRouter.get("/shared").handler(new AccessLogOutputRoute(shared)).produces(ContentTypes.TYPE_JSON).produces(ContentTypes.TYPE_PLAIN);
+    mgmtRouter.get("/columnar").handler(new AccessLogOutputRoute(columnar)).produces(ContentTypes.TYPE_JSON).produces(ContentTypes.TYPE_PLAIN);
+    mgmtRouter.get("/unsampled").handler(new AccessLogOutputRoute(unsampled)).produces(ContentTypes.TYPE_JSON);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  for (int i = 0; i < 5; ++i) {
+                    given().get("/item/" + i).then().statusCode(200);
+                  }
+                  
+                  for (String path : new String[] {"/manage/shared", "/manage/columnar"}) {
+                    String cursor = given()
+                        .accept(ContentType.JSON)
+                        .get(path + "?since=0&limit=3")
+                        .then()
+                        .statusCode(200)
+                        .body("size()", equalTo(3))
+                        .body("[0].sequence", equalTo(1))
+                        .body("[2].url", containsString("/item/2"))
+                        .extract().header(AccessLogOutputRoute.CURSOR_HEADER)
+                        ;
+                    logger.debug("Cursor from {}: {}", path, cursor);
+
+                    // The previous request to the access log must be present before this one is captured
+                    given()
+                        .accept(ContentType.JSON)
+                        .get(path + "?since=" + cursor + "&limit=3")
+                        .then()
+                        .statusCode(200)
+                        .header(AccessLogOutputRoute.CURSOR_HEADER, equalTo("6"))
+                        .body("sequence", equalTo(Arrays.asList(4, 5, 6)))
+                        .body("[2].url", containsString("since=0"))
+                        ;
+
+                    given()
+                        .accept(ContentType.TEXT)
+                        .get(path + "?since=wibble")
+                        .then()
+                        .statusCode(400)
+                        .header(AccessLogOutputRoute.CURSOR_HEADER, equalTo(null))
+                        ;
+
+                    given()
+                        .accept(ContentType.TEXT)
+                        .get(path + "?since=-1")
+                        .then()
+                        .statusCode(400)
+                        ;
+
+                    given()
+                        .accept(ContentType.TEXT)
+                        .get(path + "?since=0&limit=-1")
+                        .then()
+                        .statusCode(400)
+                        ;
+                  }
+
+                  given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/unsampled?since=0")
+                      .then()
+                      .statusCode(200)
+                      .header(AccessLogOutputRoute.CURSOR_HEADER, equalTo("0"))
+                      .body("size()", equalTo(0))
+                      ;
+
+                  given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/unsampled?view=slowest")
+                      .then()
+                      .statusCode(200)
+                      .body("size()", equalTo(1))
+                      .body("[0].sequence", equalTo(0))
+                      ;
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+  @Test
+  public void testFilter(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    AccessLogCaptureRoute shared = new AccessLogCaptureRoute(100).setSlowest(100, 60000);
+    AccessLogCaptureRoute columnar = new AccessLogCaptureRoute(100, AccessLogCaptureRoute.Storage.COLUMNAR);
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(shared);
+    router.route("/*").handler(columnar);
+    router.get("/item/:id").handler(rc -> rc.response().setStatusCode(Integer.parseInt(rc.pathParam("id"))).end("item"));
+
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    mgmtRouter.get("/shared").handler(new AccessLogOutputRoute(shared)).produces(ContentTypes.TYPE_JSON).produces(ContentTypes.TYPE_PLAIN);
+    mgmtRouter.get("/columnar").handler(new AccessLogOutputRoute(columnar)).produces(ContentTypes.TYPE_JSON).produces(ContentTypes.TYPE_PLAIN);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  for (int status : new int[] {200, 404, 500, 201, 503}) {
+                    given().get("/item/" + status).then().statusCode(status);
+                  }
+                  
+                  for (String path : new String[] {"/manage/shared", "/manage/columnar"}) {
+                    given()
+                        .accept(ContentType.JSON)
+                        .get(path + "?status=5xx")
+                        .then()
+                        .statusCode(200)
+                        .body("statusCode", equalTo(Arrays.asList(500, 503)))
+                        ;
+
+                    given()
+                        .accept(ContentType.JSON)
+                        .get(path + "?status=404,2xx&path=/item/&method=GET&remoteAddress=127.0.0.1&from=0&minDuration=0")
+                        .then()
+                        .statusCode(200)
+                        .body("statusCode", equalTo(Arrays.asList(200, 404, 201)))
+                        ;
+
+                    given()
+                        .accept(ContentType.JSON)
+                        .get(path + "?pathRegex=/item/5..&to=2000-01-01T00:00:00Z")
+                        .then()
+                        .statusCode(200)
+                        .body("size()", equalTo(0))
+                        ;
+
+                    given()
+                        .accept(ContentType.JSON)
+                        .get(path + "?since=0&status=5xx")
+                        .then()
+                        .statusCode(200)
+                        .header(AccessLogOutputRoute.CURSOR_HEADER, not(equalTo("0")))
+                        .body("statusCode", equalTo(Arrays.asList(500, 503)))
+                        ;
+
+                    given()
+                        .accept(ContentType.JSON)
+                        .get(path + "?status=wibble")
+                        .then()
+                        .statusCode(400)
+                        .body(containsString("Invalid status: wibble"))
+                        ;
+                  }
+
+                  given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/shared?view=slowest&status=404")
+                      .then()
+                      .statusCode(200)
+                      .body("statusCode", equalTo(Arrays.asList(404)))
+                      ;
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
+  @Test
+  public void testStream(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    AccessLogCaptureRoute capture = new AccessLogCaptureRoute(4);
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(capture);
+
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture);
+    
+    HttpClient client = vertx.createHttpClient();
+    StringBuilder events = new StringBuilder();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              port = httperServerVerticle.getPort();
+              logger.debug("Listening on port {}", port);
+              return client.request(HttpMethod.GET, port, "localhost", "/manage/" + AccessLogOutputRoute.STREAM_PATH);
+            })
+            .compose(request -> request.send())
+            .compose(response -> {
+              testContext.verify(() -> {
+                assertEquals(200, response.statusCode());
+                assertEquals(AccessLogEventStream.TYPE_EVENT_STREAM, response.getHeader("Content-Type"));
+              });
+              response.handler(buffer -> {
+                events.append(buffer.toString());
+                logger.debug("Access log events: {}", events);
+                if (events.indexOf("streamed=true") > 0) {
+                  testContext.verify(() -> {
+                    assertTrue(events.toString().startsWith(": access log\n\n"));
+                    assertTrue(events.indexOf("id: 1\ndata: {\"sequence\":1,") > 0);
+                  });
+                  client.close();
+                  testContext.completeNow();
+                }
+              });
+              return client.request(HttpMethod.GET, port, "localhost", "/manage/" + AccessLogOutputRoute.PATH + "?streamed=true");
+            })
+            .compose(request -> request.send())
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testFileWriter(Vertx vertx, VertxTestContext testContext, @TempDir Path dir) throws Throwable {
+
+    Path file = dir.resolve("access.log");
+    AccessLogFileWriter writer = new AccessLogFileWriter(file, AccessLogFileWriter.DEFAULT_QUEUE_SIZE, 1 << 20, 0, 2);
+    AccessLogCaptureRoute capture = new AccessLogCaptureRoute(10)
+            .setPolicy(new AccessLogCapturePolicy().setSampleRate(Integer.MAX_VALUE))
+            .setFileWriter(writer);
+    assertEquals(writer, capture.getFileWriter());
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(capture);
+    router.route("/item/:id").handler(rc -> rc.response().end(rc.pathParam("id")));
+
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  for (int i = 0; i < 5; ++i) {
+                    given()
+                        .get("/item/" + i)
+                        .then()
+                        .statusCode(200)
+                        ;
+                  }
+                  // None of these requests is sampled, but they are all written to the file
+                  given()
+                      .get("/item/last")
+                      .then()
+                      .statusCode(200)
+                      ;
+                  writer.close();
+                  
+                  String log = Files.readString(file);
+                  logger.debug("Access log file: {}", log);
+                  for (int i = 0; i < 5; ++i) {
+                    assertTrue(log.contains("\"GET http://localhost:" + port + "/item/" + i + " HTTP/1.1\" 200 1 "), log);
+                  }
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
+  @Test
+  public void testPhases(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    AccessLogCaptureRoute capture = new AccessLogCaptureRoute(10);
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(capture);
+    router.route("/echo").handler(rc -> {
+      rc.request().body().onSuccess(body -> {
+        rc.vertx().setTimer(5, id -> rc.response().setChunked(true).write(body).onComplete(ar -> rc.response().end()));
+      });
+    });
+
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  given()
+                      .body("Hello")
+                      .post("/echo")
+                      .then()
+                      .statusCode(200)
+                      .body(equalTo("Hello"))
+                      ;
+
+                  String body = given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + AccessLogOutputRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body("[0].method", equalTo("POST"))
+                      .body("[0].requestReadNanos", greaterThanOrEqualTo(0))
+                      .body("[0].firstByteNanos", greaterThan(5000000))
+                      .body("[0].durationNanos", greaterThan(5000000))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Access log (json): {}", body);
+
+                  body = given()
+                      .accept(ContentType.HTML)
+                      .get("/manage/" + AccessLogOutputRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body(containsString("<th class=\"top\">First Byte</th>"))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Access log (html): {}", body);
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
+  @Test
+  public void testHeaderSelection(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    AccessLogCaptureRoute capture = new AccessLogCaptureRoute(10)
+            .setHeaderAllowlist(Arrays.asList("User-Agent", "Cookie", "Content-Type"))
+            .setHeaderDenylist(Arrays.asList("cookie"));
+    
+    Router router = Router.router(vertx);
+    router.route("/*").handler(capture);
+    router.route("/item").handler(rc -> rc.response().putHeader("Content-Type", "text/plain").putHeader("X-Other", "other").end("item"));
+
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    AccessLogOutputRoute.createAndDeploy(mgmtRouter, capture);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  for (int i = 0; i < 2; ++i) {
+                    given()
+                        .header("User-Agent", "AccessLogRouteIT")
+                        .header("Cookie", "secret=1")
+                        .header("X-Request", "request")
+                        .get("/item")
+                        .then()
+                        .statusCode(200)
+                        ;
+                  }
+
+                  String body = given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + AccessLogOutputRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body("size()", equalTo(2))
+                      .body("[0].headers.size()", equalTo(1))
+                      .body("[0].headers.User-Agent", equalTo("AccessLogRouteIT"))
+                      .body("[1].responseHeaders.size()", equalTo(1))
+                      .body("[1].responseHeaders.Content-Type", equalTo("text/plain"))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Access log (json): {}", body);
+                  assertFalse(body.contains("secret"), body);
+                  
+                  AccessLogCaptureRoute.AccessLogData[] data = capture.getBuffer().toArray(AccessLogCaptureRoute.AccessLogData[]::new);
+                  // The same instance of each repeated value is shared between requests
+                  assertSame(data[0].getRequestHeader("User-Agent"), data[1].getRequestHeader("User-Agent"));
+                  assertSame(data[0].getUri(), data[1].getUri());
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
 }
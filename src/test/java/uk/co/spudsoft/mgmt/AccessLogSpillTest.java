@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class AccessLogSpillTest {
+
+  private static AccessLogCaptureRoute.AccessLogData data(long timestamp, String uri, String[] headers) {
+    return new AccessLogCaptureRoute.AccessLogData(timestamp, timestamp, timestamp + 5, HttpMethod.GET, HttpVersion.HTTP_2
+            , "https", "localhost:8443", uri, "::1", 201, 100, 200, headers, null);
+  }
+
+  private static long countSegmentFiles(Path dir) throws Exception {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  public void testBadSegmentSize(@TempDir Path dir) {
+    assertThrows(IllegalArgumentException.class, () -> new AccessLogSpill(dir, 1024, 1024 * 1024));
+  }
+
+  @Test
+  public void testRoundTrip(@TempDir Path dir) throws Exception {
+    try (AccessLogSpill spill = new AccessLogSpill(dir, AccessLogSpill.MIN_SEGMENT_SIZE, 10 * AccessLogSpill.MIN_SEGMENT_SIZE)) {
+      assertEquals(0, spill.read(10).size());
+
+      spill.append(data(1, "/one", null));
+      spill.append(data(2, "/two?café=€😀", new String[]{"Referer", "http://localhost/", "User-Agent", "test"}));
+      spill.append(data(3, "/three\ud800", new String[]{"Referrer", "http://localhost/"}));
+      spill.append(new AccessLogCaptureRoute.AccessLogData(4, 4, 5, 987654, 0, 123456, null, null, null, null, null, null, 0, 0, 0, null, null));
+
+      List<AccessLogCaptureRoute.AccessLogData> result = spill.read(10);
+      assertEquals(4, result.size());
+
+      assertEquals(1, result.get(0).getSequence());
+      assertEquals(1, result.get(0).getTimestamp());
+      assertEquals(6, result.get(0).getEndTimestamp());
+      assertEquals(5000000, result.get(0).getDurationNanos());
+      assertEquals(AccessLogCaptureRoute.AccessLogData.NOT_RECORDED, result.get(0).getRequestReadNanos());
+      assertEquals(HttpMethod.GET, result.get(0).getMethod());
+      assertEquals(HttpVersion.HTTP_2, result.get(0).getVersion());
+      assertEquals("https://localhost:8443/one", result.get(0).getAbsoluteUri());
+      assertEquals("::1", result.get(0).getRemoteAddress());
+      assertEquals(201, result.get(0).getStatusCode());
+      assertEquals(100, result.get(0).getBytesRead());
+      assertEquals(200, result.get(0).getBytesWritten());
+      assertTrue(result.get(0).getRequestHeaders().isEmpty());
+
+      assertEquals("/two?café=€😀", result.get(1).getUri());
+      assertEquals("http://localhost/", result.get(1).getRequestHeader("referer"));
+      assertEquals("test", result.get(1).getRequestHeader("user-agent"));
+
+      assertEquals("/three?", result.get(2).getUri());
+      assertEquals("http://localhost/", result.get(2).getRequestHeader("referer"));
+
+      assertNull(result.get(3).getMethod());
+      assertNull(result.get(3).getVersion());
+      assertNull(result.get(3).getUri());
+      assertEquals(987654, result.get(3).getDurationNanos());
+      assertEquals(0, result.get(3).getRequestReadNanos());
+      assertEquals(123456, result.get(3).getFirstByteNanos());
+
+      List<AccessLogCaptureRoute.AccessLogData> lastTwo = spill.read(2);
+      assertEquals(2, lastTwo.size());
+      assertEquals(3, lastTwo.get(0).getTimestamp());
+      assertEquals(4, lastTwo.get(1).getTimestamp());
+    }
+  }
+
+  @Test
+  public void testTruncation(@TempDir Path dir) throws Exception {
+    StringBuilder ascii = new StringBuilder("/");
+    StringBuilder euro = new StringBuilder("/");
+    StringBuilder emoji = new StringBuilder("/");
+    StringBuilder accent = new StringBuilder("/");
+    for (int i = 0; i < 5000; ++i) {
+      ascii.append('a');
+      euro.append('€');
+      emoji.append("😀");
+      accent.append('é');
+    }
+    try (AccessLogSpill spill = new AccessLogSpill(dir, AccessLogSpill.MIN_SEGMENT_SIZE, 10 * AccessLogSpill.MIN_SEGMENT_SIZE)) {
+      spill.append(data(1, ascii.toString(), null));
+      spill.append(data(2, euro.toString(), null));
+      spill.append(data(3, emoji.toString(), null));
+      spill.append(data(4, accent.toString(), null));
+      List<AccessLogCaptureRoute.AccessLogData> result = spill.read(10);
+      assertEquals(4, result.size());
+      assertEquals(ascii.substring(0, 4096), result.get(0).getUri());
+      assertEquals(euro.substring(0, 1 + (4096 - 1) / 3), result.get(1).getUri());
+      assertEquals(emoji.substring(0, 1 + 2 * ((4096 - 1) / 4)), result.get(2).getUri());
+      assertEquals(accent.substring(0, 1 + (4096 - 1) / 2), result.get(3).getUri());
+    }
+  }
+
+  @Test
+  public void testRolloverAndRescan(@TempDir Path dir) throws Exception {
+    int count = 5000;
+    try (AccessLogSpill spill = new AccessLogSpill(dir, AccessLogSpill.MIN_SEGMENT_SIZE, 4 * AccessLogSpill.MIN_SEGMENT_SIZE)) {
+      for (int i = 0; i < count; ++i) {
+        long dropped = spill.getDropped();
+        spill.append(data(i, "/path/" + i, null));
+        while (spill.getDropped() > dropped) {
+          // Give the background thread a chance to catch up and try again, the test is not about dropping entries
+          Thread.sleep(10);
+          dropped = spill.getDropped();
+          spill.append(data(i, "/path/" + i, null));
+        }
+      }
+      assertTrue(spill.getSegmentCount() <= 4);
+      List<AccessLogCaptureRoute.AccessLogData> result = spill.read(count);
+      assertTrue(result.size() > 1000);
+      assertTrue(result.size() < count);
+      for (int i = 1; i < result.size(); ++i) {
+        assertTrue(result.get(i).getTimestamp() > result.get(i - 1).getTimestamp());
+      }
+      assertEquals(count - 1, result.get(result.size() - 1).getTimestamp());
+    }
+    assertTrue(countSegmentFiles(dir) <= 4);
+
+    try (AccessLogSpill spill = new AccessLogSpill(dir, AccessLogSpill.MIN_SEGMENT_SIZE, 4 * AccessLogSpill.MIN_SEGMENT_SIZE)) {
+      List<AccessLogCaptureRoute.AccessLogData> result = spill.read(10);
+      assertEquals(10, result.size());
+      assertEquals(count - 1, result.get(9).getTimestamp());
+
+      spill.append(data(count, "/after", null));
+      result = spill.read(1);
+      assertEquals("/after", result.get(0).getUri());
+    }
+  }
+
+  @Test
+  public void testIgnoresInvalidSegments(@TempDir Path dir) throws Exception {
+    Files.write(dir.resolve("accesslog-0000000000000007.seg"), new byte[16]);
+    Files.write(dir.resolve("accesslog-0000000000000008.seg"), new byte[4]);
+    Files.write(dir.resolve("accesslog-wibble.seg"), new byte[16]);
+    try (AccessLogSpill spill = new AccessLogSpill(dir, AccessLogSpill.MIN_SEGMENT_SIZE, 10 * AccessLogSpill.MIN_SEGMENT_SIZE)) {
+      assertEquals(1, spill.getSegmentCount());
+      assertEquals(0, spill.read(10).size());
+    }
+  }
+
+  @Test
+  public void testDropsWhenNoSegmentAvailable(@TempDir Path dir) throws Exception {
+    AccessLogSpill spill = new AccessLogSpill(dir, AccessLogSpill.MIN_SEGMENT_SIZE, 10 * AccessLogSpill.MIN_SEGMENT_SIZE);
+    spill.close();
+    // With the background thread stopped at most two segments can be filled
+    for (int i = 0; i < 10000; ++i) {
+      spill.append(data(i, "/path/" + i, null));
+    }
+    assertTrue(spill.getDropped() > 0);
+    assertTrue(spill.getSegmentCount() <= 2);
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class ChunkedResponseWriterTest {
+
+  private static HttpServerResponse mockResponse(List<String> chunks) {
+    HttpServerResponse response = mock(HttpServerResponse.class);
+    when(response.write(any(Buffer.class))).thenAnswer(invocation -> {
+      chunks.add(invocation.getArgument(0, Buffer.class).toString(StandardCharsets.UTF_8));
+      return Future.succeededFuture();
+    });
+    when(response.end(any(Buffer.class))).thenAnswer(invocation -> {
+      chunks.add(invocation.getArgument(0, Buffer.class).toString(StandardCharsets.UTF_8));
+      return Future.succeededFuture();
+    });
+    return response;
+  }
+
+  @Test
+  public void testChunking() {
+    List<String> chunks = new ArrayList<>();
+    HttpServerResponse response = mockResponse(chunks);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response, 8, 1000);
+    verify(response).setChunked(true);
+
+    Future<Void> result = writer.pump(5, i -> {
+      writer.write('a' + i);
+      writer.write("---".getBytes(StandardCharsets.UTF_8), 0, 3);
+    });
+    assertTrue(result.succeeded());
+    writer.end();
+    assertEquals(List.of("a---b---", "c---d---", "e---"), chunks);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBackPressure() {
+    List<String> chunks = new ArrayList<>();
+    HttpServerResponse response = mockResponse(chunks);
+    when(response.writeQueueFull()).thenReturn(false, true, false);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response, 1, 1000);
+
+    Future<Void> result = writer.pump(4, i -> writer.write('a' + i));
+    assertFalse(result.isComplete());
+    assertEquals(List.of("a", "b"), chunks);
+
+    ArgumentCaptor<Handler<Void>> drain = ArgumentCaptor.forClass(Handler.class);
+    verify(response).drainHandler(drain.capture());
+    drain.getValue().handle(null);
+    assertTrue(result.succeeded());
+    assertEquals(List.of("a", "b", "c", "d"), chunks);
+    verify(response, times(1)).drainHandler(null);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testClosedWhileWaiting() {
+    List<String> chunks = new ArrayList<>();
+    HttpServerResponse response = mockResponse(chunks);
+    when(response.writeQueueFull()).thenReturn(true);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response, 1, 1000);
+    Future<Void> result = writer.stream(4, i -> writer.write('a' + i), () -> writer.append("trailer"));
+    assertFalse(result.isComplete());
+    assertEquals(List.of("a"), chunks);
+
+    // The drain handler will never be called once the connection has gone
+    ArgumentCaptor<Handler<Void>> close = ArgumentCaptor.forClass(Handler.class);
+    verify(response).closeHandler(close.capture());
+    close.getValue().handle(null);
+    assertTrue(result.failed());
+    assertEquals("Response closed", result.cause().getMessage());
+    assertEquals(List.of("a"), chunks);
+    verify(response).reset();
+    verify(response).drainHandler(null);
+    verify(response).closeHandler(null);
+    verify(response).exceptionHandler(null);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testExceptionWhileWaiting() {
+    HttpServerResponse response = mockResponse(new ArrayList<>());
+    when(response.writeQueueFull()).thenReturn(true);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response, 1, 1000);
+    Future<Void> result = writer.pump(4, i -> writer.write('a' + i));
+    assertFalse(result.isComplete());
+
+    ArgumentCaptor<Handler<Throwable>> exception = ArgumentCaptor.forClass(Handler.class);
+    verify(response).exceptionHandler(exception.capture());
+    exception.getValue().handle(new IllegalStateException("Connection reset"));
+    assertTrue(result.failed());
+    assertEquals("Connection reset", result.cause().getMessage());
+    verify(response).drainHandler(null);
+  }
+
+  @Test
+  public void testClosed() {
+    HttpServerResponse response = mockResponse(new ArrayList<>());
+    when(response.closed()).thenReturn(true);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
+    assertTrue(writer.pump(4, i -> writer.write('a')).failed());
+  }
+
+  @Test
+  public void testProducerFailure() {
+    HttpServerResponse response = mockResponse(new ArrayList<>());
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response);
+    Future<Void> result = writer.pump(4, i -> {
+      throw new IllegalStateException("Bad");
+    });
+    assertTrue(result.failed());
+    assertEquals("Bad", result.cause().getMessage());
+  }
+
+  @Test
+  public void testStream() {
+    List<String> chunks = new ArrayList<>();
+    HttpServerResponse response = mockResponse(chunks);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response, 1024, 1000);
+    writer.append("<ul>").append(null);
+    Future<Void> result = writer.stream(3, i -> writer.append("<li>").append(Integer.toString(i)).append("</li>"), () -> writer.append("</ul>"));
+    assertTrue(result.succeeded());
+    assertEquals(List.of("<ul><li>0</li><li>1</li><li>2</li></ul>"), chunks);
+    verify(response, times(0)).reset();
+  }
+
+  @Test
+  public void testStreamFailure() {
+    List<String> chunks = new ArrayList<>();
+    HttpServerResponse response = mockResponse(chunks);
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(response, 1024, 1000);
+    Future<Void> result = writer.stream(3, i -> {
+      throw new IllegalStateException("Bad");
+    }, null);
+    assertTrue(result.failed());
+    assertTrue(chunks.isEmpty());
+    verify(response).reset();
+  }
+
+}
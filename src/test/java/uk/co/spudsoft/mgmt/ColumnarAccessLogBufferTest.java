@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class ColumnarAccessLogBufferTest {
+
+  private static AccessLogCaptureRoute.AccessLogData data(long timestamp, String uri, String[] headers) {
+    return new AccessLogCaptureRoute.AccessLogData(timestamp, timestamp, timestamp + 5, HttpMethod.GET, HttpVersion.HTTP_1_1
+            , "http", "localhost", uri, "127.0.0.1", 200, 1, 2, headers, new String[]{"content-type", "text/plain"});
+  }
+
+  @Test
+  public void testBadCapacity() {
+    assertThrows(IllegalArgumentException.class, () -> new ColumnarAccessLogBuffer(0));
+  }
+
+  @Test
+  public void testRoundTrip() {
+    ColumnarAccessLogBuffer buffer = new ColumnarAccessLogBuffer(4);
+    assertEquals(0, buffer.size());
+    assertEquals(0, buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new).length);
+
+    buffer.add(data(1, "/one", null));
+    buffer.add(data(2, "/two", new String[]{"Referer", "http://localhost/"}));
+    buffer.add(data(3, "/three", new String[]{"User-Agent", "test"}));
+    buffer.add(data(4, "/four", new String[]{"Referrer", "http://localhost/", "User-Agent", "test", "Accept", "*/*"}));
+    buffer.add(new AccessLogCaptureRoute.AccessLogData(5, 5, 6, 987654, 0, 123456, null, null, null, null, null, null, 0, 0, 0, null, null));
+    assertEquals(4, buffer.size());
+
+    AccessLogCaptureRoute.AccessLogData[] result = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new);
+    assertEquals(4, result.length);
+
+    assertEquals(2, result[0].getSequence());
+    assertEquals(2, result[0].getTimestamp());
+    assertEquals(7, result[0].getEndTimestamp());
+    assertEquals(5000000, result[0].getDurationNanos());
+    assertEquals(AccessLogCaptureRoute.AccessLogData.NOT_RECORDED, result[0].getRequestReadNanos());
+    assertEquals(AccessLogCaptureRoute.AccessLogData.NOT_RECORDED, result[0].getFirstByteNanos());
+    assertEquals(HttpMethod.GET, result[0].getMethod());
+    assertEquals(HttpVersion.HTTP_1_1, result[0].getVersion());
+    assertEquals("http://localhost/two", result[0].getAbsoluteUri());
+    assertEquals("127.0.0.1", result[0].getRemoteAddress());
+    assertEquals(200, result[0].getStatusCode());
+    assertEquals(1, result[0].getBytesRead());
+    assertEquals(2, result[0].getBytesWritten());
+    assertEquals("http://localhost/", result[0].getRequestHeader("referer"));
+    assertNull(result[0].getRequestHeader("user-agent"));
+    assertTrue(result[0].getResponseHeaders().isEmpty());
+
+    assertNull(result[1].getRequestHeader("referer"));
+    assertEquals("test", result[1].getRequestHeader("user-agent"));
+
+    assertEquals("http://localhost/", result[2].getRequestHeader("referer"));
+    assertEquals("test", result[2].getRequestHeader("user-agent"));
+    assertNull(result[2].getRequestHeader("accept"));
+
+    assertEquals(5, result[3].getTimestamp());
+    assertEquals(5, result[3].getEndTimestamp());
+    assertEquals(987654, result[3].getDurationNanos());
+    assertEquals(0, result[3].getRequestReadNanos());
+    assertEquals(123456, result[3].getFirstByteNanos());
+    assertNull(result[3].getMethod());
+    assertNull(result[3].getVersion());
+    assertNull(result[3].getUri());
+    assertTrue(result[3].getRequestHeaders().isEmpty());
+  }
+
+  @Test
+  public void testToArraySince() {
+    ColumnarAccessLogBuffer buffer = new ColumnarAccessLogBuffer(4);
+    for (int i = 1; i <= 6; ++i) {
+      buffer.add(data(i, "/" + i, null));
+    }
+    AccessLogCaptureRoute.AccessLogData[] result = buffer.toArraySince(AccessLogCaptureRoute.AccessLogData[]::new, 4);
+    assertEquals(3, result.length);
+    assertEquals(4, result[0].getSequence());
+    assertEquals("/6", result[2].getUri());
+    assertEquals(1, buffer.toArraySince(AccessLogCaptureRoute.AccessLogData[]::new, 6).length);
+    assertEquals(4, buffer.toArraySince(AccessLogCaptureRoute.AccessLogData[]::new, 0).length);
+  }
+
+  @Test
+  public void testToArrayFiltered() {
+    ColumnarAccessLogBuffer buffer = new ColumnarAccessLogBuffer(4);
+    assertEquals(0, buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().addStatus("5xx")).length);
+    for (int i = 1; i <= 6; ++i) {
+      buffer.add(AccessLogFilterTest.data(i % 2 == 0 ? HttpMethod.GET : HttpMethod.POST, "/path/" + i, "10.0.0." + (i % 3), i < 4 ? 200 : 500 + i, i * 100, i));
+    }
+    // The buffer holds 3, 4, 5 and 6 and has wrapped, so the evicted entries must have been removed from the index
+    assertEquals(4, buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, null).length);
+    AccessLogCaptureRoute.AccessLogData[] result = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().addStatus("2xx"));
+    assertEquals(1, result.length);
+    assertEquals("/path/3", result[0].getUri());
+
+    result = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().addStatus("5xx"));
+    assertEquals(3, result.length);
+    assertEquals("/path/4", result[0].getUri());
+    assertEquals("/path/5", result[1].getUri());
+    assertEquals("/path/6", result[2].getUri());
+    assertEquals(506, result[2].getStatusCode());
+
+    result = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().addStatus("505").addStatus("200"));
+    assertEquals(2, result.length);
+    assertEquals("/path/3", result[0].getUri());
+    assertEquals("/path/5", result[1].getUri());
+
+    result = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().setMethod(HttpMethod.GET).setMinDurationMs(5));
+    assertEquals(1, result.length);
+    assertEquals("/path/6", result[0].getUri());
+
+    result = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().setRemoteAddress("10.0.0.1").setPathPrefix("/path/"));
+    assertEquals(1, result.length);
+    assertEquals("/path/4", result[0].getUri());
+
+    result = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().setFrom(400).setTo(500).setPathPrefix("/path/5"));
+    assertEquals(1, result.length);
+    assertEquals("/path/5", result[0].getUri());
+
+    // Values that are not in the dictionary cannot match anything
+    assertEquals(0, buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().setMethod(HttpMethod.PATCH)).length);
+    assertEquals(0, buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().setRemoteAddress("10.0.0.9")).length);
+    assertEquals(0, buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new, new AccessLogFilter().setPathPrefix("/other")).length);
+  }
+
+  @Test
+  public void testDictionaryCompaction() {
+    ColumnarAccessLogBuffer buffer = new ColumnarAccessLogBuffer(10, Runnable::run);
+    for (int i = 0; i < 10000; ++i) {
+      buffer.add(data(i, "/path?i=" + i, null));
+    }
+    // 2 * 7 * 10 + 1024 is the limit before compaction
+    assertTrue(buffer.getDictionarySize() <= 1164, "Dictionary size is " + buffer.getDictionarySize());
+
+    AccessLogCaptureRoute.AccessLogData[] result = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new);
+    assertEquals(10, result.length);
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(9990 + i, result[i].getTimestamp());
+      assertEquals("/path?i=" + (9990 + i), result[i].getUri());
+      assertEquals(HttpMethod.GET, result[i].getMethod());
+      assertEquals("localhost", result[i].getHost());
+    }
+  }
+
+  @Test
+  public void testConcurrentCompaction() throws Exception {
+    ExecutorService compactor = Executors.newSingleThreadExecutor();
+    ColumnarAccessLogBuffer buffer = new ColumnarAccessLogBuffer(100, compactor);
+    int threads = 4;
+    int perThread = 20000;
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    ExecutorService writers = Executors.newFixedThreadPool(threads);
+    try {
+      for (int t = 0; t < threads; ++t) {
+        int base = t * perThread;
+        futures.add(writers.submit(() -> {
+          start.await();
+          for (int i = base; i < base + perThread; ++i) {
+            buffer.add(data(i, "/path?i=" + i, new String[]{"User-Agent", "agent" + i}));
+          }
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      writers.shutdown();
+      compactor.shutdown();
+      assertTrue(compactor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+    // Every id must still refer to the value it was stored with, whichever dictionary it was found in
+    AccessLogCaptureRoute.AccessLogData[] result = buffer.toArray(AccessLogCaptureRoute.AccessLogData[]::new);
+    assertEquals(100, result.length);
+    for (AccessLogCaptureRoute.AccessLogData item : result) {
+      assertEquals("/path?i=" + item.getTimestamp(), item.getUri());
+      assertEquals("agent" + item.getTimestamp(), item.getRequestHeader("user-agent"));
+      assertEquals("localhost", item.getHost());
+    }
+    assertTrue(buffer.getDictionarySize() <= 2 * 7 * 100 + 1024 + 7 * threads, "Dictionary size is " + buffer.getDictionarySize());
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.impl.Utils;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class CombinedLogFormatterTest {
+
+  private static String format(CombinedLogFormatter formatter, AccessLogCaptureRoute.AccessLogData record) {
+    return formatter.append(Buffer.buffer(), record).toString(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testFormat() {
+    CombinedLogFormatter formatter = new CombinedLogFormatter();
+    long timestamp = 1672531200123L;
+    String date = Utils.formatRFC1123DateTime(timestamp);
+
+    AccessLogCaptureRoute.AccessLogData data = new AccessLogCaptureRoute.AccessLogData(1, timestamp, timestamp + 5, HttpMethod.GET, HttpVersion.HTTP_1_1
+            , "http", "localhost:8080", "/path?q=1", "127.0.0.1", 200, 0, 1234
+            , new String[]{"Referer", "http://localhost/", "User-Agent", "test agent"}
+            , null);
+    assertEquals("127.0.0.1 - - [" + date + "] \"GET http://localhost:8080/path?q=1 HTTP/1.1\" 200 1234 \"http://localhost/\" \"test agent\" 5000 - -\n"
+            , format(formatter, data));
+
+    // Same second, so the cached date is used
+    data = new AccessLogCaptureRoute.AccessLogData(2, timestamp + 500, timestamp + 505, HttpMethod.POST, HttpVersion.HTTP_2
+            , null, null, "/café", "::1", 503, 0, 0
+            , new String[]{"Referrer", "http://example.com/"}
+            , null);
+    assertEquals("::1 - - [" + date + "] \"POST /café HTTP/2.0\" 503 0 \"http://example.com/\" \"-\" 5000 - -\n"
+            , format(formatter, data));
+
+    // A new second and every value missing
+    data = new AccessLogCaptureRoute.AccessLogData(3, timestamp + 1000, timestamp + 1000, null, null
+            , "http", null, null, null, 0, 0, -42
+            , null
+            , null);
+    assertEquals("null - - [" + Utils.formatRFC1123DateTime(timestamp + 1000) + "] \"null null -\" 0 -42 \"-\" \"-\" 0 - -\n"
+            , format(formatter, data));
+
+    data = new AccessLogCaptureRoute.AccessLogData(4, timestamp, timestamp, HttpMethod.GET, HttpVersion.HTTP_1_0
+            , "https", "example.com", "/" + "x".repeat(1000), "10.0.0.1", 404, 0, Long.MIN_VALUE
+            , null
+            , null);
+    assertEquals("10.0.0.1 - - [" + date + "] \"GET https://example.com/" + "x".repeat(1000) + " HTTP/1.0\" 404 " + Long.MIN_VALUE + " \"-\" \"-\" 0 - -\n"
+            , format(formatter, data));
+
+    // Sub-millisecond phases
+    data = new AccessLogCaptureRoute.AccessLogData(5, timestamp, timestamp, 987654, 0, 123456, HttpMethod.GET, HttpVersion.HTTP_1_1
+            , null, null, "/fast", "10.0.0.1", 204, 0, 0
+            , null
+            , null);
+    assertEquals("10.0.0.1 - - [" + date + "] \"GET /fast HTTP/1.1\" 204 0 \"-\" \"-\" 987 0 123\n"
+            , format(formatter, data));
+  }
+
+}
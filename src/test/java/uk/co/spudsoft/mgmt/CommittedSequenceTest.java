@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class CommittedSequenceTest {
+
+  @Test
+  public void testOutOfOrder() {
+    assertThrows(IllegalArgumentException.class, () -> new CommittedSequence(0));
+    CommittedSequence sequence = new CommittedSequence(3);
+    assertEquals(0, sequence.getCommitted());
+    long first = sequence.allocate();
+    long second = sequence.allocate();
+    long third = sequence.allocate();
+    assertEquals(1, first);
+    assertEquals(3, third);
+
+    // The watermark does not pass a sequence number that has not been committed
+    sequence.commit(third);
+    assertEquals(0, sequence.getCommitted());
+    sequence.commit(first);
+    assertEquals(1, sequence.getCommitted());
+    sequence.commit(second);
+    assertEquals(3, sequence.getCommitted());
+
+    // The slots (rounded up to four) are reused
+    for (int i = 0; i < 10; ++i) {
+      sequence.commit(sequence.allocate());
+    }
+    assertEquals(13, sequence.getCommitted());
+  }
+
+  @Test
+  public void testConcurrent() throws Exception {
+    CommittedSequence sequence = new CommittedSequence(8);
+    int threadCount = 4;
+    int perThread = 20000;
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; ++t) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < perThread; ++i) {
+          long seq = sequence.allocate();
+          if (ThreadLocalRandom.current().nextInt(100) == 0) {
+            Thread.yield();
+          }
+          sequence.commit(seq);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(threadCount * perThread, sequence.getCommitted());
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class ConcurrencyHistoryTest {
+
+  private static final long BASE = 1672531200000L;
+
+  @Test
+  public void testBadArguments() {
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyHistory(0, () -> 0));
+  }
+
+  @Test
+  public void testHistory() {
+    AtomicLong gauge = new AtomicLong();
+    ConcurrencyHistory history = new ConcurrencyHistory(3, gauge::get);
+    assertEquals(3, history.size());
+    assertEquals(0, history.toJson(10).size());
+
+    // First second: samples of 2 and 4, with a spike to 7 between samples
+    gauge.set(2);
+    history.sample(BASE);
+    history.observe(7);
+    history.observe(5);
+    gauge.set(4);
+    history.sample(BASE + 500);
+    assertEquals(7, history.getCurrentPeak());
+    assertEquals(0, history.toJson(10).size());
+
+    // Second second: a single sample of 1
+    gauge.set(1);
+    history.sample(BASE + 1000);
+    assertEquals(1, history.getCurrentPeak());
+    JsonArray json = history.toJson(10);
+    assertEquals(1, json.size());
+    JsonObject first = json.getJsonObject(0);
+    assertEquals("2023-01-01T00:00", first.getString("Timestamp"));
+    assertEquals(7, first.getLong("Peak"));
+    assertEquals(3.0, first.getDouble("Average"), 0.0001);
+
+    // Skip a second, then fill the ring so the first second is overwritten
+    history.sample(BASE + 3000);
+    history.sample(BASE + 4000);
+    history.sample(BASE + 5000);
+    json = history.toJson(10);
+    assertEquals(2, json.size());
+    assertEquals("2023-01-01T00:00:03", json.getJsonObject(0).getString("Timestamp"));
+    assertEquals("2023-01-01T00:00:04", json.getJsonObject(1).getString("Timestamp"));
+    assertEquals(1, json.getJsonObject(1).getLong("Peak"));
+    assertEquals(1.0, json.getJsonObject(1).getDouble("Average"), 0.0001);
+
+    json = history.toJson(1);
+    assertEquals(1, json.size());
+    assertEquals("2023-01-01T00:00:04", json.getJsonObject(0).getString("Timestamp"));
+  }
+
+}
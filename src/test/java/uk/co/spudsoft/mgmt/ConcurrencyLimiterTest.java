@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.json.JsonObject;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class ConcurrencyLimiterTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testBadArguments() {
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(0));
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(5, 10, 20, 100));
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(25, 10, 20, 100));
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(10, 10, 5, 100));
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(10, 10, 20, 0));
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(10).setRetryAfterSeconds(-1));
+  }
+
+  @Test
+  public void testFixed() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2).setRetryAfterSeconds(5);
+    assertFalse(limiter.isAdaptive());
+    assertEquals(5, limiter.getRetryAfterSeconds());
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    assertEquals(2, limiter.getInFlight());
+    assertEquals(2, limiter.getAccepted());
+    assertEquals(1, limiter.getRejected());
+
+    // Slow requests do not change a fixed limit
+    limiter.release(0, TimeUnit.HOURS.toNanos(1));
+    assertEquals(2, limiter.getLimit());
+    assertTrue(limiter.tryAcquire());
+
+    JsonObject json = limiter.toJson();
+    assertEquals(false, json.getBoolean("Adaptive"));
+    assertEquals(2, json.getInteger("Limit"));
+    assertEquals(2, json.getInteger("InFlight"));
+    assertEquals(3, json.getLong("Accepted"));
+    assertEquals(1, json.getLong("Rejected"));
+    assertFalse(json.containsKey("LatencyThresholdMs"));
+  }
+
+  @Test
+  public void testAdaptive() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 5, 12, 100);
+    assertTrue(limiter.isAdaptive());
+    long start = System.nanoTime() + MS;
+
+    // Fast requests with the limit barely used do not increase it
+    assertTrue(limiter.tryAcquire());
+    limiter.release(start, start + MS);
+    assertEquals(10, limiter.getLimit());
+
+    // Fast requests with the limit at least half used increase it, up to the maximum
+    for (int i = 0; i < 7; ++i) {
+      assertTrue(limiter.tryAcquire());
+    }
+    for (int i = 0; i < 4; ++i) {
+      limiter.release(start, start + MS);
+    }
+    assertEquals(12, limiter.getLimit());
+    assertEquals(3, limiter.getInFlight());
+
+    // A burst of slow requests that started together only reduces the limit once
+    for (int i = 0; i < 5; ++i) {
+      assertTrue(limiter.tryAcquire());
+    }
+    for (int i = 0; i < 5; ++i) {
+      limiter.release(start, start + 200 * MS);
+    }
+    assertEquals(10, limiter.getLimit());
+
+    // Slow requests that started after the last decrease reduce it again, down to the minimum
+    for (int i = 0; i < 10; ++i) {
+      assertTrue(limiter.tryAcquire());
+      long later = start + (i + 1) * 1000 * MS;
+      limiter.release(later, later + 200 * MS);
+    }
+    assertEquals(5, limiter.getLimit());
+    assertEquals(3, limiter.getInFlight());
+
+    JsonObject json = limiter.toJson();
+    assertEquals(true, json.getBoolean("Adaptive"));
+    assertEquals(5, json.getInteger("MinLimit"));
+    assertEquals(12, json.getInteger("MaxLimit"));
+    assertEquals(100, json.getLong("LatencyThresholdMs"));
+  }
+
+}
@@ -18,6 +18,7 @@ package uk.co.spudsoft.mgmt;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,4 +42,14 @@ public class DumpSysPropsRouteTest {
     assertThat(DumpSysPropsRoute.getProperties().size(), greaterThan(1));
   }
   
+  /**
+   * Test of toString method, of class DumpSysPropsRoute.
+   */
+  @Test
+  public void testToString() {
+    assertEquals("<null>", DumpSysPropsRoute.toString(null));
+    assertEquals("value", DumpSysPropsRoute.toString("value"));
+    assertEquals("7", DumpSysPropsRoute.toString(7));
+  }
+  
 }
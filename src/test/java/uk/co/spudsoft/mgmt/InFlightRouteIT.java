@@ -17,11 +17,28 @@
 package uk.co.spudsoft.mgmt;
 
 import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
 import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.junit5.VertxExtension;
 import io.vertx.junit5.VertxTestContext;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +46,11 @@ import org.slf4j.LoggerFactory;
 import static io.restassured.RestAssured.given;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 /**
  *
  * @author jtalbut
@@ -77,4 +99,645 @@ public class InFlightRouteIT {
                 
             });
   }
+
+  @Test
+  public void testConcurrent(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    int concurrent = 3;
+    List<Promise<Void>> waiting = new CopyOnWriteArrayList<>();
+    Promise<Void> allWaiting = Promise.promise();
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    InFlightRoute.createAndDeploy(router, mgmtRouter);
+    router.route("/slow").handler(rc -> {
+      Promise<Void> promise = Promise.promise();
+      promise.future().onComplete(ar -> rc.response().end("done"));
+      waiting.add(promise);
+      if (waiting.size() == concurrent) {
+        allWaiting.complete();
+      }
+    });
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              logger.debug("Listening on port {}", port);
+              List<Future<Void>> responses = new ArrayList<>();
+              for (int i = 0; i < concurrent; ++i) {
+                responses.add(client.request(HttpMethod.GET, port, "localhost", "/slow?i=" + i)
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body)
+                        .mapEmpty());
+              }
+              return allWaiting.future().map(v -> responses);
+            })
+            .compose(responses -> vertx.executeBlocking(() -> {
+              String body = given()
+                  .accept(ContentType.JSON)
+                  .get("/manage/" + InFlightRoute.PATH)
+                  .then()
+                  .statusCode(200)
+                  .extract().body().asString()
+                  ;
+              logger.debug("In flight: {}", body);
+              return new JsonArray(body);
+            }).map(inFlight -> {
+              testContext.verify(() -> {
+                // The three slow requests and the request for the in flight requests
+                assertEquals(concurrent + 1, inFlight.size());
+                Set<Long> ids = new HashSet<>();
+                Set<String> uris = new HashSet<>();
+                for (int i = 0; i < inFlight.size(); ++i) {
+                  ids.add(inFlight.getJsonObject(i).getLong("Id"));
+                  uris.add(inFlight.getJsonObject(i).getString("AbsoluteUri").replaceAll("^http://[^/]*", ""));
+                }
+                assertEquals(concurrent + 1, ids.size());
+                assertEquals(Set.of("/slow?i=0", "/slow?i=1", "/slow?i=2", "/manage/" + InFlightRoute.PATH), uris);
+                assertEquals("GET", inFlight.getJsonObject(0).getString("Method"));
+              });
+              waiting.forEach(Promise::complete);
+              return responses;
+            }))
+            .compose(responses -> Future.all(responses))
+            .compose(v -> vertx.executeBlocking(() -> {
+              return new JsonArray(given()
+                  .get("/manage/" + InFlightRoute.PATH)
+                  .then()
+                  .statusCode(200)
+                  .extract().body().asString());
+            }))
+            .onSuccess(inFlight -> {
+              testContext.verify(() -> {
+                assertEquals(1, inFlight.size());
+              });
+              client.close();
+              testContext.completeNow();
+            })
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testStuck(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    CountDownLatch release = new CountDownLatch(1);
+    Promise<Void> slowStarted = Promise.promise();
+    Promise<Void> blockingStarted = Promise.promise();
+    Promise<Void> slowRelease = Promise.promise();
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    InFlightRoute route = new InFlightRoute(10);
+    route.standardDeploy(router, mgmtRouter);
+    router.route("/slow").handler(rc -> {
+      slowRelease.future().onComplete(ar -> rc.response().end("done"));
+      slowStarted.complete();
+    });
+    router.route("/blocking").blockingHandler(rc -> {
+      InFlightRoute.associateCurrentThread(rc);
+      blockingStarted.complete();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      rc.response().end("done");
+    });
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    List<Future<Void>> responses = new ArrayList<>();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              for (String uri : List.of("/slow", "/blocking")) {
+                responses.add(client.request(HttpMethod.GET, port, "localhost", uri)
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body)
+                        .mapEmpty());
+              }
+              return Future.all(slowStarted.future(), blockingStarted.future());
+            })
+            .compose(v -> vertx.executeBlocking(() -> {
+              // Nothing has been in flight for an hour
+              assertEquals(0, route.checkStuck(System.nanoTime(), TimeUnit.HOURS.toNanos(1)));
+              assertEquals(2, route.checkStuck(System.nanoTime(), 0));
+              // Each request is only reported once
+              assertEquals(0, route.checkStuck(System.nanoTime(), 0));
+              
+              String body = given()
+                  .get("/manage/" + InFlightRoute.STUCK_PATH)
+                  .then()
+                  .statusCode(200)
+                  .extract().body().asString()
+                  ;
+              logger.debug("Stuck: {}", body);
+              return new JsonArray(body);
+            }))
+            .onSuccess(stuck -> {
+              testContext.verify(() -> {
+                assertEquals(2, stuck.size());
+                Map<String, JsonObject> byUri = new HashMap<>();
+                for (int i = 0; i < stuck.size(); ++i) {
+                  byUri.put(stuck.getJsonObject(i).getString("Uri"), stuck.getJsonObject(i));
+                }
+                JsonObject slow = byUri.get("/slow");
+                assertEquals("GET", slow.getString("Method"));
+                assertTrue(slow.getString("ThreadName").startsWith("vert.x-eventloop-thread"), slow.getString("ThreadName"));
+                JsonObject blocking = byUri.get("/blocking");
+                assertTrue(blocking.getString("ThreadName").startsWith("vert.x-worker-thread"), blocking.getString("ThreadName"));
+                assertTrue(blocking.getJsonArray("StackTrace").stream().anyMatch(e -> e.toString().contains("InFlightRouteIT")), blocking.encodePrettily());
+              });
+            })
+            .onComplete(ar -> {
+              release.countDown();
+              slowRelease.complete();
+            })
+            .compose(v -> Future.all(responses))
+            .onSuccess(v -> {
+              client.close();
+              testContext.completeNow();
+            })
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testWatchdog(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    InFlightRoute route = new InFlightRoute();
+    assertThrows(IllegalArgumentException.class, () -> route.startWatchdog(0, 10));
+    assertThrows(IllegalArgumentException.class, () -> route.startWatchdog(10, 0));
+    
+    Promise<Void> slowRelease = Promise.promise();
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    route.standardDeploy(router, mgmtRouter);
+    router.route("/slow").handler(rc -> {
+      slowRelease.future().onComplete(ar -> rc.response().end("done"));
+    });
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    
+    // Starting twice replaces the first watchdog
+    route.startWatchdog(1000, 1000);
+    route.startWatchdog(20, 5);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              Future<Void> response = client.request(HttpMethod.GET, httperServerVerticle.getPort(), "localhost", "/slow")
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body)
+                        .mapEmpty();
+              Promise<Void> found = Promise.promise();
+              vertx.setPeriodic(10, id -> {
+                if (route.getStuck().size() > 0) {
+                  vertx.cancelTimer(id);
+                  found.complete();
+                }
+              });
+              return found.future().map(v -> response);
+            })
+            .compose(response -> {
+              testContext.verify(() -> {
+                InFlightRoute.StuckRequest[] stuck = route.getStuck().toArray(InFlightRoute.StuckRequest[]::new);
+                assertEquals(1, stuck.length);
+                assertEquals("/slow", stuck[0].getUri());
+                assertTrue(stuck[0].getStackTrace().length > 0);
+              });
+              route.stopWatchdog();
+              route.stopWatchdog();
+              slowRelease.complete();
+              return response;
+            })
+            .onSuccess(v -> {
+              client.close();
+              testContext.completeNow();
+            })
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testLimiter(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    Promise<Void> slowStarted = Promise.promise();
+    Promise<Void> slowRelease = Promise.promise();
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    InFlightRoute route = new InFlightRoute();
+    route.standardDeploy(router, mgmtRouter);
+    router.route("/slow").handler(rc -> {
+      slowRelease.future().onComplete(ar -> rc.response().end("done"));
+      slowStarted.complete();
+    });
+    router.route("/fast").handler(rc -> rc.response().end("fast"));
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> vertx.executeBlocking(() -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              
+              JsonObject disabled = new JsonObject(given().get("/manage/" + InFlightRoute.LIMIT_PATH)
+                      .then().statusCode(200).extract().body().asString());
+              assertEquals(false, disabled.getBoolean("Enabled"));
+              
+              route.setLimiter(new ConcurrencyLimiter(1).setRetryAfterSeconds(3));
+              given().get("/fast").then().statusCode(200);
+              return null;
+            }))
+            .compose(v -> {
+              Future<Void> response = client.request(HttpMethod.GET, port, "localhost", "/slow")
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body)
+                        .mapEmpty();
+              return slowStarted.future().map(v2 -> response);
+            })
+            .compose(response -> vertx.executeBlocking(() -> {
+              // The limit has been reached, so other requests are rejected, but the manage router is still available
+              given().get("/fast").then().statusCode(503).header("Retry-After", "3");
+              String body = given()
+                  .get("/manage/" + InFlightRoute.LIMIT_PATH)
+                  .then()
+                  .statusCode(200)
+                  .extract().body().asString()
+                  ;
+              logger.debug("Limit: {}", body);
+              JsonObject limit = new JsonObject(body);
+              assertEquals(true, limit.getBoolean("Enabled"));
+              assertEquals(1, limit.getInteger("Limit"));
+              assertEquals(1, limit.getInteger("InFlight"));
+              assertEquals(2, limit.getLong("Accepted"));
+              assertEquals(1, limit.getLong("Rejected"));
+              slowRelease.complete();
+              return response;
+            }))
+            .compose(response -> response)
+            .compose(v -> vertx.executeBlocking(() -> {
+              given().get("/fast").then().statusCode(200);
+              return null;
+            }))
+            .onSuccess(v -> {
+              testContext.verify(() -> {
+                assertEquals(0, route.getLimiter().getInFlight());
+                assertEquals(1, route.getLimiter().getRejected());
+              });
+              client.close();
+              testContext.completeNow();
+            })
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testLimiterManagementRoute(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    Promise<Void> slowStarted = Promise.promise();
+    Promise<Void> slowRelease = Promise.promise();
+    
+    // The documented order: the InFlightRoute is deployed before the manage router is mounted on the root router
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    Router adminRouter = Router.router(vertx);
+    InFlightRoute route = new InFlightRoute();
+    route.standardDeploy(router, mgmtRouter);
+    route.standardDeploy(router, adminRouter);
+    router.route("/slow").handler(rc -> {
+      slowRelease.future().onComplete(ar -> rc.response().end("done"));
+      slowStarted.complete();
+    });
+    router.route("/fast").handler(rc -> rc.response().end("fast"));
+    router.route("/admin/*").subRouter(adminRouter);
+    ManagementRoute.createAndDeploy(null, router, null, null, null, mgmtRouter, null);
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> vertx.executeBlocking(() -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              
+              route.setLimiter(new ConcurrencyLimiter(1));
+              // A request to a manage router that is not under the manage path is recorded by the root router,
+              // but releases its place in the limiter when it reaches the manage router
+              JsonObject limit = new JsonObject(given().get("/admin/" + InFlightRoute.LIMIT_PATH)
+                      .then().statusCode(200).extract().body().asString());
+              assertEquals(0, limit.getInteger("InFlight"));
+              assertEquals(1, limit.getLong("Accepted"));
+              given().get("/fast").then().statusCode(200);
+              return null;
+            }))
+            .compose(v -> {
+              Future<Void> response = client.request(HttpMethod.GET, port, "localhost", "/slow")
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body)
+                        .mapEmpty();
+              return slowStarted.future().map(v2 -> response);
+            })
+            .compose(response -> vertx.executeBlocking(() -> {
+              given().get("/fast").then().statusCode(503);
+              // Requests under the manage path are neither rejected nor counted against the limit
+              given().get("/manage").then().statusCode(200);
+              JsonObject limit = new JsonObject(given().get("/manage/" + InFlightRoute.LIMIT_PATH)
+                      .then().statusCode(200).extract().body().asString());
+              assertEquals(1, limit.getInteger("InFlight"));
+              assertEquals(3, limit.getLong("Accepted"));
+              assertEquals(1, limit.getLong("Rejected"));
+              slowRelease.complete();
+              return response;
+            }))
+            .compose(response -> response)
+            .onSuccess(v -> {
+              testContext.verify(() -> {
+                assertEquals(0, route.getLimiter().getInFlight());
+              });
+              client.close();
+              testContext.completeNow();
+            })
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testConcurrency(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    int concurrent = 2;
+    List<Promise<Void>> waiting = new CopyOnWriteArrayList<>();
+    Promise<Void> allWaiting = Promise.promise();
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    InFlightRoute route = new InFlightRoute(10, 60);
+    route.standardDeploy(router, mgmtRouter);
+    router.route("/slow/:id").handler(rc -> {
+      Promise<Void> promise = Promise.promise();
+      promise.future().onComplete(ar -> rc.response().end("done"));
+      waiting.add(promise);
+      if (waiting.size() == concurrent) {
+        allWaiting.complete();
+      }
+    });
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    
+    assertThrows(IllegalArgumentException.class, () -> route.startSampling(0));
+    route.startSampling(1000);
+    route.startSampling(5);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              List<Future<Void>> responses = new ArrayList<>();
+              for (int i = 0; i < concurrent; ++i) {
+                responses.add(client.request(HttpMethod.GET, port, "localhost", "/slow/" + i)
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body)
+                        .mapEmpty());
+              }
+              return allWaiting.future().map(v -> responses);
+            })
+            .compose(responses -> {
+              // Wait for a complete second to be sampled with the slow requests in flight
+              Promise<List<Future<Void>>> sampled = Promise.promise();
+              vertx.setPeriodic(50, id -> {
+                JsonArray history = route.getHistory().toJson(1);
+                if (!history.isEmpty() && history.getJsonObject(0).getLong("Peak") >= concurrent) {
+                  vertx.cancelTimer(id);
+                  sampled.complete(responses);
+                }
+              });
+              return sampled.future();
+            })
+            .compose(responses -> vertx.executeBlocking(() -> {
+              given().get("/manage/" + InFlightRoute.CONCURRENCY_PATH + "?seconds=x").then().statusCode(400);
+              given().get("/manage/" + InFlightRoute.CONCURRENCY_PATH + "?seconds=-1").then().statusCode(400);
+              String body = given()
+                  .get("/manage/" + InFlightRoute.CONCURRENCY_PATH + "?seconds=10")
+                  .then()
+                  .statusCode(200)
+                  .extract().body().asString()
+                  ;
+              logger.debug("Concurrency: {}", body);
+              JsonObject concurrency = new JsonObject(body);
+              assertEquals(concurrent + 1, concurrency.getInteger("InFlight"));
+              assertTrue(concurrency.getLong("CurrentPeak") >= concurrent);
+              assertEquals(new JsonObject()
+                      .put("GET /manage/" + InFlightRoute.CONCURRENCY_PATH, 1)
+                      .put("GET /slow/:id", concurrent)
+                      , concurrency.getJsonObject("Routes"));
+              JsonArray history = concurrency.getJsonArray("History");
+              assertTrue(history.size() >= 1 && history.size() <= 10, history.encode());
+              JsonObject last = history.getJsonObject(history.size() - 1);
+              assertTrue(last.getLong("Peak") >= concurrent, last.encode());
+              assertTrue(last.getDouble("Average") > 0, last.encode());
+              waiting.forEach(Promise::complete);
+              return responses;
+            }))
+            .compose(responses -> Future.all(responses))
+            .onComplete(ar -> {
+              route.stopSampling();
+              route.stopSampling();
+              client.close();
+            })
+            .onSuccess(v -> testContext.completeNow())
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testProgress(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    Promise<Void> slowStarted = Promise.promise();
+    Promise<Void> streamStarted = Promise.promise();
+    Promise<Void> release = Promise.promise();
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    InFlightRoute route = new InFlightRoute();
+    route.standardDeploy(router, mgmtRouter);
+    router.route("/slow").handler(rc -> {
+      release.future().onComplete(ar -> rc.response().end("done"));
+      slowStarted.complete();
+    });
+    router.route("/stream").handler(rc -> {
+      rc.response().setChunked(true);
+      long timer = vertx.setPeriodic(20, id -> {
+        rc.response().write("x".repeat(1000));
+        streamStarted.tryComplete();
+      });
+      release.future().onComplete(ar -> {
+        vertx.cancelTimer(timer);
+        rc.response().end();
+      });
+    });
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    List<Future<Void>> responses = new ArrayList<>();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              for (String uri : List.of("/slow", "/stream")) {
+                responses.add(client.request(HttpMethod.GET, port, "localhost", uri)
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body)
+                        .mapEmpty());
+              }
+              return Future.all(slowStarted.future(), streamStarted.future());
+            })
+            .compose(v -> vertx.executeBlocking(() -> {
+              given().get("/manage/" + InFlightRoute.PATH + "?sort=size").then().statusCode(400);
+              given().get("/manage/" + InFlightRoute.PATH + "?limit=all").then().statusCode(400);
+              
+              JsonArray byAge = new JsonArray(given()
+                  .get("/manage/" + InFlightRoute.PATH)
+                  .then()
+                  .statusCode(200)
+                  .extract().body().asString());
+              logger.debug("By age: {}", byAge);
+              assertEquals(3, byAge.size());
+              assertTrue(byAge.getJsonObject(0).getString("AbsoluteUri").endsWith("/slow"));
+              assertEquals(0, byAge.getJsonObject(0).getLong("BytesWritten"));
+              JsonObject stream = byAge.getJsonObject(1);
+              assertTrue(stream.getString("AbsoluteUri").endsWith("/stream"));
+              assertTrue(stream.getLong("BytesWritten") >= 1000, stream.encode());
+              assertTrue(stream.getDouble("WriteBytesPerSecond") > 0, stream.encode());
+              assertEquals(0, stream.getLong("BytesRead"));
+              assertEquals(false, stream.getBoolean("WriteQueueFull"));
+              
+              // Observe the stream again once it has made further progress
+              Thread.sleep(100);
+              route.observeProgress().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+              
+              JsonArray byStall = new JsonArray(given()
+                  .get("/manage/" + InFlightRoute.PATH + "?sort=stall&limit=2")
+                  .then()
+                  .statusCode(200)
+                  .extract().body().asString());
+              logger.debug("By stall: {}", byStall);
+              assertEquals(2, byStall.size());
+              assertTrue(byStall.getJsonObject(0).getString("AbsoluteUri").endsWith("/slow"));
+              assertTrue(byStall.getJsonObject(0).getDouble("SecondsSinceProgress") >= 0.1, byStall.encode());
+              assertTrue(byStall.getJsonObject(0).getDouble("SecondsSinceProgress") > byStall.getJsonObject(1).getDouble("SecondsSinceProgress"), byStall.encode());
+              return null;
+            }))
+            .onComplete(ar -> release.complete())
+            .compose(v -> Future.all(responses))
+            .onSuccess(v -> {
+              client.close();
+              testContext.completeNow();
+            })
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testDrain(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    Promise<Void> slowStarted = Promise.promise();
+    Promise<Void> slowRelease = Promise.promise();
+    Promise<Void> stuckStarted = Promise.promise();
+    Promise<Void> stuckRelease = Promise.promise();
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    router.route("/manage/*").subRouter(mgmtRouter);
+    InFlightRoute route = new InFlightRoute();
+    route.standardDeploy(router, mgmtRouter, true, true);
+    router.route("/slow").handler(rc -> {
+      slowRelease.future().onComplete(ar -> rc.response().end("done"));
+      slowStarted.complete();
+    });
+    router.route("/stuck").handler(rc -> {
+      stuckRelease.future().onComplete(ar -> rc.response().end("done"));
+      stuckStarted.complete();
+    });
+    router.route("/fast").handler(rc -> rc.response().end("fast"));
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              Future<HttpClientResponse> slowResponse = client.request(HttpMethod.GET, port, "localhost", "/slow")
+                        .compose(request -> request.send());
+              return slowStarted.future().map(v -> slowResponse);
+            })
+            .compose(slowResponse -> {
+              return client.request(HttpMethod.POST, port, "localhost", "/manage/" + InFlightRoute.DRAIN_PATH + "?timeout=10")
+                        .compose(request -> request.send())
+                        .compose(drainResponse -> {
+                          // Start reading the body straight away, so that the first line is not missed
+                          Future<Buffer> drainBody = drainResponse.body();
+                          return vertx.executeBlocking(() -> {
+                            assertTrue(route.isDraining());
+                            given().get("/fast").then().statusCode(503).header("Connection", "close");
+                            JsonObject status = new JsonObject(given()
+                                    .get("/manage/" + InFlightRoute.DRAIN_PATH)
+                                    .then().statusCode(200).extract().body().asString());
+                            assertEquals(true, status.getBoolean("Draining"));
+                            assertEquals(1, status.getInteger("InFlight"));
+                            assertEquals(1, status.getLong("Rejected"));
+                            slowRelease.complete();
+                            return drainBody;
+                          }).compose(body -> body);
+                        })
+                        .compose(drainBody -> slowResponse.map(slow -> {
+                          testContext.verify(() -> {
+                            assertEquals("Draining, 1 requests in flight\nDrained\n", drainBody.toString());
+                            assertEquals("close", slow.getHeader("Connection"));
+                          });
+                          return slow;
+                        }));
+            })
+            .compose(v -> vertx.executeBlocking(() -> {
+              given().post("/manage/" + InFlightRoute.DRAIN_PATH + "?timeout=x").then().statusCode(400);
+              JsonObject status = new JsonObject(given()
+                      .delete("/manage/" + InFlightRoute.DRAIN_PATH)
+                      .then().statusCode(200).extract().body().asString());
+              assertEquals(false, status.getBoolean("Draining"));
+              assertEquals(0, status.getInteger("InFlight"));
+              given().get("/fast").then().statusCode(200);
+              return null;
+            }))
+            .compose(v -> {
+              client.request(HttpMethod.GET, port, "localhost", "/stuck").compose(request -> request.send());
+              return stuckStarted.future();
+            })
+            .compose(v -> vertx.executeBlocking(() -> {
+              String body = given()
+                      .post("/manage/" + InFlightRoute.DRAIN_PATH + "?timeout=0")
+                      .then().statusCode(200).extract().body().asString();
+              assertEquals("Draining, 1 requests in flight\nDeadline reached, 1 requests in flight\n", body);
+              route.stopDraining();
+              route.stopDraining();
+              assertFalse(route.isDraining());
+              return null;
+            }))
+            .onComplete(ar -> {
+              slowRelease.tryComplete();
+              stuckRelease.complete();
+              client.close();
+            })
+            .onSuccess(v -> testContext.completeNow())
+            .onFailure(testContext::failNow);
+  }
 }
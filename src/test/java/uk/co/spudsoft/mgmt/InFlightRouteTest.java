@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class InFlightRouteTest {
+
+  private static final long SECOND = InFlightRoute.PROGRESS_SAMPLE_NANOS;
+
+  @Test
+  public void testIsManagePath() {
+    InFlightRoute route = new InFlightRoute();
+    assertEquals("/manage", route.getManagePath());
+    assertTrue(route.isManagePath("/manage"));
+    assertTrue(route.isManagePath("/manage/inflight"));
+    assertFalse(route.isManagePath("/managed"));
+    assertFalse(route.isManagePath("/other/manage"));
+    assertFalse(route.isManagePath(null));
+    route.setManagePath("/admin/");
+    assertTrue(route.isManagePath("/admin/inflight"));
+    assertFalse(route.isManagePath("/manage/inflight"));
+    assertFalse(route.setManagePath(null).isManagePath("/manage"));
+  }
+
+  @Test
+  public void testProgress() {
+    RoutingContext context = mock(RoutingContext.class);
+    HttpServerRequest request = mock(HttpServerRequest.class);
+    when(context.request()).thenReturn(request);
+    long start = 1000;
+    InFlightRoute.InFlightRequest inFlight = new InFlightRoute.InFlightRequest(1, 0, start, context, Thread.currentThread(), true);
+
+    // Nothing transferred, so stalled since the start
+    InFlightRoute.Progress progress = inFlight.progress(start + SECOND, 0, 0);
+    assertEquals(0, progress.getReadRate(), 0.001);
+    assertEquals(0, progress.getWriteRate(), 0.001);
+    assertEquals(SECOND, progress.getStalledNanos());
+
+    // The first rate is measured from the observation one second after the start
+    progress = inFlight.progress(start + 2 * SECOND, 1000, 5000);
+    assertEquals(1000, progress.getBytesRead());
+    assertEquals(5000, progress.getBytesWritten());
+    assertEquals(1000, progress.getReadRate(), 0.001);
+    assertEquals(5000, progress.getWriteRate(), 0.001);
+    assertEquals(0, progress.getStalledNanos());
+
+    // Observations closer together than PROGRESS_SAMPLE_NANOS are not kept
+    inFlight.progress(start + 2 * SECOND + 1, 1000, 5000);
+    progress = inFlight.progress(start + 3 * SECOND, 1000, 5000);
+    assertEquals(500, progress.getReadRate(), 0.001);
+    assertEquals(2500, progress.getWriteRate(), 0.001);
+    assertEquals(SECOND, progress.getStalledNanos());
+
+    // Once the window is full the rate only covers the last PROGRESS_SAMPLES observations
+    long now = start + 3 * SECOND;
+    long written = 5000;
+    for (int i = 0; i < InFlightRoute.PROGRESS_SAMPLES; ++i) {
+      now += SECOND;
+      written += 100;
+      progress = inFlight.progress(now, 1000, written);
+    }
+    assertEquals(0, progress.getReadRate(), 0.001);
+    assertEquals(100, progress.getWriteRate(), 0.001);
+    assertEquals(0, progress.getStalledNanos());
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    assertEquals(0, LatencyHistogram.bucketIndex(-5));
+    assertEquals(31, LatencyHistogram.bucketIndex(31));
+    assertEquals(32, LatencyHistogram.bucketIndex(32));
+    assertEquals(32, LatencyHistogram.bucketIndex(33));
+    assertEquals(33, LatencyHistogram.bucketIndex(34));
+    assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    assertEquals(LatencyHistogram.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.BUCKET_COUNT - 1));
+
+    // Every value must be in a bucket whose highest value is no less than it and no more than 1/16th more than it
+    int previous = -1;
+    for (long value = 0; value < LatencyHistogram.MAX_VALUE; value = value * 9 / 8 + 1) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(index >= previous);
+      previous = index;
+      long highest = LatencyHistogram.highestValue(index);
+      assertTrue(highest >= value, "Value " + value + " is greater than " + highest);
+      assertTrue(highest - value <= value / LatencyHistogram.SUB_BUCKETS, "Value " + value + " is too far from " + highest);
+      assertEquals(index, LatencyHistogram.bucketIndex(highest));
+      assertEquals(index + 1, LatencyHistogram.bucketIndex(highest + 1));
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getValueAtPercentile(50));
+    assertEquals(0.0, histogram.getMean());
+    for (int i = 1; i <= 1000; ++i) {
+      histogram.record(i * 1000L);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1_000_000, histogram.getMax());
+    assertEquals(500_500.0, histogram.getMean());
+    assertEquals(500_000, histogram.getValueAtPercentile(50), 500_000 / LatencyHistogram.SUB_BUCKETS);
+    assertEquals(990_000, histogram.getValueAtPercentile(99), 990_000 / LatencyHistogram.SUB_BUCKETS);
+    assertEquals(1_000_000, histogram.getValueAtPercentile(99.9));
+    assertEquals(1_000_000, histogram.getValueAtPercentile(150));
+    assertEquals(LatencyHistogram.highestValue(LatencyHistogram.bucketIndex(1000)), histogram.getValueAtPercentile(-1));
+  }
+
+}
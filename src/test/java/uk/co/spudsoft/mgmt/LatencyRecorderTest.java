@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class LatencyRecorderTest {
+
+  @Test
+  public void testBadConfig() {
+    assertThrows(IllegalArgumentException.class, () -> new LatencyRecorder(0, 1000L));
+    assertThrows(IllegalArgumentException.class, () -> new LatencyRecorder(10));
+    assertThrows(IllegalArgumentException.class, () -> new LatencyRecorder(10, (long[]) null));
+    assertThrows(IllegalArgumentException.class, () -> new LatencyRecorder(10, 5L));
+    assertThrows(IllegalArgumentException.class, () -> new LatencyRecorder(10, 1000L, 1500L));
+    assertThrows(IllegalArgumentException.class, () -> new LatencyRecorder(10, 2000L, 1000L));
+    assertArrayEquals(new long[]{1000L, 3000L}, new LatencyRecorder(10, 1000L, 3000L).getWindowsMs());
+  }
+
+  @Test
+  public void testWindows() {
+    AtomicLong clock = new AtomicLong(1_000_000);
+    // Slices of 100ms, windows of 1s and 5s
+    LatencyRecorder recorder = new LatencyRecorder(clock::get, 10, 1000L, 5000L);
+
+    for (int i = 0; i < 100; ++i) {
+      recorder.record("GET /a", 1000L * (i + 1));
+      clock.addAndGet(10);
+    }
+    // 1s has passed, the first slice has expired from the short window
+    SortedMap<String, LatencyHistogram[]> result = recorder.snapshot();
+    assertEquals(1, result.size());
+    assertEquals(90, result.get("GET /a")[0].getCount());
+    assertEquals(100, result.get("GET /a")[1].getCount());
+    assertEquals(100_000, result.get("GET /a")[0].getMax());
+
+    clock.addAndGet(2000);
+    recorder.record("GET /a", 7);
+    result = recorder.snapshot();
+    assertEquals(1, result.get("GET /a")[0].getCount());
+    assertEquals(7, result.get("GET /a")[0].getMax());
+    assertEquals(101, result.get("GET /a")[1].getCount());
+    assertEquals(100_000, result.get("GET /a")[1].getMax());
+
+    clock.addAndGet(5000);
+    result = recorder.snapshot();
+    assertEquals(0, result.get("GET /a")[0].getCount());
+    assertEquals(0, result.get("GET /a")[1].getCount());
+  }
+
+  @Test
+  public void testMaxRoutes() {
+    LatencyRecorder recorder = new LatencyRecorder(2, 1000L);
+    recorder.record("GET /a", 1);
+    recorder.record("GET /b", 2);
+    recorder.record("GET /c", 3);
+    recorder.record("GET /d", 4);
+    recorder.record("GET /a", 5);
+    SortedMap<String, LatencyHistogram[]> result = recorder.snapshot();
+    assertEquals(3, recorder.getRouteCount());
+    assertEquals(List.of(LatencyRecorder.OTHER_ROUTE, "GET /a", "GET /b"), new ArrayList<>(result.keySet()));
+    assertEquals(2, result.get(LatencyRecorder.OTHER_ROUTE)[0].getCount());
+    assertEquals(2, result.get("GET /a")[0].getCount());
+  }
+
+  @Test
+  public void testThreads() throws Exception {
+    AtomicLong clock = new AtomicLong(1_000_000);
+    LatencyRecorder recorder = new LatencyRecorder(clock::get, 10, 1000L);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; ++t) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 10000; ++i) {
+          recorder.record("GET /a", i);
+          if (i % 1000 == 999) {
+            clock.addAndGet(1);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    LatencyHistogram histogram = recorder.snapshot().get("GET /a")[0];
+    assertEquals(40000, histogram.getCount());
+    assertEquals(9999, histogram.getMax());
+    assertTrue(histogram.getValueAtPercentile(50) >= 4999);
+  }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.restassured.RestAssured;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static io.restassured.RestAssured.given;
+import io.restassured.http.ContentType;
+import io.vertx.ext.web.Router;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
+
+/**
+ *
+ * @author jtalbut
+ */
+@ExtendWith(VertxExtension.class)
+public class LatencyRouteIT {
+  
+  @SuppressWarnings("constantname")
+  private static final Logger logger = LoggerFactory.getLogger(LatencyRouteIT.class);
+  
+  private int port;
+    
+  public LatencyRouteIT() {
+  }
+
+  @Test
+  public void testHandle(Vertx vertx, VertxTestContext testContext) throws Throwable {
+
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    Router apiRouter = Router.router(vertx);
+    Router otherRouter = Router.router(vertx);
+
+    LatencyRoute latency = new LatencyRoute(new LatencyRecorder(100, 60_000L, 600_000L));
+    latency.standardDeploy(router, mgmtRouter);
+    latency.addSubRouter(apiRouter);
+
+    router.route("/manage/*").subRouter(mgmtRouter);
+    router.route("/api/*").subRouter(apiRouter);
+    router.route("/other/*").subRouter(otherRouter);
+    router.getWithRegex("/regex/.*").handler(rc -> rc.end("regex"));
+    apiRouter.get("/items/:id").handler(rc -> rc.end("item"));
+    otherRouter.get("/thing").handler(rc -> rc.end("thing"));
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+                port = httperServerVerticle.getPort();
+                RestAssured.port = port;
+                logger.debug("Listening on port {}", port);
+    
+                testContext.verify(() -> {
+
+                  for (int i = 0; i < 5; ++i) {
+                    given().get("/api/items/" + i).then().statusCode(200);
+                  }
+                  given().get("/other/thing").then().statusCode(200);
+                  given().get("/regex/thing").then().statusCode(200);
+                  given().get("/nowhere").then().statusCode(404);
+
+                  String body = given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + LatencyRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body("route", hasItems("GET /api/items/:id", "GET /other/*", "GET /regex/.*", "GET /nowhere"))
+                      .body("find { it.route == 'GET /api/items/:id' }.windows[0].window", equalTo("1m"))
+                      .body("find { it.route == 'GET /api/items/:id' }.windows[0].count", equalTo(5))
+                      .body("find { it.route == 'GET /api/items/:id' }.windows[1].window", equalTo("10m"))
+                      .body("find { it.route == 'GET /api/items/:id' }.windows[1].count", equalTo(5))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Latency (json): {}", body);
+
+                  body = given()
+                      .accept(ContentType.HTML)
+                      .get("/manage/" + LatencyRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body(containsString("<td rowspan=\"2\">GET /api/items/:id</td>"))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Latency (html): {}", body);
+
+                  body = given()
+                      .accept(ContentType.TEXT)
+                      .get("/manage/" + LatencyRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body(containsString("GET /manage/latency 1m count="))
+                      .extract().body().asString()
+                      ;                  
+                  logger.debug("Latency (plain): {}", body);
+
+                });
+                        
+                testContext.completeNow();
+                return Future.succeededFuture();
+                
+            });
+  }
+
+}
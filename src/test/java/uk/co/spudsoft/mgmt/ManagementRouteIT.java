@@ -20,7 +20,14 @@ import io.restassured.RestAssured;
 import static io.restassured.RestAssured.given;
 import io.restassured.http.ContentType;
 import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.junit5.VertxExtension;
 import io.vertx.junit5.VertxTestContext;
@@ -31,6 +38,10 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.hamcrest.Matchers.hasItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
 /**
  *
  * @author jtalbut
@@ -186,4 +197,253 @@ public class ManagementRouteIT {
                 
             });
   }
+
+  @Test
+  public void testDrain(Vertx vertx, VertxTestContext testContext) {
+
+    Promise<Void> slowStarted = Promise.promise();
+    Promise<Void> slowRelease = Promise.promise();
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    
+    ManagementRoute.deployStandardMgmtEndpoints(mgmtRouter, router, Arrays.asList(InFlightRoute.DRAIN_PATH, ThreadDumpRoute.PATH), null);
+    router.route("/slow").handler(rc -> {
+      slowRelease.future().onComplete(ar -> rc.response().end("done"));
+      slowStarted.complete();
+    });
+    router.route("/fast").handler(rc -> rc.response().end("fast"));
+    ManagementRoute.createAndDeploy(null, router, null, null, null, mgmtRouter, null);
+
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              Future<HttpClientResponse> slowResponse = client.request(HttpMethod.GET, port, "localhost", "/slow")
+                        .compose(request -> request.send());
+              return slowStarted.future().map(v -> slowResponse);
+            })
+            .compose(slowResponse -> client.request(HttpMethod.POST, port, "localhost", "/manage/" + InFlightRoute.DRAIN_PATH + "?timeout=10")
+                        .compose(request -> request.send())
+                        .compose(drainResponse -> {
+                          Future<Buffer> drainBody = drainResponse.body();
+                          return vertx.executeBlocking(() -> {
+                            given().get("/fast").then().statusCode(503);
+                            // The manage router is still available while draining, and does not count towards the requests in flight
+                            given().get("/manage").then().statusCode(200);
+                            given().get("/manage/" + ThreadDumpRoute.PATH).then().statusCode(200);
+                            JsonObject status = new JsonObject(given()
+                                    .get("/manage/" + InFlightRoute.DRAIN_PATH)
+                                    .then().statusCode(200).extract().body().asString());
+                            assertEquals(true, status.getBoolean("Draining"));
+                            assertEquals(1, status.getInteger("InFlight"));
+                            assertEquals(1, status.getLong("Rejected"));
+                            // The in flight routes have not been enabled
+                            given().get("/manage/" + InFlightRoute.PATH).then().statusCode(404);
+                            slowRelease.complete();
+                            return drainBody;
+                          }).compose(body -> body);
+                        })
+                        .compose(drainBody -> slowResponse.map(slow -> {
+                          testContext.verify(() -> {
+                            assertEquals("Draining, 1 requests in flight\nDrained\n", drainBody.toString());
+                          });
+                          return slow;
+                        }))
+            )
+            .compose(v -> vertx.executeBlocking(() -> {
+              JsonObject status = new JsonObject(given()
+                      .delete("/manage/" + InFlightRoute.DRAIN_PATH)
+                      .then().statusCode(200).extract().body().asString());
+              assertEquals(false, status.getBoolean("Draining"));
+              given().get("/fast").then().statusCode(200);
+              return null;
+            }))
+            .onComplete(ar -> {
+              slowRelease.tryComplete();
+              client.close();
+            })
+            .onSuccess(v -> testContext.completeNow())
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testStuck(Vertx vertx, VertxTestContext testContext) {
+
+    Promise<Void> slowStarted = Promise.promise();
+    Promise<Void> slowRelease = Promise.promise();
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    
+    InFlightRoute inFlight = new InFlightRoute().startWatchdog(100, 20);
+    ManagementRoute.deployStandardMgmtEndpoints(mgmtRouter, router, Arrays.asList(InFlightRoute.PATH), null, null, inFlight);
+    router.route("/slow").handler(rc -> {
+      slowRelease.future().onComplete(ar -> rc.response().end("done"));
+      slowStarted.complete();
+    });
+    ManagementRoute.createAndDeploy(null, router, null, null, null, mgmtRouter, null);
+
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              Future<Buffer> slowResponse = client.request(HttpMethod.GET, port, "localhost", "/slow")
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body);
+              return slowStarted.future().map(v -> slowResponse);
+            })
+            .compose(slowResponse -> vertx.executeBlocking(() -> {
+              JsonArray stuck = new JsonArray();
+              long deadline = System.currentTimeMillis() + 5000;
+              while (stuck.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                stuck = new JsonArray(given()
+                        .get("/manage/" + InFlightRoute.STUCK_PATH)
+                        .then().statusCode(200).extract().body().asString());
+              }
+              logger.debug("Stuck: {}", stuck);
+              assertEquals(1, stuck.size());
+              assertEquals("/slow", stuck.getJsonObject(0).getString("Uri"));
+              slowRelease.complete();
+              return slowResponse;
+            }).compose(body -> body))
+            .onComplete(ar -> {
+              inFlight.stopWatchdog();
+              slowRelease.tryComplete();
+              client.close();
+            })
+            .onSuccess(v -> testContext.completeNow())
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testLimiter(Vertx vertx, VertxTestContext testContext) {
+
+    Promise<Void> slowStarted = Promise.promise();
+    Promise<Void> slowRelease = Promise.promise();
+    
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    
+    InFlightRoute inFlight = new InFlightRoute().setLimiter(new ConcurrencyLimiter(1));
+    ManagementRoute.deployStandardMgmtEndpoints(mgmtRouter, router, Arrays.asList(InFlightRoute.PATH), null, null, inFlight);
+    router.route("/slow").handler(rc -> {
+      slowRelease.future().onComplete(ar -> rc.response().end("done"));
+      slowStarted.complete();
+    });
+    router.route("/fast").handler(rc -> rc.response().end("fast"));
+    ManagementRoute.createAndDeploy(null, router, null, null, null, mgmtRouter, null);
+
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    HttpClient client = vertx.createHttpClient();
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              Future<Buffer> slowResponse = client.request(HttpMethod.GET, port, "localhost", "/slow")
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::body);
+              return slowStarted.future().map(v -> slowResponse);
+            })
+            .compose(slowResponse -> vertx.executeBlocking(() -> {
+              // The limit has been reached, but the manage router is not counted against it
+              given().get("/fast").then().statusCode(503);
+              given().get("/manage").then().statusCode(200);
+              JsonObject limit = new JsonObject(given()
+                      .get("/manage/" + InFlightRoute.LIMIT_PATH)
+                      .then().statusCode(200).extract().body().asString());
+              assertEquals(true, limit.getBoolean("Enabled"));
+              assertEquals(1, limit.getInteger("InFlight"));
+              assertEquals(1, limit.getLong("Rejected"));
+              slowRelease.complete();
+              return slowResponse;
+            }).compose(body -> body))
+            .compose(v -> vertx.executeBlocking(() -> {
+              given().get("/fast").then().statusCode(200);
+              return null;
+            }))
+            .onComplete(ar -> {
+              slowRelease.tryComplete();
+              client.close();
+            })
+            .onSuccess(v -> testContext.completeNow())
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testConcurrency(Vertx vertx, VertxTestContext testContext) {
+
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    
+    ManagementRoute.deployStandardMgmtEndpoints(mgmtRouter, router, Arrays.asList(InFlightRoute.PATH), null);
+    ManagementRoute.createAndDeploy(null, router, null, null, null, mgmtRouter, null);
+
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> vertx.executeBlocking(() -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              // The standard deployment samples the concurrency, so the history fills up without anything else being done
+              JsonObject concurrency = new JsonObject();
+              long deadline = System.currentTimeMillis() + 5000;
+              while (concurrency.getJsonArray("History", new JsonArray()).isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+                concurrency = new JsonObject(given()
+                        .get("/manage/" + InFlightRoute.CONCURRENCY_PATH)
+                        .then().statusCode(200).extract().body().asString());
+              }
+              logger.debug("Concurrency: {}", concurrency);
+              assertFalse(concurrency.getJsonArray("History").isEmpty());
+              
+              given().get("/manage/" + InFlightRoute.CONCURRENCY_PATH + "?seconds=-1").then().statusCode(400);
+              given().get("/manage/" + InFlightRoute.CONCURRENCY_PATH + "?seconds=x").then().statusCode(400);
+              return null;
+            }))
+            .onSuccess(v -> testContext.completeNow())
+            .onFailure(testContext::failNow);
+  }
+
+  @Test
+  public void testLatency(Vertx vertx, VertxTestContext testContext) {
+
+    Router router = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    
+    ManagementRoute.deployStandardMgmtEndpoints(mgmtRouter, router, Arrays.asList(InFlightRoute.PATH, LatencyRoute.PATH), null);
+    ManagementRoute.createAndDeploy(null, router, null, null, null, mgmtRouter, null);
+
+    HttpServerVerticle httperServerVerticle = new HttpServerVerticle(router);
+    
+    vertx
+            .deployVerticle(httperServerVerticle)
+            .compose(verticleName -> vertx.executeBlocking(() -> {
+              port = httperServerVerticle.getPort();
+              RestAssured.port = port;
+              given().get("/manage/" + InFlightRoute.PATH).then().statusCode(200);
+              // Management routes deployed alongside the latency route are recorded against their own routes
+              given()
+                      .accept(ContentType.JSON)
+                      .get("/manage/" + LatencyRoute.PATH)
+                      .then()
+                      .statusCode(200)
+                      .body("route", hasItem("GET /manage/" + InFlightRoute.PATH));
+              return null;
+            }))
+            .onSuccess(v -> testContext.completeNow())
+            .onFailure(testContext::failNow);
+  }
 }
@@ -31,7 +31,9 @@ import io.vertx.junit5.VertxTestContext;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.util.Collections;
+import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -120,6 +122,13 @@ public class ManagementRouteNewServerIT {
                         .extract().body().asString()
                         ;                  
                     logger.debug("Response: {}", body);
+
+                    // Draining is only enabled when it is explicitly listed
+                    given()
+                        .get("/manage/" + InFlightRoute.DRAIN_PATH)
+                        .then()
+                        .statusCode(404)
+                        ;
                   });
                   testContext.completeNow();
                   return null;
@@ -229,4 +238,45 @@ public class ManagementRouteNewServerIT {
                 
   }
   
+  @Test
+  public void testHttpServerWithColumnarAccessLog(Vertx vertx, VertxTestContext testContext) throws IOException {
+
+    Router rootRouter = Router.router(vertx);
+    Router mgmtRouter = Router.router(vertx);
+    
+    port = findPort();
+    ManagementRoute.deployStandardMgmtEndpoints(mgmtRouter, rootRouter, Collections.emptyList(), null
+            , new AccessLogCaptureRoute(1000, AccessLogCaptureRoute.Storage.COLUMNAR));
+    rootRouter.get("/hello").handler(rc -> rc.response().end("Hello"));
+    Future<HttpServer> serverFuture = ManagementRoute.createAndDeploy(vertx, rootRouter, new HttpServerOptions(), port, null, mgmtRouter, null);
+    
+    Future<HttpServer> rootServerFuture = vertx.createHttpServer().requestHandler(rootRouter).listen(0);
+
+    rootServerFuture
+            .compose(rootServer -> {
+              rootPort = rootServer.actualPort();
+              return serverFuture;
+            })
+            .compose(server -> vertx.executeBlocking(() -> {
+              RestAssured.port = rootPort;
+              given().get("/hello").then().statusCode(200);
+              given().get("/hello?name=fred").then().statusCode(200);
+
+              RestAssured.port = port;
+              String body = given()
+                  .accept(ContentType.JSON)
+                  .get("/manage/" + AccessLogOutputRoute.PATH)
+                  .then()
+                  .statusCode(200)
+                  .log().all()
+                  .body("url", hasItems(endsWith("/hello"), endsWith("/hello?name=fred")))
+                  .extract().body().asString()
+                  ;
+              logger.debug("Access log: {}", body);
+              return null;
+            }))
+            .onSuccess(v -> testContext.completeNow())
+            .onFailure(testContext::failNow);
+  }
+  
 }
@@ -18,6 +18,14 @@ package uk.co.spudsoft.mgmt;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -111,4 +119,170 @@ public class RingBufferTest {
     assertArrayEquals(new String[]{"Nine", "Ten", "Eleven", "Twelve", "Thirteen", "Fourteen"}, rb.toArray(i -> new String[i]));
     
   }  
+
+  @Test
+  public void testBadCapacity() {
+    assertThrows(IllegalArgumentException.class, () -> new RingBuffer<String>(0));
+  }
+
+  @Test
+  public void testEvictionListener() {
+    List<String> evicted = new ArrayList<>();
+    RingBuffer<String> rb = new RingBuffer<>(2, evicted::add);
+    rb.add("One");
+    rb.add("Two");
+    assertEquals(0, evicted.size());
+    rb.add("Three");
+    rb.add("Four");
+    assertEquals(Arrays.asList("One", "Two"), evicted);
+    assertArrayEquals(new String[]{"Three", "Four"}, rb.toArray(i -> new String[i]));
+  }
+
+  @Test
+  public void testWeighted() {
+    assertThrows(IllegalArgumentException.class, () -> new RingBuffer<String>(10, String::length, 0, null));
+
+    List<String> evicted = new ArrayList<>();
+    RingBuffer<String> rb = new RingBuffer<>(100, String::length, 10, evicted::add);
+    rb.add("aaaa");
+    rb.add("bbbb");
+    rb.add("cc");
+    assertEquals(10, rb.getWeight());
+    assertEquals(3, rb.size());
+    assertEquals(0, evicted.size());
+
+    rb.add("dddd");
+    assertEquals(10, rb.getWeight());
+    assertArrayEquals(new String[]{"bbbb", "cc", "dddd"}, rb.toArray(i -> new String[i]));
+    assertEquals(Arrays.asList("aaaa"), evicted);
+
+    // An item heavier than the maximum evicts everything else but is kept itself
+    String large = "x".repeat(20);
+    rb.add(large);
+    assertEquals(20, rb.getWeight());
+    assertEquals(1, rb.size());
+    assertArrayEquals(new String[]{large}, rb.toArray(i -> new String[i]));
+    assertEquals(Arrays.asList("aaaa", "bbbb", "cc", "dddd"), evicted);
+
+    rb.add("e");
+    assertEquals(1, rb.getWeight());
+    assertArrayEquals(new String[]{"e"}, rb.toArray(i -> new String[i]));
+
+    // The capacity still applies
+    RingBuffer<String> small = new RingBuffer<>(2, String::length, 100, null);
+    small.add("one");
+    small.add("two");
+    small.add("three");
+    assertEquals(8, small.getWeight());
+    assertEquals(2, small.size());
+    assertArrayEquals(new String[]{"two", "three"}, small.toArray(i -> new String[i]));
+
+    // Without a weigher the weight is not tracked
+    RingBuffer<String> unweighted = new RingBuffer<>(2);
+    unweighted.add("one");
+    assertEquals(0, unweighted.getWeight());
+  }
+
+  @Test
+  public void testConcurrentWeighted() throws Exception {
+    int threadCount = 8;
+    int itemsPerThread = 20000;
+    AtomicLong evicted = new AtomicLong();
+    RingBuffer<long[]> rb = new RingBuffer<>(100, item -> item[2], 200, item -> evicted.incrementAndGet());
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; ++t) {
+      long threadId = t;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException ex) {
+          return;
+        }
+        try {
+          for (long i = 0; i < itemsPerThread; ++i) {
+            rb.add(new long[]{threadId, i, 1 + i % 10});
+            if (i % 1000 == 0) {
+              assertSnapshotOrdered(rb.toArray(n -> new long[n][]), threadCount);
+            }
+          }
+        } catch (Throwable ex) {
+          failure.compareAndSet(null, ex);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError("Writer thread failed", failure.get());
+    }
+    long[][] snapshot = rb.toArray(n -> new long[n][]);
+    assertSnapshotOrdered(snapshot, threadCount);
+    long total = 0;
+    for (long[] item : snapshot) {
+      total += item[2];
+    }
+    assertEquals(total, rb.getWeight());
+    assertEquals(snapshot.length, rb.size());
+    assertEquals((long) threadCount * itemsPerThread, evicted.get() + snapshot.length);
+    assertTrue(rb.getWeight() <= 200 + 10 * threadCount, "Weight " + rb.getWeight() + " should be close to the maximum");
+  }
+
+  @Test
+  public void testConcurrentAdd() throws Exception {
+    int threadCount = 8;
+    int itemsPerThread = 20000;
+    RingBuffer<long[]> rb = new RingBuffer<>(100);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; ++t) {
+      long threadId = t;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException ex) {
+          return;
+        }
+        try {
+          for (long i = 0; i < itemsPerThread; ++i) {
+            rb.add(new long[]{threadId, i});
+            if (i % 1000 == 0) {
+              assertSnapshotOrdered(rb.toArray(n -> new long[n][]), threadCount);
+            }
+          }
+        } catch (Throwable ex) {
+          failure.compareAndSet(null, ex);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError("Writer thread failed", failure.get());
+    }
+    assertEquals(100, rb.size());
+    long[][] snapshot = rb.toArray(n -> new long[n][]);
+    assertEquals(100, snapshot.length);
+    assertSnapshotOrdered(snapshot, threadCount);
+  }
+
+  private static void assertSnapshotOrdered(long[][] snapshot, int threadCount) {
+    long[] last = new long[threadCount];
+    Arrays.fill(last, -1);
+    for (long[] item : snapshot) {
+      int threadId = (int) item[0];
+      assertTrue(item[1] > last[threadId], "Items from each thread must be in the order that they were added");
+      last[threadId] = item[1];
+    }
+  }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class SlowestBufferTest {
+
+  @Test
+  public void testBadArguments() {
+    assertThrows(IllegalArgumentException.class, () -> new SlowestBuffer<Long>(0, 1000, l -> l));
+    assertThrows(IllegalArgumentException.class, () -> new SlowestBuffer<Long>(10, 5, l -> l));
+  }
+
+  @Test
+  public void testTopK() {
+    AtomicLong clock = new AtomicLong(1000);
+    SlowestBuffer<Long> buffer = new SlowestBuffer<>(3, 1000, l -> l, clock::get);
+    assertEquals(0, buffer.size());
+    assertTrue(buffer.wouldAccept(0));
+
+    buffer.add(5L);
+    buffer.add(1L);
+    buffer.add(7L);
+    assertTrue(buffer.wouldAccept(2));
+    buffer.add(2L);
+    assertFalse(buffer.wouldAccept(2));
+    buffer.add(2L);
+    buffer.add(9L);
+    assertEquals(3, buffer.size());
+    assertArrayEquals(new Long[]{9L, 7L, 5L}, buffer.toArray(Long[]::new));
+
+    // A new bucket accepts anything, and the results are merged across buckets
+    clock.addAndGet(100);
+    assertTrue(buffer.wouldAccept(1));
+    buffer.add(6L);
+    buffer.add(1L);
+    assertArrayEquals(new Long[]{9L, 7L, 6L}, buffer.toArray(Long[]::new));
+
+    // The first bucket expires once the window has passed
+    clock.addAndGet(950);
+    assertArrayEquals(new Long[]{6L, 1L}, buffer.toArray(Long[]::new));
+
+    clock.addAndGet(1000);
+    assertEquals(0, buffer.size());
+
+    // Reusing an expired bucket clears it
+    buffer.add(3L);
+    assertArrayEquals(new Long[]{3L}, buffer.toArray(Long[]::new));
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class StringInternerTest {
+
+  @Test
+  public void testCapacity() {
+    assertThrows(IllegalArgumentException.class, () -> new StringInterner(0));
+    assertEquals(1, new StringInterner(1).capacity());
+    assertEquals(16, new StringInterner(16).capacity());
+    assertEquals(32, new StringInterner(17).capacity());
+    assertEquals(StringInterner.MAX_CAPACITY, new StringInterner(Integer.MAX_VALUE).capacity());
+  }
+
+  @Test
+  public void testIntern() {
+    StringInterner interner = new StringInterner(64);
+    assertNull(interner.intern(null));
+
+    String first = new String("Mozilla/5.0");
+    String second = new String("Mozilla/5.0");
+    assertNotSame(first, second);
+    assertSame(first, interner.intern(first));
+    assertSame(first, interner.intern(second));
+
+    String large = "x".repeat(StringInterner.MAX_LENGTH + 1);
+    String largeCopy = new String(large);
+    assertSame(large, interner.intern(large));
+    assertSame(largeCopy, interner.intern(largeCopy));
+
+    // With a single slot every new value replaces the previous one
+    StringInterner tiny = new StringInterner(1);
+    String a = new String("a");
+    String b = new String("b");
+    assertSame(a, tiny.intern(a));
+    assertSame(b, tiny.intern(b));
+    assertSame(b, tiny.intern(new String("b")));
+    assertNotSame(a, tiny.intern(new String("a")));
+  }
+
+}
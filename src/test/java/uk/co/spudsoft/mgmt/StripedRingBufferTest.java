@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2023 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.mgmt;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.VerticleBase;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class StripedRingBufferTest {
+  
+  @Test
+  public void testStripe() {
+    StripedRingBuffer.Stripe<String> stripe = new StripedRingBuffer.Stripe<>(3, Thread.currentThread());
+    assertEquals(0, stripe.size());
+    assertEquals(List.of(), stripe.snapshot());
+    stripe.add("One");
+    stripe.add("Two");
+    assertEquals(2, stripe.size());
+    assertEquals(List.of("One", "Two"), stripe.snapshot());
+    stripe.add("Three");
+    stripe.add("Four");
+    assertEquals(3, stripe.size());
+    assertEquals(List.of("Two", "Three", "Four"), stripe.snapshot());
+  }
+  
+  @Test
+  public void testWithoutContext() {
+    StripedRingBuffer<Long> buffer = new StripedRingBuffer<>(3, l -> l);
+    for (long i = 0; i < 5; ++i) {
+      buffer.add(i);
+    }
+    assertEquals(0, buffer.getStripeCount());
+    assertEquals(3, buffer.size());
+    assertArrayEquals(new Long[] {2L, 3L, 4L}, buffer.toArray(i -> new Long[i]));
+  }
+  
+  @Test
+  public void testMergeAcrossEventLoops() throws Exception {
+    Vertx vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(4));
+    try {
+      StripedRingBuffer<Long> buffer = new StripedRingBuffer<>(10, l -> l, 4);
+      
+      // Each verticle instance runs on its own event loop and adds every fourth value, so the merged output should be a contiguous sequence
+      CountDownLatch latch = new CountDownLatch(4);
+      AtomicInteger instance = new AtomicInteger();
+      Set<Thread> threads = ConcurrentHashMap.newKeySet();
+      vertx.deployVerticle(() -> new VerticleBase() {
+        @Override
+        public Future<?> start() {
+          long offset = instance.getAndIncrement();
+          context.runOnContext(v -> {
+            threads.add(Thread.currentThread());
+            for (long value = offset; value < 100; value += 4) {
+              buffer.add(value);
+            }
+            latch.countDown();
+          });
+          return Future.succeededFuture();
+        }
+      }, new DeploymentOptions().setInstances(4));
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+      buffer.add(1000L);
+      
+      // There is a stripe for each event loop thread, not for each context
+      assertEquals(4, threads.size());
+      assertEquals(4, buffer.getStripeCount());
+      assertEquals(10, buffer.size());
+      Long[] result = buffer.toArray(i -> new Long[i]);
+      assertArrayEquals(new Long[] {91L, 92L, 93L, 94L, 95L, 96L, 97L, 98L, 99L, 1000L}, result);
+    } finally {
+      vertx.close();
+    }
+  }
+  
+  @Test
+  public void testMaxStripes() throws Exception {
+    assertThrows(IllegalArgumentException.class, () -> new StripedRingBuffer<Long>(3, l -> l, -1));
+    StripedRingBuffer<Long> buffer = new StripedRingBuffer<>(3, l -> l, 1);
+    
+    Vertx first = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(1));
+    Thread firstThread = addOnEventLoop(first, buffer, 1L, 2L);
+    assertEquals(1, buffer.getStripeCount());
+    
+    // Whilst the first event loop thread is running there is no room for a stripe for another
+    Vertx second = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(1));
+    try {
+      addOnEventLoop(second, buffer, 3L);
+      assertEquals(1, buffer.getStripeCount());
+      assertArrayEquals(new Long[] {1L, 2L, 3L}, buffer.toArray(i -> new Long[i]));
+    } finally {
+      second.close().await(10, TimeUnit.SECONDS);
+    }
+    
+    // Once the first event loop thread has terminated its stripe can be discarded to make room for another
+    first.close().await(10, TimeUnit.SECONDS);
+    firstThread.join(10000);
+    Vertx third = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(1));
+    try {
+      Thread thirdThread = addOnEventLoop(third, buffer, 4L);
+      assertEquals(1, buffer.getStripeCount());
+      assertArrayEquals(new Long[] {3L, 4L}, buffer.toArray(i -> new Long[i]));
+      assertTrue(thirdThread != firstThread);
+    } finally {
+      third.close().await(10, TimeUnit.SECONDS);
+    }
+  }
+  
+  private static Thread addOnEventLoop(Vertx vertx, StripedRingBuffer<Long> buffer, Long... values) throws Exception {
+    CompletableFuture<Thread> done = new CompletableFuture<>();
+    vertx.getOrCreateContext().runOnContext(v -> {
+      for (Long value : values) {
+        buffer.add(value);
+      }
+      done.complete(Thread.currentThread());
+    });
+    return done.get(10, TimeUnit.SECONDS);
+  }
+  
+}
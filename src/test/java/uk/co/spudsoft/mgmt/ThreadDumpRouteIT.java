@@ -19,6 +19,7 @@ import org.slf4j.LoggerFactory;
 import static io.restassured.RestAssured.given;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
 
 /**
  *
@@ -146,7 +147,28 @@ public class ThreadDumpRouteIT {
                       )
                       ;
                   
+                  given()
+                      .log().all()
+                      .accept("text/plain")
+                      .get("/manage/" + ThreadDumpRoute.PATH + "?name=^vert\\.x-eventloop&state=RUNNABLE&maxDepth=3&lockedMonitors&lockedSynchronizers")
+                      .then()
+                      .statusCode(200)
+                      .log().body()
+                      .body(
+                          startsWith("vert.x-eventloop")
+                          , not(containsString("TIMED_WAIT"))
+                          , not(containsString("main ("))
+                      )
+                      ;
                   
+                  given()
+                      .log().all()
+                      .accept("text/plain")
+                      .get("/manage/" + ThreadDumpRoute.PATH + "?maxDepth=all")
+                      .then()
+                      .statusCode(400)
+                      .body(containsString("maxDepth"))
+                      ;
                   
                 });
 
@@ -16,11 +16,22 @@
  */
 package uk.co.spudsoft.mgmt;
 
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+import java.lang.management.ThreadInfo;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 import org.junit.jupiter.api.Test;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,5 +59,83 @@ public class ThreadDumpRouteTest {
     assertThat(stackTrace, containsString("WAITING"));
     assertThat(stackTrace, containsString("Daemon"));
   }
+
+  @Test
+  public void testFilteredDump() {
+    ThreadDumpRoute.DumpOptions options = new ThreadDumpRoute.DumpOptions(false, false, 2, Pattern.compile("^main$"), null);
+    ThreadInfo[] threads = ThreadDumpRoute.dumpThreads(options);
+    assertEquals(1, threads.length);
+    assertEquals("main", threads[0].getThreadName());
+    assertEquals(2, threads[0].getStackTrace().length);
+    
+    options = new ThreadDumpRoute.DumpOptions(false, false, -1, null, Thread.State.RUNNABLE);
+    threads = ThreadDumpRoute.dumpThreads(options);
+    assertTrue(threads.length > 0);
+    boolean foundMain = false;
+    for (ThreadInfo t : threads) {
+      foundMain |= "main".equals(t.getThreadName());
+    }
+    assertTrue(foundMain);
+    
+    options = new ThreadDumpRoute.DumpOptions(false, false, -1, Pattern.compile("no thread has this name"), null);
+    assertEquals(0, ThreadDumpRoute.dumpThreads(options).length);
+  }
+  
+  @Test
+  public void testLocks() {
+    Object monitor = new Object();
+    ReentrantLock lock = new ReentrantLock();
+    Pattern main = Pattern.compile("^main$");
+    lock.lock();
+    try {
+      synchronized (monitor) {
+        String withoutLocks = ThreadDumpRoute.buildStackTraceText(ThreadDumpRoute.dumpThreads(new ThreadDumpRoute.DumpOptions(false, false, -1, main, null)), false);
+        assertThat(withoutLocks, not(containsString("- locked")));
+        assertThat(withoutLocks, not(containsString("Locked synchronizers")));
+        
+        ThreadInfo[] threads = ThreadDumpRoute.dumpThreads(new ThreadDumpRoute.DumpOptions(true, true, -1, main, null));
+        String withLocks = ThreadDumpRoute.buildStackTraceText(threads, false);
+        logger.debug("With locks: {}", withLocks);
+        assertThat(withLocks, containsString("  - locked java.lang.Object@"));
+        assertThat(withLocks, containsString("Locked synchronizers:\n    - java.util.concurrent.locks.ReentrantLock$NonfairSync@"));
+        
+        JsonObject json = ThreadDumpRoute.buildStackTraceJson(threads).getJsonObject("main");
+        assertThat(json.getJsonArray("lockedMonitors").getJsonObject(0).getString("lock"), startsWith("java.lang.Object@"));
+        assertThat(json.getJsonArray("lockedSynchronizers").getString(0), startsWith("java.util.concurrent.locks.ReentrantLock$NonfairSync@"));
+        
+        assertThat(ThreadDumpRoute.buildStackTraceHtml(threads), containsString("- locked java.lang.Object@"));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  @Test
+  public void testParseOptions() {
+    HttpServerRequest request = mock(HttpServerRequest.class);
+    ThreadDumpRoute.DumpOptions options = ThreadDumpRoute.parseOptions(request);
+    assertEquals(0, ThreadDumpRoute.dumpThreads(options)[0].getLockedMonitors().length);
+    
+    when(request.getParam("maxDepth")).thenReturn("1");
+    when(request.getParam("name")).thenReturn("ma.n");
+    when(request.getParam("state")).thenReturn("runnable");
+    when(request.getParam("lockedMonitors")).thenReturn("");
+    options = ThreadDumpRoute.parseOptions(request);
+    ThreadInfo[] threads = ThreadDumpRoute.dumpThreads(options);
+    assertEquals("main", threads[0].getThreadName());
+    assertEquals(1, threads[0].getStackTrace().length);
+    
+    when(request.getParam("maxDepth")).thenReturn("deep");
+    assertEquals("Invalid value for maxDepth", assertThrows(IllegalArgumentException.class, () -> ThreadDumpRoute.parseOptions(request)).getMessage());
+    when(request.getParam("maxDepth")).thenReturn(null);
+    when(request.getParam("name")).thenReturn("[");
+    assertEquals("Invalid value for name", assertThrows(IllegalArgumentException.class, () -> ThreadDumpRoute.parseOptions(request)).getMessage());
+    when(request.getParam("name")).thenReturn("");
+    when(request.getParam("state")).thenReturn("asleep");
+    assertEquals("Invalid value for state", assertThrows(IllegalArgumentException.class, () -> ThreadDumpRoute.parseOptions(request)).getMessage());
+    when(request.getParam("state")).thenReturn(null);
+    // An empty name does not filter the threads
+    assertTrue(ThreadDumpRoute.dumpThreads(ThreadDumpRoute.parseOptions(request)).length > 1);
+  }
   
 }